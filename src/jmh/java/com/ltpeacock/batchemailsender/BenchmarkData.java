@@ -0,0 +1,60 @@
+package com.ltpeacock.batchemailsender;
+
+/**
+ * Generates templates and CSV data of a given size for the benchmarks.
+ * @author LieutenantPeacock
+ *
+ */
+final class BenchmarkData {
+	private BenchmarkData() {
+	}
+
+	/**
+	 * @param bodyLines The number of lines in the body.
+	 * @param columns The number of columns in the data (at least 2).
+	 * @return A template with one placeholder per body line, cycling through the columns.
+	 */
+	static String template(final int bodyLines, final int columns) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("[TO]\n${EMAIL}\n---\n");
+		sb.append("[SUBJECT]\nAccount update for ${NAME}\n---\n");
+		sb.append("[BODY]\n");
+		for (int i = 0; i < bodyLines; i++) {
+			sb.append("Dear ${NAME}, line ").append(i).append(" of your statement shows ${")
+					.append(column(i % (columns - 1) + 1)).append("} as of the end of the month.\n");
+		}
+		sb.append("---\n");
+		return sb.toString();
+	}
+
+	/**
+	 * @param rows The number of rows, not counting the header.
+	 * @param columns The number of columns (at least 2).
+	 * @return CSV data with an {@code EMAIL} column followed by {@code NAME} and {@code COL2}, {@code COL3}, etc.
+	 */
+	static String csv(final int rows, final int columns) {
+		final StringBuilder sb = new StringBuilder();
+		for (int c = 0; c < columns; c++) {
+			sb.append(c > 0 ? "," : "").append(column(c));
+		}
+		sb.append("\r\n");
+		for (int r = 1; r <= rows; r++) {
+			sb.append("user").append(r).append("@example.com");
+			for (int c = 1; c < columns; c++) {
+				sb.append(',');
+				if (c % 7 == 3) {
+					// some values are quoted because they contain commas
+					sb.append("\"").append(r).append(", Main Street\"");
+				} else {
+					sb.append("Value ").append(r).append('-').append(c);
+				}
+			}
+			sb.append("\r\n");
+		}
+		return sb.toString();
+	}
+
+	private static String column(final int c) {
+		return c == 0 ? "EMAIL" : c == 1 ? "NAME" : "COL" + c;
+	}
+}
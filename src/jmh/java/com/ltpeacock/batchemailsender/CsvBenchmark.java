@@ -0,0 +1,107 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for reading the CSV data: iterating over all records with commons-csv and with
+ * {@link MappedCsvRecordSource} (decoding every column, or only as many as a typical template
+ * uses), and building a {@link CsvIndex}, for data with different numbers of columns.
+ * @author LieutenantPeacock
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvBenchmark {
+	@Param({ "10000" })
+	int rows;
+
+	@Param({ "5", "20", "50" })
+	int columns;
+
+	private byte[] data;
+	private File dataFile;
+
+	@Setup
+	public void setUp() throws IOException {
+		data = BenchmarkData.csv(rows, columns).getBytes(StandardCharsets.UTF_8);
+		dataFile = File.createTempFile("CsvBenchmark", ".csv");
+		Files.write(dataFile.toPath(), data);
+	}
+
+	@TearDown
+	public void tearDown() {
+		dataFile.delete();
+	}
+
+	@Benchmark
+	public void iterateRecords(final Blackhole blackhole) throws IOException {
+		try (BufferedReader br = new BufferedReader(
+				new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8));
+				CSVParser parser = CSVFormat.RFC4180.withFirstRecordAsHeader().parse(br)) {
+			for (final CSVRecord record : parser) {
+				for (int i = 0; i < columns; i++) {
+					blackhole.consume(record.get(i));
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public void iterateMappedRecords(final Blackhole blackhole) throws IOException {
+		try (RecordSource source = new MappedCsvRecordSource(dataFile, StandardCharsets.UTF_8)) {
+			consumeAll(source, blackhole);
+		}
+	}
+
+	@Benchmark
+	public void iterateMappedRecordsFiveColumns(final Blackhole blackhole) throws IOException {
+		try (RecordSource source = new MappedCsvRecordSource(dataFile, StandardCharsets.UTF_8)) {
+			final BitSet selected = new BitSet();
+			selected.set(0, Math.min(columns, 5));
+			source.selectColumns(selected);
+			consumeAll(source, blackhole);
+		}
+	}
+
+	private void consumeAll(final RecordSource source, final Blackhole blackhole) throws IOException {
+		for (DataRecord record; (record = source.next()) != null;) {
+			for (int i = 0; i < columns; i++) {
+				blackhole.consume(record.get(i));
+			}
+		}
+	}
+
+	@Benchmark
+	public CsvIndex buildIndex() throws IOException {
+		return CsvIndex.build(dataFile);
+	}
+}
@@ -0,0 +1,241 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Sends a synthetic campaign through {@link MailWorker} and {@link BasicMailSender} to a
+ * {@link FakeSmtpServer}, and reports the throughput, the time per email and per phase
+ * (see {@link SendMetrics}), and the heap use, as a repeatable baseline for changes to the sending path.
+ * <br>
+ * Options are given as {@code name=value} arguments:
+ * <ul>
+ * <li>{@code rows}: the number of rows in the generated CSV data (default 10000)</li>
+ * <li>{@code threads}: the number of sending threads (default 4)</li>
+ * <li>{@code renderThreads}: the number of rendering threads, or 0 for the default (default 0)</li>
+ * <li>{@code latency}: the simulated round-trip time to the mail server in milliseconds (default 1)</li>
+ * <li>{@code pipelining}: whether the mail server supports pipelining (default true)</li>
+ * <li>{@code streamingMime}: whether to use streaming MIME (default false)</li>
+ * <li>{@code batchRecipients}: the maximum number of recipients per batched email (default 1)</li>
+ * <li>{@code attachmentKb}: the size of an attachment added to every email in KB, or 0 for none (default 0)</li>
+ * <li>{@code maxMessagesPerConnection}: the maximum number of emails per connection (default 100)</li>
+ * <li>{@code archive}: whether to write the emails to an {@link EmailArchive} instead of logging them (default false)</li>
+ * </ul>
+ * @author LieutenantPeacock
+ *
+ */
+public class LoadTestRunner {
+	private static final int COLUMNS = 5;
+	private static final int BODY_LINES = 20;
+
+	public static void main(final String[] args) throws IOException, MailSendingException, InterruptedException {
+		final Map<String, String> options = new HashMap<>();
+		for (final String arg : args) {
+			final int eq = arg.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Arguments must be of the form name=value: " + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		final int rows = Integer.parseInt(options.getOrDefault("rows", "10000"));
+		final int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+		final int renderThreads = Integer.parseInt(options.getOrDefault("renderThreads", "0"));
+		final long latency = Long.parseLong(options.getOrDefault("latency", "1"));
+		final boolean pipelining = Boolean.parseBoolean(options.getOrDefault("pipelining", "true"));
+		final boolean streamingMime = Boolean.parseBoolean(options.getOrDefault("streamingMime", "false"));
+		final int batchRecipients = Integer.parseInt(options.getOrDefault("batchRecipients", "1"));
+		final int attachmentKb = Integer.parseInt(options.getOrDefault("attachmentKb", "0"));
+		final int maxMessagesPerConnection = Integer.parseInt(options.getOrDefault("maxMessagesPerConnection", "100"));
+		final boolean archive = Boolean.parseBoolean(options.getOrDefault("archive", "false"));
+		System.out.format("rows=%d threads=%d renderThreads=%d latency=%dms pipelining=%b streamingMime=%b batchRecipients=%d "
+				+ "attachmentKb=%d maxMessagesPerConnection=%d archive=%b%n", rows, threads, renderThreads, latency, pipelining,
+				streamingMime, batchRecipients, attachmentKb, maxMessagesPerConnection, archive);
+
+		final File dataFile = File.createTempFile("LoadTest", ".csv");
+		final File attachment = attachmentKb > 0 ? File.createTempFile("LoadTest", ".pdf") : null;
+		final File archiveFile = new File(dataFile.getPath() + ".archive");
+		try (FakeSmtpServer server = FakeSmtpServer.builder().withLatency(latency).withPipelining(pipelining)
+				.build()) {
+			Files.write(dataFile.toPath(), BenchmarkData.csv(rows, COLUMNS).getBytes(StandardCharsets.UTF_8));
+			String templateText = BenchmarkData.template(BODY_LINES, COLUMNS);
+			if (attachment != null) {
+				final byte[] content = new byte[attachmentKb * 1024];
+				new Random(42).nextBytes(content);
+				Files.write(attachment.toPath(), content);
+				templateText += "[ATTACHMENTS]\n" + attachment.getAbsolutePath() + "\n---\n";
+			}
+			final EmailTemplate template = EmailTemplateParser
+					.parseTemplate(new ByteArrayInputStream(templateText.getBytes(StandardCharsets.UTF_8)));
+
+			final SendMetrics metrics = new SendMetrics();
+			final TimingMailSender mailSender = new TimingMailSender(BasicMailSender.builder()
+					.withServerInfo(server.serverInfo().withPipelining(pipelining)
+							.withMaxMessagesPerConnection(maxMessagesPerConnection).build())
+					.withStreamingMime(streamingMime).withAttachmentCache(new AttachmentCache(64L * 1024 * 1024))
+					.withMetrics(metrics).build(), rows);
+			final HeapSampler heapSampler = new HeapSampler();
+			final long gcCountBefore = gcCount(), gcTimeBefore = gcTime();
+			heapSampler.start();
+			final long start = System.nanoTime();
+			try (InputStream data = new FileInputStream(dataFile);
+					EmailArchive emailArchive = archive ? EmailArchive.open(archiveFile) : null) {
+				final MailWorker.Builder mailWorker = MailWorker.builder().withMailSender(mailSender)
+						.withThreads(threads);
+				if (renderThreads > 0) {
+					mailWorker.withRenderThreads(renderThreads);
+				}
+				mailWorker.withBatchRecipients(batchRecipients).withMetrics(metrics).withArchive(emailArchive).build()
+						.sendTemplatedEmails(data, template);
+			} finally {
+				mailSender.close();
+			}
+			final long elapsed = System.nanoTime() - start;
+			heapSampler.interrupt();
+			heapSampler.join();
+
+			final long[] latencies = mailSender.getLatencies();
+			Arrays.sort(latencies);
+			final double seconds = elapsed / 1e9;
+			System.out.format("Emails: %d sent, %d received by the server over %d connections, %d recipients%n",
+					latencies.length, server.getMessageCount(), server.getConnectionCount(),
+					server.getMessages().stream().mapToInt(m -> m.getRecipients().size()).sum());
+			System.out.format("Time: %.2f s, %.1f emails/s, %.1f rows/s%n", seconds, latencies.length / seconds,
+					rows / seconds);
+			System.out.format("Time per email (ms): p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n",
+					percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+					percentile(latencies, 100));
+			for (final SendMetrics.Phase phase : SendMetrics.Phase.values()) {
+				final LatencyHistogram histogram = metrics.getHistogram(phase);
+				System.out.format("Phase %s (ms): count %d, mean %.3f, p50 %.3f, p99 %.3f, max %.3f%n",
+						phase.metricName(), histogram.getCount(), histogram.getMeanMillis(),
+						histogram.getPercentileMillis(50), histogram.getPercentileMillis(99), histogram.getMaxMillis());
+			}
+			System.out.format("Heap: peak %.1f MB used, %d collections taking %d ms%n",
+					heapSampler.peakUsed / (1024.0 * 1024), gcCount() - gcCountBefore, gcTime() - gcTimeBefore);
+		} finally {
+			dataFile.delete();
+			archiveFile.delete();
+			EmailArchive.indexFile(archiveFile).delete();
+			if (attachment != null) {
+				attachment.delete();
+			}
+		}
+	}
+
+	private static double percentile(final long[] sorted, final int percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(gc.getCollectionTime(), 0);
+		}
+		return time;
+	}
+
+	/**
+	 * {@link MailSender} that records how long each email takes to send.
+	 */
+	private static final class TimingMailSender implements MailSender {
+		private final MailSender mailSender;
+		private final long[] latencies;
+		private final AtomicInteger count = new AtomicInteger();
+
+		private TimingMailSender(final MailSender mailSender, final int maxEmails) {
+			this.mailSender = mailSender;
+			this.latencies = new long[maxEmails];
+		}
+
+		@Override
+		public void sendEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
+				final String body, final String contentType, final File[] attachments) throws MailSendingException {
+			final long start = System.nanoTime();
+			mailSender.sendEmail(to, cc, bcc, subject, body, contentType, attachments);
+			record(System.nanoTime() - start);
+		}
+
+		@Override
+		public CompletableFuture<SendResult> sendEmailAsync(final String[] to, final String[] cc,
+				final String[] bcc, final String subject, final String body, final String contentType,
+				final File[] attachments, final Executor executor) {
+			return mailSender.sendEmailAsync(to, cc, bcc, subject, body, contentType, attachments, executor)
+					.thenApply(result -> {
+						if (result.isSent()) {
+							record(result.getDurationNanos());
+						}
+						return result;
+					});
+		}
+
+		private void record(final long nanos) {
+			final int index = count.getAndIncrement();
+			if (index < latencies.length) {
+				latencies[index] = nanos;
+			}
+		}
+
+		private long[] getLatencies() {
+			return Arrays.copyOf(latencies, Math.min(count.get(), latencies.length));
+		}
+
+		@Override
+		public void close() {
+			mailSender.close();
+		}
+	}
+
+	/**
+	 * Samples the used heap until interrupted.
+	 */
+	private static final class HeapSampler extends Thread {
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private volatile long peakUsed;
+
+		private HeapSampler() {
+			super("HeapSampler");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				peakUsed = Math.max(peakUsed, memory.getHeapMemoryUsage().getUsed());
+				try {
+					TimeUnit.MILLISECONDS.sleep(10);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+}
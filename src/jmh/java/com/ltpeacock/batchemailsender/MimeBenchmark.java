@@ -0,0 +1,115 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark for building an email with {@link BasicMailSender} and writing it out as it would be
+ * written to the mail server (but to a stream that discards it), with attachments of different
+ * sizes, with and without streaming MIME and the {@link AttachmentCache}.
+ * @author LieutenantPeacock
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MimeBenchmark {
+	private static final String[] TO = { "user1@example.com" };
+	private static final String[] CC = { "manager@example.com" };
+
+	/**
+	 * The size of the attachment in KB, or 0 for no attachment.
+	 */
+	@Param({ "0", "100", "2048" })
+	int attachmentKb;
+
+	@Param({ "false", "true" })
+	boolean streamingMime;
+
+	@Param({ "false", "true" })
+	boolean attachmentCache;
+
+	private BasicMailSender mailSender;
+	private String body;
+	private File attachment;
+	private File[] attachments;
+
+	@Setup
+	public void setUp() throws IOException {
+		mailSender = BasicMailSender.builder()
+				.withServerInfo(MailServerInfo.builder().withHost("localhost").withPort("25").build())
+				.withDryRun(true).withStreamingMime(streamingMime)
+				.withAttachmentCache(attachmentCache ? new AttachmentCache(64L * 1024 * 1024) : null).build();
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			sb.append("Dear User 1, line ").append(i).append(" of your statement shows Value 1-").append(i)
+					.append(" as of the end of the month.<br>");
+		}
+		body = sb.toString();
+		if (attachmentKb > 0) {
+			final byte[] content = new byte[attachmentKb * 1024];
+			new Random(42).nextBytes(content);
+			attachment = File.createTempFile("MimeBenchmark", ".pdf");
+			Files.write(attachment.toPath(), content);
+			attachments = new File[] { attachment };
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mailSender.close();
+		if (attachment != null) {
+			attachment.delete();
+		}
+	}
+
+	@Benchmark
+	public long buildAndWrite() throws MessagingException, IOException {
+		final Message message = mailSender.createMessage(TO, CC, null, "Account update for User 1", body,
+				MailContentTypes.HTML, attachments);
+		message.saveChanges();
+		final CountingOutputStream os = new CountingOutputStream();
+		message.writeTo(os);
+		return os.count;
+	}
+
+	/**
+	 * Output stream that discards everything written to it.
+	 */
+	private static final class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(final int b) {
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			count += len;
+		}
+	}
+}
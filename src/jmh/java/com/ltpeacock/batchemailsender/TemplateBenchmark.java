@@ -0,0 +1,77 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for parsing a template with {@link EmailTemplateParser} and rendering it for one row
+ * with {@link CompiledEmailTemplate}, for templates with different numbers of body lines and
+ * data with different numbers of columns. Every body line has a placeholder.
+ * @author LieutenantPeacock
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateBenchmark {
+	private static final int ROWS = 1000;
+
+	@Param({ "10", "100", "1000" })
+	int bodyLines;
+
+	@Param({ "5", "50" })
+	int columns;
+
+	private byte[] templateBytes;
+	private CompiledEmailTemplate compiled;
+	private DataRecord[] records;
+	private int next;
+
+	@Setup
+	public void setUp() throws IOException {
+		final String template = BenchmarkData.template(bodyLines, columns);
+		templateBytes = template.getBytes(StandardCharsets.UTF_8);
+		try (RecordSource source = new CsvRecordSource(new StringReader(BenchmarkData.csv(ROWS, columns)))) {
+			final List<DataRecord> list = new ArrayList<>();
+			for (DataRecord record; (record = source.next()) != null;) {
+				list.add(record);
+			}
+			records = list.toArray(new DataRecord[0]);
+			compiled = CompiledEmailTemplate.compile(
+					EmailTemplateParser.parseTemplate(new ByteArrayInputStream(templateBytes)),
+					source.getHeaderMap());
+		}
+	}
+
+	@Benchmark
+	public EmailTemplate parseTemplate() {
+		return EmailTemplateParser.parseTemplate(new ByteArrayInputStream(templateBytes));
+	}
+
+	@Benchmark
+	public RenderedEmail render() {
+		final DataRecord record = records[next];
+		next = (next + 1) % records.length;
+		return compiled.render(record);
+	}
+}
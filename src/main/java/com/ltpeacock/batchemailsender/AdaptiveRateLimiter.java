@@ -0,0 +1,164 @@
+package com.ltpeacock.batchemailsender;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate limiter that spaces out emails evenly at a rate which adapts to the mail server.
+ * <br>
+ * The rate starts at the configured maximum. Each time the mail server throttles sending,
+ * the rate is multiplied by a factor less than one (at most once per second, so that a burst
+ * of throttling replies from concurrent connections only counts once). Each successful email
+ * raises the rate again so that it grows by a fixed amount per second of successful sending,
+ * up to the maximum. This additive-increase/multiplicative-decrease scheme settles close to
+ * the highest rate that the mail server will sustain.
+ * <br>
+ * This class is safe for use by multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class AdaptiveRateLimiter {
+	private static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private final double maxRate, minRate, additiveIncrease, decreaseFactor;
+	private final LongSupplier clock;
+	private double rate;
+	private long nextFreeNanos;
+	private long lastDecreaseNanos;
+
+	private AdaptiveRateLimiter(final Builder builder) {
+		if (builder.maxRate <= 0)
+			throw new IllegalArgumentException("maxRate must be positive");
+		this.maxRate = builder.maxRate;
+		this.minRate = Math.min(builder.minRate, builder.maxRate);
+		this.additiveIncrease = builder.additiveIncrease > 0 ? builder.additiveIncrease : builder.maxRate / 30;
+		this.decreaseFactor = builder.decreaseFactor;
+		this.clock = builder.clock;
+		this.rate = builder.maxRate;
+		this.nextFreeNanos = clock.getAsLong();
+		this.lastDecreaseNanos = nextFreeNanos - DECREASE_COOLDOWN_NANOS;
+	}
+
+	/**
+	 * Waits until the next email may be sent at the current rate.
+	 */
+	public void acquire() {
+		long waitNanos = reserve();
+		while (waitNanos > 0) {
+			final long start = clock.getAsLong();
+			LockSupport.parkNanos(waitNanos);
+			waitNanos -= clock.getAsLong() - start;
+		}
+	}
+
+	private synchronized long reserve() {
+		final long now = clock.getAsLong();
+		final long slot = Math.max(nextFreeNanos, now);
+		nextFreeNanos = slot + intervalNanos();
+		return slot - now;
+	}
+
+	/**
+	 * Records that an email was accepted by the mail server, raising the rate.
+	 */
+	public synchronized void onSuccess() {
+		rate = Math.min(maxRate, rate + additiveIncrease / rate);
+	}
+
+	/**
+	 * Records that the mail server throttled sending, lowering the rate and delaying the next email.
+	 * @return Whether the rate was lowered, which it is not if it was already lowered less than a second ago.
+	 */
+	public synchronized boolean onThrottled() {
+		final long now = clock.getAsLong();
+		if (now - lastDecreaseNanos < DECREASE_COOLDOWN_NANOS) {
+			return false;
+		}
+		lastDecreaseNanos = now;
+		rate = Math.max(minRate, rate * decreaseFactor);
+		nextFreeNanos = Math.max(nextFreeNanos, now + intervalNanos());
+		return true;
+	}
+
+	/**
+	 * @return The current rate, in emails per second.
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	private long intervalNanos() {
+		return (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+	}
+
+	/**
+	 * Creates builder to build {@link AdaptiveRateLimiter}.
+	 *
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link AdaptiveRateLimiter}.
+	 */
+	public static final class Builder {
+		private double maxRate;
+		private double minRate = 0.1;
+		private double additiveIncrease;
+		private double decreaseFactor = 0.5;
+		private LongSupplier clock = System::nanoTime;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param maxRate The maximum and initial rate, in emails per second. Required.
+		 * @return This builder
+		 */
+		public Builder withMaxRate(double maxRate) {
+			this.maxRate = maxRate;
+			return this;
+		}
+
+		/**
+		 * @param minRate The rate, in emails per second, below which throttling does not lower the rate any further. Defaults to 0.1.
+		 * @return This builder
+		 */
+		public Builder withMinRate(double minRate) {
+			this.minRate = minRate;
+			return this;
+		}
+
+		/**
+		 * @param additiveIncrease The number of emails per second by which the rate grows for every second of
+		 * successful sending. Defaults to one thirtieth of the maximum rate.
+		 * @return This builder
+		 */
+		public Builder withAdditiveIncrease(double additiveIncrease) {
+			this.additiveIncrease = additiveIncrease;
+			return this;
+		}
+
+		/**
+		 * @param decreaseFactor The factor, between 0 and 1, that the rate is multiplied by when throttled. Defaults to 0.5.
+		 * @return This builder
+		 */
+		public Builder withDecreaseFactor(double decreaseFactor) {
+			if (decreaseFactor <= 0 || decreaseFactor >= 1)
+				throw new IllegalArgumentException("decreaseFactor must be between 0 and 1");
+			this.decreaseFactor = decreaseFactor;
+			return this;
+		}
+
+		Builder withClock(LongSupplier clock) {
+			this.clock = clock;
+			return this;
+		}
+
+		public AdaptiveRateLimiter build() {
+			return new AdaptiveRateLimiter(this);
+		}
+	}
+}
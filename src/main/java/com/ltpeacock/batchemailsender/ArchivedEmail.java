@@ -0,0 +1,72 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Class to store an email read from an {@link EmailArchive}.
+ * @author LieutenantPeacock
+ *
+ */
+public class ArchivedEmail {
+	private final List<Integer> rowNums;
+	private final long timestamp;
+	private final String[] to, cc, bcc;
+	private final String subject, body;
+	private final File[] attachments;
+
+	/**
+	 * Constructs an {@link ArchivedEmail}.
+	 * @param rowNums The numbers of the rows that the email was sent for.
+	 * @param timestamp The time the email was archived, in milliseconds since the epoch.
+	 * @param to An array of email addresses the email was sent to.
+	 * @param cc An array of email addresses carbon copies were sent to.
+	 * @param bcc An array of email addresses blind carbon copies were sent to.
+	 * @param subject The subject of the email.
+	 * @param body The content of the email.
+	 * @param attachments An array of {@link File} attachments included in the email.
+	 */
+	public ArchivedEmail(final List<Integer> rowNums, final long timestamp, final String[] to, final String[] cc,
+			final String[] bcc, final String subject, final String body, final File[] attachments) {
+		this.rowNums = rowNums;
+		this.timestamp = timestamp;
+		this.to = to;
+		this.cc = cc;
+		this.bcc = bcc;
+		this.subject = subject;
+		this.body = body;
+		this.attachments = attachments;
+	}
+
+	public List<Integer> getRowNums() {
+		return rowNums;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String[] getTo() {
+		return to;
+	}
+
+	public String[] getCc() {
+		return cc;
+	}
+
+	public String[] getBcc() {
+		return bcc;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public File[] getAttachments() {
+		return attachments;
+	}
+}
@@ -0,0 +1,141 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * Cache of base64-encoded attachments shared by all emails, so that a file attached to
+ * many emails is only read and encoded once.
+ * <br>
+ * Entries are keyed by the canonical path, the modification time, and the size of the file,
+ * so a file that changes is encoded again. The least recently used entries are evicted once
+ * the total size of the encoded attachments exceeds the byte budget; files whose encoded form
+ * alone would exceed the budget are not cached.
+ * <br>
+ * This class is safe for use by multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class AttachmentCache {
+	private static final String TRANSFER_ENCODING = "base64";
+	/** The number of characters per line of base64, each line ending with CRLF. */
+	private static final int BASE64_LINE_LENGTH = 76;
+	private final long maxBytes;
+	private final Map<String, EncodedAttachment> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	/**
+	 * Constructs an {@link AttachmentCache}.
+	 * @param maxBytes The maximum total size of the encoded attachments in the cache.
+	 */
+	public AttachmentCache(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Creates a new {@link MimeBodyPart} for an attachment that reuses the cached encoded
+	 * content of the file.
+	 * @param file The file to attach.
+	 * @return The MimeBodyPart, or {@code null} if the file is too large to be cached.
+	 * @throws IOException If the file cannot be read
+	 * @throws MessagingException If the MimeBodyPart cannot be created
+	 */
+	public MimeBodyPart createBodyPart(final File file) throws IOException, MessagingException {
+		final EncodedAttachment attachment = get(file);
+		if (attachment == null) {
+			return null;
+		}
+		final MimeBodyPart part = new MimeBodyPart(new InternetHeaders(), attachment.content);
+		part.setHeader("Content-Type", attachment.contentType);
+		part.setHeader("Content-Transfer-Encoding", TRANSFER_ENCODING);
+		part.setFileName(file.getName());
+		part.setDisposition(Part.ATTACHMENT);
+		return part;
+	}
+
+	/**
+	 * Gets the encoded form of a file, encoding and caching it if necessary.
+	 * @param file The file.
+	 * @return The encoded attachment, or {@code null} if the file is too large to be cached.
+	 * @throws IOException If the file cannot be read
+	 */
+	EncodedAttachment get(final File file) throws IOException {
+		final long size = file.length();
+		if (encodedLength(size) > maxBytes) {
+			return null;
+		}
+		final String key = file.getCanonicalPath() + '\0' + file.lastModified() + '\0' + size;
+		synchronized (this) {
+			final EncodedAttachment attachment = entries.get(key);
+			if (attachment != null) {
+				return attachment;
+			}
+		}
+		final EncodedAttachment attachment = encode(file);
+		synchronized (this) {
+			if (entries.put(key, attachment) == null) {
+				totalBytes += attachment.content.length;
+			}
+			for (final Iterator<EncodedAttachment> it = entries.values().iterator(); totalBytes > maxBytes
+					&& it.hasNext();) {
+				totalBytes -= it.next().content.length;
+				it.remove();
+			}
+		}
+		return attachment;
+	}
+
+	private static EncodedAttachment encode(final File file) throws IOException {
+		final byte[] data = Files.readAllBytes(file.toPath());
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(
+				(int) Math.min(encodedLength(data.length), Integer.MAX_VALUE - 8));
+		try (OutputStream os = MimeUtility.encode(bos, TRANSFER_ENCODING)) {
+			os.write(data);
+		} catch (MessagingException e) {
+			throw new IOException(e);
+		}
+		return new EncodedAttachment(FileTypeMap.getDefaultFileTypeMap().getContentType(file), bos.toByteArray());
+	}
+
+	/**
+	 * @param size The size of a file.
+	 * @return The size of the file encoded as base64, including the CRLF after every line.
+	 */
+	static long encodedLength(final long size) {
+		final long chars = (size + 2) / 3 * 4;
+		return chars + (chars + BASE64_LINE_LENGTH - 1) / BASE64_LINE_LENGTH * 2;
+	}
+
+	/**
+	 * @return The total size of the encoded attachments in the cache.
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * The content type and base64-encoded content of a file.
+	 */
+	static final class EncodedAttachment {
+		final String contentType;
+		final byte[] content;
+
+		private EncodedAttachment(final String contentType, final byte[] content) {
+			this.contentType = contentType;
+			this.content = content;
+		}
+	}
+}
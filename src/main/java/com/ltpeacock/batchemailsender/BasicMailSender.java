@@ -2,8 +2,13 @@ package com.ltpeacock.batchemailsender;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import javax.mail.Address;
 import javax.mail.Authenticator;
 import javax.mail.BodyPart;
 import javax.mail.Message;
@@ -11,12 +16,12 @@ import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,13 +32,42 @@ import com.ltpeacock.batchemailsender.exception.MailSendingException;
 /**
  * A simple implementation of {@link MailSender} using a {@link Properties} instance,
  * the username, and the password contained in a {@link MailServerInfo}.
+ * <br>
+ * Connections to the mail server are kept open and reused for subsequent emails
+ * (see {@link MailServerInfo#getMaxMessagesPerConnection()}), so the BasicMailSender
+ * should be {@link #close() closed} once all emails have been sent.
+ * <br>
+ * If an {@link AttachmentCache} is configured (see {@link Builder#withAttachmentCache(AttachmentCache)}),
+ * attachments are encoded once and the encoded content is reused for every email that attaches
+ * the same file.
+ * <br>
+ * If streaming MIME is enabled (see {@link Builder#withStreamingMime(boolean)}), the body and
+ * attachments are encoded as they are written to the mail server instead of being built into
+ * body parts first, so the memory used per email does not grow with the size of its attachments.
+ * <br>
+ * If {@link SendMetrics} are configured (see {@link Builder#withMetrics(SendMetrics)}), the time
+ * taken to build each message, to connect, and to send each message is recorded.
+ * <br>
+ * If a {@link DkimSigner} is configured (see {@link Builder#withDkimSigner(DkimSigner)}), every
+ * message is signed once it is built, and messages without a From header are sent from the
+ * username of the {@link MailServerInfo}, as DKIM requires a From header to sign.
+ * <br>
+ * {@link #sendEmailAsync(String[], String[], String[], String, String, String, File[], Executor)} builds
+ * the message on the calling thread and only sends it on the executor, so that building messages,
+ * which uses the CPU, can be done by other threads than sending them, which waits for the mail server.
  * @author LieutenantPeacock
  *
  */
-public class BasicMailSender implements MailSender {
+public class BasicMailSender implements RawMailSender {
 	private static final Logger LOG = LoggerFactory.getLogger(BasicMailSender.class);
 	private final Session session;
+	private final SmtpConnectionPool connectionPool;
 	private final boolean dryRun;
+	private final AttachmentCache attachmentCache;
+	private final boolean streamingMime;
+	private final SendMetrics metrics;
+	private final DkimSigner dkimSigner;
+	private final InternetAddress defaultFrom;
 
 	/**
 	 * Constructs a {@link BasicMailSender}.
@@ -49,62 +83,368 @@ public class BasicMailSender implements MailSender {
 	 * @param dryRun If set to {@code true}, the emails will not actually be sent.
 	 */
 	public BasicMailSender(final MailServerInfo serverInfo, final boolean dryRun) {
+		this(builder().withServerInfo(serverInfo).withDryRun(dryRun));
+	}
+
+	private BasicMailSender(final Builder builder) {
+		final MailServerInfo serverInfo = builder.serverInfo;
 		this.session = Session.getInstance(serverInfo.getProperties(), new Authenticator() {
 			@Override
 			protected PasswordAuthentication getPasswordAuthentication() {
 				return new PasswordAuthentication(serverInfo.getUsername(), serverInfo.getPassword());
 			}
 		});
-		this.dryRun = dryRun;
+		try {
+			PipeliningSMTPTransport.register(session);
+		} catch (MessagingException e) {
+			LOG.warn("Could not enable SMTP pipelining", e);
+		}
+		this.connectionPool = new SmtpConnectionPool(session, serverInfo, builder.metrics);
+		this.dryRun = builder.dryRun;
+		this.attachmentCache = builder.attachmentCache;
+		this.streamingMime = builder.streamingMime;
+		this.metrics = builder.metrics;
+		this.dkimSigner = builder.dkimSigner;
+		InternetAddress defaultFrom = null;
+		if (dkimSigner != null && serverInfo.getUsername() != null) {
+			try {
+				defaultFrom = new InternetAddress(serverInfo.getUsername());
+			} catch (AddressException e) {
+				LOG.warn("Username [{}] is not an email address, so emails cannot be signed without a From header",
+						serverInfo.getUsername());
+			}
+		}
+		this.defaultFrom = defaultFrom;
 	}
 
 	@Override
 	public void sendEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
 			final String body, final String contentType, final File[] attachments) throws MailSendingException {
+		deliver(prepare(to, cc, bcc, subject, body, contentType, attachments));
+	}
+
+	@Override
+	public CompletableFuture<SendResult> sendEmailAsync(final String[] to, final String[] cc, final String[] bcc,
+			final String subject, final String body, final String contentType, final File[] attachments,
+			final Executor executor) {
+		final long start = System.nanoTime();
+		final Message message;
+		try {
+			message = prepare(to, cc, bcc, subject, body, contentType, attachments);
+		} catch (MailSendingException e) {
+			return CompletableFuture.completedFuture(SendResult.failed(e, System.nanoTime() - start));
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				deliver(message);
+				return SendResult.sent(System.nanoTime() - start);
+			} catch (MailSendingException e) {
+				return SendResult.failed(e, System.nanoTime() - start);
+			}
+		}, executor);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <br>
+	 * Unless the message is already signed, its Date header is set to the current time and it is
+	 * signed if a {@link DkimSigner} is configured.
+	 */
+	@Override
+	public void sendRawEmail(final byte[] message) throws MailSendingException {
+		final MimeMessage mimeMessage;
+		try {
+			// a shared stream lets the content refer to the array instead of copying it
+			mimeMessage = new MimeMessage(session, new SharedByteArrayInputStream(message));
+			final Address[] recipients = mimeMessage.getAllRecipients();
+			if (recipients == null || recipients.length == 0) {
+				throw new MailSendingException(ErrorCode.NO_RECIPIENTS);
+			}
+			// a signature may cover the Date header, which then cannot be changed
+			if (mimeMessage.getHeader(DkimSigner.SIGNATURE_HEADER) != null) {
+				deliver(mimeMessage);
+				return;
+			}
+			mimeMessage.setSentDate(new Date());
+		} catch (MessagingException e) {
+			throw toMailSendingException(e);
+		}
+		sign(mimeMessage);
+		deliver(mimeMessage);
+	}
+
+	/**
+	 * Builds an email and writes it as an RFC 822 message, including its BCC header, so that
+	 * it can be sent later with {@link #sendRawEmail(byte[])}. Attachments are read and encoded
+	 * now, so they need not exist when the email is sent. The message is written without a Date
+	 * header and unsigned, as both are added when it is sent.
+	 * @param to An array of email addresses to send to. May be null.
+	 * @param cc An array of email addresses to send carbon copies to. May be null.
+	 * @param bcc An array of email addresses to send blind carbon copies to. May be null.
+	 * @param subject The subject of the email.
+	 * @param body The content of the email.
+	 * @param contentType The type of content that the email contains. See {@link MailContentTypes} for the values of some common ones.
+	 * @param attachments An array of {@link File} attachments to include in the email. May be null.
+	 * @param out The stream to write the message to. It is not closed.
+	 * @throws MailSendingException If the email cannot be built or written
+	 */
+	public void writeEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
+			final String body, final String contentType, final File[] attachments, final OutputStream out)
+			throws MailSendingException {
+		final Message message = build(to, cc, bcc, subject, body, contentType, attachments);
+		try {
+			if (dryRun) {
+				// build only saves messages that are sent
+				message.saveChanges();
+			}
+			message.removeHeader("Date");
+			message.writeTo(out);
+		} catch (MessagingException e) {
+			throw toMailSendingException(e);
+		} catch (IOException e) {
+			throw new MailSendingException(ErrorCode.IO_ERROR, e, true);
+		}
+	}
+
+	/**
+	 * Builds, saves, and signs the message for an email.
+	 */
+	private Message prepare(final String[] to, final String[] cc, final String[] bcc, final String subject,
+			final String body, final String contentType, final File[] attachments) throws MailSendingException {
+		final Message message = build(to, cc, bcc, subject, body, contentType, attachments);
+		if (!dryRun) {
+			sign((MimeMessage) message);
+		}
+		return message;
+	}
+
+	/**
+	 * Builds and saves the message for an email.
+	 */
+	private Message build(final String[] to, final String[] cc, final String[] bcc, final String subject,
+			final String body, final String contentType, final File[] attachments) throws MailSendingException {
 		try {
 			if (nullOrEmpty(to) && nullOrEmpty(cc) && nullOrEmpty(bcc)) {
 				throw new MailSendingException(ErrorCode.NO_RECIPIENTS);
 			}
-			final Message message = new MimeMessage(session);
-			message.setSubject(subject);
+			final long start = System.nanoTime();
+			final Message message = createMessage(to, cc, bcc, subject, body, contentType, attachments);
+			if (!dryRun) {
+				message.saveChanges();
+			}
+			if (metrics != null) {
+				metrics.recordSince(SendMetrics.Phase.MIME_BUILD, start);
+			}
+			return message;
+		} catch (MessagingException e) {
+			throw toMailSendingException(e);
+		} catch (IOException e) {
+			throw new MailSendingException(ErrorCode.IO_ERROR, e, true);
+		}
+	}
+
+	/**
+	 * Sends a message built by {@link #prepare(String[], String[], String[], String, String, String, File[])}
+	 * or read by {@link #sendRawEmail(byte[])}.
+	 */
+	private void deliver(final Message message) throws MailSendingException {
+		if (dryRun) {
+			return;
+		}
+		try {
+			connectionPool.send(message);
+		} catch (MessagingException e) {
+			throw toMailSendingException(e);
+		}
+	}
+
+	/**
+	 * Signs a saved message if a {@link DkimSigner} is configured.
+	 */
+	private void sign(final MimeMessage message) throws MailSendingException {
+		if (dkimSigner == null) {
+			return;
+		}
+		final long start = System.nanoTime();
+		try {
+			if (message.getHeader("From", null) == null && defaultFrom != null) {
+				message.setFrom(defaultFrom);
+			}
+			dkimSigner.sign(message);
+		} catch (MessagingException e) {
+			throw new MailSendingException(ErrorCode.ERROR_SIGNING, e, true);
+		}
+		if (metrics != null) {
+			metrics.recordSince(SendMetrics.Phase.DKIM_SIGN, start);
+		}
+	}
+
+	private static MailSendingException toMailSendingException(final MessagingException e) {
+		if (e instanceof AddressException) {
+			return new MailSendingException(ErrorCode.INVALID_EMAIL_ADDRESS, e, true);
+		}
+		if (SmtpReplies.isDeliveryUnknown(e)) {
+			return new MailSendingException(ErrorCode.DELIVERY_UNKNOWN, e, true);
+		}
+		if (SmtpReplies.isThrottling(SmtpReplies.getReturnCode(e))) {
+			return new MailSendingException(ErrorCode.THROTTLED, e, true);
+		}
+		return new MailSendingException(ErrorCode.ERROR_SENDING, e, true);
+	}
+
+	/**
+	 * Builds the message for an email, without saving or sending it.
+	 */
+	Message createMessage(final String[] to, final String[] cc, final String[] bcc, final String subject,
+			final String body, final String contentType, final File[] attachments)
+			throws MessagingException, IOException {
+		final Message message = streamingMime
+				? new StreamingMimeMessage(session, body, contentType, attachments, attachmentCache)
+				: new MimeMessage(session);
+		message.setSubject(subject);
+		if (to != null) {
 			for (final String email : to) {
 				message.addRecipient(Message.RecipientType.TO, new InternetAddress(email));
 			}
-			if (cc != null) {
-				for (final String email : cc) {
-					message.addRecipient(Message.RecipientType.CC, new InternetAddress(email));
-				}
+		}
+		if (cc != null) {
+			for (final String email : cc) {
+				message.addRecipient(Message.RecipientType.CC, new InternetAddress(email));
 			}
-			if (bcc != null) {
-				for (final String email : bcc) {
-					message.addRecipient(Message.RecipientType.BCC, new InternetAddress(email));
-				}
+		}
+		if (bcc != null) {
+			for (final String email : bcc) {
+				message.addRecipient(Message.RecipientType.BCC, new InternetAddress(email));
 			}
+		}
+		if (!streamingMime) {
 			final Multipart multipart = new MimeMultipart();
 			final BodyPart messageBody = new MimeBodyPart();
 			messageBody.setContent(body, contentType);
 			multipart.addBodyPart(messageBody);
 			if(attachments != null) {
 				for(final File attachment: attachments) {
-					final MimeBodyPart attachmentPart = new MimeBodyPart();
-					attachmentPart.attachFile(attachment);
-					multipart.addBodyPart(attachmentPart);
+					multipart.addBodyPart(createAttachmentPart(attachment));
 				}
 			}
 			message.setContent(multipart);
-			if(!dryRun) {
-				Transport.send(message);
-			}
-		} catch (AddressException e) {
-			throw new MailSendingException(ErrorCode.INVALID_EMAIL_ADDRESS, e, true);
-		} catch (MessagingException e) {
-			throw new MailSendingException(ErrorCode.ERROR_SENDING, e, true);
-		} catch (IOException e) {
-			throw new MailSendingException(ErrorCode.IO_ERROR, e, true);
 		}
+		return message;
 	}
 	
+	/**
+	 * Closes all open connections to the mail server.
+	 */
+	@Override
+	public void close() {
+		connectionPool.close();
+	}
+
+	private MimeBodyPart createAttachmentPart(final File attachment) throws IOException, MessagingException {
+		if (attachmentCache != null) {
+			final MimeBodyPart cachedPart = attachmentCache.createBodyPart(attachment);
+			if (cachedPart != null) {
+				return cachedPart;
+			}
+		}
+		final MimeBodyPart attachmentPart = new MimeBodyPart();
+		attachmentPart.attachFile(attachment);
+		return attachmentPart;
+	}
+
 	private static boolean nullOrEmpty(final String[] arr) {
 		return arr == null || arr.length == 0;
 	}
+
+	/**
+	 * Creates builder to build {@link BasicMailSender}.
+	 * 
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link BasicMailSender}.
+	 */
+	public static final class Builder {
+		private MailServerInfo serverInfo;
+		private boolean dryRun;
+		private AttachmentCache attachmentCache;
+		private boolean streamingMime;
+		private SendMetrics metrics;
+		private DkimSigner dkimSigner;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param serverInfo The {@link MailServerInfo} object containing the SMTP properties, the username, and the password.
+		 * @return This builder
+		 */
+		public Builder withServerInfo(MailServerInfo serverInfo) {
+			this.serverInfo = serverInfo;
+			return this;
+		}
+
+		/**
+		 * @param dryRun If set to {@code true}, the emails will not actually be sent.
+		 * @return This builder
+		 */
+		public Builder withDryRun(boolean dryRun) {
+			this.dryRun = dryRun;
+			return this;
+		}
+
+		/**
+		 * Sets the cache of encoded attachments, which may be shared with other {@link BasicMailSender}s.
+		 * By default, attachments are read and encoded again for every email.
+		 * @param attachmentCache The attachment cache.
+		 * @return This builder
+		 */
+		public Builder withAttachmentCache(AttachmentCache attachmentCache) {
+			this.attachmentCache = attachmentCache;
+			return this;
+		}
+
+		/**
+		 * Sets whether to write the body and attachments of each email straight to the mail server
+		 * instead of building them into body parts first. Defaults to {@code false}.
+		 * @param streamingMime Whether to stream the content of the emails.
+		 * @return This builder
+		 */
+		public Builder withStreamingMime(boolean streamingMime) {
+			this.streamingMime = streamingMime;
+			return this;
+		}
+
+		/**
+		 * Sets the metrics in which to record the time taken to build, connect, and send. By default,
+		 * no metrics are recorded.
+		 * @param metrics The {@link SendMetrics}.
+		 * @return This builder
+		 */
+		public Builder withMetrics(SendMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * Sets the signer with which to add a DKIM signature to every email. By default, emails
+		 * are not signed.
+		 * @param dkimSigner The {@link DkimSigner}, which may be shared with other {@link BasicMailSender}s.
+		 * @return This builder
+		 */
+		public Builder withDkimSigner(DkimSigner dkimSigner) {
+			this.dkimSigner = dkimSigner;
+			return this;
+		}
+
+		public BasicMailSender build() {
+			if (serverInfo == null)
+				throw new IllegalStateException("serverInfo must be set");
+			return new BasicMailSender(this);
+		}
+	}
 }
@@ -0,0 +1,163 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * An {@link EmailTemplate} that has been compiled against the header of the data.
+ * Every replaceable parameter is resolved to the index of its column once, so that
+ * each row can be rendered by concatenating literal text and column values without
+ * any regular expression matching or per-row lookups by name.
+ * @author LieutenantPeacock
+ *
+ */
+public class CompiledEmailTemplate {
+	private static final Pattern templatePattern = Pattern.compile("\\$\\{([A-Z0-9_]+)\\}");
+	private static final String BODY_LINE_SEPARATOR = "<br>";
+	private final TemplateString[] to, cc, bcc, attachments;
+	private final TemplateString subject, body;
+
+	private CompiledEmailTemplate(final EmailTemplate template, final Map<String, Integer> headerMap) {
+		this.to = compileAll(template.getTo(), headerMap);
+		this.cc = compileAll(template.getCc(), headerMap);
+		this.bcc = compileAll(template.getBcc(), headerMap);
+		this.subject = template.getSubject() != null ? TemplateString.compile(template.getSubject(), headerMap)
+				: null;
+		this.body = TemplateString.compile(String.join(BODY_LINE_SEPARATOR, template.getBody()), headerMap);
+		this.attachments = compileAll(template.getAttachments(), headerMap);
+	}
+
+	/**
+	 * Compiles an {@link EmailTemplate} against the header of the data.
+	 * @param template The {@link EmailTemplate} to compile.
+	 * @param headerMap The mapping of column names to column indexes, as returned by
+	 * {@link RecordSource#getHeaderMap()}.
+	 * @return The compiled template.
+	 * @throws IllegalStateException If the template refers to a parameter that is not a column in the header
+	 */
+	public static CompiledEmailTemplate compile(final EmailTemplate template, final Map<String, Integer> headerMap) {
+		return new CompiledEmailTemplate(template, headerMap);
+	}
+
+	/**
+	 * Renders the email for one row of the data. Recipients and attachments
+	 * that are blank after substitution are left out.
+	 * @param record The {@link DataRecord} containing the values for the row.
+	 * @return The {@link RenderedEmail}.
+	 * @throws IllegalStateException If the row does not have a value for a referenced column
+	 */
+	public RenderedEmail render(final DataRecord record) {
+		final String[] attachmentPaths = renderAll(attachments, record);
+		final File[] attachmentFiles = new File[attachmentPaths.length];
+		for (int i = 0; i < attachmentPaths.length; i++) {
+			attachmentFiles[i] = new File(attachmentPaths[i]);
+		}
+		return new RenderedEmail(renderAll(to, record), renderAll(cc, record), renderAll(bcc, record),
+				subject != null ? subject.render(record) : null, body.render(record), attachmentFiles);
+	}
+
+	/**
+	 * @return The indexes of the columns that the template refers to.
+	 */
+	public BitSet getColumns() {
+		final BitSet columns = new BitSet();
+		for (final TemplateString[] strs : new TemplateString[][] { to, cc, bcc, attachments }) {
+			for (final TemplateString str : strs) {
+				str.addColumns(columns);
+			}
+		}
+		if (subject != null) {
+			subject.addColumns(columns);
+		}
+		body.addColumns(columns);
+		return columns;
+	}
+
+	private static TemplateString[] compileAll(final List<String> strs, final Map<String, Integer> headerMap) {
+		final TemplateString[] compiled = new TemplateString[strs.size()];
+		for (int i = 0; i < compiled.length; i++) {
+			compiled[i] = TemplateString.compile(strs.get(i), headerMap);
+		}
+		return compiled;
+	}
+
+	private static String[] renderAll(final TemplateString[] strs, final DataRecord record) {
+		final List<String> rendered = new ArrayList<>(strs.length);
+		for (final TemplateString str : strs) {
+			final String value = str.render(record);
+			if (!value.trim().isEmpty()) {
+				rendered.add(value);
+			}
+		}
+		return rendered.toArray(new String[0]);
+	}
+
+	/**
+	 * A single string of a template split into literal segments and the column
+	 * indexes of the parameters between them.
+	 */
+	private static final class TemplateString {
+		private final String[] literals;
+		private final String[] names;
+		private final int[] columns;
+		private final int literalLength;
+
+		private TemplateString(final String[] literals, final String[] names, final int[] columns) {
+			this.literals = literals;
+			this.names = names;
+			this.columns = columns;
+			int length = 0;
+			for (final String literal : literals) {
+				length += literal.length();
+			}
+			this.literalLength = length;
+		}
+
+		static TemplateString compile(final String str, final Map<String, Integer> headerMap) {
+			final List<String> literals = new ArrayList<>();
+			final List<String> names = new ArrayList<>();
+			final Matcher matcher = templatePattern.matcher(str);
+			int last = 0;
+			while (matcher.find()) {
+				final String name = matcher.group(1);
+				if (!headerMap.containsKey(name))
+					throw new IllegalStateException("No value found for token " + name);
+				literals.add(str.substring(last, matcher.start()));
+				names.add(name);
+				last = matcher.end();
+			}
+			literals.add(str.substring(last));
+			final int[] columns = new int[names.size()];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = headerMap.get(names.get(i));
+			}
+			return new TemplateString(literals.toArray(new String[0]), names.toArray(new String[0]), columns);
+		}
+
+		void addColumns(final BitSet set) {
+			for (final int column : columns) {
+				set.set(column);
+			}
+		}
+
+		String render(final DataRecord record) {
+			if (columns.length == 0) {
+				return literals[0];
+			}
+			final StringBuilder sb = new StringBuilder(literalLength + columns.length * 16);
+			for (int i = 0; i < columns.length; i++) {
+				sb.append(literals[i]);
+				if (columns[i] >= record.size())
+					throw new IllegalStateException("No value found for token " + names[i]);
+				sb.append(record.get(columns[i]));
+			}
+			return sb.append(literals[columns.length]).toString();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index of the byte offsets at which the records of a CSV data file start, so that sending
+ * can start at a given record without parsing all of the records before it.
+ * <br>
+ * The offset of every {@code stride}th record is kept, starting from the first record after
+ * the header. The index is built in a single pass over the bytes of the file that follows
+ * the quoting rules of RFC 4180, so quoted fields containing commas and line breaks are
+ * handled correctly. This relies on quotes, commas, and line breaks being encoded as single
+ * bytes, which holds for UTF-8 and the ISO-8859 charsets, but not for UTF-16.
+ * <br>
+ * An index is saved next to the data file (see {@link #loadOrBuild(File)}) together with
+ * the length and modification time of the data file, and is rebuilt when either changes.
+ * @author LieutenantPeacock
+ *
+ */
+public class CsvIndex {
+	private static final Logger LOG = LoggerFactory.getLogger(CsvIndex.class);
+	private static final int MAGIC = 0x42455349; // "BESI"
+	private static final int DEFAULT_STRIDE = 1024;
+	/**
+	 * The suffix appended to the path of the data file to get the path of its index file.
+	 */
+	public static final String FILE_SUFFIX = ".idx";
+	private final long dataLength, dataLastModified;
+	private final int stride, recordCount;
+	private final long[] offsets;
+
+	private CsvIndex(final long dataLength, final long dataLastModified, final int stride, final int recordCount,
+			final long[] offsets) {
+		this.dataLength = dataLength;
+		this.dataLastModified = dataLastModified;
+		this.stride = stride;
+		this.recordCount = recordCount;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Loads the index saved next to a data file, building and saving it if it does not exist
+	 * or is out of date.
+	 * @param dataFile The CSV data file.
+	 * @return The index.
+	 * @throws IOException If the data file cannot be read or the index cannot be saved
+	 */
+	public static CsvIndex loadOrBuild(final File dataFile) throws IOException {
+		final File indexFile = new File(dataFile.getPath() + FILE_SUFFIX);
+		if (indexFile.exists()) {
+			final CsvIndex index = load(indexFile, dataFile);
+			if (index != null) {
+				return index;
+			}
+			LOG.info("CSV index {} is out of date; rebuilding", indexFile);
+		}
+		final CsvIndex index = build(dataFile);
+		index.save(indexFile);
+		return index;
+	}
+
+	/**
+	 * Builds the index of a data file.
+	 * @param dataFile The CSV data file.
+	 * @return The index.
+	 * @throws IOException If the data file cannot be read
+	 */
+	public static CsvIndex build(final File dataFile) throws IOException {
+		return build(dataFile, DEFAULT_STRIDE);
+	}
+
+	static CsvIndex build(final File dataFile, final int stride) throws IOException {
+		final long lastModified = dataFile.lastModified();
+		long[] offsets = new long[16];
+		int indexed = 0;
+		int records = -1; // the header is record 0
+		long offset = 0;
+		boolean atRecordStart = true, atFieldStart = true, quoted = false, quoteInQuoted = false,
+				afterCr = false;
+		try (InputStream is = new FileInputStream(dataFile)) {
+			final byte[] buf = new byte[1 << 16];
+			for (int n; (n = is.read(buf)) != -1;) {
+				for (int i = 0; i < n; i++, offset++) {
+					final byte b = buf[i];
+					if (afterCr) {
+						afterCr = false;
+						if (b == '\n') {
+							continue;
+						}
+					}
+					if (atRecordStart) {
+						atRecordStart = false;
+						if (++records > 0 && (records - 1) % stride == 0) {
+							if (indexed == offsets.length) {
+								offsets = Arrays.copyOf(offsets, indexed * 2);
+							}
+							offsets[indexed++] = offset;
+						}
+					}
+					if (quoted) {
+						if (quoteInQuoted) {
+							quoteInQuoted = false;
+							if (b == '"') {
+								continue;
+							}
+							quoted = false;
+						} else {
+							if (b == '"') {
+								quoteInQuoted = true;
+							}
+							continue;
+						}
+					}
+					if (b == '"' && atFieldStart) {
+						quoted = true;
+						atFieldStart = false;
+					} else if (b == ',') {
+						atFieldStart = true;
+					} else if (b == '\r' || b == '\n') {
+						afterCr = b == '\r';
+						atRecordStart = atFieldStart = true;
+					} else {
+						atFieldStart = false;
+					}
+				}
+			}
+		}
+		return new CsvIndex(offset, lastModified, stride, Math.max(records, 0), Arrays.copyOf(offsets, indexed));
+	}
+
+	/**
+	 * Loads an index file.
+	 * @param indexFile The index file.
+	 * @param dataFile The CSV data file that the index is for.
+	 * @return The index, or {@code null} if the data file has changed since the index was built.
+	 * @throws IOException If the index file cannot be read
+	 */
+	public static CsvIndex load(final File indexFile, final File dataFile) throws IOException {
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (dis.readInt() != MAGIC)
+				throw new IOException("Not a CSV index: " + indexFile);
+			final long dataLength = dis.readLong(), dataLastModified = dis.readLong();
+			if (dataLength != dataFile.length() || dataLastModified != dataFile.lastModified()) {
+				return null;
+			}
+			final int stride = dis.readInt(), recordCount = dis.readInt();
+			final long[] offsets = new long[dis.readInt()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = dis.readLong();
+			}
+			return new CsvIndex(dataLength, dataLastModified, stride, recordCount, offsets);
+		}
+	}
+
+	/**
+	 * Saves the index to a file.
+	 * @param indexFile The index file.
+	 * @throws IOException If the index file cannot be written
+	 */
+	public void save(final File indexFile) throws IOException {
+		try (DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+			dos.writeInt(MAGIC);
+			dos.writeLong(dataLength);
+			dos.writeLong(dataLastModified);
+			dos.writeInt(stride);
+			dos.writeInt(recordCount);
+			dos.writeInt(offsets.length);
+			for (final long offset : offsets) {
+				dos.writeLong(offset);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of records in the data file, not counting the header.
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @return The byte offset at which the first record after the header starts, which is also
+	 * the length of the header.
+	 */
+	public long getHeaderLength() {
+		return offsets.length > 0 ? offsets[0] : dataLength;
+	}
+
+	/**
+	 * @param recordNum A record number (one-indexed, not counting the header).
+	 * @return The number of the closest record at or before the given one whose offset is in the index.
+	 */
+	public int getIndexedRecord(final int recordNum) {
+		if (recordNum > recordCount) {
+			return recordCount + 1;
+		}
+		return (recordNum - 1) / stride * stride + 1;
+	}
+
+	/**
+	 * @param recordNum A record number (one-indexed, not counting the header).
+	 * @return The byte offset of the closest record at or before the given one whose offset is in the index
+	 * (see {@link #getIndexedRecord(int)}), or the length of the data file if there is no such record.
+	 */
+	public long getOffset(final int recordNum) {
+		if (recordNum > recordCount) {
+			return dataLength;
+		}
+		return offsets[(recordNum - 1) / stride];
+	}
+}
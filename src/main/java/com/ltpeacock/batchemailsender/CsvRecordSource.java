@@ -0,0 +1,78 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * A {@link RecordSource} that reads RFC 4180 CSV data.
+ * @author LieutenantPeacock
+ *
+ */
+public class CsvRecordSource implements RecordSource {
+	private final CSVParser parser;
+	private final Iterator<CSVRecord> records;
+	private final Map<String, Integer> headerMap;
+
+	/**
+	 * Constructs a {@link CsvRecordSource} for CSV data whose first line is the header.
+	 * @param reader The reader to read the CSV data from. It is closed when the source is closed.
+	 * @throws IOException If the header cannot be read
+	 */
+	public CsvRecordSource(final Reader reader) throws IOException {
+		this(CSVFormat.RFC4180.withFirstRecordAsHeader().parse(reader));
+	}
+
+	/**
+	 * Constructs a {@link CsvRecordSource} for CSV data without a header line, such as the
+	 * rest of a data file read from an offset in a {@link CsvIndex}.
+	 * @param reader The reader to read the CSV data from. It is closed when the source is closed.
+	 * @param headerNames The names of the columns.
+	 * @throws IOException If the data cannot be read
+	 */
+	public CsvRecordSource(final Reader reader, final String[] headerNames) throws IOException {
+		this(CSVFormat.RFC4180.withHeader(headerNames).parse(reader));
+	}
+
+	private CsvRecordSource(final CSVParser parser) {
+		this.parser = parser;
+		this.records = parser.iterator();
+		this.headerMap = parser.getHeaderMap();
+	}
+
+	@Override
+	public Map<String, Integer> getHeaderMap() {
+		return headerMap;
+	}
+
+	@Override
+	public DataRecord next() throws IOException {
+		final CSVRecord record;
+		try {
+			if (!records.hasNext()) {
+				return null;
+			}
+			record = records.next();
+		} catch (IllegalStateException e) {
+			// the iterator wraps errors reading or parsing the data
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+		final String[] values = new String[record.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = record.get(i);
+		}
+		return new DataRecord(headerMap, values);
+	}
+
+	@Override
+	public void close() throws IOException {
+		parser.close();
+	}
+}
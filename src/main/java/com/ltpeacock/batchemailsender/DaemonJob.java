@@ -0,0 +1,235 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of emails submitted to a {@link MailDaemon}, with its status. The numbers of rows read
+ * and emails sent and not sent are updated while the job runs.
+ * <br>
+ * This class is safe for use by multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class DaemonJob {
+	/**
+	 * The states of a job.
+	 */
+	public enum State {
+		/** Waiting for the jobs submitted before it to finish. */
+		QUEUED,
+		/** Sending its emails. */
+		RUNNING,
+		/** Finished; emails that could not be sent, if any, are counted as not sent. */
+		SUCCEEDED,
+		/** Aborted, or could not be started; see {@link DaemonJob#getError()}. */
+		FAILED,
+		/** Cancelled before it started. */
+		CANCELLED;
+
+		/**
+		 * @return Whether the job has finished in this state.
+		 */
+		public boolean isFinished() {
+			return this != QUEUED && this != RUNNING;
+		}
+	}
+
+	private final long id;
+	private final File configFile;
+	private final File templateFile;
+	private final File dataFile;
+	private final Charset charset;
+	private final int threads;
+	private final long submittedMillis = System.currentTimeMillis();
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private String csv;
+	private SendMetrics metrics;
+	private State state = State.QUEUED;
+	private long startedMillis;
+	private long finishedMillis;
+	private long rowsRead;
+	private long emailsSent;
+	private long emailsNotSent;
+	private String error;
+
+	DaemonJob(final long id, final File configFile, final File templateFile, final File dataFile, final String csv,
+			final Charset charset, final int threads) {
+		this.id = id;
+		this.configFile = configFile;
+		this.templateFile = templateFile;
+		this.dataFile = dataFile;
+		this.csv = csv;
+		this.charset = charset;
+		this.threads = threads;
+	}
+
+	/**
+	 * @return The number of the job, starting from 1 for the first job submitted to the daemon.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return The config file of the mail server to send with.
+	 */
+	public File getConfigFile() {
+		return configFile;
+	}
+
+	/**
+	 * @return The template file.
+	 */
+	public File getTemplateFile() {
+		return templateFile;
+	}
+
+	/**
+	 * @return The data file, or {@code null} if the CSV data was submitted with the job.
+	 */
+	public File getDataFile() {
+		return dataFile;
+	}
+
+	/**
+	 * @return The charset of the data file.
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * @return The number of threads to send with, or 0 for the default of the daemon.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return The state of the job.
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return The time the job was submitted, in milliseconds since the epoch.
+	 */
+	public long getSubmittedMillis() {
+		return submittedMillis;
+	}
+
+	/**
+	 * @return The time the job started running, in milliseconds since the epoch, or 0 if it has not started.
+	 */
+	public synchronized long getStartedMillis() {
+		return startedMillis;
+	}
+
+	/**
+	 * @return The time the job finished, in milliseconds since the epoch, or 0 if it has not finished.
+	 */
+	public synchronized long getFinishedMillis() {
+		return finishedMillis;
+	}
+
+	/**
+	 * @return The number of rows of data read.
+	 */
+	public synchronized long getRowsRead() {
+		return metrics != null ? metrics.getRowsRead() : rowsRead;
+	}
+
+	/**
+	 * @return The number of emails sent.
+	 */
+	public synchronized long getEmailsSent() {
+		return metrics != null ? metrics.getEmailsSent() : emailsSent;
+	}
+
+	/**
+	 * @return The number of emails that could not be sent.
+	 */
+	public synchronized long getEmailsNotSent() {
+		return metrics != null ? metrics.getEmailsNotSent() : emailsNotSent;
+	}
+
+	/**
+	 * @return The reason the job failed, or {@code null}.
+	 */
+	public synchronized String getError() {
+		return error;
+	}
+
+	/**
+	 * Waits for the job to finish.
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return Whether the job has finished.
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return finished.await(timeout, unit);
+	}
+
+	/**
+	 * Cancels the job if it has not started yet.
+	 * @return Whether the job was cancelled.
+	 */
+	public boolean cancel() {
+		synchronized (this) {
+			if (state != State.QUEUED) {
+				return false;
+			}
+			state = State.CANCELLED;
+			finishedMillis = System.currentTimeMillis();
+			csv = null;
+		}
+		finished.countDown();
+		return true;
+	}
+
+	/**
+	 * Starts running the job, unless it was cancelled.
+	 * @return The metrics to record the progress of the job in, or {@code null} if the job was cancelled.
+	 */
+	synchronized SendMetrics start() {
+		if (state != State.QUEUED) {
+			return null;
+		}
+		state = State.RUNNING;
+		startedMillis = System.currentTimeMillis();
+		metrics = new SendMetrics();
+		return metrics;
+	}
+
+	/**
+	 * @return The CSV data submitted with the job, or {@code null}.
+	 */
+	synchronized String getCsv() {
+		return csv;
+	}
+
+	/**
+	 * Finishes the job, keeping only the counts of its metrics.
+	 * @param error The reason the job failed, or {@code null} if it succeeded.
+	 */
+	void finish(final String error) {
+		synchronized (this) {
+			state = error == null ? State.SUCCEEDED : State.FAILED;
+			this.error = error;
+			finishedMillis = System.currentTimeMillis();
+			if (metrics != null) {
+				rowsRead = metrics.getRowsRead();
+				emailsSent = metrics.getEmailsSent();
+				emailsNotSent = metrics.getEmailsNotSent();
+				metrics = null;
+			}
+			csv = null;
+		}
+		finished.countDown();
+	}
+}
@@ -0,0 +1,59 @@
+package com.ltpeacock.batchemailsender;
+
+import java.util.Map;
+
+/**
+ * Class to store the values of one row of data read from a {@link RecordSource}.
+ * @author LieutenantPeacock
+ *
+ */
+public class DataRecord {
+	private final Map<String, Integer> headerMap;
+	private final String[] values;
+
+	/**
+	 * Constructs a {@link DataRecord}.
+	 * @param headerMap The mapping of column names to column indexes, shared by all rows of the source.
+	 * @param values The values of the row, by column index.
+	 */
+	public DataRecord(final Map<String, Integer> headerMap, final String[] values) {
+		this.headerMap = headerMap;
+		this.values = values;
+	}
+
+	/**
+	 * @return The number of values in the row.
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * @param index The column index (zero-indexed).
+	 * @return The value of the column.
+	 * @throws ArrayIndexOutOfBoundsException If the row has no value for the column
+	 */
+	public String get(final int index) {
+		return values[index];
+	}
+
+	/**
+	 * @param name The column name.
+	 * @return The value of the column.
+	 * @throws IllegalArgumentException If there is no column with the name, or the row has no value for it
+	 */
+	public String get(final String name) {
+		if (!isSet(name))
+			throw new IllegalArgumentException("No value for column " + name);
+		return values[headerMap.get(name)];
+	}
+
+	/**
+	 * @param name The column name.
+	 * @return Whether there is a column with the name and the row has a value for it.
+	 */
+	public boolean isSet(final String name) {
+		final Integer index = headerMap.get(name);
+		return index != null && index < values.length;
+	}
+}
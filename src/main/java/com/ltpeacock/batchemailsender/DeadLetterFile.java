@@ -0,0 +1,99 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * A CSV file listing the emails that could not be sent, one line per email, so that they can
+ * be looked into and sent again. The columns are:
+ * <ul>
+ * <li>{@code ROWS}: the rows of the data file that the email was for, separated by {@code ;}
+ * (more than one if recipients were batched).</li>
+ * <li>{@code TO}, {@code CC}, {@code BCC}: the recipients, separated by {@code ;}.</li>
+ * <li>{@code ERROR_CODE}: the {@link com.ltpeacock.batchemailsender.exception.ErrorCode} of the failure.</li>
+ * <li>{@code SMTP_REPLY}: the SMTP reply code of the mail server, if any.</li>
+ * <li>{@code FAILURE_CLASS}: the {@link FailureClass} of the failure.</li>
+ * <li>{@code ATTEMPTS}: the number of times sending the email was tried.</li>
+ * <li>{@code ERROR}: the error message.</li>
+ * </ul>
+ * The file is only created once the first email is written to it, and an existing file is
+ * appended to. Every line is flushed as soon as it is written.
+ * <br>
+ * This class is safe for use by multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class DeadLetterFile implements Closeable {
+	private static final String[] HEADER = { "ROWS", "TO", "CC", "BCC", "ERROR_CODE", "SMTP_REPLY", "FAILURE_CLASS",
+			"ATTEMPTS", "ERROR" };
+	private final File file;
+	private CSVPrinter printer;
+
+	/**
+	 * Constructs a {@link DeadLetterFile}.
+	 * @param file The file.
+	 */
+	public DeadLetterFile(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return The file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes an email that could not be sent.
+	 * @param rowNums The rows that the email was for.
+	 * @param to The TO recipients.
+	 * @param cc The CC recipients.
+	 * @param bcc The BCC recipients.
+	 * @param error The reason the email could not be sent.
+	 * @param attempts The number of times sending the email was tried.
+	 * @throws IOException If the line cannot be written
+	 */
+	public synchronized void write(final List<Integer> rowNums, final String[] to, final String[] cc,
+			final String[] bcc, final MailSendingException error, final int attempts) throws IOException {
+		if (printer == null) {
+			// the header is written if the file is new
+			printer = new CSVPrinter(
+					new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)),
+					file.length() > 0 ? CSVFormat.DEFAULT : CSVFormat.DEFAULT.withHeader(HEADER));
+		}
+		final int returnCode = error.getCause() instanceof MessagingException
+				? SmtpReplies.getReturnCode((MessagingException) error.getCause())
+				: SmtpReplies.NO_REPLY;
+		printer.printRecord(rowNums.stream().map(String::valueOf).collect(Collectors.joining(";")), join(to),
+				join(cc), join(bcc), error.getErrorCode().getErrorCode(),
+				returnCode != SmtpReplies.NO_REPLY ? String.valueOf(returnCode) : "", FailureClass.of(error),
+				attempts, error.getMessage());
+		printer.flush();
+	}
+
+	private static String join(final String[] addresses) {
+		return addresses != null ? String.join(";", addresses) : "";
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (printer != null) {
+			printer.close();
+		}
+	}
+}
@@ -0,0 +1,508 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Append-only, compressed archive of the emails sent, from which the email sent for any row of
+ * the CSV data can be retrieved with {@link EmailArchiveReader}. This replaces logging the
+ * subject and body of every email, which produces gigabytes of text for large campaigns.
+ * <br>
+ * Emails are handed to a background thread, which writes them as length-prefixed entries into
+ * blocks of about {@code blockSize} bytes; each block is compressed with deflate and appended
+ * to the archive file with a header listing its rows and a checksum. A block is also written
+ * once its first email is a second old, and when the archive is closed. The row number and
+ * offset of the block of each email are appended to an index file next to the archive (the
+ * archive path with {@code .idx} appended), so that an email can be found without reading the
+ * whole archive. When an existing archive is opened, a partially written last block is
+ * discarded and the index is brought up to date with the archive.
+ * <br>
+ * This class is safe for use by multiple threads. The thread archiving an email only waits if
+ * the background thread has fallen behind by thousands of emails.
+ * @author LieutenantPeacock
+ *
+ */
+public class EmailArchive implements Closeable {
+	static final int MAGIC = 0x42454131; // "BEA1"
+	static final int INDEX_MAGIC = 0x42454931; // "BEI1"
+	static final int BLOCK_MAGIC = 0x424c4b31; // "BLK1"
+	static final int HEADER_SIZE = 4;
+	/** Magic, raw length, compressed length, checksum, and row count; followed by the rows. */
+	static final int BLOCK_HEADER_SIZE = 20;
+	static final int INDEX_ENTRY_SIZE = 12;
+	private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	private static final int QUEUE_CAPACITY = 4096;
+	private static final long MAX_BLOCK_AGE_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final Entry END = new Entry(new int[0], 0, null, null, null, null, null, null);
+	private final FileChannel channel;
+	private final FileChannel indexChannel;
+	private final int blockSize;
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final Thread writer;
+	private final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+	private final DataOutputStream rawOut = new DataOutputStream(raw);
+	private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+	private final DataOutputStream entryOut = new DataOutputStream(entryBytes);
+	private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+	private final Deflater deflater = new Deflater();
+	private final CRC32 crc = new CRC32();
+	private int[] blockRows = new int[256];
+	private int blockRowCount;
+	private volatile IOException failure;
+	private boolean closed;
+
+	/**
+	 * Visits the blocks of an archive.
+	 */
+	interface BlockVisitor {
+		void visit(long offset, int[] rows, int rowCount) throws IOException;
+	}
+
+	private EmailArchive(final File file, final int blockSize) throws IOException {
+		this.blockSize = blockSize;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			this.indexChannel = FileChannel.open(indexFile(file).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		try {
+			load();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			indexChannel.close();
+			throw e;
+		}
+		writer = new Thread(this::writeEntries, "EmailArchiveWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Opens an archive, creating the file and its index if they do not exist, and appending to them otherwise.
+	 * @param file The archive file.
+	 * @return The archive.
+	 * @throws IOException If the file cannot be read or is not an archive
+	 */
+	public static EmailArchive open(final File file) throws IOException {
+		return new EmailArchive(file, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Opens an archive, creating the file and its index if they do not exist, and appending to them otherwise.
+	 * @param file The archive file.
+	 * @param blockSize The size in bytes of the uncompressed content of a block, after which it is written.
+	 * @return The archive.
+	 * @throws IOException If the file cannot be read or is not an archive
+	 */
+	public static EmailArchive open(final File file, final int blockSize) throws IOException {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("blockSize must be positive");
+		return new EmailArchive(file, blockSize);
+	}
+
+	/**
+	 * @param file The archive file.
+	 * @return The index file of the archive.
+	 */
+	static File indexFile(final File file) {
+		return new File(file.getPath() + ".idx");
+	}
+
+	private void load() throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			channel.truncate(0);
+			indexChannel.truncate(0);
+			writeFully(channel, (ByteBuffer) ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).flip(), 0);
+			writeFully(indexChannel, (ByteBuffer) ByteBuffer.allocate(HEADER_SIZE).putInt(INDEX_MAGIC).flip(), 0);
+			channel.position(HEADER_SIZE);
+			indexChannel.position(HEADER_SIZE);
+			return;
+		}
+		checkMagic(channel, MAGIC, "Not an email archive");
+		if (indexChannel.size() < HEADER_SIZE) {
+			indexChannel.truncate(0);
+			writeFully(indexChannel, (ByteBuffer) ByteBuffer.allocate(HEADER_SIZE).putInt(INDEX_MAGIC).flip(), 0);
+		} else {
+			checkMagic(indexChannel, INDEX_MAGIC, "Not an email archive index");
+		}
+		final long[] indexed = indexedPrefix(indexChannel, channel.size());
+		indexChannel.truncate(indexed[0]);
+		indexChannel.position(indexed[0]);
+		final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		final long validSize = scanBlocks(channel, indexed[1], (offset, rows, rowCount) -> {
+			for (int i = 0; i < rowCount; i++) {
+				indexEntry.clear();
+				indexEntry.putInt(rows[i]).putLong(offset).flip();
+				writeFully(indexChannel, indexEntry, -1);
+			}
+		});
+		if (validSize != channel.size()) {
+			channel.truncate(validSize);
+		}
+		channel.position(validSize);
+	}
+
+	/**
+	 * Finds the part of an index that can be trusted without reading the archive: the whole
+	 * entries before those of the last indexed block, which may not have been indexed completely.
+	 * @param indexChannel The index.
+	 * @param archiveSize The size of the archive.
+	 * @return The size of the trusted part of the index, and the offset in the archive of the
+	 * first block that is not in it.
+	 */
+	static long[] indexedPrefix(final FileChannel indexChannel, final long archiveSize) throws IOException {
+		long end = HEADER_SIZE + (indexChannel.size() - HEADER_SIZE) / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE;
+		if (end == HEADER_SIZE) {
+			return new long[] { HEADER_SIZE, HEADER_SIZE };
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		final long lastOffset = readIndexOffset(indexChannel, end - INDEX_ENTRY_SIZE, buf);
+		if (lastOffset < HEADER_SIZE || lastOffset >= archiveSize) {
+			return new long[] { HEADER_SIZE, HEADER_SIZE };
+		}
+		while (end > HEADER_SIZE && readIndexOffset(indexChannel, end - INDEX_ENTRY_SIZE, buf) == lastOffset) {
+			end -= INDEX_ENTRY_SIZE;
+		}
+		return new long[] { end, lastOffset };
+	}
+
+	private static long readIndexOffset(final FileChannel indexChannel, final long position, final ByteBuffer buf)
+			throws IOException {
+		buf.clear();
+		readFully(indexChannel, buf, position);
+		return buf.getLong(4);
+	}
+
+	/**
+	 * Reads the headers of the complete blocks of an archive, starting at a given block.
+	 * @return The offset of the end of the last complete block.
+	 */
+	static long scanBlocks(final FileChannel channel, final long from, final BlockVisitor visitor)
+			throws IOException {
+		final long size = channel.size();
+		final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		ByteBuffer rows = ByteBuffer.allocate(1024);
+		int[] rowNums = new int[256];
+		long offset = from;
+		while (offset + BLOCK_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(channel, header, offset);
+			if (header.getInt() != BLOCK_MAGIC)
+				break;
+			header.getInt();
+			final int compressedLength = header.getInt();
+			header.getInt();
+			final int rowCount = header.getInt();
+			if (compressedLength < 0 || rowCount < 0)
+				break;
+			final long end = offset + BLOCK_HEADER_SIZE + rowCount * 4L + compressedLength;
+			if (end > size)
+				break;
+			if (rows.capacity() < rowCount * 4) {
+				rows = ByteBuffer.allocate(rowCount * 4);
+			}
+			if (rowNums.length < rowCount) {
+				rowNums = new int[rowCount];
+			}
+			rows.clear();
+			rows.limit(rowCount * 4);
+			readFully(channel, rows, offset + BLOCK_HEADER_SIZE);
+			for (int i = 0; i < rowCount; i++) {
+				rowNums[i] = rows.getInt();
+			}
+			visitor.visit(offset, rowNums, rowCount);
+			offset = end;
+		}
+		return offset;
+	}
+
+	private static void checkMagic(final FileChannel channel, final int magic, final String message)
+			throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		if (header.getInt() != magic)
+			throw new IOException(message);
+	}
+
+	/**
+	 * Reads until the buffer is full, then flips it.
+	 */
+	static void readFully(final FileChannel channel, final ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			final int read = channel.read(buf, position);
+			if (read < 0)
+				throw new IOException("Unexpected end of email archive");
+			position += read;
+		}
+		buf.flip();
+	}
+
+	/**
+	 * Writes the whole buffer at the given position, or at the current position if negative.
+	 */
+	private static void writeFully(final FileChannel channel, final ByteBuffer buf, long position)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			if (position < 0) {
+				channel.write(buf);
+			} else {
+				position += channel.write(buf, position);
+			}
+		}
+	}
+
+	/**
+	 * Adds an email to the archive. The email is written by a background thread, so errors
+	 * writing it are only reported by a later call or by {@link #close()}.
+	 * @param rowNums The numbers of the rows (one-indexed, not counting the header) that the email was sent for.
+	 * @param to An array of email addresses the email was sent to.
+	 * @param cc An array of email addresses carbon copies were sent to.
+	 * @param bcc An array of email addresses blind carbon copies were sent to.
+	 * @param subject The subject of the email.
+	 * @param body The content of the email.
+	 * @param attachments An array of {@link File} attachments included in the email.
+	 * @throws IOException If an earlier email could not be written, or the archive is closed
+	 */
+	public void archive(final List<Integer> rowNums, final String[] to, final String[] cc, final String[] bcc,
+			final String subject, final String body, final File[] attachments) throws IOException {
+		final int[] rows = new int[rowNums.size()];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = rowNums.get(i);
+		}
+		final Entry entry = new Entry(rows, System.currentTimeMillis(), to, cc, bcc, subject, body, attachments);
+		// checked and queued under the same lock as close() queues END, so no entry is queued after it
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Email archive is closed");
+			rethrowFailure();
+			put(entry);
+		}
+	}
+
+	/**
+	 * Queues an entry for the background thread, waiting for space if necessary.
+	 */
+	private void put(final Entry entry) {
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				queue.put(entry);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void rethrowFailure() throws IOException {
+		final IOException e = failure;
+		if (e != null)
+			throw new IOException("Error writing to email archive", e);
+	}
+
+	/**
+	 * Runs on the background thread until {@link #END} is taken from the queue.
+	 */
+	private void writeEntries() {
+		long blockStart = 0;
+		for (;;) {
+			final Entry entry;
+			try {
+				if (blockRowCount == 0) {
+					entry = queue.take();
+				} else {
+					entry = queue.poll(blockStart + MAX_BLOCK_AGE_NANOS - System.nanoTime(), TimeUnit.NANOSECONDS);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (entry == END) {
+				break;
+			}
+			if (failure != null) {
+				continue;
+			}
+			try {
+				if (entry != null) {
+					if (blockRowCount == 0) {
+						blockStart = System.nanoTime();
+					}
+					writeEntry(entry);
+				}
+				if (raw.size() >= blockSize
+						|| (blockRowCount > 0 && System.nanoTime() - blockStart >= MAX_BLOCK_AGE_NANOS)) {
+					writeBlock();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure == null) {
+			try {
+				writeBlock();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+
+	private void writeEntry(final Entry entry) throws IOException {
+		entryBytes.reset();
+		entryOut.writeLong(entry.timestamp);
+		entryOut.writeInt(entry.rows.length);
+		for (final int row : entry.rows) {
+			entryOut.writeInt(row);
+		}
+		writeStrings(entry.to);
+		writeStrings(entry.cc);
+		writeStrings(entry.bcc);
+		writeString(entry.subject);
+		writeString(entry.body);
+		entryOut.writeInt(entry.attachments != null ? entry.attachments.length : 0);
+		if (entry.attachments != null) {
+			for (final File attachment : entry.attachments) {
+				writeString(attachment.getPath());
+			}
+		}
+		rawOut.writeInt(entryBytes.size());
+		entryBytes.writeTo(rawOut);
+		if (blockRowCount + entry.rows.length > blockRows.length) {
+			blockRows = Arrays.copyOf(blockRows, Math.max(blockRows.length * 2, blockRowCount + entry.rows.length));
+		}
+		System.arraycopy(entry.rows, 0, blockRows, blockRowCount, entry.rows.length);
+		blockRowCount += entry.rows.length;
+	}
+
+	private void writeStrings(final String[] strings) throws IOException {
+		entryOut.writeInt(strings != null ? strings.length : 0);
+		if (strings != null) {
+			for (final String s : strings) {
+				writeString(s);
+			}
+		}
+	}
+
+	private void writeString(final String s) throws IOException {
+		final byte[] bytes = (s != null ? s : "").getBytes(StandardCharsets.UTF_8);
+		entryOut.writeInt(bytes.length);
+		entryOut.write(bytes);
+	}
+
+	private void writeBlock() throws IOException {
+		if (blockRowCount == 0) {
+			return;
+		}
+		compressed.reset();
+		deflater.reset();
+		final DeflaterOutputStream deflated = new DeflaterOutputStream(compressed, deflater, 8192);
+		raw.writeTo(deflated);
+		deflated.finish();
+		final byte[] data = compressed.toByteArray();
+		crc.reset();
+		crc.update(data, 0, data.length);
+		final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE + blockRowCount * 4);
+		header.putInt(BLOCK_MAGIC).putInt(raw.size()).putInt(data.length).putInt((int) crc.getValue())
+				.putInt(blockRowCount);
+		for (int i = 0; i < blockRowCount; i++) {
+			header.putInt(blockRows[i]);
+		}
+		header.flip();
+		final long offset = channel.position();
+		writeFully(channel, header, -1);
+		writeFully(channel, ByteBuffer.wrap(data), -1);
+		final ByteBuffer index = ByteBuffer.allocate(blockRowCount * INDEX_ENTRY_SIZE);
+		for (int i = 0; i < blockRowCount; i++) {
+			index.putInt(blockRows[i]).putLong(offset);
+		}
+		index.flip();
+		writeFully(indexChannel, index, -1);
+		raw.reset();
+		blockRowCount = 0;
+	}
+
+	/**
+	 * Writes the emails not yet written, forces the archive and its index to the storage device,
+	 * and closes them.
+	 * @throws IOException If an email could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			put(END);
+		}
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				writer.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		deflater.end();
+		try {
+			if (failure == null) {
+				channel.force(false);
+				indexChannel.force(false);
+			}
+		} finally {
+			try {
+				channel.close();
+			} finally {
+				indexChannel.close();
+			}
+		}
+		rethrowFailure();
+	}
+
+	/**
+	 * An email waiting to be written.
+	 */
+	private static final class Entry {
+		private final int[] rows;
+		private final long timestamp;
+		private final String[] to, cc, bcc;
+		private final String subject, body;
+		private final File[] attachments;
+
+		private Entry(final int[] rows, final long timestamp, final String[] to, final String[] cc,
+				final String[] bcc, final String subject, final String body, final File[] attachments) {
+			this.rows = rows;
+			this.timestamp = timestamp;
+			this.to = to;
+			this.cc = cc;
+			this.bcc = bcc;
+			this.subject = subject;
+			this.body = body;
+			this.attachments = attachments;
+		}
+	}
+}
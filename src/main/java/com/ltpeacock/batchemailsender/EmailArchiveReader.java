@@ -0,0 +1,205 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the emails in an {@link EmailArchive} by row number, without modifying the archive.
+ * The index of the archive is loaded when the reader is opened (rows in blocks that are missing
+ * from the index are found by reading the block headers), and each lookup then reads and
+ * decompresses only the block containing the email. If a row was archived more than once,
+ * the last email archived for it is returned.
+ * @author LieutenantPeacock
+ *
+ */
+public class EmailArchiveReader implements Closeable {
+	private final FileChannel channel;
+	/** The row number in the high half and the position in {@link #offsets} in the low half, sorted. */
+	private long[] keys = new long[1024];
+	private long[] offsets = new long[1024];
+	private int size;
+
+	private EmailArchiveReader(final File file) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			load(file);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an archive for reading.
+	 * @param file The archive file.
+	 * @return The reader.
+	 * @throws IOException If the file cannot be read or is not an archive
+	 */
+	public static EmailArchiveReader open(final File file) throws IOException {
+		return new EmailArchiveReader(file);
+	}
+
+	private void load(final File file) throws IOException {
+		if (channel.size() < EmailArchive.HEADER_SIZE)
+			throw new IOException("Not an email archive: " + file);
+		final ByteBuffer header = ByteBuffer.allocate(EmailArchive.HEADER_SIZE);
+		EmailArchive.readFully(channel, header, 0);
+		if (header.getInt() != EmailArchive.MAGIC)
+			throw new IOException("Not an email archive: " + file);
+		long scanFrom = EmailArchive.HEADER_SIZE;
+		final File indexFile = EmailArchive.indexFile(file);
+		if (indexFile.exists()) {
+			try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+				if (indexChannel.size() >= EmailArchive.HEADER_SIZE) {
+					header.clear();
+					EmailArchive.readFully(indexChannel, header, 0);
+					if (header.getInt() != EmailArchive.INDEX_MAGIC)
+						throw new IOException("Not an email archive index: " + indexFile);
+					final long[] indexed = EmailArchive.indexedPrefix(indexChannel, channel.size());
+					readIndex(indexChannel, indexed[0]);
+					scanFrom = indexed[1];
+				}
+			}
+		}
+		EmailArchive.scanBlocks(channel, scanFrom, (offset, rows, rowCount) -> {
+			for (int i = 0; i < rowCount; i++) {
+				add(rows[i], offset);
+			}
+		});
+		Arrays.sort(keys, 0, size);
+	}
+
+	private void readIndex(final FileChannel indexChannel, final long end) throws IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(EmailArchive.INDEX_ENTRY_SIZE * 8192);
+		for (long position = EmailArchive.HEADER_SIZE; position < end;) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), end - position));
+			EmailArchive.readFully(indexChannel, buf, position);
+			position += buf.limit();
+			while (buf.hasRemaining()) {
+				add(buf.getInt(), buf.getLong());
+			}
+		}
+	}
+
+	private void add(final int rowNum, final long offset) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			offsets = Arrays.copyOf(offsets, size * 2);
+		}
+		keys[size] = (long) rowNum << 32 | size;
+		offsets[size++] = offset;
+	}
+
+	/**
+	 * @return The rows for which an email is archived.
+	 */
+	public BitSet getArchivedRows() {
+		final BitSet rows = new BitSet();
+		for (int i = 0; i < size; i++) {
+			final int rowNum = (int) (keys[i] >>> 32);
+			if (rowNum >= 0) {
+				rows.set(rowNum);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @param rowNum The row number (one-indexed, not counting the header).
+	 * @return The last email archived for the row, or {@code null} if there is none.
+	 * @throws IOException If the archive cannot be read or is corrupt
+	 */
+	public ArchivedEmail read(final int rowNum) throws IOException {
+		final int insertionPoint = -Arrays.binarySearch(keys, 0, size, (long) rowNum << 32 | 0xFFFFFFFFL) - 1;
+		if (insertionPoint == 0 || (int) (keys[insertionPoint - 1] >>> 32) != rowNum) {
+			return null;
+		}
+		final long offset = offsets[(int) keys[insertionPoint - 1]];
+		final ByteBuffer block = readBlock(offset);
+		ArchivedEmail found = null;
+		while (block.hasRemaining()) {
+			final int length = block.getInt();
+			final int next = block.position() + length;
+			final long timestamp = block.getLong();
+			final int rowCount = block.getInt();
+			final List<Integer> rowNums = new ArrayList<>(rowCount);
+			for (int i = 0; i < rowCount; i++) {
+				rowNums.add(block.getInt());
+			}
+			if (rowNums.contains(rowNum)) {
+				final String[] to = readStrings(block), cc = readStrings(block), bcc = readStrings(block);
+				final String subject = readString(block), body = readString(block);
+				final String[] attachmentPaths = readStrings(block);
+				final File[] attachments = new File[attachmentPaths.length];
+				for (int i = 0; i < attachments.length; i++) {
+					attachments[i] = new File(attachmentPaths[i]);
+				}
+				found = new ArchivedEmail(rowNums, timestamp, to, cc, bcc, subject, body, attachments);
+			}
+			block.position(next);
+		}
+		if (found == null)
+			throw new IOException("Email archive block at offset " + offset + " does not contain row " + rowNum);
+		return found;
+	}
+
+	private ByteBuffer readBlock(final long offset) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(EmailArchive.BLOCK_HEADER_SIZE);
+		EmailArchive.readFully(channel, header, offset);
+		if (header.getInt() != EmailArchive.BLOCK_MAGIC)
+			throw new IOException("No email archive block at offset " + offset);
+		final int rawLength = header.getInt(), compressedLength = header.getInt(), checksum = header.getInt(),
+				rowCount = header.getInt();
+		final ByteBuffer data = ByteBuffer.allocate(compressedLength);
+		EmailArchive.readFully(channel, data, offset + EmailArchive.BLOCK_HEADER_SIZE + rowCount * 4L);
+		final CRC32 crc = new CRC32();
+		crc.update(data.array(), 0, compressedLength);
+		if ((int) crc.getValue() != checksum)
+			throw new IOException("Corrupt email archive block at offset " + offset);
+		final byte[] raw = new byte[rawLength];
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data.array(), 0, compressedLength);
+			if (inflater.inflate(raw) != rawLength)
+				throw new IOException("Corrupt email archive block at offset " + offset);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt email archive block at offset " + offset, e);
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(raw);
+	}
+
+	private static String[] readStrings(final ByteBuffer buf) {
+		final String[] strings = new String[buf.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = readString(buf);
+		}
+		return strings;
+	}
+
+	private static String readString(final ByteBuffer buf) {
+		final int length = buf.getInt();
+		final String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
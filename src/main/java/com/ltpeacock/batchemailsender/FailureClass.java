@@ -0,0 +1,74 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.IOException;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * The classes of failures to send an email, which decide whether the email is retried
+ * (see {@link RetryPolicy}).
+ * @author LieutenantPeacock
+ *
+ */
+public enum FailureClass {
+	/**
+	 * The failure is likely to go away if the email is sent again later, e.g. a 4xx reply,
+	 * a timeout, or a connection lost before all of the email was sent.
+	 */
+	TRANSIENT,
+	/**
+	 * The email itself cannot be sent, e.g. because of an invalid address or a 5xx reply, or
+	 * must not be sent again, because the connection was lost after all of it was sent and it
+	 * may have been delivered (see {@link com.ltpeacock.batchemailsender.exception.ErrorCode#DELIVERY_UNKNOWN}).
+	 */
+	PERMANENT,
+	/**
+	 * No email can be sent, e.g. because the mail server rejected the credentials or the
+	 * emails cannot be signed, so sending should stop.
+	 */
+	FATAL;
+
+	/**
+	 * Classifies a failure by its {@link com.ltpeacock.batchemailsender.exception.ErrorCode}
+	 * and, for errors reported by the mail server, the class of its SMTP reply.
+	 * @param e The failure.
+	 * @return The class of the failure.
+	 */
+	public static FailureClass of(final MailSendingException e) {
+		switch (e.getErrorCode()) {
+		case THROTTLED:
+		case NO_MAIL_SERVER_AVAILABLE:
+			return TRANSIENT;
+		case ERROR_READING_DATA:
+		case ERROR_SIGNING:
+			return FATAL;
+		case DELIVERY_UNKNOWN:
+			// sending it again could deliver it twice
+			return PERMANENT;
+		case ERROR_SENDING:
+			break;
+		default:
+			return PERMANENT;
+		}
+		for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+			if (t instanceof AuthenticationFailedException) {
+				return FATAL;
+			}
+			if (t instanceof MessagingException) {
+				if (SmtpReplies.isDeliveryUnknown((MessagingException) t)) {
+					return PERMANENT;
+				}
+				final int returnCode = SmtpReplies.getReturnCode((MessagingException) t);
+				// otherwise, no reply means the connection failed or timed out before the end of the data
+				return returnCode == SmtpReplies.NO_REPLY || returnCode / 100 == 4 ? TRANSIENT : PERMANENT;
+			}
+			if (t instanceof IOException) {
+				return TRANSIENT;
+			}
+		}
+		return PERMANENT;
+	}
+}
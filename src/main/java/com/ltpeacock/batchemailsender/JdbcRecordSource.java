@@ -0,0 +1,158 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link RecordSource} that reads the rows of a database query through a forward-only,
+ * read-only cursor, fetching a limited number of rows from the database at a time. The
+ * columns are named by their labels in the query; each label is also available in upper case,
+ * so that columns of databases that fold unquoted names to lower case can be used as template
+ * parameters. {@code NULL} values are read as empty values.
+ * <p>
+ * The query should have an {@code ORDER BY} clause, so that the rows are numbered the same
+ * way when a run is resumed. Auto-commit is turned off on the connection, as some drivers
+ * (such as PostgreSQL) only use a cursor inside a transaction; MySQL also needs a fetch size of
+ * {@link Integer#MIN_VALUE} to stream rows.
+ * @author LieutenantPeacock
+ *
+ */
+public class JdbcRecordSource implements RecordSource {
+	/** The default number of rows to fetch from the database at a time. */
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+	private final Connection connection;
+	private final PreparedStatement statement;
+	private final ResultSet resultSet;
+	private final Map<String, Integer> headerMap;
+	private final int columnCount;
+
+	private JdbcRecordSource(final Connection connection, final PreparedStatement statement, final int fetchSize)
+			throws SQLException {
+		this.connection = connection;
+		this.statement = statement;
+		statement.setFetchSize(fetchSize);
+		this.resultSet = statement.executeQuery();
+		final ResultSetMetaData metaData = resultSet.getMetaData();
+		this.columnCount = metaData.getColumnCount();
+		final Map<String, Integer> columns = new LinkedHashMap<>();
+		for (int i = 0; i < columnCount; i++) {
+			columns.putIfAbsent(metaData.getColumnLabel(i + 1), i);
+		}
+		for (int i = 0; i < columnCount; i++) {
+			columns.putIfAbsent(metaData.getColumnLabel(i + 1).toUpperCase(Locale.ROOT), i);
+		}
+		this.headerMap = Collections.unmodifiableMap(columns);
+	}
+
+	/**
+	 * Runs a query and opens a source for its rows. The source takes over the connection,
+	 * and closes it when the source is closed (or if the query cannot be run).
+	 * @param connection The connection to the database.
+	 * @param query The query to run.
+	 * @param fetchSize The number of rows to fetch from the database at a time.
+	 * @return The source.
+	 * @throws SQLException If the query cannot be run
+	 */
+	public static JdbcRecordSource open(final Connection connection, final String query, final int fetchSize)
+			throws SQLException {
+		PreparedStatement statement = null;
+		try {
+			connection.setAutoCommit(false);
+			statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			return new JdbcRecordSource(connection, statement, fetchSize);
+		} catch (SQLException | RuntimeException e) {
+			final SQLException closeException = close(connection, statement, null);
+			if (closeException != null) {
+				e.addSuppressed(closeException);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public Map<String, Integer> getHeaderMap() {
+		return headerMap;
+	}
+
+	@Override
+	public DataRecord next() throws IOException {
+		try {
+			if (!resultSet.next()) {
+				return null;
+			}
+			final String[] values = new String[columnCount];
+			for (int i = 0; i < columnCount; i++) {
+				final String value = resultSet.getString(i + 1);
+				values[i] = value != null ? value : "";
+			}
+			return new DataRecord(headerMap, values);
+		} catch (SQLException e) {
+			throw new IOException("Error reading row from database", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		final SQLException e = close(connection, statement, resultSet);
+		if (e != null) {
+			throw new IOException("Error closing database connection", e);
+		}
+	}
+
+	/**
+	 * Closes the result set, the statement, and the connection, in that order, rolling back the
+	 * read-only transaction before closing the connection, as some drivers refuse to close a
+	 * connection with a transaction in progress.
+	 * @param connection The connection.
+	 * @param statement The statement, or {@code null}.
+	 * @param resultSet The result set, or {@code null}.
+	 * @return The first error, with any later ones suppressed by it, or {@code null}.
+	 */
+	private static SQLException close(final Connection connection, final PreparedStatement statement,
+			final ResultSet resultSet) {
+		SQLException failure = null;
+		if (resultSet != null) {
+			try {
+				resultSet.close();
+			} catch (SQLException e) {
+				failure = e;
+			}
+		}
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				failure = addFailure(failure, e);
+			}
+		}
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+		} catch (SQLException e) {
+			failure = addFailure(failure, e);
+		}
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			failure = addFailure(failure, e);
+		}
+		return failure;
+	}
+
+	private static SQLException addFailure(final SQLException failure, final SQLException e) {
+		if (failure == null) {
+			return e;
+		}
+		failure.addSuppressed(e);
+		return failure;
+	}
+}
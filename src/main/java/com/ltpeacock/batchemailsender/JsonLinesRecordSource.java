@@ -0,0 +1,258 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link RecordSource} that reads JSON Lines data: one JSON object per line, whose
+ * members are the columns of the row. The columns are the members of the first object, in
+ * order; a member missing from a later object is treated as an empty value, and members
+ * that the first object does not have are ignored. Values must be strings, numbers,
+ * booleans, or {@code null} (which is read as an empty value). Blank lines are skipped.
+ * @author LieutenantPeacock
+ *
+ */
+public class JsonLinesRecordSource implements RecordSource {
+	private final BufferedReader reader;
+	private final Map<String, Integer> headerMap;
+	private String[] firstValues;
+	private int lineNum;
+
+	/**
+	 * Constructs a {@link JsonLinesRecordSource}, reading the first object to find the columns.
+	 * @param reader The reader to read the JSON Lines data from. It is closed when the source is closed.
+	 * @throws IOException If the first object cannot be read or is not valid
+	 */
+	public JsonLinesRecordSource(final Reader reader) throws IOException {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+		final String line = nextLine();
+		if (line == null) {
+			headerMap = Collections.emptyMap();
+			return;
+		}
+		final Map<String, Integer> columns = new LinkedHashMap<>();
+		final Map<String, String> values = new LinkedHashMap<>();
+		new ObjectParser(line, lineNum).parse((name, value) -> {
+			columns.putIfAbsent(name, columns.size());
+			values.put(name, value);
+		});
+		headerMap = Collections.unmodifiableMap(columns);
+		firstValues = values.values().toArray(new String[0]);
+	}
+
+	@Override
+	public Map<String, Integer> getHeaderMap() {
+		return headerMap;
+	}
+
+	@Override
+	public DataRecord next() throws IOException {
+		if (firstValues != null) {
+			final String[] values = firstValues;
+			firstValues = null;
+			return new DataRecord(headerMap, values);
+		}
+		final String line = nextLine();
+		if (line == null) {
+			return null;
+		}
+		final String[] values = new String[headerMap.size()];
+		new ObjectParser(line, lineNum).parse((name, value) -> {
+			final Integer index = headerMap.get(name);
+			if (index != null) {
+				values[index] = value;
+			}
+		});
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null) {
+				values[i] = "";
+			}
+		}
+		return new DataRecord(headerMap, values);
+	}
+
+	private String nextLine() throws IOException {
+		String line;
+		do {
+			line = reader.readLine();
+			++lineNum;
+		} while (line != null && line.trim().isEmpty());
+		return line;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private interface MemberConsumer {
+		void accept(String name, String value);
+	}
+
+	/**
+	 * Parser for a single JSON object whose members all have scalar values.
+	 */
+	private static final class ObjectParser {
+		private final String line;
+		private final int lineNum;
+		private int pos;
+
+		private ObjectParser(final String line, final int lineNum) {
+			this.line = line;
+			this.lineNum = lineNum;
+		}
+
+		void parse(final MemberConsumer consumer) throws IOException {
+			skipWhitespace();
+			expect('{');
+			skipWhitespace();
+			if (peek() == '}') {
+				++pos;
+			} else {
+				for (;;) {
+					skipWhitespace();
+					final String name = readString();
+					skipWhitespace();
+					expect(':');
+					skipWhitespace();
+					consumer.accept(name, readValue());
+					skipWhitespace();
+					final char c = next();
+					if (c == '}')
+						break;
+					if (c != ',')
+						throw error("expected ',' or '}'");
+				}
+			}
+			skipWhitespace();
+			if (pos < line.length())
+				throw error("unexpected text after the object");
+		}
+
+		private String readValue() throws IOException {
+			final char c = peek();
+			if (c == '"') {
+				return readString();
+			}
+			if (c == '{' || c == '[')
+				throw error("nested objects and arrays are not supported");
+			final int start = pos;
+			while (pos < line.length() && "{}[],: \t\"".indexOf(line.charAt(pos)) < 0) {
+				++pos;
+			}
+			final String literal = line.substring(start, pos);
+			if (literal.equals("null")) {
+				return "";
+			}
+			if (literal.equals("true") || literal.equals("false") || isNumber(literal)) {
+				return literal;
+			}
+			pos = start;
+			throw error("invalid value");
+		}
+
+		private String readString() throws IOException {
+			expect('"');
+			final int start = pos;
+			final int end = line.indexOf('"', start);
+			final int escape = line.indexOf('\\', start);
+			if (end >= 0 && (escape < 0 || escape > end)) {
+				pos = end + 1;
+				return line.substring(start, end);
+			}
+			final StringBuilder sb = new StringBuilder();
+			for (;;) {
+				final char c = next();
+				if (c == '"')
+					return sb.toString();
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				final char escaped = next();
+				switch (escaped) {
+				case '"':
+				case '\\':
+				case '/':
+					sb.append(escaped);
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > line.length())
+						throw error("incomplete unicode escape");
+					try {
+						sb.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("invalid unicode escape");
+					}
+					pos += 4;
+					break;
+				default:
+					throw error("invalid escape");
+				}
+			}
+		}
+
+		private static boolean isNumber(final String literal) {
+			if (literal.isEmpty()) {
+				return false;
+			}
+			try {
+				Double.parseDouble(literal);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			// Double.parseDouble also accepts forms that JSON does not
+			final char last = literal.charAt(literal.length() - 1);
+			return Character.isDigit(last) && literal.indexOf('x') < 0 && literal.indexOf('X') < 0
+					&& !literal.startsWith("+");
+		}
+
+		private void skipWhitespace() {
+			while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+				++pos;
+			}
+		}
+
+		private char peek() throws IOException {
+			if (pos >= line.length())
+				throw error("unexpected end of line");
+			return line.charAt(pos);
+		}
+
+		private char next() throws IOException {
+			final char c = peek();
+			++pos;
+			return c;
+		}
+
+		private void expect(final char expected) throws IOException {
+			if (next() != expected) {
+				--pos;
+				throw error("expected '" + expected + "'");
+			}
+		}
+
+		private IOException error(final String message) {
+			return new IOException("Invalid JSON on line " + lineNum + " at column " + (pos + 1) + ": " + message);
+		}
+	}
+}
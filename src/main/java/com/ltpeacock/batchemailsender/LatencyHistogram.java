@@ -0,0 +1,109 @@
+package com.ltpeacock.batchemailsender;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with log-linear buckets, in the manner of HdrHistogram: values are
+ * recorded in microseconds, exactly up to 32 &micro;s and with at most about 3% error above that,
+ * up to more than a day. Recording is lock-free and does not allocate, so it can be done on
+ * every email by any number of threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 37; // 2^37 us is about 38 hours
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 * @param nanos The duration in nanoseconds.
+	 */
+	public void record(final long nanos) {
+		final long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+		counts.incrementAndGet(indexOf(micros));
+		totalCount.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		for (long max = maxMicros.get(); micros > max && !maxMicros.compareAndSet(max, micros);) {
+			max = maxMicros.get();
+		}
+	}
+
+	/**
+	 * @return The number of durations recorded.
+	 */
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * @return The mean duration in milliseconds, or 0 if none were recorded.
+	 */
+	public double getMeanMillis() {
+		final long count = totalCount.get();
+		return count > 0 ? totalMicros.get() / 1000d / count : 0;
+	}
+
+	/**
+	 * @return The longest duration in milliseconds.
+	 */
+	public double getMaxMillis() {
+		return maxMicros.get() / 1000d;
+	}
+
+	/**
+	 * @return The total of all durations in milliseconds.
+	 */
+	public double getTotalMillis() {
+		return totalMicros.get() / 1000d;
+	}
+
+	/**
+	 * @param percentile The percentile, from 0 to 100.
+	 * @return The duration in milliseconds that the given percentage of the recorded durations
+	 * do not exceed (the upper bound of its bucket), or 0 if none were recorded.
+	 */
+	public double getPercentileMillis(final double percentile) {
+		final long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), maxMicros.get()) / 1000d;
+			}
+		}
+		return getMaxMillis();
+	}
+
+	static int indexOf(final long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		final int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		final int subBucket = (int) Math.min(micros >>> (exponent - SUB_BUCKET_BITS), 2 * SUB_BUCKETS - 1)
+				- SUB_BUCKETS;
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The largest value in microseconds that falls into a bucket.
+	 */
+	static long upperBoundOf(final int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,373 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import javax.mail.MessagingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * A {@link MailSender} that spreads emails over several other MailSenders, e.g. one
+ * {@link BasicMailSender} per mail server or account, so that their throughput adds up.
+ * <br>
+ * Each email goes to the available sender with the highest share of the weighted round
+ * robin, where the configured weight of each sender is scaled down in proportion to how much
+ * slower its recent emails were than those of the fastest sender. If a sender fails because
+ * of the mail server, i.e. the connection fails or the server replies with a 4xx code, the email
+ * is tried with the next sender; a 5xx reply rejects the email itself, so it is not tried again.
+ * An email whose connection was lost after all of it was sent counts as a failure of the
+ * sender but is not tried again, since it may have been delivered. After a number of
+ * consecutive failures, a sender is not used for a while (its circuit is open); after that, a
+ * single email is sent with it as a trial, and it is used normally again if that succeeds.
+ * <br>
+ * {@link #sendEmailAsync(String[], String[], String[], String, String, String, File[], Executor)}
+ * hands the email to the selected sender's sendEmailAsync, so the email is still built on the
+ * calling thread; after a failure of the mail server, the next sender is tried from the thread
+ * on which the failure was reported.
+ * <br>
+ * Raw emails can only be sent with the senders that are {@link RawMailSender}s.
+ * <br>
+ * This class is safe for use by multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class LoadBalancingMailSender implements RawMailSender {
+	private static final Logger LOG = LoggerFactory.getLogger(LoadBalancingMailSender.class);
+	private static final double LATENCY_SMOOTHING = 0.2;
+	private final Endpoint[] endpoints;
+	private final int failureThreshold;
+	private final long openNanos;
+	private final LongSupplier clock;
+
+	private LoadBalancingMailSender(final Builder builder) {
+		if (builder.endpoints.isEmpty())
+			throw new IllegalStateException("At least one MailSender must be added");
+		this.endpoints = new Endpoint[builder.endpoints.size()];
+		for (int i = 0; i < endpoints.length; i++) {
+			final Endpoint endpoint = builder.endpoints.get(i);
+			endpoints[i] = new Endpoint(i, endpoint.name, endpoint.sender, endpoint.weight);
+		}
+		this.failureThreshold = builder.failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(builder.openDuration);
+		this.clock = builder.clock;
+	}
+
+	@Override
+	public void sendEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
+			final String body, final String contentType, final File[] attachments) throws MailSendingException {
+		send(sender -> sender.sendEmail(to, cc, bcc, subject, body, contentType, attachments));
+	}
+
+	@Override
+	public CompletableFuture<SendResult> sendEmailAsync(final String[] to, final String[] cc, final String[] bcc,
+			final String subject, final String body, final String contentType, final File[] attachments,
+			final Executor executor) {
+		return sendAsync(
+				sender -> sender.sendEmailAsync(to, cc, bcc, subject, body, contentType, attachments, executor),
+				new boolean[endpoints.length], null, System.nanoTime());
+	}
+
+	/**
+	 * Sends an email asynchronously with the next selected sender, trying the next one once it
+	 * reports a failure of the mail server.
+	 */
+	private CompletableFuture<SendResult> sendAsync(final Function<MailSender, CompletableFuture<SendResult>> action,
+			final boolean[] tried, final MailSendingException lastFailure, final long start) {
+		final Endpoint endpoint = select(tried);
+		if (endpoint == null) {
+			return CompletableFuture.completedFuture(SendResult.failed(lastFailure != null ? lastFailure
+					: new MailSendingException(ErrorCode.NO_MAIL_SERVER_AVAILABLE), System.nanoTime() - start));
+		}
+		tried[endpoint.index] = true;
+		final long attemptStart = clock.getAsLong();
+		final CompletableFuture<SendResult> future;
+		try {
+			future = action.apply(endpoint.sender);
+		} catch (RuntimeException e) {
+			endTrial(endpoint);
+			throw e;
+		}
+		return future.whenComplete((result, e) -> {
+			if (e != null) {
+				endTrial(endpoint);
+			}
+		}).thenCompose(result -> {
+			if (result.isSent()) {
+				onSuccess(endpoint, clock.getAsLong() - attemptStart);
+				return CompletableFuture.completedFuture(SendResult.sent(System.nanoTime() - start));
+			}
+			final MailSendingException e = result.getError();
+			if (!isServerFailure(e)) {
+				endTrial(endpoint);
+				return CompletableFuture.completedFuture(SendResult.failed(e, System.nanoTime() - start));
+			}
+			LOG.warn("Sending with mail server [{}] failed: {}", endpoint.name, e.getMessage());
+			onFailure(endpoint, clock.getAsLong());
+			if (e.getErrorCode() == ErrorCode.DELIVERY_UNKNOWN) {
+				// the server may have delivered the email, so it must not be sent again
+				return CompletableFuture.completedFuture(SendResult.failed(e, System.nanoTime() - start));
+			}
+			return sendAsync(action, tried, e, start);
+		});
+	}
+
+	@Override
+	public void sendRawEmail(final byte[] message) throws MailSendingException {
+		send(SendAction.raw(message));
+	}
+
+	private void send(final SendAction action) throws MailSendingException {
+		final boolean[] tried = new boolean[endpoints.length];
+		MailSendingException lastFailure = null;
+		for (Endpoint endpoint; (endpoint = select(tried)) != null;) {
+			tried[endpoint.index] = true;
+			final long start = clock.getAsLong();
+			try {
+				action.send(endpoint.sender);
+			} catch (MailSendingException e) {
+				if (!isServerFailure(e)) {
+					endTrial(endpoint);
+					throw e;
+				}
+				LOG.warn("Sending with mail server [{}] failed: {}", endpoint.name, e.getMessage());
+				onFailure(endpoint, clock.getAsLong());
+				if (e.getErrorCode() == ErrorCode.DELIVERY_UNKNOWN) {
+					// the server may have delivered the email, so it must not be sent again
+					throw e;
+				}
+				lastFailure = e;
+				continue;
+			} catch (RuntimeException e) {
+				endTrial(endpoint);
+				throw e;
+			}
+			onSuccess(endpoint, clock.getAsLong() - start);
+			return;
+		}
+		if (lastFailure != null) {
+			throw lastFailure;
+		}
+		throw new MailSendingException(ErrorCode.NO_MAIL_SERVER_AVAILABLE);
+	}
+
+	/**
+	 * @return Whether a failure is caused by the mail server rather than by the email itself:
+	 * a lost connection or a 4xx reply. A 5xx reply rejects the email, which would be rejected
+	 * by the other servers too.
+	 */
+	private static boolean isServerFailure(final MailSendingException e) {
+		if (e.getErrorCode() == ErrorCode.THROTTLED || e.getErrorCode() == ErrorCode.DELIVERY_UNKNOWN) {
+			return true;
+		}
+		if (e.getErrorCode() != ErrorCode.ERROR_SENDING) {
+			return false;
+		}
+		if (e.getCause() instanceof MessagingException) {
+			final int returnCode = SmtpReplies.getReturnCode((MessagingException) e.getCause());
+			return returnCode == SmtpReplies.NO_REPLY || returnCode / 100 == 4;
+		}
+		return true;
+	}
+
+	/**
+	 * Selects the sender for the next attempt using smooth weighted round robin.
+	 * @param tried Which senders have already been tried for the email.
+	 * @return The sender, or {@code null} if none that has not been tried is available.
+	 */
+	private synchronized Endpoint select(final boolean[] tried) {
+		final long now = clock.getAsLong();
+		double fastestLatency = Double.MAX_VALUE;
+		for (final Endpoint endpoint : endpoints) {
+			if (!tried[endpoint.index] && endpoint.isAvailable(now) && endpoint.latencyNanos > 0) {
+				fastestLatency = Math.min(fastestLatency, endpoint.latencyNanos);
+			}
+		}
+		Endpoint selected = null;
+		double totalWeight = 0;
+		for (final Endpoint endpoint : endpoints) {
+			if (tried[endpoint.index] || !endpoint.isAvailable(now)) {
+				continue;
+			}
+			final double weight = endpoint.latencyNanos > 0 ? endpoint.weight * fastestLatency / endpoint.latencyNanos
+					: endpoint.weight;
+			endpoint.currentWeight += weight;
+			totalWeight += weight;
+			if (selected == null || endpoint.currentWeight > selected.currentWeight) {
+				selected = endpoint;
+			}
+		}
+		if (selected != null) {
+			selected.currentWeight -= totalWeight;
+			if (selected.state == CircuitState.OPEN) {
+				selected.state = CircuitState.HALF_OPEN;
+				LOG.info("Trying mail server [{}] again", selected.name);
+			}
+			selected.trialInProgress = selected.state == CircuitState.HALF_OPEN;
+		}
+		return selected;
+	}
+
+	private synchronized void onSuccess(final Endpoint endpoint, final long elapsedNanos) {
+		endpoint.latencyNanos = endpoint.latencyNanos > 0
+				? endpoint.latencyNanos + LATENCY_SMOOTHING * (elapsedNanos - endpoint.latencyNanos)
+				: elapsedNanos;
+		endpoint.consecutiveFailures = 0;
+		endpoint.sentCount++;
+		endpoint.trialInProgress = false;
+		if (endpoint.state != CircuitState.CLOSED) {
+			endpoint.state = CircuitState.CLOSED;
+			LOG.info("Mail server [{}] has recovered", endpoint.name);
+		}
+	}
+
+	private synchronized void onFailure(final Endpoint endpoint, final long now) {
+		endpoint.failureCount++;
+		endpoint.trialInProgress = false;
+		if (endpoint.state == CircuitState.HALF_OPEN || ++endpoint.consecutiveFailures >= failureThreshold) {
+			if (endpoint.state != CircuitState.OPEN) {
+				LOG.warn("Not using mail server [{}] for [{}] ms after [{}] consecutive failures", endpoint.name,
+						TimeUnit.NANOSECONDS.toMillis(openNanos), Math.max(endpoint.consecutiveFailures, 1));
+			}
+			endpoint.state = CircuitState.OPEN;
+			endpoint.openUntil = now + openNanos;
+		}
+	}
+
+	/**
+	 * Ends a trial whose outcome says nothing about the health of the mail server.
+	 */
+	private synchronized void endTrial(final Endpoint endpoint) {
+		endpoint.trialInProgress = false;
+	}
+
+	/**
+	 * Closes all of the senders and logs how many emails each one sent.
+	 */
+	@Override
+	public void close() {
+		for (final Endpoint endpoint : endpoints) {
+			synchronized (this) {
+				LOG.info("Mail server [{}]: [{}] emails sent, [{}] failures, recent time per email: [{}] ms",
+						endpoint.name, endpoint.sentCount, endpoint.failureCount,
+						String.format("%.1f", endpoint.latencyNanos / 1e6));
+			}
+			endpoint.sender.close();
+		}
+	}
+
+	private enum CircuitState {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * A sender together with its weight and health. Guarded by the enclosing {@link LoadBalancingMailSender}.
+	 */
+	private static final class Endpoint {
+		private final int index;
+		private final String name;
+		private final MailSender sender;
+		private final int weight;
+		private double currentWeight;
+		private double latencyNanos;
+		private CircuitState state = CircuitState.CLOSED;
+		private long openUntil;
+		private boolean trialInProgress;
+		private int consecutiveFailures;
+		private long sentCount, failureCount;
+
+		private Endpoint(final int index, final String name, final MailSender sender, final int weight) {
+			this.index = index;
+			this.name = name;
+			this.sender = sender;
+			this.weight = weight;
+		}
+
+		private boolean isAvailable(final long now) {
+			switch (state) {
+			case OPEN:
+				return now - openUntil >= 0;
+			case HALF_OPEN:
+				return !trialInProgress;
+			default:
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Creates builder to build {@link LoadBalancingMailSender}.
+	 *
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link LoadBalancingMailSender}.
+	 */
+	public static final class Builder {
+		private final List<Endpoint> endpoints = new ArrayList<>();
+		private int failureThreshold = 3;
+		private long openDuration = 30_000;
+		private LongSupplier clock = System::nanoTime;
+
+		private Builder() {
+		}
+
+		/**
+		 * Adds a sender. Senders are closed when the LoadBalancingMailSender is closed.
+		 * @param name The name of the sender for logging, e.g. the host name of its mail server.
+		 * @param mailSender The {@link MailSender}.
+		 * @param weight The share of the emails sent with this sender relative to the other senders.
+		 * @return This builder
+		 */
+		public Builder withMailSender(String name, MailSender mailSender, int weight) {
+			if (weight <= 0)
+				throw new IllegalArgumentException("weight must be positive");
+			endpoints.add(new Endpoint(endpoints.size(), name, mailSender, weight));
+			return this;
+		}
+
+		/**
+		 * @param failureThreshold The number of consecutive failures after which a sender is not used
+		 * for a while. Defaults to 3.
+		 * @return This builder
+		 */
+		public Builder withFailureThreshold(int failureThreshold) {
+			if (failureThreshold <= 0)
+				throw new IllegalArgumentException("failureThreshold must be positive");
+			this.failureThreshold = failureThreshold;
+			return this;
+		}
+
+		/**
+		 * @param openDuration The number of milliseconds for which a failing sender is not used. Defaults to 30 seconds.
+		 * @return This builder
+		 */
+		public Builder withOpenDuration(long openDuration) {
+			this.openDuration = openDuration;
+			return this;
+		}
+
+		Builder withClock(LongSupplier clock) {
+			this.clock = clock;
+			return this;
+		}
+
+		public LoadBalancingMailSender build() {
+			return new LoadBalancingMailSender(this);
+		}
+	}
+}
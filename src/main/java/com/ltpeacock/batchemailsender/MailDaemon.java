@@ -0,0 +1,721 @@
+package com.ltpeacock.batchemailsender;
+
+import static com.ltpeacock.batchemailsender.LogMarkers.CONSOLE;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running process that sends batches of templated emails submitted as jobs over HTTP,
+ * so that many small batches do not each pay for starting a JVM, connecting to the mail server,
+ * and parsing the template. Jobs are run one at a time in the order they were submitted, and
+ * everything that can be reused between jobs is kept: a {@link MailSender} (with its open
+ * connections) for every config file, and the parsed and compiled templates (see
+ * {@link TemplateCache}). A config file that is modified is loaded again for the next job.
+ * <br>
+ * The HTTP server only listens on the loopback interface. As any local process or web page could
+ * reach it, every request must carry the shared secret of the daemon (see
+ * {@link Builder#withAuthToken(String)}) in an {@code Authorization: Bearer <token>} header,
+ * or it is refused with {@code 401}. Requests from web pages, i.e. with an {@code Origin} header
+ * or a {@code Host} header other than the loopback interface, are refused with {@code 403}.
+ * The server serves:
+ * <ul>
+ * <li>{@code POST /jobs?template=...&data=...}: submits a job, with the paths of the template
+ * and data files as query parameters, and optionally {@code config}, {@code threads} (no more
+ * than the threads of the daemon), and {@code charset}. Files must be in one of the allowed
+ * directories (see {@link Builder#withAllowedDirectory(File)}). Without {@code data}, the request
+ * body is the CSV data. Replies with the job ({@code 202}), or {@code 503} if the queue is full.</li>
+ * <li>{@code GET /jobs}: lists the jobs.</li>
+ * <li>{@code GET /jobs/<id>}: the status of a job. With {@code wait=<seconds>}, the reply is
+ * sent once the job has finished or the time has passed.</li>
+ * <li>{@code DELETE /jobs/<id>}: cancels a job that has not started.</li>
+ * </ul>
+ * Jobs are shown as JSON objects with the fields {@code id}, {@code state} (see
+ * {@link DaemonJob.State}), {@code config}, {@code template}, {@code data} ({@code null} for
+ * submitted CSV data), {@code rowsRead}, {@code emailsSent}, {@code emailsNotSent}, {@code submitted},
+ * {@code started}, {@code finished}, and {@code error}.
+ * <br>
+ * With a {@link RetryPolicy} (see {@link Builder#withRetryPolicy(RetryPolicy)}), emails that
+ * cannot be sent do not fail the job; they are counted as not sent, and those of data files are
+ * listed in a {@link DeadLetterFile} named after the data file with {@code .notsent.csv} appended.
+ * @author LieutenantPeacock
+ *
+ */
+public class MailDaemon implements Closeable {
+	private static final Logger LOG = LoggerFactory.getLogger(MailDaemon.class);
+	private static final String JOBS_PATH = "/jobs";
+	private static final int MAX_CSV_BYTES = 16 * 1024 * 1024;
+	private static final int MAX_FINISHED_JOBS = 1000;
+	private static final long MAX_WAIT_SECONDS = 300;
+	private static final int HTTP_THREADS = 4;
+	private static final String BEARER_PREFIX = "Bearer ";
+	private static final int AUTH_TOKEN_BYTES = 32;
+	private final MailSenderFactory mailSenderFactory;
+	private final File defaultConfigFile;
+	private final byte[] authToken;
+	private final List<Path> allowedDirectories = new ArrayList<>();
+	private final int threads;
+	private final boolean dryRun;
+	private final RetryPolicy retryPolicy;
+	private final int maxQueuedJobs;
+	private final TemplateCache templateCache = new TemplateCache(64);
+	private final Map<File, CachedMailSender> mailSenders = new HashMap<>();
+	private final Map<Long, DaemonJob> jobs = new LinkedHashMap<>();
+	private final AtomicInteger queuedJobs = new AtomicInteger();
+	private final ExecutorService executor = Executors
+			.newSingleThreadExecutor(new MailWorker.StageThreadFactory("DaemonJob"));
+	private final ExecutorService httpExecutor = Executors.newFixedThreadPool(HTTP_THREADS,
+			new MailWorker.StageThreadFactory("DaemonHttp"));
+	private final CountDownLatch closed = new CountDownLatch(1);
+	private final HttpServer server;
+	private long lastJobId;
+	private boolean closing;
+
+	/**
+	 * Creates the {@link MailSender} to send the jobs that use a config file with.
+	 */
+	@FunctionalInterface
+	public interface MailSenderFactory {
+		/**
+		 * @param configFile The config file.
+		 * @return The {@link MailSender}, which is closed when the config file is modified or
+		 * the daemon is closed.
+		 * @throws IOException If the config file cannot be read
+		 */
+		MailSender create(File configFile) throws IOException;
+	}
+
+	private MailDaemon(final Builder builder) throws IOException {
+		this.mailSenderFactory = builder.mailSenderFactory;
+		this.defaultConfigFile = builder.defaultConfigFile;
+		this.authToken = builder.authToken.getBytes(StandardCharsets.UTF_8);
+		for (final File directory : builder.allowedDirectories.isEmpty()
+				? Collections.singletonList(new File(".")) : builder.allowedDirectories) {
+			allowedDirectories.add(directory.getCanonicalFile().toPath());
+		}
+		this.threads = builder.threads;
+		this.dryRun = builder.dryRun;
+		this.retryPolicy = builder.retryPolicy;
+		this.maxQueuedJobs = builder.maxQueuedJobs;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 0);
+		server.createContext(JOBS_PATH, this::handle);
+		// requests waiting for a job to finish must not hold up the others
+		server.setExecutor(httpExecutor);
+		server.start();
+	}
+
+	/**
+	 * @return The port that the server listens on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @param id The number of the job.
+	 * @return The job, or {@code null} if there is no such job, or it finished long ago.
+	 */
+	public synchronized DaemonJob getJob(final long id) {
+		return jobs.get(id);
+	}
+
+	/**
+	 * @return The jobs, in the order they were submitted.
+	 */
+	public synchronized List<DaemonJob> getJobs() {
+		return new ArrayList<>(jobs.values());
+	}
+
+	/**
+	 * Submits a job.
+	 * @param configFile The config file of the mail server to send with, or {@code null} for the default.
+	 * @param templateFile The template file.
+	 * @param dataFile The CSV (or JSON Lines) data file, or {@code null} if {@code csv} is given.
+	 * @param csv The CSV data, with a header row, or {@code null} if {@code dataFile} is given.
+	 * @param charset The charset of the data file.
+	 * @param threads The number of threads to send with, or 0 for the default.
+	 * @return The job, or {@code null} if the queue is full or the daemon is closing.
+	 */
+	public DaemonJob submit(final File configFile, final File templateFile, final File dataFile, final String csv,
+			final Charset charset, final int threads) {
+		final DaemonJob job;
+		synchronized (this) {
+			if (closing || queuedJobs.get() >= maxQueuedJobs) {
+				return null;
+			}
+			job = new DaemonJob(++lastJobId, configFile != null ? configFile : defaultConfigFile, templateFile,
+					dataFile, csv, charset, threads);
+			jobs.put(job.getId(), job);
+			queuedJobs.incrementAndGet();
+			pruneFinishedJobs();
+			// under the lock, so that the executor cannot have been shut down by close
+			executor.execute(() -> run(job));
+		}
+		LOG.info(CONSOLE, "Queued job [{}] for data [{}]", job.getId(),
+				dataFile != null ? dataFile.getPath() : "submitted with the job");
+		return job;
+	}
+
+	private void pruneFinishedJobs() {
+		int finished = 0;
+		for (final DaemonJob job : jobs.values()) {
+			if (job.getState().isFinished()) {
+				++finished;
+			}
+		}
+		for (final Iterator<DaemonJob> it = jobs.values().iterator(); finished > MAX_FINISHED_JOBS && it.hasNext();) {
+			if (it.next().getState().isFinished()) {
+				it.remove();
+				--finished;
+			}
+		}
+	}
+
+	private void run(final DaemonJob job) {
+		queuedJobs.decrementAndGet();
+		final SendMetrics metrics = job.start();
+		if (metrics == null) {
+			return;
+		}
+		MDC.put(MdcKeys.JOB_ID, String.valueOf(job.getId()));
+		LOG.info(CONSOLE, "Running job [{}]", job.getId());
+		String error = null;
+		try {
+			send(job, metrics);
+		} catch (MailSendingException | IOException | RuntimeException e) {
+			LOG.error("Job [{}] failed", job.getId(), e);
+			error = e.getMessage() != null ? e.getMessage() : e.toString();
+		} finally {
+			job.finish(error);
+			MDC.remove(MdcKeys.JOB_ID);
+		}
+		LOG.info(CONSOLE, "Finished job [{}] as [{}]: [{}] emails sent, [{}] not sent", job.getId(), job.getState(),
+				job.getEmailsSent(), job.getEmailsNotSent());
+	}
+
+	private void send(final DaemonJob job, final SendMetrics metrics) throws MailSendingException, IOException {
+		final EmailTemplate template = templateCache.get(job.getTemplateFile());
+		final MailWorker.Builder mailWorker = MailWorker.builder().withMailSender(getMailSender(job.getConfigFile()))
+				.withDryRun(dryRun).withMetrics(metrics).withTemplateCache(templateCache)
+				.withRetryPolicy(retryPolicy);
+		if (job.getThreads() > 0 || threads > 0) {
+			mailWorker.withThreads(job.getThreads() > 0 ? job.getThreads() : threads);
+		}
+		final File dataFile = job.getDataFile();
+		if (dataFile == null) {
+			try (RecordSource source = new CsvRecordSource(new StringReader(job.getCsv()))) {
+				mailWorker.build().sendTemplatedEmails(source, template);
+			}
+			return;
+		}
+		try (DeadLetterFile deadLetters = retryPolicy != null
+				? new DeadLetterFile(new File(dataFile.getPath() + ".notsent.csv"))
+				: null;
+				RecordSource source = openDataFile(dataFile, job.getCharset())) {
+			mailWorker.withDeadLetterFile(deadLetters).build().sendTemplatedEmails(source, template);
+		}
+	}
+
+	private static RecordSource openDataFile(final File dataFile, final Charset charset) throws IOException {
+		final String name = dataFile.getName();
+		if (name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+			return new JsonLinesRecordSource(
+					new BufferedReader(new InputStreamReader(new FileInputStream(dataFile), charset)));
+		}
+		return MappedCsvRecordSource.isSupported(charset) ? new MappedCsvRecordSource(dataFile, charset)
+				: new CsvRecordSource(new BufferedReader(new InputStreamReader(new FileInputStream(dataFile), charset)));
+	}
+
+	/**
+	 * Only called by the job thread.
+	 */
+	private MailSender getMailSender(final File configFile) throws IOException {
+		final File file = configFile.getCanonicalFile();
+		final long lastModified = file.lastModified();
+		final CachedMailSender cached = mailSenders.get(file);
+		if (cached != null) {
+			if (cached.lastModified == lastModified) {
+				return cached.mailSender;
+			}
+			LOG.info(CONSOLE, "Config file [{}] was modified; reloading it", file);
+			mailSenders.remove(file);
+			cached.mailSender.close();
+		}
+		final MailSender mailSender = mailSenderFactory.create(file);
+		mailSenders.put(file, new CachedMailSender(mailSender, lastModified));
+		return mailSender;
+	}
+
+	/**
+	 * Reads the shared secret of a daemon from a file, creating the file with a random secret,
+	 * readable only by its owner where the file system supports it, if it does not exist.
+	 * @param tokenFile The file.
+	 * @return The secret.
+	 * @throws IOException If the file cannot be read or written
+	 */
+	public static String readOrCreateAuthToken(final File tokenFile) throws IOException {
+		if (tokenFile.exists()) {
+			final String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim();
+			if (token.isEmpty())
+				throw new IOException("Auth token file is empty: " + tokenFile.getAbsolutePath());
+			return token;
+		}
+		final byte[] random = new byte[AUTH_TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+		final String token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+		final Path path = tokenFile.toPath();
+		if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+		}
+		Files.write(path, token.getBytes(StandardCharsets.UTF_8));
+		return token;
+	}
+
+	/**
+	 * @return The status to refuse a request with, or 0 if it may be served.
+	 */
+	private int checkRequest(final HttpExchange exchange) {
+		final Headers headers = exchange.getRequestHeaders();
+		if (headers.containsKey("Origin") || !isLoopbackHost(headers.getFirst("Host"))) {
+			// sent by a browser for a web page, which must not be able to submit jobs
+			return 403;
+		}
+		final String authorization = headers.getFirst("Authorization");
+		if (authorization == null || !authorization.startsWith(BEARER_PREFIX)
+				|| !MessageDigest.isEqual(authToken, authorization.substring(BEARER_PREFIX.length()).trim()
+						.getBytes(StandardCharsets.UTF_8))) {
+			return 401;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return Whether a Host header names the loopback interface, so that the request was not
+	 * sent to a host name that a web page has pointed at it.
+	 */
+	private static boolean isLoopbackHost(final String host) {
+		if (host == null) {
+			return true;
+		}
+		final int portStart = host.lastIndexOf(':');
+		final String name = portStart > host.lastIndexOf(']') ? host.substring(0, portStart) : host;
+		return name.equalsIgnoreCase("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		try {
+			final int refusal = checkRequest(exchange);
+			if (refusal != 0) {
+				if (refusal == 401) {
+					exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+				}
+				reply(exchange, refusal, null);
+				return;
+			}
+			final String path = exchange.getRequestURI().getPath();
+			final Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+			final String method = exchange.getRequestMethod();
+			if (path.equals(JOBS_PATH) || path.equals(JOBS_PATH + '/')) {
+				if ("POST".equals(method)) {
+					handleSubmit(exchange, params);
+				} else if ("GET".equals(method)) {
+					final StringBuilder sb = new StringBuilder("[");
+					for (final DaemonJob job : getJobs()) {
+						toJson(sb.length() > 1 ? sb.append(',') : sb, job);
+					}
+					reply(exchange, 200, sb.append(']').toString());
+				} else {
+					reply(exchange, 405, null);
+				}
+				return;
+			}
+			final DaemonJob job;
+			try {
+				job = getJob(Long.parseLong(path.substring(JOBS_PATH.length() + 1)));
+			} catch (NumberFormatException e) {
+				reply(exchange, 404, null);
+				return;
+			}
+			if (job == null) {
+				reply(exchange, 404, null);
+			} else if ("GET".equals(method)) {
+				if (params.containsKey("wait")) {
+					job.await(Math.min(MAX_WAIT_SECONDS, Long.parseLong(params.get("wait"))), TimeUnit.SECONDS);
+				}
+				reply(exchange, 200, toJson(new StringBuilder(), job).toString());
+			} else if ("DELETE".equals(method)) {
+				reply(exchange, job.cancel() ? 200 : 409, toJson(new StringBuilder(), job).toString());
+			} else {
+				reply(exchange, 405, null);
+			}
+		} catch (IllegalArgumentException e) {
+			reply(exchange, 400, error(e.getMessage()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			reply(exchange, 503, null);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleSubmit(final HttpExchange exchange, final Map<String, String> params) throws IOException {
+		final File templateFile = existingFile(params, "template");
+		if (templateFile == null) {
+			throw new IllegalArgumentException("template parameter is required");
+		}
+		final File configFile = existingFile(params, "config");
+		if (configFile == null && defaultConfigFile == null) {
+			throw new IllegalArgumentException("config parameter is required");
+		}
+		final File dataFile = existingFile(params, "data");
+		final Charset charset = params.containsKey("charset") ? Charset.forName(params.get("charset"))
+				: StandardCharsets.UTF_8;
+		final String csv = dataFile == null ? readCsv(exchange.getRequestBody()) : null;
+		if (dataFile == null && csv.isEmpty()) {
+			throw new IllegalArgumentException("data parameter or CSV data in the request body is required");
+		}
+		int jobThreads = 0;
+		if (params.containsKey("threads")) {
+			final int maxThreads = Math.max(threads, 1);
+			jobThreads = Integer.parseInt(params.get("threads"));
+			if (jobThreads < 1 || jobThreads > maxThreads) {
+				throw new IllegalArgumentException("threads parameter must be between 1 and " + maxThreads);
+			}
+		}
+		final DaemonJob job = submit(configFile, templateFile, dataFile, csv, charset, jobThreads);
+		if (job == null) {
+			reply(exchange, 503, error("Job queue is full"));
+			return;
+		}
+		exchange.getResponseHeaders().set("Location", JOBS_PATH + '/' + job.getId());
+		reply(exchange, 202, toJson(new StringBuilder(), job).toString());
+	}
+
+	/**
+	 * @return The file named by a parameter, or {@code null} if the parameter is not given.
+	 * @throws IllegalArgumentException If the file does not exist or is not in an allowed directory
+	 */
+	private File existingFile(final Map<String, String> params, final String name) throws IOException {
+		final String path = params.get(name);
+		if (path == null) {
+			return null;
+		}
+		final File file = new File(path);
+		if (!file.isFile()) {
+			throw new IllegalArgumentException("No " + name + " file found with path: " + file.getAbsolutePath());
+		}
+		final File canonicalFile = file.getCanonicalFile();
+		for (final Path directory : allowedDirectories) {
+			if (canonicalFile.toPath().startsWith(directory)) {
+				return canonicalFile;
+			}
+		}
+		throw new IllegalArgumentException(name + " file is not in an allowed directory: " + file.getAbsolutePath());
+	}
+
+	private static String readCsv(final InputStream is) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		for (int n; (n = is.read(buffer)) != -1;) {
+			out.write(buffer, 0, n);
+			if (out.size() > MAX_CSV_BYTES) {
+				throw new IllegalArgumentException("CSV data cannot be larger than " + MAX_CSV_BYTES
+						+ " bytes; use the data parameter instead");
+			}
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static Map<String, String> parseQuery(final String query) throws UnsupportedEncodingException {
+		final Map<String, String> params = new HashMap<>();
+		if (query != null) {
+			for (final String pair : query.split("&")) {
+				final int eq = pair.indexOf('=');
+				if (eq > 0) {
+					params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+							URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+				}
+			}
+		}
+		return params;
+	}
+
+	private static void reply(final HttpExchange exchange, final int status, final String json) throws IOException {
+		if (json == null) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		final byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+	private static String error(final String message) {
+		return appendString(new StringBuilder("{\"error\":"), message).append('}').toString();
+	}
+
+	static StringBuilder toJson(final StringBuilder sb, final DaemonJob job) {
+		// the getters lock the job, so locking it here gives a consistent view of its status
+		synchronized (job) {
+			sb.append("{\"id\":").append(job.getId()).append(",\"state\":\"").append(job.getState()).append('"');
+			appendString(sb.append(",\"config\":"), job.getConfigFile().getPath());
+			appendString(sb.append(",\"template\":"), job.getTemplateFile().getPath());
+			appendString(sb.append(",\"data\":"), job.getDataFile() != null ? job.getDataFile().getPath() : null);
+			sb.append(",\"rowsRead\":").append(job.getRowsRead());
+			sb.append(",\"emailsSent\":").append(job.getEmailsSent());
+			sb.append(",\"emailsNotSent\":").append(job.getEmailsNotSent());
+			appendTime(sb.append(",\"submitted\":"), job.getSubmittedMillis());
+			appendTime(sb.append(",\"started\":"), job.getStartedMillis());
+			appendTime(sb.append(",\"finished\":"), job.getFinishedMillis());
+			appendString(sb.append(",\"error\":"), job.getError());
+		}
+		return sb.append('}');
+	}
+
+	private static void appendTime(final StringBuilder sb, final long millis) {
+		appendString(sb, millis > 0 ? Instant.ofEpochMilli(millis).toString() : null);
+	}
+
+	private static StringBuilder appendString(final StringBuilder sb, final String value) {
+		if (value == null) {
+			return sb.append("null");
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"');
+	}
+
+	/**
+	 * Waits for the daemon to be closed.
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public void awaitClose() throws InterruptedException {
+		closed.await();
+	}
+
+	/**
+	 * Stops accepting jobs, cancels the jobs that have not started, waits for the running job
+	 * to finish, and closes the mail senders.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closing) {
+				return;
+			}
+			closing = true;
+			for (final DaemonJob job : jobs.values()) {
+				job.cancel();
+			}
+		}
+		server.stop(0);
+		httpExecutor.shutdownNow();
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (final CachedMailSender cached : mailSenders.values()) {
+			cached.mailSender.close();
+		}
+		mailSenders.clear();
+		closed.countDown();
+	}
+
+	private static final class CachedMailSender {
+		private final MailSender mailSender;
+		private final long lastModified;
+
+		private CachedMailSender(final MailSender mailSender, final long lastModified) {
+			this.mailSender = mailSender;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * Creates builder to build {@link MailDaemon}.
+	 *
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link MailDaemon}.
+	 */
+	public static final class Builder {
+		private int port;
+		private MailSenderFactory mailSenderFactory;
+		private File defaultConfigFile;
+		private String authToken;
+		private final List<File> allowedDirectories = new ArrayList<>();
+		private int threads;
+		private boolean dryRun;
+		private RetryPolicy retryPolicy;
+		private int maxQueuedJobs = 100;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param port The port to listen on, or 0 for any free port. Defaults to 0.
+		 * @return This builder
+		 */
+		public Builder withPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param mailSenderFactory The factory creating a {@link MailSender} for each config file.
+		 * @return This builder
+		 */
+		public Builder withMailSenderFactory(MailSenderFactory mailSenderFactory) {
+			this.mailSenderFactory = mailSenderFactory;
+			return this;
+		}
+
+		/**
+		 * Sets the config file for jobs that do not specify one. By default, jobs must specify one.
+		 * @param defaultConfigFile The config file.
+		 * @return This builder
+		 */
+		public Builder withDefaultConfigFile(File defaultConfigFile) {
+			this.defaultConfigFile = defaultConfigFile;
+			return this;
+		}
+
+		/**
+		 * Sets the shared secret that every request must carry. It must be set; see
+		 * {@link MailDaemon#readOrCreateAuthToken(File)} to keep it in a file for the clients to read.
+		 * @param authToken The secret.
+		 * @return This builder
+		 */
+		public Builder withAuthToken(String authToken) {
+			this.authToken = authToken;
+			return this;
+		}
+
+		/**
+		 * Adds a directory that jobs may use the template, data, and config files in, including
+		 * those in its subdirectories. If none is added, jobs may only use the files in the
+		 * working directory.
+		 * @param directory The directory.
+		 * @return This builder
+		 */
+		public Builder withAllowedDirectory(File directory) {
+			allowedDirectories.add(directory);
+			return this;
+		}
+
+		/**
+		 * @param threads The number of threads to send the emails of a job with, unless the job
+		 * specifies fewer. Defaults to the default of the {@link MailWorker}, 1.
+		 * @return This builder
+		 */
+		public Builder withThreads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * @param dryRun If set to {@code true}, the emails will not actually be sent.
+		 * @return This builder
+		 */
+		public Builder withDryRun(boolean dryRun) {
+			this.dryRun = dryRun;
+			return this;
+		}
+
+		/**
+		 * Sets the policy for retrying emails with transient failures. By default, the first email
+		 * that cannot be sent fails its job.
+		 * @param retryPolicy The {@link RetryPolicy}.
+		 * @return This builder
+		 */
+		public Builder withRetryPolicy(RetryPolicy retryPolicy) {
+			this.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		/**
+		 * @param maxQueuedJobs The maximum number of jobs waiting to run. Defaults to 100.
+		 * @return This builder
+		 */
+		public Builder withMaxQueuedJobs(int maxQueuedJobs) {
+			this.maxQueuedJobs = maxQueuedJobs;
+			return this;
+		}
+
+		/**
+		 * Builds the daemon and starts listening for jobs.
+		 * @return The daemon.
+		 * @throws IOException If the port cannot be bound
+		 */
+		public MailDaemon build() throws IOException {
+			if (mailSenderFactory == null)
+				throw new IllegalStateException("mailSenderFactory must be set");
+			if (authToken == null || authToken.trim().isEmpty())
+				throw new IllegalStateException("authToken must be set");
+			return new MailDaemon(this);
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package com.ltpeacock.batchemailsender;
 
+import java.io.Closeable;
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import com.ltpeacock.batchemailsender.exception.MailSendingException;
 
@@ -9,7 +12,7 @@ import com.ltpeacock.batchemailsender.exception.MailSendingException;
  * @author LieutenantPeacock
  *
  */
-public interface MailSender {
+public interface MailSender extends Closeable {
 	default void sendEmail(String to, String subject, String body, String contentType) throws MailSendingException {
 		sendEmail(new String[] { to }, null, null, subject, body, contentType, null);
 	}
@@ -34,4 +37,40 @@ public interface MailSender {
 	 * @throws MailSendingException If the email cannot be sent
 	 */
 	void sendEmail(String[] to, String[] cc, String[] bcc, String subject, String body, String contentType, File[] attachments) throws MailSendingException;
-}
\ No newline at end of file
+
+	/**
+	 * Sends an email without waiting for it to be sent. The default implementation calls
+	 * {@link #sendEmail(String[], String[], String[], String, String, String, File[])} on the executor;
+	 * implementations may do part of the work, such as building the message, on the calling thread.
+	 * @param to An array of email addresses to send to. May be null.
+	 * @param cc An array of email addresses to send carbon copies to. May be null.
+	 * @param bcc An array of email addresses to send blind carbon copies to. May be null.
+	 * @param subject The subject of the email.
+	 * @param body The content of the email.
+	 * @param contentType The type of content that the email contains. See {@link MailContentTypes} for the values of some common ones.
+	 * @param attachments An array of {@link File} attachments to include in the email. May be null.
+	 * @param executor The {@link Executor} to send the email on.
+	 * @return A future completed with the {@link SendResult} once the email has been sent or could not be sent.
+	 * The future is only completed exceptionally by unexpected errors, such as a {@link RuntimeException}.
+	 */
+	default CompletableFuture<SendResult> sendEmailAsync(String[] to, String[] cc, String[] bcc, String subject,
+			String body, String contentType, File[] attachments, Executor executor) {
+		final long start = System.nanoTime();
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				sendEmail(to, cc, bcc, subject, body, contentType, attachments);
+				return SendResult.sent(System.nanoTime() - start);
+			} catch (MailSendingException e) {
+				return SendResult.failed(e, System.nanoTime() - start);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Releases any resources, such as open connections to the mail server, held by this MailSender.
+	 * The default implementation does nothing.
+	 */
+	@Override
+	default void close() {
+	}
+}
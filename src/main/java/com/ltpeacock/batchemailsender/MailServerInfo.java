@@ -11,12 +11,16 @@ import java.util.Properties;
 public class MailServerInfo {
 	private final Properties properties;
 	private final String username, password;
+	private final int maxMessagesPerConnection;
+	private final long connectionIdleTimeout;
+	private final boolean pipelining;
 
 	private MailServerInfo(Builder builder) {
 		this.properties = new Properties();
 		properties.put("mail.smtp.host", builder.host);
 		properties.put("mail.smtp.port", builder.port);
 		properties.put("mail.smtp.auth", "true");
+		properties.put("mail.smtp.userset", "true");
 		if (builder.tls) {
 			properties.put("mail.smtp.starttls.enable", "true");
 		} else {
@@ -25,6 +29,12 @@ public class MailServerInfo {
 		}
 		this.username = builder.username;
 		this.password = builder.password;
+		this.maxMessagesPerConnection = builder.maxMessagesPerConnection;
+		this.connectionIdleTimeout = builder.connectionIdleTimeout;
+		this.pipelining = builder.pipelining;
+		if (!pipelining) {
+			properties.put(PipeliningSMTPTransport.PIPELINING_PROPERTY, "false");
+		}
 	}
 
 	public Properties getProperties() {
@@ -39,6 +49,27 @@ public class MailServerInfo {
 		return password;
 	}
 
+	/**
+	 * @return The maximum number of emails to send over one connection before it is closed and a new one is opened.
+	 */
+	public int getMaxMessagesPerConnection() {
+		return maxMessagesPerConnection;
+	}
+
+	/**
+	 * @return The number of milliseconds after which an unused connection is closed instead of being reused.
+	 */
+	public long getConnectionIdleTimeout() {
+		return connectionIdleTimeout;
+	}
+
+	/**
+	 * @return Whether to pipeline SMTP commands when the mail server supports it.
+	 */
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
 	/**
 	 * Creates builder to build {@link MailServerInfo}.
 	 * 
@@ -57,6 +88,9 @@ public class MailServerInfo {
 		private String username;
 		private String password;
 		private boolean tls;
+		private int maxMessagesPerConnection = 100;
+		private long connectionIdleTimeout = 60_000;
+		private boolean pipelining = true;
 
 		private Builder() {
 		}
@@ -86,6 +120,38 @@ public class MailServerInfo {
 			return this;
 		}
 
+		/**
+		 * Sets the maximum number of emails to send over one connection. Defaults to 100.
+		 * @param maxMessagesPerConnection The maximum number of emails per connection.
+		 * @return This builder
+		 */
+		public Builder withMaxMessagesPerConnection(int maxMessagesPerConnection) {
+			this.maxMessagesPerConnection = maxMessagesPerConnection;
+			return this;
+		}
+
+		/**
+		 * Sets the number of milliseconds after which an unused connection is closed
+		 * instead of being reused. Defaults to 60 seconds.
+		 * @param connectionIdleTimeout The idle timeout in milliseconds.
+		 * @return This builder
+		 */
+		public Builder withConnectionIdleTimeout(long connectionIdleTimeout) {
+			this.connectionIdleTimeout = connectionIdleTimeout;
+			return this;
+		}
+
+		/**
+		 * Sets whether to pipeline SMTP commands (RFC 2920) when the mail server advertises
+		 * the PIPELINING extension. Defaults to {@code true}.
+		 * @param pipelining Whether to use pipelining.
+		 * @return This builder
+		 */
+		public Builder withPipelining(boolean pipelining) {
+			this.pipelining = pipelining;
+			return this;
+		}
+
 		public MailServerInfo build() {
 			return new MailServerInfo(this);
 		}
@@ -3,23 +3,41 @@ package com.ltpeacock.batchemailsender;
 import static com.ltpeacock.batchemailsender.LogMarkers.CONSOLE;
 import static com.ltpeacock.batchemailsender.LogMarkers.DRY_RUN;
 import static com.ltpeacock.batchemailsender.LogMarkers.EMAIL_ARCHIVE;
+import static com.ltpeacock.batchemailsender.LogMarkers.NOT_SENT;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
-import java.util.function.Predicate;
-import java.util.regex.MatchResult;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -30,6 +48,53 @@ import com.ltpeacock.batchemailsender.exception.MailSendingException;
 
 /**
  * Worker class for sending batch emails with replaceable parameters.
+ * <br>
+ * By default, emails are sent one at a time on the calling thread. If more than one
+ * thread is configured (see {@link Builder#withThreads(int)}), the rows pass through a
+ * pipeline of stages, each with its own threads: the calling thread reads the CSV data,
+ * render threads (see {@link Builder#withRenderThreads(int)}) render each row and hand it to
+ * {@link MailSender#sendEmailAsync(String[], String[], String[], String, String, String, File[], java.util.concurrent.Executor)}
+ * (with {@link BasicMailSender}, the message is also built on the render thread), sender threads
+ * send it, and a single thread records the outcome. Rendering thus overlaps with waiting for the
+ * mail server, and the number of rows between reading and recording is bounded, so reading
+ * waits when sending falls behind. On Java 21 and later, each row can instead be sent on
+ * its own virtual thread (see {@link Builder#withVirtualThreads(boolean)}).
+ * <br>
+ * If a {@link SendJournal} is configured (see {@link Builder#withJournal(SendJournal)}),
+ * the outcome of every row is recorded in it and rows that it records as already sent
+ * or skipped are passed over, so that an interrupted run can be resumed by running it
+ * again with the same journal.
+ * <br>
+ * If recipient batching is enabled (see {@link Builder#withBatchRecipients(int)}), rows whose
+ * rendered subject, body, CC recipients, and attachments are identical are grouped, and each
+ * group is sent as a single email with the TO and BCC recipients of all of its rows as BCC
+ * recipients, so that they cannot see each other. A group of only one row is sent with the
+ * TO and BCC recipients of that row.
+ * <br>
+ * If a {@link ShardSpec} is configured (see {@link Builder#withShard(ShardSpec)}), only the
+ * rows belonging to that shard are sent, so that the data can be split across several
+ * machines without splitting the file.
+ * <br>
+ * If {@link SendMetrics} are configured (see {@link Builder#withMetrics(SendMetrics)}), the time
+ * taken to read and render each row and the numbers of emails sent and failed are recorded as
+ * the emails are sent.
+ * <br>
+ * By default, the first email that cannot be sent aborts sending. If a {@link RetryPolicy} is
+ * configured (see {@link Builder#withRetryPolicy(RetryPolicy)}), failures are handled by their
+ * {@link FailureClass} instead: emails with transient failures are retried after a delay by
+ * separate threads while the other rows are sent, and emails with permanent failures, or
+ * that have run out of attempts, are logged with the {@link LogMarkers#NOT_SENT} marker,
+ * written to the {@link DeadLetterFile} if one is configured (see
+ * {@link Builder#withDeadLetterFile(DeadLetterFile)}), and recorded as failed in the journal.
+ * Only fatal failures still abort sending.
+ * <br>
+ * The subject and body of every email sent are logged with the {@link LogMarkers#EMAIL_ARCHIVE}
+ * marker, unless an {@link EmailArchive} is configured (see {@link Builder#withArchive(EmailArchive)}),
+ * in which case they are written to it instead.
+ * <br>
+ * If a {@link TemplateCache} is configured (see {@link Builder#withTemplateCache(TemplateCache)}),
+ * the template is only compiled once for every distinct header of the data across all
+ * MailWorkers sharing the cache.
  * 
  * @author LieutenantPeacock
  *
@@ -37,8 +102,24 @@ import com.ltpeacock.batchemailsender.exception.MailSendingException;
 public class MailWorker {
 	private static final Logger LOG = LoggerFactory.getLogger(MailWorker.class);
 	private final MailSender mailSender;
-	private static final Pattern templatePattern = Pattern.compile("\\$\\{([A-Z0-9_]+)\\}");
+	static final String SKIP_RECORD_COLUMN = "SKIP_RECORD";
+	private static final int DEFAULT_VIRTUAL_THREADS = 1000;
+	private static final int DEFAULT_FALLBACK_THREADS = 16;
+	private static final int MAX_OPEN_BATCHES = 1000;
+	private static final int MAX_PENDING_RETRIES = 1000;
+	private static final int MAX_RETRY_THREADS = 16;
 	private final boolean dryRun;
+	private final int threads;
+	private final int renderThreads;
+	private final boolean virtualThreads;
+	private final SendJournal journal;
+	private final int batchRecipients;
+	private final ShardSpec shard;
+	private final SendMetrics metrics;
+	private final EmailArchive archive;
+	private final RetryPolicy retryPolicy;
+	private final DeadLetterFile deadLetters;
+	private final TemplateCache templateCache;
 
 	/**
 	 * Constructs a MailWorker.
@@ -59,8 +140,31 @@ public class MailWorker {
 	 *                   not actually send them.
 	 */
 	public MailWorker(final MailSender mailSender, final boolean dryRun) {
-		this.mailSender = mailSender;
-		this.dryRun = dryRun;
+		this(builder().withMailSender(mailSender).withDryRun(dryRun));
+	}
+
+	private MailWorker(final Builder builder) {
+		this.mailSender = builder.mailSender;
+		this.dryRun = builder.dryRun;
+		this.virtualThreads = builder.virtualThreads && SendExecutors.virtualThreadsSupported();
+		this.threads = builder.threads > 0 ? builder.threads
+				: virtualThreads ? DEFAULT_VIRTUAL_THREADS : builder.virtualThreads ? DEFAULT_FALLBACK_THREADS : 1;
+		if (builder.virtualThreads && !virtualThreads) {
+			LOG.warn("Virtual threads are not supported before Java 21; sending emails on [{}] platform threads",
+					threads);
+		}
+		this.renderThreads = threads > 1 && !virtualThreads && builder.batchRecipients == 1
+				? builder.renderThreads > 0 ? builder.renderThreads
+						: Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), (threads + 3) / 4))
+				: 0;
+		this.journal = builder.journal;
+		this.batchRecipients = builder.batchRecipients;
+		this.shard = builder.shard;
+		this.metrics = builder.metrics;
+		this.archive = builder.archive;
+		this.retryPolicy = builder.retryPolicy;
+		this.deadLetters = builder.deadLetters;
+		this.templateCache = builder.templateCache;
 	}
 
 	/**
@@ -95,56 +199,208 @@ public class MailWorker {
 	 */
 	public void sendTemplatedEmails(final InputStream is, final EmailTemplate template, final int startIdx,
 			final int endIdx) throws MailSendingException {
-		int count = 0;
-		try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-			LOG.info("Sending templated emails");
-			final ProgressDotPrinter dotPrinter = new ProgressDotPrinter(50);
-			final Marker messageMarker = this.dryRun ? DRY_RUN : EMAIL_ARCHIVE;
+		try (RecordSource source = new CsvRecordSource(new BufferedReader(new InputStreamReader(is)))) {
+			sendRecords(source, 1, template, startIdx, endIdx);
+		} catch (IOException e) {
+			throw new MailSendingException(ErrorCode.ERROR_READING_DATA, e);
+		}
+	}
+
+	/**
+	 * Send batch templated emails. Sends one email for each row read from the source.
+	 *
+	 * @param source   The {@link RecordSource} to read the rows from. It is not
+	 *                 closed by this method.
+	 * @param template The {@link EmailTemplate} to use for each email.
+	 * @throws MailSendingException If one particular email cannot be sent
+	 */
+	public void sendTemplatedEmails(final RecordSource source, final EmailTemplate template)
+			throws MailSendingException {
+		sendTemplatedEmails(source, template, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Send batch templated emails from the rows of a {@link RecordSource}, reading
+	 * each row only as it is needed.
+	 *
+	 * @param source   The {@link RecordSource} to read the rows from. It is not
+	 *                 closed by this method.
+	 * @param template The {@link EmailTemplate} to use for each email.
+	 * @param startIdx The index of the first email to send (one-indexed), counting
+	 *                 from the first row of the source.
+	 * @param endIdx   The index of the last email to send (one-indexed).
+	 *                 `Integer.MAX_VALUE` may be used to indicate setting the end
+	 *                 point to the end of the data.
+	 * @throws MailSendingException If one particular email cannot be sent
+	 */
+	public void sendTemplatedEmails(final RecordSource source, final EmailTemplate template, final int startIdx,
+			final int endIdx) throws MailSendingException {
+		sendRecords(source, 1, template, startIdx, endIdx);
+	}
+
+	/**
+	 * Send batch templated emails, using a {@link CsvIndex} to start reading the CSV data
+	 * close to {@code startIdx} instead of parsing every row before it.
+	 *
+	 * @param dataFile The CSV data file. This is the data that is used in
+	 *                 substituting the actual values for replaceable parameters in
+	 *                 the email template.
+	 * @param index    The {@link CsvIndex} of the data file.
+	 * @param template The {@link EmailTemplate} to use for each email.
+	 * @param startIdx The index of the first email to send (one-indexed), counting
+	 *                 from the first line of the CSV data.
+	 * @param endIdx   The index of the last email to send (one-indexed).
+	 *                 `Integer.MAX_VALUE` may be used to indicate setting the end
+	 *                 point to the end of the data.
+	 * @throws MailSendingException If one particular email cannot be sent
+	 */
+	public void sendTemplatedEmails(final File dataFile, final CsvIndex index, final EmailTemplate template,
+			final int startIdx, final int endIdx) throws MailSendingException {
+		sendTemplatedEmails(dataFile, Charset.defaultCharset(), index, template, startIdx, endIdx);
+	}
+
+	/**
+	 * Send batch templated emails, using a {@link CsvIndex} to start reading the CSV data
+	 * close to {@code startIdx} instead of parsing every row before it. The data file is
+	 * read with a {@link MappedCsvRecordSource}.
+	 *
+	 * @param dataFile The CSV data file. This is the data that is used in
+	 *                 substituting the actual values for replaceable parameters in
+	 *                 the email template.
+	 * @param charset  The charset of the data file.
+	 * @param index    The {@link CsvIndex} of the data file.
+	 * @param template The {@link EmailTemplate} to use for each email.
+	 * @param startIdx The index of the first email to send (one-indexed), counting
+	 *                 from the first line of the CSV data.
+	 * @param endIdx   The index of the last email to send (one-indexed).
+	 *                 `Integer.MAX_VALUE` may be used to indicate setting the end
+	 *                 point to the end of the data.
+	 * @throws MailSendingException If one particular email cannot be sent
+	 */
+	public void sendTemplatedEmails(final File dataFile, final Charset charset, final CsvIndex index,
+			final EmailTemplate template, final int startIdx, final int endIdx) throws MailSendingException {
+		try (RecordSource source = new MappedCsvRecordSource(dataFile, charset, index.getOffset(startIdx))) {
+			sendRecords(source, index.getIndexedRecord(startIdx), template, startIdx, endIdx);
+		} catch (IOException e) {
+			throw new MailSendingException(ErrorCode.ERROR_READING_DATA, e);
+		}
+	}
+
+	/**
+	 * @param source The source of the records to send emails for.
+	 * @param firstRowNum The row number of the first record of the source (one-indexed).
+	 */
+	private void sendRecords(final RecordSource source, final int firstRowNum, final EmailTemplate template,
+			final int startIdx, final int endIdx) throws MailSendingException {
+		final Map<String, Integer> headerMap = source.getHeaderMap();
+		int count = firstRowNum - 1;
+		LOG.info("Sending templated emails");
+		if (shard != null) {
+			shard.validate(headerMap);
+		}
+		final CompiledEmailTemplate compiled = templateCache != null ? templateCache.compile(template, headerMap)
+				: CompiledEmailTemplate.compile(template, headerMap);
+		final BitSet columns = compiled.getColumns();
+		if (headerMap.containsKey(SKIP_RECORD_COLUMN)) {
+			columns.set(headerMap.get(SKIP_RECORD_COLUMN));
+		}
+		if (shard != null && shard.getKeyColumn() != null) {
+			columns.set(headerMap.get(shard.getKeyColumn()));
+		}
+		source.selectColumns(columns);
+		final Run run = new Run(compiled, headerMap);
+		try {
 			final long start = System.currentTimeMillis();
-			int sentCount = 0;
-			for (CSVRecord record : CSVFormat.RFC4180.withFirstRecordAsHeader().parse(br)) {
-				++count;
-				if (startIdx <= count && count <= endIdx) {
-					MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(count));
-					final Map<String, String> map = record.toMap();
-					if (Boolean.parseBoolean(map.get("SKIP_RECORD"))) {
-						LOG.info("Skipping record");
-						dotPrinter.skip();
-						continue;
-					}
-					final Function<String, String> replacer = str -> replaceTemplateParameters(str, map);
-					final Predicate<String> notEmpty = str -> !str.trim().isEmpty();
-					final String[] to = template.getTo().stream().map(replacer).filter(notEmpty).toArray(String[]::new);
-					final String[] cc = template.getCc().stream().map(replacer).filter(notEmpty).toArray(String[]::new);
-					final String[] bcc = template.getBcc().stream().map(replacer).filter(notEmpty)
-							.toArray(String[]::new);
-					final String subject = replacer.apply(template.getSubject());
-					final String body = template.getBody().stream().map(replacer).collect(Collectors.joining("<br>"));
-					final File[] attachments = template.getAttachments().stream().map(replacer).filter(notEmpty)
-							.map(File::new).toArray(File[]::new);
-					boolean invalid = false;
-					for (final File attachment : attachments) {
-						if (!attachment.exists()) {
-							LOG.error("No attachment file found with path {}", attachment.getAbsolutePath());
-							invalid = true;
-						}
+			final ExecutorService executor = newExecutor();
+			final Stages stages = executor != null && renderThreads > 0 ? new Stages(executor, renderThreads) : null;
+			boolean allRowsHandled = false;
+			try {
+				for (;;) {
+					if (retryPolicy != null && run.hasFailed()) {
+						// a retry failed fatally
+						break;
 					}
-					if (invalid) {
-						throw new IllegalArgumentException("Invalid file path(s) specified");
+					final long readStart = System.nanoTime();
+					final DataRecord record;
+					try {
+						record = source.next();
+					} catch (IOException e) {
+						throw new MailSendingException(ErrorCode.ERROR_READING_DATA, e);
 					}
-					LOG.info("Sending message. TO: [{}], CC: [{}], BCC: [{}]", Arrays.toString(to), Arrays.toString(cc),
-							Arrays.toString(bcc));
-					LOG.info(messageMarker, "Sending message. TO: [{}], CC: [{}], BCC: [{}], SUBJECT: [{}], BODY: [{}]",
-							Arrays.toString(to), Arrays.toString(cc), Arrays.toString(bcc), subject, body);
-					this.mailSender.sendEmail(to, cc, bcc, subject, body, MailContentTypes.HTML, attachments);
-					dotPrinter.dot();
-					++sentCount;
-				} else if (count > endIdx) {
-					break;
+					if (record == null) {
+						break;
+					}
+					if (metrics != null) {
+						metrics.recordSince(SendMetrics.Phase.CSV_READ, readStart);
+						metrics.rowRead();
+					}
+					++count;
+					if (startIdx <= count && count <= endIdx) {
+						if (shard != null && !shard.includes(count, record)) {
+							++run.otherShardCount;
+						} else if (journal != null && journal.isCompleted(count)) {
+							++run.journaledCount;
+						} else if (batchRecipients > 1) {
+							if (!run.batchRecord(executor, count, record)) {
+								break;
+							}
+						} else if (executor == null) {
+							run.sendRecord(count, record);
+						} else if (stages != null) {
+							if (!run.pipeline(stages, count, record)) {
+								break;
+							}
+						} else if (!run.submit(executor, count, record)) {
+							break;
+						}
+					} else if (count > endIdx) {
+						break;
+					}
+				}
+				if (batchRecipients > 1 && !run.hasFailed()) {
+					run.dispatchAllBatches(executor);
+				}
+				allRowsHandled = true;
+			} finally {
+				if (executor != null) {
+					run.awaitInFlight();
+					executor.shutdown();
+				}
+				run.awaitRetries(!allRowsHandled);
+				if (stages != null) {
+					stages.shutdown();
+				}
+			}
+			if (run.failedRow != 0) {
+				count = run.failedRow;
+				if (executor != null) {
+					LOG.warn("Emails for rows after row {} may already have been sent by other threads", count);
 				}
+				run.rethrowFailure();
 			}
-			dotPrinter.done();
+			run.dotPrinter.done();
 			MDC.remove(MdcKeys.CSV_LINE_NUM);
+			if (run.otherShardCount > 0) {
+				LOG.info(CONSOLE, "Passed over [{}] rows belonging to other shards than shard [{}]",
+						run.otherShardCount, shard);
+			}
+			if (run.journaledCount > 0) {
+				LOG.info(CONSOLE, "Passed over [{}] rows already sent or skipped according to the send journal",
+						run.journaledCount);
+			}
+			if (run.batchCount.get() > 0) {
+				LOG.info(CONSOLE, "Sent emails for [{}] rows in [{}] batched emails", run.sentCount.get(),
+						run.batchCount.get());
+			}
+			if (run.notSentCount.get() > 0) {
+				if (deadLetters != null) {
+					LOG.warn("Emails for [{}] rows could not be sent; they are listed in [{}]", run.notSentCount.get(),
+							deadLetters.getFile());
+				} else {
+					LOG.warn("Emails for [{}] rows could not be sent", run.notSentCount.get());
+				}
+			}
+			final int sentCount = run.sentCount.get();
 			final long end = System.currentTimeMillis();
 			final double totalSeconds = (end - start) / 1000d, secondsPerEmail = totalSeconds / sentCount,
 					throughput = 60 / secondsPerEmail;
@@ -152,37 +408,996 @@ public class MailWorker {
 					"Total time: [{}] seconds, Average time per email: [{}] seconds, Throughput: [{}] emails/minute",
 					String.format("%.1f", totalSeconds), String.format("%.1f", secondsPerEmail),
 					String.format("%.1f", throughput));
-		} catch (IOException e) {
-			throw new MailSendingException(ErrorCode.ERROR_READING_DATA, e);
 		} catch (MailSendingException e) {
-			LOG.warn(
-					"Aborted operation due to {}. To resume sending emails from where the program left off,"
-							+ " fix the issue (if applicable) and then run the program with -Dstart={}",
-					e.getMessage(), count);
+			count = run.getResumeRow(count);
+			if (journal != null) {
+				LOG.warn("Aborted operation due to {}. To resume sending emails from where the program left off,"
+						+ " fix the issue (if applicable) and then run the program again with the same journal",
+						e.getMessage());
+			} else {
+				if (batchRecipients > 1) {
+					LOG.warn("Emails for some rows after row {} may already have been sent in other batches;"
+							+ " use a send journal to resume without sending them again", count);
+				}
+				LOG.warn(
+						"Aborted operation due to {}. To resume sending emails from where the program left off,"
+								+ " fix the issue (if applicable) and then run the program with -Dstart={}",
+						e.getMessage(), count);
+			}
 			throw e;
 		} finally {
 			MDC.remove(MdcKeys.CSV_LINE_NUM);
 		}
 	}
 
-	private static String replaceTemplateParameters(final String str, final Map<String, String> map) {
-		return replaceAll(str, templatePattern, mr -> {
-			final String group = mr.group(1);
-			final String value = map.get(group);
-			if (value == null)
-				throw new IllegalStateException("No value found for token " + group);
-			return value;
-		});
+	/**
+	 * @return The {@link ExecutorService} to send emails with, or {@code null} to send
+	 * them on the calling thread.
+	 */
+	private ExecutorService newExecutor() {
+		if (virtualThreads) {
+			return SendExecutors.newVirtualThreadPerTaskExecutor(threads, new StageThreadFactory("MailSender"));
+		}
+		return threads > 1 ? Executors.newFixedThreadPool(threads, new StageThreadFactory("MailSender")) : null;
 	}
 
-	private static String replaceAll(final String str, final Pattern pattern,
-			final Function<MatchResult, String> callback) {
-		final Matcher matcher = pattern.matcher(str);
-		final StringBuffer sb = new StringBuffer(str.length());
-		while (matcher.find()) {
-			matcher.appendReplacement(sb, callback.apply(matcher.toMatchResult()));
+	/**
+	 * @return The maximum number of rows handed to sender threads that may not have finished yet.
+	 */
+	private int maxInFlight() {
+		return virtualThreads ? threads : threads * 2 + renderThreads;
+	}
+
+	/**
+	 * State shared by all rows of one call to send batch templated emails.
+	 */
+	private final class Run {
+		private final CompiledEmailTemplate compiled;
+		private final Integer skipColumn;
+		private final ProgressDotPrinter dotPrinter = new ProgressDotPrinter(50);
+		private final Marker messageMarker = dryRun ? DRY_RUN : EMAIL_ARCHIVE;
+		private final AtomicInteger sentCount = new AtomicInteger();
+		private final AtomicInteger batchCount = new AtomicInteger();
+		private final Map<String, Batch> batches = new LinkedHashMap<>();
+		private final Semaphore inFlight = new Semaphore(maxInFlight());
+		private final AtomicInteger notSentCount = new AtomicInteger();
+		private final ScheduledExecutorService retrier;
+		private final Semaphore retrySlots = new Semaphore(MAX_PENDING_RETRIES);
+		/** The first rows of the emails waiting to be retried. */
+		private final SortedSet<Integer> retryRows = new TreeSet<>();
+		private int journaledCount;
+		private int otherShardCount;
+		private int failedRow;
+		private int unsentRow;
+		private Throwable failure;
+
+		private Run(final CompiledEmailTemplate compiled, final Map<String, Integer> headerMap) {
+			this.compiled = compiled;
+			this.skipColumn = headerMap.get(SKIP_RECORD_COLUMN);
+			this.retrier = retryPolicy != null
+					? Executors.newScheduledThreadPool(Math.max(1, Math.min(threads, MAX_RETRY_THREADS)),
+							new StageThreadFactory("Retrier"))
+					: null;
+		}
+
+		private void sendRecord(final int rowNum, final DataRecord record) throws MailSendingException {
+			MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(rowNum));
+			final SendJournal.Status status;
+			try {
+				status = sendOrSkip(rowNum, record);
+			} catch (MailSendingException | RuntimeException e) {
+				if (journal != null && !dryRun) {
+					try {
+						journal.record(rowNum, SendJournal.Status.FAILED);
+					} catch (IOException e2) {
+						LOG.error("Error writing to send journal", e2);
+					}
+				}
+				throw e;
+			}
+			if (status != null && journal != null && !dryRun) {
+				try {
+					journal.record(rowNum, status);
+				} catch (IOException e) {
+					throw new MailSendingException(ErrorCode.IO_ERROR, "Error writing to send journal", e);
+				}
+			}
+		}
+
+		/**
+		 * @return The outcome of the row, or {@code null} if it is recorded once the email is retried.
+		 */
+		private SendJournal.Status sendOrSkip(final int rowNum, final DataRecord record) throws MailSendingException {
+			final RenderedEmail email = renderOrSkip(record);
+			if (email == null) {
+				return SendJournal.Status.SKIPPED;
+			}
+			final String[] to = email.getTo(), cc = email.getCc(), bcc = email.getBcc();
+			// the arrays are formatted by the logger, and only if the message is logged
+			if (LOG.isInfoEnabled()) {
+				LOG.info("Sending message. TO: [{}], CC: [{}], BCC: [{}]", to, cc, bcc);
+			}
+			if (archive == null && LOG.isInfoEnabled(messageMarker)) {
+				LOG.info(messageMarker, "Sending message. TO: [{}], CC: [{}], BCC: [{}], SUBJECT: [{}], BODY: [{}]",
+						to, cc, bcc, email.getSubject(), email.getBody());
+			}
+			try {
+				send(to, cc, bcc, email);
+			} catch (MailSendingException e) {
+				if (handleFailure(new Delivery(Collections.singletonList(rowNum), to, cc, bcc, email, false), e)) {
+					return null;
+				}
+				throw e;
+			}
+			archive(Collections.singletonList(rowNum), to, cc, bcc, email);
+			dotPrinter.dot();
+			sentCount.incrementAndGet();
+			return SendJournal.Status.SENT;
+		}
+
+		/**
+		 * @return The rendered email, or {@code null} if the row is to be skipped.
+		 */
+		private RenderedEmail renderOrSkip(final DataRecord record) {
+			if (skipColumn != null && skipColumn < record.size() && Boolean.parseBoolean(record.get(skipColumn))) {
+				LOG.info("Skipping record");
+				dotPrinter.skip();
+				return null;
+			}
+			final long start = System.nanoTime();
+			final RenderedEmail email = compiled.render(record);
+			if (metrics != null) {
+				metrics.recordSince(SendMetrics.Phase.RENDER, start);
+			}
+			boolean invalid = false;
+			for (final File attachment : email.getAttachments()) {
+				if (!attachment.exists()) {
+					LOG.error("No attachment file found with path {}", attachment.getAbsolutePath());
+					invalid = true;
+				}
+			}
+			if (invalid) {
+				throw new IllegalArgumentException("Invalid file path(s) specified");
+			}
+			return email;
+		}
+
+		/**
+		 * Renders a row and adds its recipients to the batch of rows with the same content,
+		 * sending the batch once it reaches the maximum number of recipients.
+		 * @return {@code false} if an earlier row has failed and no more rows should be submitted
+		 */
+		private boolean batchRecord(final ExecutorService executor, final int rowNum, final DataRecord record)
+				throws MailSendingException {
+			MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(rowNum));
+			final RenderedEmail email;
+			try {
+				email = renderOrSkip(record);
+			} catch (RuntimeException e) {
+				recordInJournal(Collections.singletonList(rowNum), SendJournal.Status.FAILED);
+				// the rows before this one are sent, as they would be without batching
+				try {
+					dispatchAllBatches(executor);
+				} catch (MailSendingException | RuntimeException e2) {
+					e.addSuppressed(e2);
+				}
+				throw e;
+			}
+			if (email == null) {
+				recordInJournal(Collections.singletonList(rowNum), SendJournal.Status.SKIPPED);
+				return true;
+			}
+			final String[] recipients = concat(email.getTo(), email.getBcc());
+			final String key = contentKey(email);
+			Batch batch = batches.get(key);
+			if (batch != null && batch.recipients.size() + recipients.length > batchRecipients) {
+				batches.remove(key);
+				if (!dispatch(executor, batch)) {
+					return false;
+				}
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new Batch(email);
+				batches.put(key, batch);
+				if (batches.size() > MAX_OPEN_BATCHES) {
+					final Iterator<Batch> eldest = batches.values().iterator();
+					final Batch evicted = eldest.next();
+					eldest.remove();
+					if (!dispatch(executor, evicted)) {
+						return false;
+					}
+				}
+			}
+			batch.rowNums.add(rowNum);
+			batch.recipients.addAll(Arrays.asList(recipients));
+			if (batch.recipients.size() >= batchRecipients) {
+				batches.remove(key);
+				return dispatch(executor, batch);
+			}
+			return true;
+		}
+
+		private void dispatchAllBatches(final ExecutorService executor) throws MailSendingException {
+			for (final Iterator<Batch> it = batches.values().iterator(); it.hasNext();) {
+				final Batch batch = it.next();
+				it.remove();
+				if (!dispatch(executor, batch)) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Sends a batch on the calling thread, or hands it to a sender thread.
+		 * @return {@code false} if an earlier row has failed and no more rows should be submitted
+		 */
+		private boolean dispatch(final ExecutorService executor, final Batch batch) throws MailSendingException {
+			final int firstRowNum = batch.rowNums.get(0);
+			if (executor != null) {
+				if (submit(executor, firstRowNum, () -> sendBatch(batch))) {
+					return true;
+				}
+				synchronized (this) {
+					unsentRow = unsentRow == 0 ? firstRowNum : Math.min(unsentRow, firstRowNum);
+				}
+				return false;
+			}
+			try {
+				sendBatch(batch);
+			} catch (MailSendingException | RuntimeException e) {
+				fail(firstRowNum, e);
+				throw e;
+			}
+			return true;
+		}
+
+		private void sendBatch(final Batch batch) throws MailSendingException {
+			final RenderedEmail email = batch.email;
+			final boolean single = batch.rowNums.size() == 1;
+			final String[] to = single ? email.getTo() : new String[0], cc = email.getCc(),
+					bcc = single ? email.getBcc() : batch.recipients.toArray(new String[0]);
+			MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(batch.rowNums.get(0)));
+			if (LOG.isInfoEnabled()) {
+				LOG.info("Sending batched message for rows {}. TO: [{}], CC: [{}], BCC: [{}]", batch.rowNums, to, cc,
+						bcc);
+			}
+			if (archive == null && LOG.isInfoEnabled(messageMarker)) {
+				LOG.info(messageMarker,
+						"Sending batched message for rows {}. TO: [{}], CC: [{}], BCC: [{}], SUBJECT: [{}], BODY: [{}]",
+						batch.rowNums, to, cc, bcc, email.getSubject(), email.getBody());
+			}
+			try {
+				send(to, cc, bcc, email);
+			} catch (MailSendingException e) {
+				if (handleFailure(new Delivery(batch.rowNums, to, cc, bcc, email, true), e)) {
+					return;
+				}
+				recordInJournal(batch.rowNums, SendJournal.Status.FAILED);
+				throw e;
+			} catch (RuntimeException e) {
+				recordInJournal(batch.rowNums, SendJournal.Status.FAILED);
+				throw e;
+			}
+			archive(batch.rowNums, to, cc, bcc, email);
+			for (int i = 0; i < batch.rowNums.size(); i++) {
+				dotPrinter.dot();
+			}
+			sentCount.addAndGet(batch.rowNums.size());
+			batchCount.incrementAndGet();
+			try {
+				if (journal != null && !dryRun) {
+					for (final int rowNum : batch.rowNums) {
+						journal.record(rowNum, SendJournal.Status.SENT);
+					}
+				}
+			} catch (IOException e) {
+				throw new MailSendingException(ErrorCode.IO_ERROR, "Error writing to send journal", e);
+			}
+		}
+
+		/**
+		 * Sends an email with the content of a rendered email to the given recipients.
+		 */
+		private void send(final String[] to, final String[] cc, final String[] bcc, final RenderedEmail email)
+				throws MailSendingException {
+			try {
+				mailSender.sendEmail(to, cc, bcc, email.getSubject(), email.getBody(), MailContentTypes.HTML,
+						email.getAttachments());
+			} catch (MailSendingException | RuntimeException e) {
+				if (metrics != null) {
+					metrics.emailFailed();
+				}
+				throw e;
+			}
+			if (metrics != null) {
+				metrics.emailSent(to.length + cc.length + bcc.length);
+			}
+		}
+
+		/**
+		 * Writes an email that was sent to the archive, if any, logging any error: the email has
+		 * already been sent, so it must not be treated as failed.
+		 */
+		private void archive(final List<Integer> rowNums, final String[] to, final String[] cc, final String[] bcc,
+				final RenderedEmail email) {
+			if (archive != null) {
+				try {
+					archive.archive(rowNums, to, cc, bcc, email.getSubject(), email.getBody(), email.getAttachments());
+				} catch (IOException e) {
+					LOG.error("Error writing to email archive", e);
+				}
+			}
+		}
+
+		/**
+		 * Records the outcome of rows in the journal, logging any error.
+		 */
+		private void recordInJournal(final List<Integer> rowNums, final SendJournal.Status status) {
+			if (journal != null && !dryRun) {
+				try {
+					for (final int rowNum : rowNums) {
+						journal.record(rowNum, status);
+					}
+				} catch (IOException e) {
+					LOG.error("Error writing to send journal", e);
+				}
+			}
+		}
+
+		/**
+		 * @param count The number of the last row read.
+		 * @return The number of the first row that may not have been sent.
+		 */
+		private synchronized int getResumeRow(final int count) {
+			int resumeRow = failedRow != 0 ? Math.min(count, failedRow) : count;
+			if (unsentRow != 0) {
+				resumeRow = Math.min(resumeRow, unsentRow);
+			}
+			for (final Batch batch : batches.values()) {
+				resumeRow = Math.min(resumeRow, batch.rowNums.get(0));
+			}
+			if (!retryRows.isEmpty()) {
+				resumeRow = Math.min(resumeRow, retryRows.first());
+			}
+			return resumeRow;
+		}
+
+		/**
+		 * Hands a row to the render stage of the pipeline, waiting while the maximum number of rows
+		 * are in flight. A row stays in flight until its outcome has been recorded.
+		 * @return {@code false} if an earlier row has failed and no more rows should be submitted
+		 */
+		private boolean pipeline(final Stages stages, final int rowNum, final DataRecord record) {
+			inFlight.acquireUninterruptibly();
+			if (hasFailed()) {
+				inFlight.release();
+				return false;
+			}
+			stages.render.execute(() -> renderAndSend(stages, rowNum, record));
+			return true;
+		}
+
+		/**
+		 * Render stage: renders a row and hands the email to the sender threads, with the
+		 * outcome to be recorded by the record stage.
+		 */
+		private void renderAndSend(final Stages stages, final int rowNum, final DataRecord record) {
+			MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(rowNum));
+			boolean handedOver = false;
+			try {
+				final RenderedEmail email = renderOrSkip(record);
+				if (email == null) {
+					stages.record.execute(() -> {
+						recordInJournal(Collections.singletonList(rowNum), SendJournal.Status.SKIPPED);
+						inFlight.release();
+					});
+				} else {
+					final String[] to = email.getTo(), cc = email.getCc(), bcc = email.getBcc();
+					if (LOG.isInfoEnabled()) {
+						LOG.info("Sending message. TO: [{}], CC: [{}], BCC: [{}]", to, cc, bcc);
+					}
+					if (archive == null && LOG.isInfoEnabled(messageMarker)) {
+						LOG.info(messageMarker,
+								"Sending message. TO: [{}], CC: [{}], BCC: [{}], SUBJECT: [{}], BODY: [{}]", to, cc,
+								bcc, email.getSubject(), email.getBody());
+					}
+					mailSender.sendEmailAsync(to, cc, bcc, email.getSubject(), email.getBody(),
+							MailContentTypes.HTML, email.getAttachments(), stages.sender(rowNum))
+							.whenCompleteAsync((result, e) -> recordResult(rowNum, email, result, e), stages.record);
+				}
+				handedOver = true;
+			} catch (RuntimeException e) {
+				recordInJournal(Collections.singletonList(rowNum), SendJournal.Status.FAILED);
+				fail(rowNum, e);
+			} finally {
+				if (!handedOver) {
+					inFlight.release();
+				}
+				MDC.remove(MdcKeys.CSV_LINE_NUM);
+			}
+		}
+
+		/**
+		 * Record stage: records the outcome of sending the email for a row.
+		 */
+		private void recordResult(final int rowNum, final RenderedEmail email, final SendResult result,
+				final Throwable e) {
+			MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(rowNum));
+			try {
+				Throwable error = result != null ? result.getError() : e;
+				if (error instanceof CompletionException && error.getCause() != null) {
+					error = error.getCause();
+				}
+				if (error != null) {
+					if (metrics != null) {
+						metrics.emailFailed();
+					}
+					if (error instanceof MailSendingException && handleFailure(new Delivery(
+							Collections.singletonList(rowNum), email.getTo(), email.getCc(), email.getBcc(), email, false),
+							(MailSendingException) error)) {
+						return;
+					}
+					recordInJournal(Collections.singletonList(rowNum), SendJournal.Status.FAILED);
+					fail(rowNum, error instanceof MailSendingException || error instanceof RuntimeException ? error
+							: new IllegalStateException(error));
+					return;
+				}
+				if (metrics != null) {
+					metrics.emailSent(email.getTo().length + email.getCc().length + email.getBcc().length);
+				}
+				archive(Collections.singletonList(rowNum), email.getTo(), email.getCc(), email.getBcc(), email);
+				dotPrinter.dot();
+				sentCount.incrementAndGet();
+				if (journal != null && !dryRun) {
+					try {
+						journal.record(rowNum, SendJournal.Status.SENT);
+					} catch (IOException e2) {
+						fail(rowNum, new MailSendingException(ErrorCode.IO_ERROR, "Error writing to send journal", e2));
+					}
+				}
+			} finally {
+				MDC.remove(MdcKeys.CSV_LINE_NUM);
+				inFlight.release();
+			}
+		}
+
+		/**
+		 * Hands a row to a sender thread, waiting while the maximum number of rows are in flight.
+		 * @return {@code false} if an earlier row has failed and no more rows should be submitted
+		 */
+		private boolean submit(final ExecutorService executor, final int rowNum, final DataRecord record) {
+			return submit(executor, rowNum, () -> sendRecord(rowNum, record));
+		}
+
+		/**
+		 * Hands a task to a sender thread, waiting while the maximum number of tasks are in flight.
+		 * @param rowNum The number of the first row sent by the task.
+		 * @return {@code false} if an earlier row has failed and no more tasks should be submitted
+		 */
+		private boolean submit(final ExecutorService executor, final int rowNum, final SendTask task) {
+			inFlight.acquireUninterruptibly();
+			if (hasFailed()) {
+				inFlight.release();
+				return false;
+			}
+			executor.execute(() -> {
+				try {
+					task.send();
+				} catch (MailSendingException | RuntimeException e) {
+					fail(rowNum, e);
+				} finally {
+					MDC.remove(MdcKeys.CSV_LINE_NUM);
+					inFlight.release();
+				}
+			});
+			return true;
+		}
+
+		/**
+		 * Handles an email that could not be sent according to the {@link RetryPolicy}: schedules
+		 * it to be retried if its failure is transient and it has attempts left, and otherwise
+		 * writes it to the dead letters.
+		 * @return {@code false} if there is no retry policy or the failure is fatal, so that
+		 * sending should be aborted
+		 */
+		private boolean handleFailure(final Delivery delivery, final MailSendingException e) {
+			if (retryPolicy == null) {
+				return false;
+			}
+			final FailureClass failureClass = FailureClass.of(e);
+			if (failureClass == FailureClass.FATAL) {
+				return false;
+			}
+			if (failureClass == FailureClass.PERMANENT || delivery.attempt >= retryPolicy.getMaxAttempts()) {
+				deadLetter(delivery, e);
+				releaseRetry(delivery, true);
+				return true;
+			}
+			if (!delivery.queued) {
+				// waits while too many emails are waiting to be retried
+				retrySlots.acquireUninterruptibly();
+				delivery.queued = true;
+				synchronized (this) {
+					retryRows.add(delivery.rowNums.get(0));
+				}
+			}
+			final long delayMillis = retryPolicy.getDelayMillis(delivery.attempt);
+			LOG.warn("Sending message for rows {} failed ({}); retrying in [{}] ms (attempt {} of {})",
+					delivery.rowNums, e.getMessage(), delayMillis, delivery.attempt + 1, retryPolicy.getMaxAttempts());
+			try {
+				retrier.schedule(() -> retry(delivery), delayMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e2) {
+				// sending has been aborted; the email is left to be sent when resuming
+				releaseRetry(delivery, false);
+			}
+			return true;
+		}
+
+		/**
+		 * Retry thread: sends an email again.
+		 */
+		private void retry(final Delivery delivery) {
+			MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(delivery.rowNums.get(0)));
+			try {
+				if (hasFailed()) {
+					releaseRetry(delivery, false);
+					return;
+				}
+				++delivery.attempt;
+				try {
+					send(delivery.to, delivery.cc, delivery.bcc, delivery.email);
+				} catch (MailSendingException e) {
+					if (!handleFailure(delivery, e)) {
+						recordInJournal(delivery.rowNums, SendJournal.Status.FAILED);
+						fail(delivery.rowNums.get(0), e);
+						releaseRetry(delivery, false);
+					}
+					return;
+				} catch (RuntimeException e) {
+					recordInJournal(delivery.rowNums, SendJournal.Status.FAILED);
+					fail(delivery.rowNums.get(0), e);
+					releaseRetry(delivery, false);
+					return;
+				}
+				LOG.info("Sent message for rows {} on attempt {}", delivery.rowNums, delivery.attempt);
+				archive(delivery.rowNums, delivery.to, delivery.cc, delivery.bcc, delivery.email);
+				for (int i = 0; i < delivery.rowNums.size(); i++) {
+					dotPrinter.dot();
+				}
+				sentCount.addAndGet(delivery.rowNums.size());
+				if (delivery.batch) {
+					batchCount.incrementAndGet();
+				}
+				if (journal != null && !dryRun) {
+					try {
+						for (final int rowNum : delivery.rowNums) {
+							journal.record(rowNum, SendJournal.Status.SENT);
+						}
+					} catch (IOException e) {
+						fail(delivery.rowNums.get(0),
+								new MailSendingException(ErrorCode.IO_ERROR, "Error writing to send journal", e));
+					}
+				}
+				releaseRetry(delivery, true);
+			} finally {
+				MDC.remove(MdcKeys.CSV_LINE_NUM);
+			}
+		}
+
+		/**
+		 * Records an email that could not be sent, logging any error writing it.
+		 */
+		private void deadLetter(final Delivery delivery, final MailSendingException e) {
+			notSentCount.addAndGet(delivery.rowNums.size());
+			if (metrics != null) {
+				metrics.emailNotSent();
+			}
+			LOG.warn(NOT_SENT, "Message for rows {} not sent after [{}] attempts: {}. TO: [{}], CC: [{}], BCC: [{}]",
+					delivery.rowNums, delivery.attempt, e.getMessage(), delivery.to, delivery.cc, delivery.bcc);
+			if (deadLetters != null) {
+				try {
+					deadLetters.write(delivery.rowNums, delivery.to, delivery.cc, delivery.bcc, e, delivery.attempt);
+				} catch (IOException e2) {
+					LOG.error("Error writing to dead letter file", e2);
+				}
+			}
+			recordInJournal(delivery.rowNums, SendJournal.Status.FAILED);
+			for (int i = 0; i < delivery.rowNums.size(); i++) {
+				dotPrinter.failed();
+			}
+		}
+
+		/**
+		 * Frees the place of an email in the retry queue, if it has one.
+		 * @param done Whether the email was sent or given up on; otherwise, it is left to be sent when resuming.
+		 */
+		private void releaseRetry(final Delivery delivery, final boolean done) {
+			if (!delivery.queued) {
+				return;
+			}
+			delivery.queued = false;
+			retrySlots.release();
+			synchronized (this) {
+				if (done) {
+					retryRows.remove(delivery.rowNums.get(0));
+				}
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits until every email waiting to be retried has been sent or given up on, unless
+		 * sending has been aborted, and stops the retry threads.
+		 * @param cancel Whether to stop without waiting.
+		 */
+		private void awaitRetries(final boolean cancel) {
+			if (retrier == null) {
+				return;
+			}
+			boolean interrupted = false;
+			synchronized (this) {
+				while (!cancel && failure == null && !retryRows.isEmpty() && !interrupted) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			retrier.shutdownNow();
+			try {
+				retrier.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void awaitInFlight() {
+			inFlight.acquireUninterruptibly(maxInFlight());
+			inFlight.release(maxInFlight());
+		}
+
+		private synchronized boolean hasFailed() {
+			return failure != null;
+		}
+
+		private synchronized void fail(final int rowNum, final Throwable e) {
+			if (failure == null || rowNum < failedRow) {
+				failedRow = rowNum;
+				failure = e;
+			}
+			notifyAll();
+		}
+
+		private synchronized void rethrowFailure() throws MailSendingException {
+			if (failure instanceof MailSendingException) {
+				throw (MailSendingException) failure;
+			}
+			throw (RuntimeException) failure;
+		}
+	}
+
+	/**
+	 * Sends the email for one or more rows.
+	 */
+	@FunctionalInterface
+	private interface SendTask {
+		void send() throws MailSendingException;
+	}
+
+	/**
+	 * An email for one or more rows that may be sent again.
+	 */
+	private static final class Delivery {
+		private final List<Integer> rowNums;
+		private final String[] to, cc, bcc;
+		private final RenderedEmail email;
+		private final boolean batch;
+		/** The number of the attempt that is being made or has last been made. */
+		private int attempt = 1;
+		/** Whether the email holds a place in the retry queue. */
+		private boolean queued;
+
+		private Delivery(final List<Integer> rowNums, final String[] to, final String[] cc, final String[] bcc,
+				final RenderedEmail email, final boolean batch) {
+			this.rowNums = rowNums;
+			this.to = to;
+			this.cc = cc;
+			this.bcc = bcc;
+			this.email = email;
+			this.batch = batch;
+		}
+	}
+
+	/**
+	 * Rows with identical rendered content whose recipients are sent a single email.
+	 */
+	private static final class Batch {
+		private final RenderedEmail email;
+		private final List<Integer> rowNums = new ArrayList<>();
+		private final Set<String> recipients = new LinkedHashSet<>();
+
+		private Batch(final RenderedEmail email) {
+			this.email = email;
+		}
+	}
+
+	/**
+	 * @return A hash of the subject, body, CC recipients, and attachments of an email.
+	 */
+	private static String contentKey(final RenderedEmail email) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(digest, email.getSubject());
+		update(digest, email.getBody());
+		for (final String cc : email.getCc()) {
+			update(digest, cc);
+		}
+		digest.update((byte) 1);
+		for (final File attachment : email.getAttachments()) {
+			update(digest, attachment.getAbsolutePath());
+		}
+		return Base64.getEncoder().encodeToString(digest.digest());
+	}
+
+	private static void update(final MessageDigest digest, final String value) {
+		digest.update(value.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	private static String[] concat(final String[] a, final String[] b) {
+		final String[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	/**
+	 * The threads of the render, send, and record stages of the pipeline.
+	 */
+	private static final class Stages {
+		private final ExecutorService render;
+		private final ExecutorService send;
+		private final ExecutorService record = Executors.newSingleThreadExecutor(new StageThreadFactory("Recorder"));
+
+		private Stages(final ExecutorService send, final int renderThreads) {
+			this.send = send;
+			this.render = Executors.newFixedThreadPool(renderThreads, new StageThreadFactory("Renderer"));
+		}
+
+		/**
+		 * @return An {@link Executor} that sends on the sender threads with the row number in the MDC.
+		 */
+		private Executor sender(final int rowNum) {
+			return command -> send.execute(() -> {
+				MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(rowNum));
+				try {
+					command.run();
+				} finally {
+					MDC.remove(MdcKeys.CSV_LINE_NUM);
+				}
+			});
+		}
+
+		private void shutdown() {
+			render.shutdown();
+			record.shutdown();
+		}
+	}
+
+	static final class StageThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		StageThreadFactory(final String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(r, name + "-" + threadCount.incrementAndGet());
+		}
+	}
+
+	/**
+	 * Creates builder to build {@link MailWorker}.
+	 *
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link MailWorker}.
+	 */
+	public static final class Builder {
+		private MailSender mailSender;
+		private boolean dryRun;
+		private int threads;
+		private int renderThreads;
+		private boolean virtualThreads;
+		private SendJournal journal;
+		private int batchRecipients = 1;
+		private ShardSpec shard;
+		private SendMetrics metrics;
+		private EmailArchive archive;
+		private RetryPolicy retryPolicy;
+		private DeadLetterFile deadLetters;
+		private TemplateCache templateCache;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param mailSender The {@link MailSender} implementation to use for sending emails.
+		 * @return This builder
+		 */
+		public Builder withMailSender(MailSender mailSender) {
+			this.mailSender = mailSender;
+			return this;
+		}
+
+		/**
+		 * @param dryRun If set to {@code true}, the MailWorker will log emails, but not actually send them.
+		 * @return This builder
+		 */
+		public Builder withDryRun(boolean dryRun) {
+			this.dryRun = dryRun;
+			return this;
+		}
+
+		/**
+		 * Sets the number of threads sending emails concurrently. Each thread uses its own
+		 * connection to the mail server when used with {@link BasicMailSender}. Defaults to 1,
+		 * which sends every email on the calling thread.
+		 * <br>
+		 * With {@link #withVirtualThreads(boolean) virtual threads}, this is instead the maximum
+		 * number of emails being sent at once, and defaults to 1000, or to 16 where virtual
+		 * threads are not supported.
+		 * @param threads The number of sender threads.
+		 * @return This builder
+		 */
+		public Builder withThreads(int threads) {
+			if (threads <= 0)
+				throw new IllegalArgumentException("threads must be positive");
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * Sets the number of threads rendering rows (and, with {@link BasicMailSender}, building messages)
+		 * for the sender threads when sending with more than one thread. Defaults to a quarter of
+		 * the number of sender threads, but no more than the number of processors. Not used with
+		 * {@link #withVirtualThreads(boolean) virtual threads} or {@link #withBatchRecipients(int) batching}.
+		 * @param renderThreads The number of render threads.
+		 * @return This builder
+		 */
+		public Builder withRenderThreads(int renderThreads) {
+			if (renderThreads <= 0)
+				throw new IllegalArgumentException("renderThreads must be positive");
+			this.renderThreads = renderThreads;
+			return this;
+		}
+
+		/**
+		 * Sets whether to send each email on its own virtual thread. This requires Java 21 or
+		 * later; on earlier versions, emails are sent on a fixed pool of platform threads instead
+		 * (see {@link #withThreads(int)}).
+		 * @param virtualThreads Whether to use virtual threads.
+		 * @return This builder
+		 */
+		public Builder withVirtualThreads(boolean virtualThreads) {
+			this.virtualThreads = virtualThreads;
+			return this;
+		}
+
+		/**
+		 * Sets the journal to record the outcome of every row in and to resume from. Rows that
+		 * the journal records as sent or skipped are passed over. Nothing is recorded during a dry run.
+		 * The journal is not closed by the MailWorker.
+		 * @param journal The {@link SendJournal}.
+		 * @return This builder
+		 */
+		public Builder withJournal(SendJournal journal) {
+			this.journal = journal;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of recipients of a batched email. If greater than 1, rows whose
+		 * rendered subject, body, CC recipients, and attachments are identical are sent as one email,
+		 * with the TO and BCC recipients of all of the rows as BCC recipients, until it has this many
+		 * recipients. A row that is not batched with any other is sent with its own TO and BCC
+		 * recipients. This should not exceed the number of recipients per email allowed by the mail
+		 * server. Defaults to 1, which sends one email for each row.
+		 * @param batchRecipients The maximum number of recipients of a batched email.
+		 * @return This builder
+		 */
+		public Builder withBatchRecipients(int batchRecipients) {
+			if (batchRecipients <= 0)
+				throw new IllegalArgumentException("batchRecipients must be positive");
+			this.batchRecipients = batchRecipients;
+			return this;
+		}
+
+		/**
+		 * Sets the shard of the CSV data to send. Only the rows belonging to the shard are sent,
+		 * and the rows of the other shards are passed over. Use a separate {@link SendJournal}
+		 * for each shard to check afterwards that every row was sent (see {@link ShardCoverage}).
+		 * @param shard The {@link ShardSpec}.
+		 * @return This builder
+		 */
+		public Builder withShard(ShardSpec shard) {
+			this.shard = shard;
+			return this;
+		}
+
+		/**
+		 * Sets the metrics in which to record the time taken to read and render each row and the
+		 * numbers of emails sent and failed. By default, no metrics are recorded.
+		 * @param metrics The {@link SendMetrics}.
+		 * @return This builder
+		 */
+		public Builder withMetrics(SendMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * Sets the archive to write the content and recipients of every email sent to, instead of
+		 * logging them. Emails are also archived during a dry run. The archive is not closed by the MailWorker.
+		 * @param archive The {@link EmailArchive}.
+		 * @return This builder
+		 */
+		public Builder withArchive(EmailArchive archive) {
+			this.archive = archive;
+			return this;
+		}
+
+		/**
+		 * Sets the policy for retrying emails with transient failures. If set, emails that cannot
+		 * be sent no longer abort sending unless the failure is {@link FailureClass#FATAL fatal}.
+		 * By default, the first email that cannot be sent aborts sending.
+		 * @param retryPolicy The {@link RetryPolicy}.
+		 * @return This builder
+		 */
+		public Builder withRetryPolicy(RetryPolicy retryPolicy) {
+			this.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		/**
+		 * Sets the file to list the emails that could not be sent in. Only used with a
+		 * {@link #withRetryPolicy(RetryPolicy) retry policy}. The file is not closed by the MailWorker.
+		 * @param deadLetters The {@link DeadLetterFile}.
+		 * @return This builder
+		 */
+		public Builder withDeadLetterFile(DeadLetterFile deadLetters) {
+			this.deadLetters = deadLetters;
+			return this;
+		}
+
+		/**
+		 * Sets the cache to take compiled templates from. By default, the template is compiled
+		 * for every call to send emails.
+		 * @param templateCache The {@link TemplateCache}, which may be shared with other MailWorkers.
+		 * @return This builder
+		 */
+		public Builder withTemplateCache(TemplateCache templateCache) {
+			this.templateCache = templateCache;
+			return this;
+		}
+
+		public MailWorker build() {
+			return new MailWorker(this);
 		}
-		matcher.appendTail(sb);
-		return sb.toString();
 	}
 }
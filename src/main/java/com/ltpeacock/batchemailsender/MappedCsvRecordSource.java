@@ -0,0 +1,285 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link RecordSource} that reads an RFC 4180 CSV data file through a memory mapping of
+ * the file, in a given charset. The boundaries of the fields of each row are found in the
+ * mapped bytes without copying them, and only the columns selected with
+ * {@link #selectColumns(BitSet)} are decoded into strings, so rows of a wide file cost little
+ * more than the columns that the template uses.
+ * <br>
+ * The file is mapped in windows of up to 1 GiB, so files larger than 2 GiB can be read; a
+ * single row cannot be longer than a window. Like {@link CsvIndex}, this relies on quotes,
+ * commas, and line breaks being encoded as single bytes (see {@link #isSupported(Charset)}).
+ * A UTF-8 byte order mark at the start of the file is skipped.
+ * @author LieutenantPeacock
+ *
+ */
+public class MappedCsvRecordSource implements RecordSource {
+	private static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+	private static final byte[] UTF_8_BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+	private final FileChannel channel;
+	private final long length;
+	private final Charset charset;
+	private final int windowSize;
+	private final Map<String, Integer> headerMap;
+	private MappedByteBuffer window;
+	/** A view of {@link #window} to copy fields out of with relative bulk gets. */
+	private ByteBuffer view;
+	private long windowStart, windowEnd;
+	/** The offset of the next row. */
+	private long position;
+	private BitSet selected;
+	/** The window-relative start and end of each field of the current row. */
+	private int[] starts = new int[16], ends = new int[16];
+	/** Whether each field of the current row contains escaped quotes. */
+	private boolean[] escaped = new boolean[16];
+	private int fieldCount;
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * Constructs a {@link MappedCsvRecordSource} for a CSV data file whose first line is the header.
+	 * @param file The CSV data file.
+	 * @param charset The charset of the file.
+	 * @throws IOException If the file cannot be read, or its header is not valid CSV
+	 * @throws IllegalArgumentException If the charset is not supported
+	 */
+	public MappedCsvRecordSource(final File file, final Charset charset) throws IOException {
+		this(file, charset, 0, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Constructs a {@link MappedCsvRecordSource} that reads the header of a CSV data file and
+	 * then starts reading rows at the given offset, such as one from a {@link CsvIndex}.
+	 * @param file The CSV data file.
+	 * @param charset The charset of the file.
+	 * @param offset The byte offset of the first row to read. Offsets within the header are
+	 * taken to mean the first row after it.
+	 * @throws IOException If the file cannot be read, or its header is not valid CSV
+	 * @throws IllegalArgumentException If the charset is not supported
+	 */
+	public MappedCsvRecordSource(final File file, final Charset charset, final long offset) throws IOException {
+		this(file, charset, offset, DEFAULT_WINDOW_SIZE);
+	}
+
+	MappedCsvRecordSource(final File file, final Charset charset, final long offset, final int windowSize)
+			throws IOException {
+		if (!isSupported(charset))
+			throw new IllegalArgumentException(
+					"Charset " + charset + " does not encode CSV delimiters as single bytes");
+		this.charset = charset;
+		this.windowSize = windowSize;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			this.length = channel.size();
+			if (charset.equals(StandardCharsets.UTF_8) && length >= UTF_8_BOM.length) {
+				map(0);
+				if (window.get(0) == UTF_8_BOM[0] && window.get(1) == UTF_8_BOM[1]
+						&& window.get(2) == UTF_8_BOM[2]) {
+					position = UTF_8_BOM.length;
+				}
+			}
+			final Map<String, Integer> columns = new LinkedHashMap<>();
+			if (parseRow()) {
+				for (int i = 0; i < fieldCount; i++) {
+					columns.put(decode(i), i);
+				}
+			}
+			this.headerMap = Collections.unmodifiableMap(columns);
+			position = Math.max(position, offset);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param charset A charset.
+	 * @return Whether CSV data in the charset can be read, which is the case if it encodes
+	 * quotes, commas, and line breaks as the same single bytes as ASCII.
+	 */
+	public static boolean isSupported(final Charset charset) {
+		final String delimiters = "\",\r\n";
+		return charset.canEncode()
+				&& Arrays.equals(delimiters.getBytes(charset), delimiters.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Override
+	public Map<String, Integer> getHeaderMap() {
+		return headerMap;
+	}
+
+	/**
+	 * Decodes only the given columns of each row from now on. The values of the other columns
+	 * are {@code null} in the rows returned.
+	 * @param columns The indexes of the columns to decode.
+	 */
+	@Override
+	public void selectColumns(final BitSet columns) {
+		this.selected = (BitSet) columns.clone();
+	}
+
+	@Override
+	public DataRecord next() throws IOException {
+		if (!parseRow()) {
+			return null;
+		}
+		final String[] values = new String[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			if (selected == null || selected.get(i)) {
+				values[i] = decode(i);
+			}
+		}
+		return new DataRecord(headerMap, values);
+	}
+
+	/**
+	 * Finds the fields of the row at {@link #position} and moves to the next row.
+	 * @return Whether there was a row.
+	 */
+	private boolean parseRow() throws IOException {
+		if (position >= length) {
+			return false;
+		}
+		if (window == null || position < windowStart || position >= windowEnd) {
+			map(position);
+		}
+		int end = parseRow((int) (position - windowStart));
+		if (end < 0) {
+			if (windowStart == position)
+				throw new IOException("CSV row at offset " + position + " is longer than " + windowSize + " bytes");
+			// the row continues past the end of the window
+			map(position);
+			end = parseRow(0);
+			if (end < 0)
+				throw new IOException("CSV row at offset " + position + " is longer than " + windowSize + " bytes");
+		}
+		position = windowStart + end;
+		return true;
+	}
+
+	/**
+	 * @param start The window-relative offset of the row.
+	 * @return The window-relative offset of the next row, or -1 if the row does not end within the window.
+	 */
+	private int parseRow(final int start) throws IOException {
+		final int limit = window.limit();
+		final boolean lastWindow = windowEnd == length;
+		fieldCount = 0;
+		int i = start;
+		for (;;) {
+			final int fieldStart;
+			final int fieldEnd;
+			boolean hasEscapes = false;
+			if (i < limit && window.get(i) == '"') {
+				fieldStart = ++i;
+				for (;; i++) {
+					if (i >= limit) {
+						if (lastWindow)
+							throw new IOException("EOF reached before quoted CSV field at offset "
+									+ (windowStart + fieldStart - 1) + " was finished");
+						return -1;
+					}
+					if (window.get(i) == '"') {
+						if (i + 1 < limit && window.get(i + 1) == '"') {
+							hasEscapes = true;
+							i++;
+						} else if (i + 1 >= limit && !lastWindow) {
+							return -1;
+						} else {
+							break;
+						}
+					}
+				}
+				fieldEnd = i++;
+				if (i < limit) {
+					final byte b = window.get(i);
+					if (b != ',' && b != '\r' && b != '\n')
+						throw new IOException("Invalid character between quoted CSV field and delimiter at offset "
+								+ (windowStart + i));
+				}
+			} else {
+				fieldStart = i;
+				while (i < limit) {
+					final byte b = window.get(i);
+					if (b == ',' || b == '\r' || b == '\n') {
+						break;
+					}
+					i++;
+				}
+				fieldEnd = i;
+			}
+			if (i >= limit && !lastWindow) {
+				return -1;
+			}
+			addField(fieldStart, fieldEnd, hasEscapes);
+			if (i >= limit) {
+				return i;
+			}
+			final byte delimiter = window.get(i++);
+			if (delimiter == '\r') {
+				if (i < limit) {
+					if (window.get(i) == '\n') {
+						i++;
+					}
+				} else if (!lastWindow) {
+					return -1;
+				}
+				return i;
+			}
+			if (delimiter == '\n') {
+				return i;
+			}
+		}
+	}
+
+	private void addField(final int start, final int end, final boolean hasEscapes) {
+		if (fieldCount == starts.length) {
+			starts = Arrays.copyOf(starts, fieldCount * 2);
+			ends = Arrays.copyOf(ends, fieldCount * 2);
+			escaped = Arrays.copyOf(escaped, fieldCount * 2);
+		}
+		starts[fieldCount] = start;
+		ends[fieldCount] = end;
+		escaped[fieldCount++] = hasEscapes;
+	}
+
+	private String decode(final int field) {
+		final int fieldLength = ends[field] - starts[field];
+		if (fieldLength == 0) {
+			return "";
+		}
+		if (fieldLength > scratch.length) {
+			scratch = new byte[Math.max(fieldLength, scratch.length * 2)];
+		}
+		view.position(starts[field]);
+		view.get(scratch, 0, fieldLength);
+		final String value = new String(scratch, 0, fieldLength, charset);
+		return escaped[field] ? value.replace("\"\"", "\"") : value;
+	}
+
+	private void map(final long start) throws IOException {
+		windowStart = start;
+		windowEnd = Math.min(length, start + windowSize);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+		view = window.duplicate();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -7,6 +7,7 @@ package com.ltpeacock.batchemailsender;
  */
 public abstract class MdcKeys {
 	public static final String CSV_LINE_NUM = "CSV#";
+	public static final String JOB_ID = "Job#";
 
 	private MdcKeys() {
 	}
@@ -0,0 +1,220 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A spool directory of emails that have been rendered and built into RFC 822 messages ahead
+ * of being sent (see {@link SpoolRenderer} and {@link SpoolDrainer}).
+ * <br>
+ * The emails are stored in segment files, each holding the emails of a range of rows in row
+ * order and named after the range, so that the names sort in row order. A segment is written
+ * to a temporary file and only renamed into place once it is complete, so a segment that
+ * exists is never partially written and rendering can be resumed by rendering only the
+ * missing segments.
+ * <br>
+ * A segment starts with a magic number, followed by one entry per email: the row number,
+ * the number of recipients, the paths of the attachments (their count, then each path in
+ * modified UTF-8), the length of the message, the message itself, and a CRC-32 of the message.
+ * The paths are kept so that the emails can be archived with the same attachment paths as
+ * emails sent straight from the data.
+ * @author LieutenantPeacock
+ *
+ */
+public final class MessageSpool {
+	/** The suffix of the names of segment files. */
+	public static final String SEGMENT_SUFFIX = ".spool";
+	static final int SEGMENT_MAGIC = 0x42455371;
+	/** The magic number of segments without attachment paths. */
+	private static final int OLD_SEGMENT_MAGIC = 0x42455370;
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private MessageSpool() {
+	}
+
+	/**
+	 * @param spoolDir The spool directory.
+	 * @param firstRow The first row of the segment.
+	 * @param lastRow The last row of the segment.
+	 * @return The segment file for the range of rows.
+	 */
+	static File segmentFile(final File spoolDir, final int firstRow, final int lastRow) {
+		return new File(spoolDir, String.format("rows-%010d-%010d%s", firstRow, lastRow, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * @param spoolDir The spool directory.
+	 * @return The complete segment files in the directory, in row order.
+	 * @throws IOException If the directory cannot be read
+	 */
+	static File[] listSegments(final File spoolDir) throws IOException {
+		final File[] segments = spoolDir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (segments == null)
+			throw new IOException("Cannot read spool directory " + spoolDir.getAbsolutePath());
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * A buffer for one message, whose content can be written without copying it.
+	 */
+	static final class MessageBuffer extends ByteArrayOutputStream {
+		MessageBuffer() {
+			super(16 * 1024);
+		}
+
+		private byte[] array() {
+			return buf;
+		}
+	}
+
+	/**
+	 * An email read from a segment.
+	 */
+	static final class Entry {
+		final int rowNum;
+		final int recipientCount;
+		final File[] attachments;
+		final byte[] message;
+
+		private Entry(final int rowNum, final int recipientCount, final File[] attachments, final byte[] message) {
+			this.rowNum = rowNum;
+			this.recipientCount = recipientCount;
+			this.attachments = attachments;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Writes a segment to a temporary file, which is renamed to the segment file by
+	 * {@link #commit()}. Closing a writer that has not been committed deletes the temporary file.
+	 */
+	static final class SegmentWriter implements Closeable {
+		private final File file;
+		private final File tempFile;
+		private final FileOutputStream fos;
+		private final DataOutputStream out;
+		private final CRC32 crc = new CRC32();
+		private boolean committed;
+
+		SegmentWriter(final File file) throws IOException {
+			this.file = file;
+			this.tempFile = new File(file.getPath() + TEMP_SUFFIX);
+			this.fos = new FileOutputStream(tempFile);
+			this.out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+			out.writeInt(SEGMENT_MAGIC);
+		}
+
+		void write(final int rowNum, final int recipientCount, final File[] attachments, final MessageBuffer message)
+				throws IOException {
+			out.writeInt(rowNum);
+			out.writeInt(recipientCount);
+			out.writeInt(attachments.length);
+			for (final File attachment : attachments) {
+				out.writeUTF(attachment.getPath());
+			}
+			out.writeInt(message.size());
+			message.writeTo(out);
+			crc.reset();
+			crc.update(message.array(), 0, message.size());
+			out.writeInt((int) crc.getValue());
+		}
+
+		/**
+		 * Flushes the segment to disk and moves it into place.
+		 */
+		void commit() throws IOException {
+			out.flush();
+			fos.getFD().sync();
+			out.close();
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!committed) {
+				out.close();
+				Files.deleteIfExists(tempFile.toPath());
+			}
+		}
+	}
+
+	/**
+	 * Reads the emails of a segment in order.
+	 */
+	static final class SegmentReader implements Closeable {
+		private final File file;
+		private final DataInputStream in;
+		private final CRC32 crc = new CRC32();
+
+		SegmentReader(final File file) throws IOException {
+			this.file = file;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			try {
+				final int magic = in.readInt();
+				if (magic == OLD_SEGMENT_MAGIC)
+					throw new IOException("Spool segment written by an older version, render it again: "
+							+ file.getAbsolutePath());
+				if (magic != SEGMENT_MAGIC)
+					throw new IOException("Not a spool segment: " + file.getAbsolutePath());
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return The next email, or {@code null} at the end of the segment.
+		 * @throws IOException If the segment cannot be read or is corrupt
+		 */
+		Entry next() throws IOException {
+			final int rowNum;
+			try {
+				rowNum = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			try {
+				final int recipientCount = in.readInt();
+				final int attachmentCount = in.readInt();
+				if (attachmentCount < 0)
+					throw new IOException("Corrupt entry for row " + rowNum + " in spool segment " + file.getAbsolutePath());
+				final File[] attachments = new File[attachmentCount];
+				for (int i = 0; i < attachmentCount; i++) {
+					attachments[i] = new File(in.readUTF());
+				}
+				final int length = in.readInt();
+				if (length < 0)
+					throw new IOException("Corrupt entry for row " + rowNum + " in spool segment " + file.getAbsolutePath());
+				final byte[] message = new byte[length];
+				in.readFully(message);
+				crc.reset();
+				crc.update(message, 0, length);
+				if (in.readInt() != (int) crc.getValue())
+					throw new IOException("Checksum mismatch for row " + rowNum + " in spool segment " + file.getAbsolutePath());
+				return new Entry(rowNum, recipientCount, attachments, message);
+			} catch (EOFException e) {
+				throw new IOException("Truncated entry for row " + rowNum + " in spool segment " + file.getAbsolutePath(), e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP server on the loopback interface that serves {@link SendMetrics} at {@code /metrics} in
+ * the Prometheus text format, so that a run can be watched and alerted on while it is in progress.
+ * The durations of each phase are exposed as a summary in seconds with the 0.5, 0.9, and 0.99
+ * quantiles.
+ * @author LieutenantPeacock
+ *
+ */
+public class MetricsHttpServer implements Closeable {
+	private static final String PREFIX = "batchemailsender_";
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+	private final HttpServer server;
+	private final SendMetrics metrics;
+
+	/**
+	 * Starts a {@link MetricsHttpServer}.
+	 * @param metrics The metrics to serve.
+	 * @param port The port to listen on, or 0 for any free port.
+	 * @throws IOException If the port cannot be bound
+	 */
+	public MetricsHttpServer(final SendMetrics metrics, final int port) throws IOException {
+		this.metrics = metrics;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", this::handle);
+		server.start();
+	}
+
+	/**
+	 * @return The port that the server listens on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			final byte[] body = format(metrics).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @param metrics The metrics.
+	 * @return The metrics in the Prometheus text format.
+	 */
+	static String format(final SendMetrics metrics) {
+		final StringBuilder sb = new StringBuilder();
+		counter(sb, "rows_read_total", "Rows of the CSV data read", metrics.getRowsRead());
+		counter(sb, "emails_sent_total", "Emails sent", metrics.getEmailsSent());
+		counter(sb, "emails_failed_total", "Attempts to send an email that failed", metrics.getEmailsFailed());
+		counter(sb, "emails_not_sent_total", "Emails given up on after all attempts failed",
+				metrics.getEmailsNotSent());
+		counter(sb, "recipients_total", "Recipients of the emails sent", metrics.getRecipients());
+		gauge(sb, "emails_per_minute", "Sending rate over the last minute", metrics.getEmailsPerMinute());
+		gauge(sb, "uptime_seconds", "Seconds since the metrics were created", metrics.getUptimeSeconds());
+		sb.append("# HELP ").append(PREFIX).append("phase_seconds Duration of each phase of sending an email\n");
+		sb.append("# TYPE ").append(PREFIX).append("phase_seconds summary\n");
+		for (final SendMetrics.Phase phase : SendMetrics.Phase.values()) {
+			final LatencyHistogram histogram = metrics.getHistogram(phase);
+			final String label = "phase=\"" + phase.metricName() + '"';
+			for (final double quantile : QUANTILES) {
+				sample(sb, "phase_seconds{" + label + ",quantile=\"" + quantile + "\"}",
+						histogram.getPercentileMillis(quantile * 100) / 1000);
+			}
+			sample(sb, "phase_seconds_sum{" + label + '}', histogram.getTotalMillis() / 1000);
+			sample(sb, "phase_seconds_count{" + label + '}', histogram.getCount());
+		}
+		sb.append("# HELP ").append(PREFIX).append("phase_max_seconds Longest duration of each phase\n");
+		sb.append("# TYPE ").append(PREFIX).append("phase_max_seconds gauge\n");
+		for (final SendMetrics.Phase phase : SendMetrics.Phase.values()) {
+			sample(sb, "phase_max_seconds{phase=\"" + phase.metricName() + "\"}",
+					metrics.getHistogram(phase).getMaxMillis() / 1000);
+		}
+		return sb.toString();
+	}
+
+	private static void counter(final StringBuilder sb, final String name, final String help, final long value) {
+		sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+		sample(sb, name, value);
+	}
+
+	private static void gauge(final StringBuilder sb, final String name, final String help, final double value) {
+		sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n");
+		sample(sb, name, value);
+	}
+
+	private static void sample(final StringBuilder sb, final String name, final long value) {
+		sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void sample(final StringBuilder sb, final String name, final double value) {
+		sb.append(PREFIX).append(name).append(' ').append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,23 @@
+package com.ltpeacock.batchemailsender;
+
+/**
+ * Management interface of the {@link LatencyHistogram} of one {@link SendMetrics.Phase}.
+ * @author LieutenantPeacock
+ *
+ */
+public interface PhaseMetricsMXBean {
+	/**
+	 * @return The number of times the phase was timed.
+	 */
+	long getCount();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP90Millis();
+
+	double getP99Millis();
+
+	double getMaxMillis();
+}
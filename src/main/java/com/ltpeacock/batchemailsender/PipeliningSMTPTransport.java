@@ -0,0 +1,291 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * {@link SMTPTransport} that uses command pipelining (RFC 2920) when the mail server
+ * advertises the {@code PIPELINING} extension in its EHLO response.
+ * <br>
+ * The {@code MAIL FROM} command and the {@code RCPT TO} commands for all recipients are
+ * written together in a single write, without waiting for a reply, and the replies are read
+ * afterwards in the same order, so sending an email takes one round trip for the envelope
+ * instead of one per command. (Writing the commands separately would let Nagle's algorithm
+ * hold back all but the first of them until its reply arrives.) With many recipients, the
+ * commands are written in windows of {@value #MAX_OUTSTANDING_COMMANDS}, reading the replies
+ * to each window before writing the next.
+ * Replies are handled as by {@link SMTPTransport}: if the sender or any recipient is rejected,
+ * the transaction is reset and a {@link SendFailedException} is thrown with an
+ * {@link SMTPSenderFailedException} or one {@link SMTPAddressFailedException} per rejected
+ * recipient. {@code DATA} is still sent on its own, after all recipients have been accepted.
+ * <br>
+ * Session properties that change the envelope commands (such as DSN options) are not
+ * supported with pipelining; when any of them is set, or {@value #PIPELINING_PROPERTY} is
+ * {@code false}, the commands are sent one at a time.
+ * <br>
+ * If the connection is lost after the end of the data has been sent, without a reply, an
+ * {@link SMTPSendFailedException} for the {@value #END_OF_DATA} command with no reply code is
+ * thrown, since the server may have delivered the email (see
+ * {@link SmtpReplies#isDeliveryUnknown(MessagingException)}).
+ * @author LieutenantPeacock
+ *
+ */
+public class PipeliningSMTPTransport extends SMTPTransport {
+	private static final String[] UNSUPPORTED_PROPERTIES = { "mail.smtp.dsn.ret", "mail.smtp.dsn.notify",
+			"mail.smtp.submitter", "mail.smtp.mailextension", "mail.smtp.sendpartial", "mail.smtp.reportsuccess" };
+	/**
+	 * Session property to disable pipelining, e.g. for servers that advertise it but do not support it properly.
+	 */
+	public static final String PIPELINING_PROPERTY = "mail.smtp.pipelining";
+	/**
+	 * The command that ends the data of an email.
+	 */
+	static final String END_OF_DATA = ".";
+	/**
+	 * The most {@code RCPT TO} commands written before reading their replies, so that the
+	 * replies cannot fill the socket buffers while the server waits for them to be read.
+	 */
+	static final int MAX_OUTSTANDING_COMMANDS = 100;
+	private static final Field[] ADDRESS_FIELDS = addressFields();
+	private Message message;
+	private Address[] addresses;
+	private String mailFrom, mailFromCommand;
+
+	/**
+	 * Constructs a {@link PipeliningSMTPTransport}. Called by {@link Session#getTransport(String)}.
+	 * @param session The {@link Session}.
+	 * @param urlname The {@link URLName} of the mail server.
+	 */
+	public PipeliningSMTPTransport(final Session session, final URLName urlname) {
+		super(session, urlname);
+	}
+
+	/**
+	 * Makes a {@link Session} use this transport for the {@code smtp} protocol.
+	 * @param session The {@link Session}.
+	 * @throws MessagingException If the provider cannot be set
+	 */
+	static void register(final Session session) throws MessagingException {
+		session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", PipeliningSMTPTransport.class.getName(),
+				"LieutenantPeacock", null));
+	}
+
+	@Override
+	public synchronized void sendMessage(final Message message, final Address[] addresses)
+			throws MessagingException {
+		this.message = message;
+		this.addresses = addresses;
+		try {
+			super.sendMessage(message, addresses);
+		} finally {
+			this.message = null;
+			this.addresses = null;
+			this.mailFrom = this.mailFromCommand = null;
+		}
+	}
+
+	@Override
+	protected void mailFrom() throws MessagingException {
+		if (!canPipeline()) {
+			super.mailFrom();
+			return;
+		}
+		String from = session.getProperty("mail.smtp.from");
+		if (from == null || from.isEmpty()) {
+			final Address[] fromAddresses = message.getFrom();
+			final InternetAddress me = fromAddresses != null && fromAddresses.length > 0
+					? (InternetAddress) fromAddresses[0]
+					: InternetAddress.getLocalAddress(session);
+			if (me == null)
+				throw new MessagingException("can't determine local email address");
+			from = me.getAddress();
+		}
+		mailFrom = from;
+		mailFromCommand = "MAIL FROM:" + normalizeAddress(from);
+		if (Boolean.parseBoolean(session.getProperty("mail.smtp.allowutf8")) && supportsExtension("SMTPUTF8")) {
+			mailFromCommand += " SMTPUTF8";
+		}
+		// sent together with the RCPT TO commands
+	}
+
+	@Override
+	protected void rcptTo() throws MessagingException {
+		if (mailFromCommand == null) {
+			super.rcptTo();
+			return;
+		}
+		final String[] commands = new String[addresses.length];
+		final int[] retCodes = new int[addresses.length];
+		final String[] responses = new String[addresses.length];
+		int mailFromCode = 0;
+		String mailFromResponse = null;
+		for (int start = 0; start < addresses.length; start += MAX_OUTSTANDING_COMMANDS) {
+			final int end = Math.min(start + MAX_OUTSTANDING_COMMANDS, addresses.length);
+			final StringBuilder sb = new StringBuilder();
+			if (start == 0) {
+				sb.append(mailFromCommand);
+			}
+			for (int i = start; i < end; i++) {
+				commands[i] = "RCPT TO:" + normalizeAddress(((InternetAddress) addresses[i]).getAddress());
+				if (sb.length() > 0) {
+					sb.append("\r\n");
+				}
+				sb.append(commands[i]);
+			}
+			// written and flushed at once, with the final line break added by sendCommand
+			sendCommand(sb.toString());
+			if (start == 0) {
+				mailFromCode = readServerResponse();
+				mailFromResponse = getLastServerResponse();
+			}
+			for (int i = start; i < end; i++) {
+				retCodes[i] = readServerResponse();
+				responses[i] = getLastServerResponse();
+			}
+			if (mailFromCode != 250) {
+				// the remaining recipients would all be rejected
+				break;
+			}
+		}
+		if (mailFromCode != 250) {
+			reset();
+			final SMTPSendFailedException ex = new SMTPSendFailedException(mailFromCommand, mailFromCode,
+					mailFromResponse, null, null, addresses, null);
+			if (mailFromCode >= 500) {
+				ex.setNextException(new SMTPSenderFailedException(new InternetAddress(mailFrom), mailFromCommand,
+						mailFromCode, mailFromResponse));
+			}
+			throw ex;
+		}
+		final List<Address> validUnsent = new ArrayList<>(), invalid = new ArrayList<>();
+		MessagingException mex = null;
+		for (int i = 0; i < addresses.length; i++) {
+			final int retCode = retCodes[i];
+			if (retCode == 250 || retCode == 251) {
+				validUnsent.add(addresses[i]);
+				continue;
+			}
+			final SMTPAddressFailedException sfex = new SMTPAddressFailedException((InternetAddress) addresses[i],
+					commands[i], retCode, responses[i]);
+			if (retCode < 400 || retCode > 599) {
+				// completely unexpected response, so the connection cannot be trusted
+				close();
+				throw sfex;
+			} else if (retCode >= 500 && retCode != 552) {
+				invalid.add(addresses[i]);
+			} else {
+				validUnsent.add(addresses[i]);
+			}
+			if (mex == null) {
+				mex = sfex;
+			} else {
+				mex.setNextException(sfex);
+			}
+		}
+		if (mex != null) {
+			final Address[] validUnsentAddr = validUnsent.toArray(new Address[0]);
+			final Address[] invalidAddr = invalid.toArray(new Address[0]);
+			// reported to the transport listeners by sendMessage
+			setAddresses(null, validUnsentAddr, invalidAddr);
+			reset();
+			throw new SendFailedException("Invalid Addresses", mex, null, validUnsentAddr, invalidAddr);
+		}
+		setAddresses(addresses, null, null);
+	}
+
+	@Override
+	protected void finishData() throws IOException, MessagingException {
+		try {
+			super.finishData();
+		} catch (MessagingException e) {
+			if (SmtpReplies.getReturnCode(e) != SmtpReplies.NO_REPLY) {
+				throw e;
+			}
+			throw new SMTPSendFailedException(END_OF_DATA, SmtpReplies.NO_REPLY, "No reply to end of data", e, null,
+					addresses, null);
+		}
+	}
+
+	private boolean canPipeline() {
+		if (ADDRESS_FIELDS == null || "false".equals(session.getProperty(PIPELINING_PROPERTY))
+				|| !supportsExtension("PIPELINING") || message instanceof SMTPMessage) {
+			return false;
+		}
+		for (final String property : UNSUPPORTED_PROPERTIES) {
+			if (session.getProperty(property) != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Resets the mail transaction after a failure so that the connection can be reused.
+	 */
+	private void reset() {
+		try {
+			issueCommand("RSET", 250);
+		} catch (MessagingException e) {
+			try {
+				close();
+			} catch (MessagingException ignored) {
+				// the connection will be discarded anyway
+			}
+		}
+	}
+
+	/**
+	 * Sets the addresses reported to the {@link javax.mail.event.TransportListener}s and in the
+	 * exceptions thrown by {@link SMTPTransport}, which keeps them in private fields.
+	 */
+	private void setAddresses(final Address[] validSent, final Address[] validUnsent, final Address[] invalid)
+			throws MessagingException {
+		try {
+			ADDRESS_FIELDS[0].set(this, validSent);
+			ADDRESS_FIELDS[1].set(this, validUnsent);
+			ADDRESS_FIELDS[2].set(this, invalid);
+		} catch (IllegalAccessException e) {
+			throw new MessagingException("Cannot set the recipient addresses", e);
+		}
+	}
+
+	/**
+	 * @return The {@code validSentAddr}, {@code validUnsentAddr}, and {@code invalidAddr} fields of
+	 * {@link SMTPTransport}, or {@code null} if they are not accessible, in which case the envelope
+	 * is not pipelined.
+	 */
+	private static Field[] addressFields() {
+		try {
+			final Field[] fields = { SMTPTransport.class.getDeclaredField("validSentAddr"),
+					SMTPTransport.class.getDeclaredField("validUnsentAddr"),
+					SMTPTransport.class.getDeclaredField("invalidAddr") };
+			for (final Field field : fields) {
+				field.setAccessible(true);
+			}
+			return fields;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static String normalizeAddress(final String address) {
+		return address.startsWith("<") || address.endsWith(">") ? address : '<' + address + '>';
+	}
+}
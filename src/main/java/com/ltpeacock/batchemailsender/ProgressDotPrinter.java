@@ -13,15 +13,20 @@ public class ProgressDotPrinter {
 		this.lineLength = lineLength;
 	}
 
-	public void dot() {
+	public synchronized void dot() {
 		System.out.print('.');
 		check();
 	}
 	
-	public void skip() {
+	public synchronized void skip() {
 		System.out.print('s');
 		check();
 	}
+
+	public synchronized void failed() {
+		System.out.print('x');
+		check();
+	}
 	
 	private void check() {
 		if (++count % lineLength == 0) {
@@ -31,7 +36,7 @@ public class ProgressDotPrinter {
 		}
 	}
 
-	public void done() {
+	public synchronized void done() {
 		if (count % lineLength != 0) {
 			System.out.println();
 		}
@@ -0,0 +1,130 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * A {@link MailSender} that limits the rate at which another MailSender sends emails
+ * using an {@link AdaptiveRateLimiter}.
+ * <br>
+ * When the mail server throttles sending (see {@link ErrorCode#THROTTLED}), the rate is
+ * lowered and the email is sent again instead of failing, up to a maximum number of attempts.
+ * <br>
+ * {@link #sendEmailAsync(String[], String[], String[], String, String, String, File[], Executor)} waits
+ * for the rate limiter on the calling thread and then hands the email to the wrapped MailSender's
+ * sendEmailAsync, so that the sender threads are not held up by the rate limiter. A throttled
+ * email is sent again from the thread on which the wrapped MailSender reported it.
+ * <br>
+ * Raw emails can only be sent if the wrapped MailSender is a {@link RawMailSender}.
+ * @author LieutenantPeacock
+ *
+ */
+public class RateLimitedMailSender implements RawMailSender {
+	private static final Logger LOG = LoggerFactory.getLogger(RateLimitedMailSender.class);
+	private static final int DEFAULT_MAX_ATTEMPTS = 10;
+	private final MailSender mailSender;
+	private final AdaptiveRateLimiter rateLimiter;
+	private final int maxAttempts;
+
+	/**
+	 * Constructs a {@link RateLimitedMailSender}.
+	 * @param mailSender The {@link MailSender} to send the emails with.
+	 * @param rateLimiter The {@link AdaptiveRateLimiter} controlling the rate.
+	 */
+	public RateLimitedMailSender(final MailSender mailSender, final AdaptiveRateLimiter rateLimiter) {
+		this(mailSender, rateLimiter, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * Constructs a {@link RateLimitedMailSender}.
+	 * @param mailSender The {@link MailSender} to send the emails with.
+	 * @param rateLimiter The {@link AdaptiveRateLimiter} controlling the rate.
+	 * @param maxAttempts The maximum number of times to try sending an email that is throttled.
+	 */
+	public RateLimitedMailSender(final MailSender mailSender, final AdaptiveRateLimiter rateLimiter,
+			final int maxAttempts) {
+		this.mailSender = mailSender;
+		this.rateLimiter = rateLimiter;
+		this.maxAttempts = maxAttempts;
+	}
+
+	@Override
+	public void sendEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
+			final String body, final String contentType, final File[] attachments) throws MailSendingException {
+		send(sender -> sender.sendEmail(to, cc, bcc, subject, body, contentType, attachments));
+	}
+
+	@Override
+	public CompletableFuture<SendResult> sendEmailAsync(final String[] to, final String[] cc, final String[] bcc,
+			final String subject, final String body, final String contentType, final File[] attachments,
+			final Executor executor) {
+		return sendAsync(
+				sender -> sender.sendEmailAsync(to, cc, bcc, subject, body, contentType, attachments, executor), 1,
+				System.nanoTime());
+	}
+
+	private CompletableFuture<SendResult> sendAsync(final Function<MailSender, CompletableFuture<SendResult>> action,
+			final int attempt, final long start) {
+		rateLimiter.acquire();
+		return action.apply(mailSender).thenCompose(result -> {
+			if (result.isSent()) {
+				rateLimiter.onSuccess();
+				return CompletableFuture.completedFuture(SendResult.sent(System.nanoTime() - start));
+			}
+			final MailSendingException e = result.getError();
+			if (e.getErrorCode() != ErrorCode.THROTTLED || attempt >= maxAttempts) {
+				return CompletableFuture.completedFuture(SendResult.failed(e, System.nanoTime() - start));
+			}
+			onThrottled(e);
+			return sendAsync(action, attempt + 1, start);
+		});
+	}
+
+	@Override
+	public void sendRawEmail(final byte[] message) throws MailSendingException {
+		send(SendAction.raw(message));
+	}
+
+	private void send(final SendAction action) throws MailSendingException {
+		for (int attempt = 1;; attempt++) {
+			rateLimiter.acquire();
+			try {
+				action.send(mailSender);
+				rateLimiter.onSuccess();
+				return;
+			} catch (MailSendingException e) {
+				if (e.getErrorCode() != ErrorCode.THROTTLED || attempt >= maxAttempts) {
+					throw e;
+				}
+				onThrottled(e);
+			}
+		}
+	}
+
+	private void onThrottled(final MailSendingException e) {
+		if (rateLimiter.onThrottled()) {
+			LOG.warn("Mail server throttled sending ({}); lowered rate to [{}] emails/second", e.getMessage(),
+					String.format("%.2f", rateLimiter.getRate()));
+		}
+	}
+
+	/**
+	 * @return The current rate, in emails per second.
+	 */
+	public double getCurrentRate() {
+		return rateLimiter.getRate();
+	}
+
+	@Override
+	public void close() {
+		mailSender.close();
+	}
+}
@@ -0,0 +1,20 @@
+package com.ltpeacock.batchemailsender;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * A {@link MailSender} that can also send emails that have already been built into RFC 822
+ * messages, such as those in a {@link MessageSpool}.
+ * @author LieutenantPeacock
+ *
+ */
+public interface RawMailSender extends MailSender {
+	/**
+	 * Sends an email that has already been built, such as one written by
+	 * {@link BasicMailSender#writeEmail(String[], String[], String[], String, String, String, java.io.File[], java.io.OutputStream)}.
+	 * The recipients are taken from its TO, CC, and BCC headers; BCC headers are not sent.
+	 * @param message The RFC 822 message.
+	 * @throws MailSendingException If the email cannot be sent
+	 */
+	void sendRawEmail(byte[] message) throws MailSendingException;
+}
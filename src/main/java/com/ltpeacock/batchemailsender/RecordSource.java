@@ -0,0 +1,39 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Interface for sources of the rows of data that {@link MailWorker} sends emails for.
+ * Rows are read one at a time as they are needed, so a source never has to hold more
+ * than a few rows in memory, and sending can begin as soon as the first row is read.
+ * The provided implementations are {@link CsvRecordSource}, {@link JsonLinesRecordSource},
+ * and {@link JdbcRecordSource}.
+ * @author LieutenantPeacock
+ *
+ */
+public interface RecordSource extends Closeable {
+	/**
+	 * @return The mapping of column names to column indexes, which the parameters of an
+	 * {@link EmailTemplate} are resolved against.
+	 */
+	Map<String, Integer> getHeaderMap();
+
+	/**
+	 * Tells the source which columns will be used, before any rows are read. A source may
+	 * then leave the values of the other columns {@code null}, to save decoding them. The
+	 * default implementation does nothing.
+	 * @param columns The indexes of the columns that will be used.
+	 */
+	default void selectColumns(BitSet columns) {
+	}
+
+	/**
+	 * Reads the next row. Rows are numbered from one in the order they are returned.
+	 * @return The next row, or {@code null} if there are no more rows.
+	 * @throws IOException If the row cannot be read
+	 */
+	DataRecord next() throws IOException;
+}
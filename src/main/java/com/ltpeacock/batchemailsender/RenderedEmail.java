@@ -0,0 +1,58 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+
+/**
+ * Class to store a single email produced by rendering a {@link CompiledEmailTemplate}
+ * with the values from one row of data.
+ * @author LieutenantPeacock
+ *
+ */
+public class RenderedEmail {
+	private final String[] to, cc, bcc;
+	private final String subject, body;
+	private final File[] attachments;
+
+	/**
+	 * Constructs a {@link RenderedEmail}.
+	 * @param to An array of email addresses to send to.
+	 * @param cc An array of email addresses to send carbon copies to.
+	 * @param bcc An array of email addresses to send blind carbon copies to.
+	 * @param subject The subject of the email.
+	 * @param body The content of the email.
+	 * @param attachments An array of {@link File} attachments to include in the email.
+	 */
+	public RenderedEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
+			final String body, final File[] attachments) {
+		this.to = to;
+		this.cc = cc;
+		this.bcc = bcc;
+		this.subject = subject;
+		this.body = body;
+		this.attachments = attachments;
+	}
+
+	public String[] getTo() {
+		return to;
+	}
+
+	public String[] getCc() {
+		return cc;
+	}
+
+	public String[] getBcc() {
+		return bcc;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public File[] getAttachments() {
+		return attachments;
+	}
+}
@@ -0,0 +1,125 @@
+package com.ltpeacock.batchemailsender;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Policy for retrying emails that failed with a {@link FailureClass#TRANSIENT} failure: the
+ * number of attempts, and the delay before each retry. The delay grows exponentially from the
+ * initial delay up to the maximum delay, and a random part of it (the jitter) is left out, so
+ * that emails that failed together are not all retried at the same moment.
+ * <br>
+ * This class is immutable and safe for use by multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class RetryPolicy {
+	private final int maxAttempts;
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final double multiplier;
+	private final double jitter;
+
+	private RetryPolicy(final Builder builder) {
+		if (builder.maxAttempts < 1)
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		this.maxAttempts = builder.maxAttempts;
+		this.initialDelayMillis = builder.initialDelayMillis;
+		this.maxDelayMillis = Math.max(builder.maxDelayMillis, builder.initialDelayMillis);
+		this.multiplier = builder.multiplier;
+		this.jitter = builder.jitter;
+	}
+
+	/**
+	 * @return The maximum number of times to try sending an email, including the first attempt.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * @param attempt The number of the attempt that failed (one-indexed).
+	 * @return The time to wait before the next attempt, in milliseconds.
+	 */
+	public long getDelayMillis(final int attempt) {
+		final double delay = Math.min(maxDelayMillis, initialDelayMillis * Math.pow(multiplier, attempt - 1));
+		return (long) (delay * (1 - jitter * ThreadLocalRandom.current().nextDouble()));
+	}
+
+	/**
+	 * Creates builder to build {@link RetryPolicy}.
+	 *
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link RetryPolicy}.
+	 */
+	public static final class Builder {
+		private int maxAttempts = 5;
+		private long initialDelayMillis = 1000;
+		private long maxDelayMillis = 60_000;
+		private double multiplier = 2;
+		private double jitter = 0.5;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param maxAttempts The maximum number of times to try sending an email, including the
+		 * first attempt. Use 1 to never retry. Defaults to 5.
+		 * @return This builder
+		 */
+		public Builder withMaxAttempts(int maxAttempts) {
+			this.maxAttempts = maxAttempts;
+			return this;
+		}
+
+		/**
+		 * @param initialDelayMillis The delay before the first retry, in milliseconds. Defaults to 1000.
+		 * @return This builder
+		 */
+		public Builder withInitialDelayMillis(long initialDelayMillis) {
+			this.initialDelayMillis = initialDelayMillis;
+			return this;
+		}
+
+		/**
+		 * @param maxDelayMillis The maximum delay before a retry, in milliseconds. Defaults to 60000.
+		 * @return This builder
+		 */
+		public Builder withMaxDelayMillis(long maxDelayMillis) {
+			this.maxDelayMillis = maxDelayMillis;
+			return this;
+		}
+
+		/**
+		 * @param multiplier The factor by which the delay grows with each retry. Defaults to 2.
+		 * @return This builder
+		 */
+		public Builder withMultiplier(double multiplier) {
+			if (multiplier < 1)
+				throw new IllegalArgumentException("multiplier cannot be less than 1");
+			this.multiplier = multiplier;
+			return this;
+		}
+
+		/**
+		 * @param jitter The largest fraction, between 0 and 1, of each delay that may randomly be
+		 * left out. Defaults to 0.5.
+		 * @return This builder
+		 */
+		public Builder withJitter(double jitter) {
+			if (jitter < 0 || jitter > 1)
+				throw new IllegalArgumentException("jitter must be between 0 and 1");
+			this.jitter = jitter;
+			return this;
+		}
+
+		public RetryPolicy build() {
+			return new RetryPolicy(this);
+		}
+	}
+}
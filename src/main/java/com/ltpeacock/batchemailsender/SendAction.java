@@ -0,0 +1,29 @@
+package com.ltpeacock.batchemailsender;
+
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Sending one email with a {@link MailSender}, so that a MailSender wrapping other MailSenders
+ * can apply the same handling to every way of sending an email.
+ * @author LieutenantPeacock
+ *
+ */
+@FunctionalInterface
+interface SendAction {
+	void send(MailSender mailSender) throws MailSendingException;
+
+	/**
+	 * @param message The RFC 822 message.
+	 * @return An action sending the message with {@link RawMailSender#sendRawEmail(byte[])}, failing
+	 * with {@link ErrorCode#ERROR_SENDING} for a MailSender that is not a {@link RawMailSender}.
+	 */
+	static SendAction raw(final byte[] message) {
+		return mailSender -> {
+			if (!(mailSender instanceof RawMailSender))
+				throw new MailSendingException(ErrorCode.ERROR_SENDING,
+						mailSender.getClass().getName() + " cannot send raw emails");
+			((RawMailSender) mailSender).sendRawEmail(message);
+		};
+	}
+}
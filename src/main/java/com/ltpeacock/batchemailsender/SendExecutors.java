@@ -0,0 +1,38 @@
+package com.ltpeacock.batchemailsender;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Factory for the {@link ExecutorService}s that {@link MailWorker} sends emails with.
+ * <br>
+ * This is the version used before Java 21, which does not support virtual threads.
+ * The multi-release jar contains a replacement for Java 21 and later under
+ * {@code META-INF/versions/21}.
+ * @author LieutenantPeacock
+ *
+ */
+final class SendExecutors {
+	private SendExecutors() {
+	}
+
+	/**
+	 * @return Whether {@link #newVirtualThreadPerTaskExecutor()} is supported by the running JVM.
+	 */
+	static boolean virtualThreadsSupported() {
+		return false;
+	}
+
+	/**
+	 * Creates an {@link ExecutorService} that starts a new virtual thread for each email or,
+	 * if virtual threads are not supported, a fixed pool of platform threads.
+	 * @param fallbackThreads The number of platform threads to use if virtual threads are not supported.
+	 * @param fallbackThreadFactory The factory of the platform threads.
+	 * @return The ExecutorService.
+	 */
+	static ExecutorService newVirtualThreadPerTaskExecutor(final int fallbackThreads,
+			final ThreadFactory fallbackThreadFactory) {
+		return Executors.newFixedThreadPool(fallbackThreads, fallbackThreadFactory);
+	}
+}
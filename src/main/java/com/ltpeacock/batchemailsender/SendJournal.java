@@ -0,0 +1,201 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Append-only file recording the outcome of each row of CSV data, so that a run that was
+ * interrupted can be resumed without sending any email twice.
+ * <br>
+ * Each outcome is a fixed-size entry of the row number and a {@link Status}. Entries are
+ * written to the file as soon as they are recorded, so they survive the process crashing;
+ * they are forced to the storage device every {@code syncInterval} entries and when the
+ * journal is closed, which bounds what can be lost if the whole machine fails. When an
+ * existing journal is opened, a partially written last entry is discarded and the rows
+ * that were sent or skipped are loaded into a bitmap for constant-time lookup.
+ * <br>
+ * This class is safe for use by multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class SendJournal implements Closeable {
+	private static final int MAGIC = 0x42455331; // "BES1"
+	private static final int HEADER_SIZE = 4;
+	private static final int ENTRY_SIZE = 5;
+	private static final int DEFAULT_SYNC_INTERVAL = 100;
+	private final FileChannel channel;
+	private final int syncInterval;
+	private final BitSet completed = new BitSet();
+	private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+	private int unsynced;
+
+	/**
+	 * The outcome of a row.
+	 */
+	public enum Status {
+		SENT, FAILED, SKIPPED
+	}
+
+	private SendJournal(final File file, final int syncInterval) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.syncInterval = syncInterval;
+		try {
+			load();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a journal, creating the file if it does not exist.
+	 * @param file The journal file.
+	 * @return The journal.
+	 * @throws IOException If the file cannot be read or is not a journal
+	 */
+	public static SendJournal open(final File file) throws IOException {
+		return new SendJournal(file, DEFAULT_SYNC_INTERVAL);
+	}
+
+	/**
+	 * Opens a journal, creating the file if it does not exist.
+	 * @param file The journal file.
+	 * @param syncInterval The number of entries after which the file is forced to the storage device.
+	 * @return The journal.
+	 * @throws IOException If the file cannot be read or is not a journal
+	 */
+	public static SendJournal open(final File file, final int syncInterval) throws IOException {
+		if (syncInterval <= 0)
+			throw new IllegalArgumentException("syncInterval must be positive");
+		return new SendJournal(file, syncInterval);
+	}
+
+	private void load() throws IOException {
+		final long size = channel.size();
+		if (size < HEADER_SIZE) {
+			channel.truncate(0);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC);
+			header.flip();
+			channel.write(header, 0);
+			channel.force(false);
+			channel.position(HEADER_SIZE);
+			return;
+		}
+		final long validSize = readEntries(channel, completed, null);
+		if (validSize != size) {
+			channel.truncate(validSize);
+		}
+		channel.position(validSize);
+	}
+
+	/**
+	 * Reads the outcomes recorded in a journal file without modifying it. The last outcome
+	 * recorded for a row is the one that counts.
+	 * @param file The journal file.
+	 * @param completed The set to which the rows that were sent or skipped are added.
+	 * @param failed The set to which the rows that failed are added.
+	 * @throws IOException If the file cannot be read or is not a journal
+	 */
+	static void readOutcomes(final File file, final BitSet completed, final BitSet failed) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException("Not a send journal: " + file);
+			readEntries(channel, completed, failed);
+		}
+	}
+
+	/**
+	 * Reads all complete entries of a journal from the start of the channel.
+	 * @return The size of the header and the complete entries.
+	 */
+	private static long readEntries(final FileChannel channel, final BitSet completed, final BitSet failed)
+			throws IOException {
+		final long size = channel.size();
+		final long validSize = HEADER_SIZE + (size - HEADER_SIZE) / ENTRY_SIZE * ENTRY_SIZE;
+		final ByteBuffer buf = ByteBuffer.allocate(ENTRY_SIZE * 8192);
+		buf.limit(HEADER_SIZE);
+		channel.position(0);
+		readFully(channel, buf);
+		if (buf.getInt() != MAGIC)
+			throw new IOException("Not a send journal");
+		for (long remaining = validSize - HEADER_SIZE; remaining > 0;) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), remaining));
+			readFully(channel, buf);
+			remaining -= buf.limit();
+			while (buf.hasRemaining()) {
+				final int rowNum = buf.getInt();
+				final int status = buf.get();
+				if (status < 0 || status >= Status.values().length)
+					throw new IOException("Corrupt send journal entry for row " + rowNum);
+				completed.set(rowNum, status != Status.FAILED.ordinal());
+				if (failed != null) {
+					failed.set(rowNum, status == Status.FAILED.ordinal());
+				}
+			}
+		}
+		return validSize;
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf) < 0)
+				throw new IOException("Unexpected end of send journal");
+		}
+		buf.flip();
+	}
+
+	/**
+	 * @param rowNum The row number (one-indexed, not counting the header).
+	 * @return Whether the email for the row has been sent, or the row skipped, according to the journal.
+	 */
+	public synchronized boolean isCompleted(final int rowNum) {
+		return completed.get(rowNum);
+	}
+
+	/**
+	 * @return The number of rows that have been sent or skipped according to the journal.
+	 */
+	public synchronized int getCompletedCount() {
+		return completed.cardinality();
+	}
+
+	/**
+	 * Appends the outcome of a row to the journal.
+	 * @param rowNum The row number (one-indexed, not counting the header).
+	 * @param status The outcome.
+	 * @throws IOException If the entry cannot be written
+	 */
+	public synchronized void record(final int rowNum, final Status status) throws IOException {
+		entry.clear();
+		entry.putInt(rowNum).put((byte) status.ordinal()).flip();
+		while (entry.hasRemaining()) {
+			channel.write(entry);
+		}
+		completed.set(rowNum, status != Status.FAILED);
+		if (++unsynced >= syncInterval) {
+			channel.force(false);
+			unsynced = 0;
+		}
+	}
+
+	/**
+	 * Forces any entries not yet on the storage device to it and closes the journal.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			if (channel.isOpen() && unsynced > 0) {
+				channel.force(false);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.ltpeacock.batchemailsender;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and {@link LatencyHistogram}s for each phase of sending batch templated emails,
+ * which can be read while the emails are being sent, e.g. over JMX (see {@link #registerMBeans()})
+ * or HTTP (see {@link MetricsHttpServer}), to see which phase is the bottleneck.
+ * <br>
+ * Pass the same SendMetrics to {@link MailWorker.Builder#withMetrics(SendMetrics)} and
+ * {@link BasicMailSender.Builder#withMetrics(SendMetrics)}. This class is safe for use by
+ * multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class SendMetrics implements SendMetricsMXBean {
+	private static final Logger LOG = LoggerFactory.getLogger(SendMetrics.class);
+	/**
+	 * The domain of the names of the MBeans.
+	 */
+	public static final String JMX_DOMAIN = "com.ltpeacock.batchemailsender";
+	private static final int RATE_WINDOW_SECONDS = 60;
+	private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+	private final AtomicLong rowsRead = new AtomicLong();
+	private final AtomicLong emailsSent = new AtomicLong();
+	private final AtomicLong emailsFailed = new AtomicLong();
+	private final AtomicLong emailsNotSent = new AtomicLong();
+	private final AtomicLong recipients = new AtomicLong();
+	/**
+	 * One slot per second of the rate window, holding the second in the high 32 bits and the
+	 * number of emails sent in it in the low 32 bits, so that both are updated together.
+	 */
+	private final AtomicLongArray sentPerSecond = new AtomicLongArray(RATE_WINDOW_SECONDS);
+	private final LongSupplier clock;
+	private final long startNanos;
+	private final List<ObjectName> registeredNames = new ArrayList<>();
+
+	/**
+	 * The phases of sending an email that are timed.
+	 */
+	public enum Phase {
+		/** Reading and parsing a row of the CSV data. */
+		CSV_READ,
+		/** Substituting the values of a row into the template. */
+		RENDER,
+		/** Building the MIME message (with streaming MIME, the content is encoded during {@link #SMTP_SEND}). */
+		MIME_BUILD,
+		/** Signing the message with DKIM, including hashing its body. */
+		DKIM_SIGN,
+		/** Opening a connection to the mail server, including TLS and authentication. */
+		CONNECT,
+		/** The SMTP transaction for one email: MAIL FROM, RCPT TO, and DATA. */
+		SMTP_SEND;
+
+		/**
+		 * @return The name of the phase in lower case, as used in metric names.
+		 */
+		public String metricName() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/**
+	 * Constructs a {@link SendMetrics}.
+	 */
+	public SendMetrics() {
+		this(System::nanoTime);
+	}
+
+	/**
+	 * Constructs a {@link SendMetrics}.
+	 * @param clock The source of the time in nanoseconds for the sending rate, e.g. {@link System#nanoTime()}.
+	 */
+	SendMetrics(final LongSupplier clock) {
+		this.clock = clock;
+		this.startNanos = clock.getAsLong();
+		for (final Phase phase : Phase.values()) {
+			histograms.put(phase, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Records how long a phase took.
+	 * @param phase The phase.
+	 * @param startNanos The value of {@link System#nanoTime()} when the phase started.
+	 */
+	public void recordSince(final Phase phase, final long startNanos) {
+		histograms.get(phase).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param phase The phase.
+	 * @return The histogram of the durations of the phase.
+	 */
+	public LatencyHistogram getHistogram(final Phase phase) {
+		return histograms.get(phase);
+	}
+
+	void rowRead() {
+		rowsRead.incrementAndGet();
+	}
+
+	void emailSent(final int recipientCount) {
+		emailsSent.incrementAndGet();
+		recipients.addAndGet(recipientCount);
+		final long second = TimeUnit.NANOSECONDS.toSeconds(clock.getAsLong() - startNanos);
+		final int slot = (int) (second % RATE_WINDOW_SECONDS);
+		for (;;) {
+			final long current = sentPerSecond.get(slot);
+			final long slotSecond = current >>> 32;
+			if (slotSecond > second) {
+				// this thread was delayed until the slot was reused
+				return;
+			}
+			// the count is reset when the slot is taken over for a new second
+			final long next = slotSecond == second ? current + 1 : second << 32 | 1;
+			if (sentPerSecond.compareAndSet(slot, current, next)) {
+				return;
+			}
+		}
+	}
+
+	void emailFailed() {
+		emailsFailed.incrementAndGet();
+	}
+
+	void emailNotSent() {
+		emailsNotSent.incrementAndGet();
+	}
+
+	@Override
+	public long getRowsRead() {
+		return rowsRead.get();
+	}
+
+	@Override
+	public long getEmailsSent() {
+		return emailsSent.get();
+	}
+
+	@Override
+	public long getEmailsFailed() {
+		return emailsFailed.get();
+	}
+
+	@Override
+	public long getEmailsNotSent() {
+		return emailsNotSent.get();
+	}
+
+	@Override
+	public long getRecipients() {
+		return recipients.get();
+	}
+
+	@Override
+	public double getUptimeSeconds() {
+		return (clock.getAsLong() - startNanos) / 1e9;
+	}
+
+	@Override
+	public double getEmailsPerMinute() {
+		final long now = TimeUnit.NANOSECONDS.toSeconds(clock.getAsLong() - startNanos);
+		long sent = 0;
+		// the current second is not over yet, so the window is the 60 seconds before it
+		for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+			final long slot = sentPerSecond.get(i);
+			final long second = slot >>> 32;
+			if (slot != 0 && second < now && second >= now - RATE_WINDOW_SECONDS) {
+				sent += slot & 0xFFFFFFFFL;
+			}
+		}
+		final long seconds = Math.min(now, RATE_WINDOW_SECONDS);
+		return seconds > 0 ? sent * 60d / seconds : 0;
+	}
+
+	/**
+	 * Registers this object and one MBean per phase with the platform MBean server, under
+	 * {@code com.ltpeacock.batchemailsender:type=SendMetrics} and
+	 * {@code com.ltpeacock.batchemailsender:type=SendMetrics,phase=<phase>}. Failures are logged.
+	 */
+	public synchronized void registerMBeans() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			register(server, new ObjectName(JMX_DOMAIN + ":type=SendMetrics"), this);
+			for (final Phase phase : Phase.values()) {
+				register(server, new ObjectName(JMX_DOMAIN + ":type=SendMetrics,phase=" + phase.metricName()),
+						new PhaseMetrics(histograms.get(phase)));
+			}
+		} catch (JMException e) {
+			LOG.warn("Could not register metrics MBeans", e);
+		}
+	}
+
+	/**
+	 * Unregisters the MBeans registered by {@link #registerMBeans()}.
+	 */
+	public synchronized void unregisterMBeans() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (final ObjectName name : registeredNames) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				LOG.debug("Could not unregister MBean {}", name, e);
+			}
+		}
+		registeredNames.clear();
+	}
+
+	private void register(final MBeanServer server, final ObjectName name, final Object mbean) throws JMException {
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(mbean, name);
+		registeredNames.add(name);
+	}
+
+	/**
+	 * MBean for the histogram of one phase.
+	 */
+	private static final class PhaseMetrics implements PhaseMetricsMXBean {
+		private final LatencyHistogram histogram;
+
+		private PhaseMetrics(final LatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		@Override
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		@Override
+		public double getMeanMillis() {
+			return histogram.getMeanMillis();
+		}
+
+		@Override
+		public double getP50Millis() {
+			return histogram.getPercentileMillis(50);
+		}
+
+		@Override
+		public double getP90Millis() {
+			return histogram.getPercentileMillis(90);
+		}
+
+		@Override
+		public double getP99Millis() {
+			return histogram.getPercentileMillis(99);
+		}
+
+		@Override
+		public double getMaxMillis() {
+			return histogram.getMaxMillis();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.ltpeacock.batchemailsender;
+
+/**
+ * Management interface of {@link SendMetrics}, with the totals of a run of batch templated emails.
+ * @author LieutenantPeacock
+ *
+ */
+public interface SendMetricsMXBean {
+	/**
+	 * @return The number of rows of the CSV data read.
+	 */
+	long getRowsRead();
+
+	/**
+	 * @return The number of emails sent.
+	 */
+	long getEmailsSent();
+
+	/**
+	 * @return The number of attempts to send an email that failed, including attempts that were retried.
+	 */
+	long getEmailsFailed();
+
+	/**
+	 * @return The number of emails that were given up on, as they could not be sent in any attempt.
+	 */
+	long getEmailsNotSent();
+
+	/**
+	 * @return The number of recipients of the emails sent.
+	 */
+	long getRecipients();
+
+	/**
+	 * @return The number of seconds since the metrics were created.
+	 */
+	double getUptimeSeconds();
+
+	/**
+	 * @return The sending rate over the last minute, in emails per minute.
+	 */
+	double getEmailsPerMinute();
+}
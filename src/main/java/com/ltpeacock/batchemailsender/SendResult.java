@@ -0,0 +1,57 @@
+package com.ltpeacock.batchemailsender;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * The outcome of sending one email with
+ * {@link MailSender#sendEmailAsync(String[], String[], String[], String, String, String, java.io.File[], java.util.concurrent.Executor)}.
+ * @author LieutenantPeacock
+ *
+ */
+public class SendResult {
+	private final MailSendingException error;
+	private final long durationNanos;
+
+	private SendResult(final MailSendingException error, final long durationNanos) {
+		this.error = error;
+		this.durationNanos = durationNanos;
+	}
+
+	/**
+	 * @param durationNanos The time from the email being handed over to it being sent, in nanoseconds.
+	 * @return The result of an email that was sent.
+	 */
+	public static SendResult sent(final long durationNanos) {
+		return new SendResult(null, durationNanos);
+	}
+
+	/**
+	 * @param error The reason the email could not be sent.
+	 * @param durationNanos The time from the email being handed over to it failing, in nanoseconds.
+	 * @return The result of an email that could not be sent.
+	 */
+	public static SendResult failed(final MailSendingException error, final long durationNanos) {
+		return new SendResult(error, durationNanos);
+	}
+
+	/**
+	 * @return Whether the email was sent.
+	 */
+	public boolean isSent() {
+		return error == null;
+	}
+
+	/**
+	 * @return The reason the email could not be sent, or {@code null} if it was sent.
+	 */
+	public MailSendingException getError() {
+		return error;
+	}
+
+	/**
+	 * @return The time from the email being handed over to it being sent or failing, in nanoseconds.
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+}
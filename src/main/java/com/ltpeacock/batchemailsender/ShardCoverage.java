@@ -0,0 +1,105 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Checks the {@link SendJournal}s written by the shards of a campaign against each other, to
+ * find the rows that no shard sent, the rows that more than one shard sent, and the rows that
+ * failed.
+ * @author LieutenantPeacock
+ *
+ */
+public class ShardCoverage {
+	private final int rowCount;
+	private final BitSet completed, duplicated, failed;
+
+	private ShardCoverage(final int rowCount, final BitSet completed, final BitSet duplicated, final BitSet failed) {
+		this.rowCount = rowCount;
+		this.completed = completed;
+		this.duplicated = duplicated;
+		this.failed = failed;
+	}
+
+	/**
+	 * Reads the journals of all shards. The journals are not modified.
+	 * @param rowCount The number of rows in the CSV data (not counting the header).
+	 * @param journals The journal file of each shard.
+	 * @return The ShardCoverage.
+	 * @throws IOException If a journal cannot be read
+	 */
+	public static ShardCoverage check(final int rowCount, final List<File> journals) throws IOException {
+		final BitSet completed = new BitSet(rowCount + 1), duplicated = new BitSet(rowCount + 1),
+				failed = new BitSet(rowCount + 1);
+		for (final File journal : journals) {
+			final BitSet shardCompleted = new BitSet(), shardFailed = new BitSet();
+			SendJournal.readOutcomes(journal, shardCompleted, shardFailed);
+			final BitSet overlap = (BitSet) shardCompleted.clone();
+			overlap.and(completed);
+			duplicated.or(overlap);
+			completed.or(shardCompleted);
+			failed.or(shardFailed);
+		}
+		// a row that failed in one shard but was sent by another one is not missing
+		failed.andNot(completed);
+		return new ShardCoverage(rowCount, completed, duplicated, failed);
+	}
+
+	/**
+	 * @return The rows (one-indexed) that no shard sent or skipped, including the failed rows.
+	 */
+	public BitSet getMissingRows() {
+		final BitSet missing = new BitSet(rowCount + 1);
+		missing.set(1, rowCount + 1);
+		missing.andNot(completed);
+		return missing;
+	}
+
+	/**
+	 * @return The rows (one-indexed) that were sent or skipped by more than one shard.
+	 */
+	public BitSet getDuplicatedRows() {
+		return (BitSet) duplicated.clone();
+	}
+
+	/**
+	 * @return The rows (one-indexed) that failed and were not sent by any shard.
+	 */
+	public BitSet getFailedRows() {
+		return (BitSet) failed.clone();
+	}
+
+	/**
+	 * @return Whether every row was sent or skipped by exactly one shard.
+	 */
+	public boolean isComplete() {
+		return getMissingRows().isEmpty() && duplicated.isEmpty();
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Formats a set of rows as a list of ranges, e.g. {@code 3-5, 9}.
+	 * @param rows The rows.
+	 * @return The formatted rows.
+	 */
+	public static String formatRows(final BitSet rows) {
+		final StringBuilder sb = new StringBuilder();
+		for (int from = rows.nextSetBit(0); from >= 0; from = rows.nextSetBit(from)) {
+			final int to = rows.nextClearBit(from) - 1;
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(from);
+			if (to > from) {
+				sb.append('-').append(to);
+			}
+			from = to + 1;
+		}
+		return sb.toString();
+	}
+}
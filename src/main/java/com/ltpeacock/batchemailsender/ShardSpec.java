@@ -0,0 +1,108 @@
+package com.ltpeacock.batchemailsender;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+
+/**
+ * Specifies which rows of the CSV data belong to one of several shards, so that one data
+ * file can be sent from several machines, each sending the rows of its own shard.
+ * <br>
+ * Rows are assigned to shards either by their row number (round robin), or, if a key column
+ * is given, by a hash of the value in that column. The assignment only depends on the row
+ * number or the key value, so every machine assigns every row to the same shard.
+ * @author LieutenantPeacock
+ *
+ */
+public class ShardSpec {
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private final int index, count;
+	private final String keyColumn;
+
+	/**
+	 * Constructs a {@link ShardSpec}.
+	 * @param index The shard (one-indexed).
+	 * @param count The number of shards.
+	 * @param keyColumn The name of the column to assign rows by, or {@code null} to assign rows by row number.
+	 */
+	public ShardSpec(final int index, final int count, final String keyColumn) {
+		if (count <= 0 || index <= 0 || index > count)
+			throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+		this.index = index;
+		this.count = count;
+		this.keyColumn = keyColumn;
+	}
+
+	/**
+	 * Parses a shard specification of the form {@code i/n}, e.g. {@code 2/3} for the second of three shards.
+	 * @param spec The shard specification.
+	 * @param keyColumn The name of the column to assign rows by, or {@code null} to assign rows by row number.
+	 * @return The ShardSpec.
+	 * @throws IllegalArgumentException If the specification is not valid
+	 */
+	public static ShardSpec parse(final String spec, final String keyColumn) {
+		final int slash = spec.indexOf('/');
+		if (slash < 0)
+			throw new IllegalArgumentException("Shard must be of the form i/n: " + spec);
+		try {
+			return new ShardSpec(Integer.parseInt(spec.substring(0, slash).trim()),
+					Integer.parseInt(spec.substring(slash + 1).trim()), keyColumn);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Shard must be of the form i/n: " + spec, e);
+		}
+	}
+
+	/**
+	 * Checks that the CSV data has the key column, if any.
+	 * @param headerMap The mapping of column names to column indexes.
+	 * @throws IllegalArgumentException If the key column is missing
+	 */
+	void validate(final Map<String, Integer> headerMap) {
+		if (keyColumn != null && !headerMap.containsKey(keyColumn))
+			throw new IllegalArgumentException("No column named " + keyColumn + " to assign rows to shards by");
+	}
+
+	/**
+	 * @param rowNum The row number (one-indexed, not counting the header).
+	 * @param record The row.
+	 * @return Whether the row belongs to this shard.
+	 */
+	public boolean includes(final int rowNum, final DataRecord record) {
+		return shardOf(rowNum, record) == index;
+	}
+
+	/**
+	 * @param rowNum The row number (one-indexed, not counting the header).
+	 * @param record The row.
+	 * @return The shard (one-indexed) that the row belongs to.
+	 */
+	int shardOf(final int rowNum, final DataRecord record) {
+		if (keyColumn == null) {
+			return (rowNum - 1) % count + 1;
+		}
+		final String key = record.isSet(keyColumn) ? record.get(keyColumn).trim() : "";
+		long hash = FNV_OFFSET_BASIS;
+		for (final byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+		}
+		return (int) Long.remainderUnsigned(hash, count) + 1;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+
+	@Override
+	public String toString() {
+		return index + "/" + count + (keyColumn != null ? " by " + keyColumn : "");
+	}
+}
@@ -0,0 +1,234 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of connected {@link Transport}s so that the TCP connection, TLS handshake,
+ * EHLO, and authentication do not have to be repeated for every email.
+ * <br>
+ * A connection is borrowed by one thread at a time. Before it is reused, it is checked
+ * with an SMTP {@code RSET} (see {@code mail.smtp.userset}), which also clears any state
+ * left over from the previous message. Connections that have sent the maximum number of
+ * messages are closed instead of being reused, and connections that have been idle for too
+ * long are closed by a background thread shared by all pools.
+ * @author LieutenantPeacock
+ *
+ */
+class SmtpConnectionPool implements Closeable {
+	private static final Logger LOG = LoggerFactory.getLogger(SmtpConnectionPool.class);
+	private static final ScheduledThreadPoolExecutor IDLE_EVICTOR = new ScheduledThreadPoolExecutor(1, r -> {
+		final Thread thread = new Thread(r, "SmtpIdleEvictor");
+		thread.setDaemon(true);
+		return thread;
+	});
+	static {
+		IDLE_EVICTOR.setRemoveOnCancelPolicy(true);
+	}
+	private final Session session;
+	private final String username, password;
+	private final int maxMessagesPerConnection;
+	private final long idleTimeoutMillis;
+	private final SendMetrics metrics;
+	private final Deque<PooledConnection> idle = new ArrayDeque<>();
+	private final ScheduledFuture<?> evictionTask;
+	private boolean closed;
+
+	/**
+	 * Constructs a {@link SmtpConnectionPool}.
+	 * @param session The {@link Session} to get {@link Transport}s from.
+	 * @param serverInfo The {@link MailServerInfo} containing the username, the password, and the pool limits.
+	 * @param metrics The metrics to record the time to connect and send in, or {@code null}.
+	 */
+	SmtpConnectionPool(final Session session, final MailServerInfo serverInfo, final SendMetrics metrics) {
+		this.session = session;
+		this.username = serverInfo.getUsername();
+		this.password = serverInfo.getPassword();
+		this.maxMessagesPerConnection = serverInfo.getMaxMessagesPerConnection();
+		this.idleTimeoutMillis = serverInfo.getConnectionIdleTimeout();
+		this.metrics = metrics;
+		final long evictionPeriod = Math.max(idleTimeoutMillis / 2, 1);
+		this.evictionTask = IDLE_EVICTOR.scheduleWithFixedDelay(this::evictIdle, evictionPeriod, evictionPeriod,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a message over a pooled connection. If the connection was lost without a reply
+	 * from the server before the end of the data was sent, the message is sent again once over
+	 * a new connection. If it was lost afterwards, the server may already have accepted the
+	 * message, so it is not sent again (see {@link SmtpReplies#isDeliveryUnknown(MessagingException)}).
+	 * @param message The message to send. {@link Message#saveChanges()} must already have been called.
+	 * @throws MessagingException If the message cannot be sent
+	 */
+	void send(final Message message) throws MessagingException {
+		PooledConnection connection = borrow();
+		try {
+			send(connection, message);
+		} catch (MessagingException e) {
+			if (connection.transport.isConnected()) {
+				release(connection);
+				throw e;
+			}
+			discard(connection);
+			if (SmtpReplies.getReturnCode(e) != SmtpReplies.NO_REPLY) {
+				// the server closed the connection deliberately, e.g. with 421
+				throw e;
+			}
+			if (SmtpReplies.isDeliveryUnknown(e)) {
+				LOG.warn("Connection to mail server lost after sending message ({}); not sending it again",
+						e.getMessage());
+				throw e;
+			}
+			LOG.warn("Connection to mail server lost ({}); reconnecting", e.getMessage());
+			connection = borrow();
+			try {
+				send(connection, message);
+			} catch (MessagingException e2) {
+				discardOrRelease(connection);
+				throw e2;
+			}
+		}
+		discardOrRelease(connection);
+	}
+
+	private void send(final PooledConnection connection, final Message message) throws MessagingException {
+		final long start = System.nanoTime();
+		try {
+			connection.send(message);
+		} finally {
+			if (metrics != null) {
+				metrics.recordSince(SendMetrics.Phase.SMTP_SEND, start);
+			}
+		}
+	}
+
+	private PooledConnection borrow() throws MessagingException {
+		for (;;) {
+			final PooledConnection connection;
+			synchronized (this) {
+				if (closed)
+					throw new MessagingException("Connection pool is closed");
+				connection = idle.pollFirst();
+			}
+			if (connection == null) {
+				break;
+			}
+			if (System.currentTimeMillis() - connection.lastUsed > idleTimeoutMillis) {
+				LOG.debug("Closing connection idle for more than {} ms", idleTimeoutMillis);
+				discard(connection);
+			} else if (connection.transport.isConnected()) {
+				return connection;
+			} else {
+				LOG.debug("Discarding connection dropped by mail server");
+				discard(connection);
+			}
+		}
+		final long start = System.nanoTime();
+		final Transport transport = session.getTransport("smtp");
+		transport.connect(username, password);
+		if (metrics != null) {
+			metrics.recordSince(SendMetrics.Phase.CONNECT, start);
+		}
+		LOG.debug("Opened new connection to mail server");
+		return new PooledConnection(transport);
+	}
+
+	private void discardOrRelease(final PooledConnection connection) {
+		if (connection.messageCount >= maxMessagesPerConnection) {
+			discard(connection);
+		} else {
+			release(connection);
+		}
+	}
+
+	private void release(final PooledConnection connection) {
+		connection.lastUsed = System.currentTimeMillis();
+		synchronized (this) {
+			if (!closed) {
+				idle.addFirst(connection);
+				return;
+			}
+		}
+		discard(connection);
+	}
+
+	private void discard(final PooledConnection connection) {
+		try {
+			connection.transport.close();
+		} catch (MessagingException e) {
+			LOG.debug("Error closing connection", e);
+		}
+	}
+
+	/**
+	 * Closes the connections that have been idle for longer than the idle timeout.
+	 */
+	void evictIdle() {
+		final List<PooledConnection> expired = new ArrayList<>();
+		final long now = System.currentTimeMillis();
+		synchronized (this) {
+			// connections are returned to the front, so the longest idle are at the back
+			while (!idle.isEmpty() && now - idle.peekLast().lastUsed > idleTimeoutMillis) {
+				expired.add(idle.pollLast());
+			}
+		}
+		for (final PooledConnection connection : expired) {
+			LOG.debug("Closing connection idle for more than {} ms", idleTimeoutMillis);
+			discard(connection);
+		}
+	}
+
+	/**
+	 * @return The number of open connections that are not in use.
+	 */
+	synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Closes all idle connections. Connections that are in use are closed when they are returned.
+	 */
+	@Override
+	public void close() {
+		evictionTask.cancel(false);
+		final PooledConnection[] connections;
+		synchronized (this) {
+			closed = true;
+			connections = idle.toArray(new PooledConnection[0]);
+			idle.clear();
+		}
+		for (final PooledConnection connection : connections) {
+			discard(connection);
+		}
+	}
+
+	private static final class PooledConnection {
+		private final Transport transport;
+		private int messageCount;
+		private long lastUsed;
+
+		private PooledConnection(final Transport transport) {
+			this.transport = transport;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		private void send(final Message message) throws MessagingException {
+			++messageCount;
+			transport.sendMessage(message, message.getAllRecipients());
+		}
+	}
+}
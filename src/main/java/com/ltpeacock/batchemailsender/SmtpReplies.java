@@ -0,0 +1,78 @@
+package com.ltpeacock.batchemailsender;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Utility class for inspecting the SMTP reply codes carried by the exceptions thrown by JavaMail.
+ * @author LieutenantPeacock
+ *
+ */
+final class SmtpReplies {
+	/**
+	 * Indicates that no SMTP reply code is available.
+	 */
+	static final int NO_REPLY = -1;
+
+	private SmtpReplies() {
+	}
+
+	/**
+	 * Finds the first SMTP reply code in an exception and the exceptions chained to it.
+	 * @param e The exception thrown by JavaMail.
+	 * @return The reply code, or {@link #NO_REPLY} if the server did not reply, e.g.
+	 * because the connection was lost.
+	 */
+	static int getReturnCode(final MessagingException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SMTPSendFailedException) {
+				return ((SMTPSendFailedException) t).getReturnCode();
+			} else if (t instanceof SMTPAddressFailedException) {
+				return ((SMTPAddressFailedException) t).getReturnCode();
+			} else if (t instanceof SMTPSenderFailedException) {
+				return ((SMTPSenderFailedException) t).getReturnCode();
+			}
+		}
+		return NO_REPLY;
+	}
+
+	/**
+	 * @param e The exception thrown by JavaMail.
+	 * @return Whether the mail server permanently rejected a recipient of the email.
+	 */
+	static boolean isRecipientRejected(final MessagingException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SMTPAddressFailedException && ((SMTPAddressFailedException) t).getReturnCode() >= 500) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param e The exception thrown by JavaMail.
+	 * @return Whether the connection was lost after the whole email had been sent, without a reply
+	 * to the end of the data, so the mail server may have delivered it.
+	 */
+	static boolean isDeliveryUnknown(final MessagingException e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SMTPSendFailedException) {
+				final SMTPSendFailedException sfe = (SMTPSendFailedException) t;
+				return sfe.getReturnCode() == NO_REPLY && PipeliningSMTPTransport.END_OF_DATA.equals(sfe.getCommand());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param returnCode An SMTP reply code.
+	 * @return Whether the reply code is one that servers use to limit the sending rate:
+	 * 421 (service not available), 451 (local error), or 452 (insufficient storage).
+	 */
+	static boolean isThrottling(final int returnCode) {
+		return returnCode == 421 || returnCode == 451 || returnCode == 452;
+	}
+}
@@ -0,0 +1,484 @@
+package com.ltpeacock.batchemailsender;
+
+import static com.ltpeacock.batchemailsender.LogMarkers.CONSOLE;
+import static com.ltpeacock.batchemailsender.LogMarkers.NOT_SENT;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Sends the emails in a {@link MessageSpool} directory written by a {@link SpoolRenderer},
+ * in row order. As the messages are already built, sending them is only a matter of
+ * handing them to the mail server.
+ * <br>
+ * By default, emails are sent one at a time on the calling thread; with more than one thread
+ * (see {@link Builder#withThreads(int)}), they are sent by a pool of sender threads, with a
+ * bounded number of emails read ahead of them.
+ * <br>
+ * If a {@link SendJournal} is configured (see {@link Builder#withJournal(SendJournal)}),
+ * the outcome of every row is recorded in it and rows that it records as already sent are
+ * passed over, so that an interrupted drain can be resumed by running it again with the same
+ * journal.
+ * <br>
+ * By default, sending stops at the first email that cannot be sent. If a {@link RetryPolicy} is
+ * configured (see {@link Builder#withRetryPolicy(RetryPolicy)}), failures are handled by their
+ * {@link FailureClass} instead, as by a {@link MailWorker}: emails with transient failures are
+ * retried after a delay while the other emails are sent, and emails with permanent failures, or
+ * that have run out of attempts, are logged with the {@link LogMarkers#NOT_SENT} marker, written
+ * to the {@link DeadLetterFile} if one is configured (see {@link Builder#withDeadLetterFile(DeadLetterFile)}),
+ * and recorded as failed in the journal. Only fatal failures still stop sending.
+ * <br>
+ * If an {@link EmailArchive} is configured (see {@link Builder#withArchive(EmailArchive)}), the
+ * recipients, subject, and body of every email sent are read back from its message and written
+ * to it with the attachment paths stored in the spool, so that what was sent can still be found
+ * once the spool is deleted.
+ * @author LieutenantPeacock
+ *
+ */
+public class SpoolDrainer {
+	private static final Logger LOG = LoggerFactory.getLogger(SpoolDrainer.class);
+	private static final String[] NO_ADDRESSES = new String[0];
+	private final RawMailSender mailSender;
+	private final int threads;
+	private final boolean dryRun;
+	private final SendJournal journal;
+	private final SendMetrics metrics;
+	private final EmailArchive archive;
+	private final RetryPolicy retryPolicy;
+	private final DeadLetterFile deadLetters;
+
+	private SpoolDrainer(final Builder builder) {
+		this.mailSender = builder.mailSender;
+		this.threads = Math.max(1, builder.threads);
+		this.dryRun = builder.dryRun;
+		this.journal = builder.journal;
+		this.metrics = builder.metrics;
+		this.archive = builder.archive;
+		this.retryPolicy = builder.retryPolicy;
+		this.deadLetters = builder.deadLetters;
+	}
+
+	/**
+	 * Sends the emails in a spool directory.
+	 * @param spoolDir The spool directory.
+	 * @return The number of emails sent.
+	 * @throws MailSendingException If the spool cannot be read or an email cannot be sent
+	 */
+	public int drain(final File spoolDir) throws MailSendingException {
+		final File[] segments;
+		try {
+			segments = MessageSpool.listSegments(spoolDir);
+		} catch (IOException e) {
+			throw new MailSendingException(ErrorCode.IO_ERROR, e, true);
+		}
+		LOG.info("Sending emails from spool directory {} with [{}] segments", spoolDir.getAbsolutePath(),
+				segments.length);
+		final long start = System.currentTimeMillis();
+		final Run run = new Run();
+		final ExecutorService executor = threads > 1
+				? Executors.newFixedThreadPool(threads, new MailWorker.StageThreadFactory("MailSender"))
+				: null;
+		try {
+			for (final File segment : segments) {
+				if (!run.drainSegment(segment, executor)) {
+					break;
+				}
+			}
+		} finally {
+			if (run.retrier != null && run.failure != null) {
+				// emails waiting to be retried are left to be sent when resuming
+				final List<Runnable> retries = new ArrayList<>();
+				run.retrier.getQueue().drainTo(retries);
+				run.inFlight.release(retries.size());
+			}
+			run.inFlight.acquireUninterruptibly(threads * 2);
+			if (executor != null) {
+				executor.shutdown();
+			}
+			if (run.retrier != null) {
+				run.retrier.shutdown();
+			}
+			MDC.remove(MdcKeys.CSV_LINE_NUM);
+		}
+		run.dotPrinter.done();
+		if (run.failure != null) {
+			LOG.warn("Aborted operation due to {}. To resume sending emails from where the program left off,"
+					+ " fix the issue (if applicable) and then drain the spool again with the same journal",
+					run.failure.getMessage());
+			throw run.failure;
+		}
+		if (run.journaledCount > 0) {
+			LOG.info(CONSOLE, "Passed over [{}] rows already sent according to the send journal",
+					run.journaledCount);
+		}
+		if (run.notSentCount.get() > 0) {
+			if (deadLetters != null) {
+				LOG.warn("Emails for [{}] rows could not be sent; they are listed in [{}]", run.notSentCount.get(),
+						deadLetters.getFile());
+			} else {
+				LOG.warn("Emails for [{}] rows could not be sent", run.notSentCount.get());
+			}
+		}
+		final int sentCount = run.sentCount.get();
+		final double totalSeconds = (System.currentTimeMillis() - start) / 1000d;
+		LOG.info(CONSOLE, "Sent [{}] emails from the spool in [{}] seconds, Throughput: [{}] emails/minute",
+				sentCount, String.format("%.1f", totalSeconds), String.format("%.1f", sentCount * 60 / totalSeconds));
+		return sentCount;
+	}
+
+	/**
+	 * State shared by all emails of one call to drain.
+	 */
+	private final class Run {
+		private final ProgressDotPrinter dotPrinter = new ProgressDotPrinter(50);
+		private final AtomicInteger sentCount = new AtomicInteger();
+		private final AtomicInteger notSentCount = new AtomicInteger();
+		/** Places for emails being sent, waiting to be sent, or waiting to be retried. */
+		private final Semaphore inFlight = new Semaphore(threads * 2);
+		private final ScheduledThreadPoolExecutor retrier = retryPolicy != null
+				? new ScheduledThreadPoolExecutor(threads, new MailWorker.StageThreadFactory("Retrier"))
+				: null;
+		private int journaledCount;
+		private volatile MailSendingException failure;
+
+		/**
+		 * @return {@code false} if an email has failed and no more emails should be sent
+		 */
+		private boolean drainSegment(final File segment, final ExecutorService executor) {
+			try (MessageSpool.SegmentReader reader = new MessageSpool.SegmentReader(segment)) {
+				for (MessageSpool.Entry entry; (entry = reader.next()) != null;) {
+					if (failure != null) {
+						return false;
+					}
+					if (metrics != null) {
+						metrics.rowRead();
+					}
+					if (journal != null && journal.isCompleted(entry.rowNum)) {
+						++journaledCount;
+						continue;
+					}
+					inFlight.acquireUninterruptibly();
+					if (executor == null) {
+						send(entry, 1);
+					} else {
+						final MessageSpool.Entry task = entry;
+						try {
+							executor.execute(() -> send(task, 1));
+						} catch (RuntimeException e) {
+							inFlight.release();
+							throw e;
+						}
+					}
+				}
+			} catch (IOException e) {
+				fail(new MailSendingException(ErrorCode.IO_ERROR, e, true));
+			}
+			return failure == null;
+		}
+
+		/**
+		 * Sends an email, holding a place in {@link #inFlight} that is released once the email
+		 * has been sent or given up on, or kept for its retry.
+		 * @param attempt The number of the attempt (one-indexed).
+		 */
+		private void send(final MessageSpool.Entry entry, final int attempt) {
+			MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(entry.rowNum));
+			boolean retrying = false;
+			try {
+				if (failure != null) {
+					return;
+				}
+				if (attempt == 1) {
+					LOG.info("Sending spooled message for row {}", entry.rowNum);
+				}
+				try {
+					mailSender.sendRawEmail(entry.message);
+				} catch (MailSendingException e) {
+					if (metrics != null) {
+						metrics.emailFailed();
+					}
+					retrying = handleFailure(entry, attempt, e);
+					return;
+				} catch (RuntimeException e) {
+					if (metrics != null) {
+						metrics.emailFailed();
+					}
+					abort(entry, new MailSendingException(ErrorCode.ERROR_SENDING, e, true));
+					return;
+				}
+				if (attempt > 1) {
+					LOG.info("Sent spooled message for row {} on attempt {}", entry.rowNum, attempt);
+				}
+				if (metrics != null) {
+					metrics.emailSent(entry.recipientCount);
+				}
+				record(entry.rowNum, SendJournal.Status.SENT);
+				archive(entry);
+				dotPrinter.dot();
+				sentCount.incrementAndGet();
+			} finally {
+				MDC.remove(MdcKeys.CSV_LINE_NUM);
+				if (!retrying) {
+					inFlight.release();
+				}
+			}
+		}
+
+		/**
+		 * Handles an email that could not be sent according to the {@link RetryPolicy}: schedules
+		 * it to be retried if its failure is transient and it has attempts left, writes it to the
+		 * dead letters if not, and stops sending if there is no retry policy or the failure is fatal.
+		 * @return {@code true} if the email is to be retried
+		 */
+		private boolean handleFailure(final MessageSpool.Entry entry, final int attempt,
+				final MailSendingException e) {
+			final FailureClass failureClass = retryPolicy != null ? FailureClass.of(e) : FailureClass.FATAL;
+			if (failureClass == FailureClass.FATAL) {
+				abort(entry, e);
+				return false;
+			}
+			if (failureClass == FailureClass.PERMANENT || attempt >= retryPolicy.getMaxAttempts()) {
+				deadLetter(entry, attempt, e);
+				return false;
+			}
+			final long delayMillis = retryPolicy.getDelayMillis(attempt);
+			LOG.warn("Sending spooled message for row {} failed ({}); retrying in [{}] ms (attempt {} of {})",
+					entry.rowNum, e.getMessage(), delayMillis, attempt + 1, retryPolicy.getMaxAttempts());
+			retrier.schedule(() -> send(entry, attempt + 1), delayMillis, TimeUnit.MILLISECONDS);
+			return true;
+		}
+
+		private void abort(final MessageSpool.Entry entry, final MailSendingException e) {
+			record(entry.rowNum, SendJournal.Status.FAILED);
+			LOG.error("Error sending email for row {}", entry.rowNum, e);
+			fail(e);
+		}
+
+		/**
+		 * Records an email that could not be sent, logging any error writing it.
+		 */
+		private void deadLetter(final MessageSpool.Entry entry, final int attempt, final MailSendingException e) {
+			notSentCount.incrementAndGet();
+			if (metrics != null) {
+				metrics.emailNotSent();
+			}
+			String[] to = NO_ADDRESSES, cc = NO_ADDRESSES, bcc = NO_ADDRESSES;
+			try {
+				final MimeMessage message = parse(entry);
+				to = addresses(message, Message.RecipientType.TO);
+				cc = addresses(message, Message.RecipientType.CC);
+				bcc = addresses(message, Message.RecipientType.BCC);
+			} catch (MessagingException e2) {
+				LOG.error("Error reading the recipients of the spooled message for row {}", entry.rowNum, e2);
+			}
+			LOG.warn(NOT_SENT,
+					"Spooled message for row {} not sent after [{}] attempts: {}. TO: [{}], CC: [{}], BCC: [{}]",
+					entry.rowNum, attempt, e.getMessage(), to, cc, bcc);
+			if (deadLetters != null) {
+				try {
+					deadLetters.write(Collections.singletonList(entry.rowNum), to, cc, bcc, e, attempt);
+				} catch (IOException e2) {
+					LOG.error("Error writing to dead letter file", e2);
+				}
+			}
+			record(entry.rowNum, SendJournal.Status.FAILED);
+			dotPrinter.failed();
+		}
+
+		/**
+		 * Writes an email that was sent to the archive, if any, logging any error: the email has
+		 * already been sent, so it must not be treated as failed.
+		 */
+		private void archive(final MessageSpool.Entry entry) {
+			if (archive == null) {
+				return;
+			}
+			try {
+				final MimeMessage message = parse(entry);
+				final Object content = message.getContent();
+				// the body is the first part, followed by the attachments, whose paths are in the entry
+				final String body = String.valueOf(content instanceof Multipart
+						? ((Multipart) content).getBodyPart(0).getContent()
+						: content);
+				archive.archive(Collections.singletonList(entry.rowNum),
+						addresses(message, Message.RecipientType.TO), addresses(message, Message.RecipientType.CC),
+						addresses(message, Message.RecipientType.BCC), message.getSubject(), body, entry.attachments);
+			} catch (MessagingException | IOException e) {
+				LOG.error("Error writing to email archive", e);
+			}
+		}
+
+		private void record(final int rowNum, final SendJournal.Status status) {
+			if (journal != null && !dryRun) {
+				try {
+					journal.record(rowNum, status);
+				} catch (IOException e) {
+					fail(new MailSendingException(ErrorCode.IO_ERROR, "Error writing to send journal", e));
+				}
+			}
+		}
+
+		private synchronized void fail(final MailSendingException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+	}
+
+	private static MimeMessage parse(final MessageSpool.Entry entry) throws MessagingException {
+		return new MimeMessage(null, new SharedByteArrayInputStream(entry.message));
+	}
+
+	private static String[] addresses(final MimeMessage message, final Message.RecipientType type)
+			throws MessagingException {
+		final Address[] addresses = message.getRecipients(type);
+		if (addresses == null) {
+			return NO_ADDRESSES;
+		}
+		final String[] result = new String[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			result[i] = addresses[i].toString();
+		}
+		return result;
+	}
+
+	/**
+	 * Creates builder to build {@link SpoolDrainer}.
+	 *
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link SpoolDrainer}.
+	 */
+	public static final class Builder {
+		private RawMailSender mailSender;
+		private int threads;
+		private boolean dryRun;
+		private SendJournal journal;
+		private SendMetrics metrics;
+		private EmailArchive archive;
+		private RetryPolicy retryPolicy;
+		private DeadLetterFile deadLetters;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param mailSender The {@link RawMailSender} to send the emails with.
+		 * @return This builder
+		 */
+		public Builder withMailSender(RawMailSender mailSender) {
+			this.mailSender = mailSender;
+			return this;
+		}
+
+		/**
+		 * Sets the number of threads to send emails with. Defaults to 1, which sends emails
+		 * on the calling thread.
+		 * @param threads The number of threads.
+		 * @return This builder
+		 */
+		public Builder withThreads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * @param dryRun If set to {@code true}, the outcome of the emails is not recorded in the journal.
+		 * @return This builder
+		 */
+		public Builder withDryRun(boolean dryRun) {
+			this.dryRun = dryRun;
+			return this;
+		}
+
+		/**
+		 * Sets the journal in which to record the outcome of every row. By default, no journal is kept.
+		 * @param journal The {@link SendJournal}.
+		 * @return This builder
+		 */
+		public Builder withJournal(SendJournal journal) {
+			this.journal = journal;
+			return this;
+		}
+
+		/**
+		 * Sets the metrics in which to record the numbers of emails sent and failed. By default,
+		 * no metrics are recorded.
+		 * @param metrics The {@link SendMetrics}.
+		 * @return This builder
+		 */
+		public Builder withMetrics(SendMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * Sets the archive to write the recipients, subject, and body of every email sent to.
+		 * Emails are also archived during a dry run. The archive is not closed by the SpoolDrainer.
+		 * By default, emails are not archived.
+		 * @param archive The {@link EmailArchive}.
+		 * @return This builder
+		 */
+		public Builder withArchive(EmailArchive archive) {
+			this.archive = archive;
+			return this;
+		}
+
+		/**
+		 * Sets the policy for retrying emails with transient failures. If set, emails that cannot
+		 * be sent no longer stop sending unless the failure is {@link FailureClass#FATAL fatal}.
+		 * By default, the first email that cannot be sent stops sending.
+		 * @param retryPolicy The {@link RetryPolicy}.
+		 * @return This builder
+		 */
+		public Builder withRetryPolicy(RetryPolicy retryPolicy) {
+			this.retryPolicy = retryPolicy;
+			return this;
+		}
+
+		/**
+		 * Sets the file to list the emails that could not be sent in. Only used with a
+		 * {@link #withRetryPolicy(RetryPolicy) retry policy}. The file is not closed by the SpoolDrainer.
+		 * @param deadLetters The {@link DeadLetterFile}.
+		 * @return This builder
+		 */
+		public Builder withDeadLetterFile(DeadLetterFile deadLetters) {
+			this.deadLetters = deadLetters;
+			return this;
+		}
+
+		public SpoolDrainer build() {
+			if (mailSender == null)
+				throw new IllegalStateException("mailSender must be set");
+			return new SpoolDrainer(this);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package com.ltpeacock.batchemailsender;
+
+import static com.ltpeacock.batchemailsender.LogMarkers.CONSOLE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Renders the emails for every row of a CSV data file and builds them into RFC 822 messages
+ * in a {@link MessageSpool} directory, without sending them, so that they can be sent later by
+ * a {@link SpoolDrainer} with no work left but sending.
+ * <br>
+ * The rows are split into chunks of consecutive rows (see {@link Builder#withChunkRows(int)}),
+ * each of which is rendered into its own segment of the spool. The chunks are rendered in
+ * parallel on a {@link ForkJoinPool} (see {@link Builder#withThreads(int)}), each reading
+ * its rows straight from the position of its first row found with a {@link CsvIndex}. Chunks
+ * whose segment already exists are passed over, so an interrupted render can be resumed by
+ * running it again with the same chunk size.
+ * <br>
+ * Rows whose {@code SKIP_RECORD} column is {@code true} are left out of the spool. The
+ * attachments of each email are encoded into its message, so they are only needed while
+ * rendering.
+ * @author LieutenantPeacock
+ *
+ */
+public class SpoolRenderer {
+	private static final Logger LOG = LoggerFactory.getLogger(SpoolRenderer.class);
+	/** The default number of rows in each segment of the spool. */
+	public static final int DEFAULT_CHUNK_ROWS = 8192;
+	private final BasicMailSender mailSender;
+	private final int threads;
+	private final int chunkRows;
+	private final SendMetrics metrics;
+
+	private SpoolRenderer(final Builder builder) {
+		this.mailSender = builder.mailSender;
+		this.threads = builder.threads > 0 ? builder.threads : Runtime.getRuntime().availableProcessors();
+		this.chunkRows = builder.chunkRows > 0 ? builder.chunkRows : DEFAULT_CHUNK_ROWS;
+		this.metrics = builder.metrics;
+	}
+
+	/**
+	 * Renders the emails for every row of a CSV data file into a spool directory.
+	 * @param dataFile The CSV data file.
+	 * @param charset The charset of the data file. It must be supported by {@link MappedCsvRecordSource}.
+	 * @param template The {@link EmailTemplate} to use for each email.
+	 * @param spoolDir The spool directory, which is created if it does not exist.
+	 * @return The number of emails rendered, not counting those in segments that already existed.
+	 * @throws MailSendingException If the data file cannot be read, an email cannot be built,
+	 * or the spool cannot be written
+	 */
+	public int render(final File dataFile, final Charset charset, final EmailTemplate template, final File spoolDir)
+			throws MailSendingException {
+		final long start = System.currentTimeMillis();
+		final CsvIndex index;
+		final Map<String, Integer> headerMap;
+		try {
+			index = CsvIndex.loadOrBuild(dataFile);
+			try (RecordSource source = new MappedCsvRecordSource(dataFile, charset)) {
+				headerMap = source.getHeaderMap();
+			}
+		} catch (IOException e) {
+			throw new MailSendingException(ErrorCode.ERROR_READING_DATA, e);
+		}
+		if (!spoolDir.isDirectory() && !spoolDir.mkdirs())
+			throw new MailSendingException(ErrorCode.IO_ERROR,
+					"Cannot create spool directory " + spoolDir.getAbsolutePath());
+		LOG.info("Rendering templated emails into spool directory {}", spoolDir.getAbsolutePath());
+		final Run run = new Run(dataFile, charset, index, CompiledEmailTemplate.compile(template, headerMap),
+				headerMap, spoolDir);
+		final int chunks = (index.getRecordCount() + chunkRows - 1) / chunkRows;
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		final int rendered;
+		try {
+			rendered = chunks > 0 ? pool.invoke(run.new ChunkTask(0, chunks)) : 0;
+		} catch (RuntimeException e) {
+			throw unwrap(e);
+		} finally {
+			pool.shutdown();
+		}
+		if (run.failure != null) {
+			throw unwrap(run.failure);
+		}
+		if (run.existingSegments.get() > 0) {
+			LOG.info(CONSOLE, "Passed over [{}] segments already rendered", run.existingSegments.get());
+		}
+		LOG.info(CONSOLE, "Rendered [{}] emails into [{}] segments in [{}] seconds", rendered,
+				chunks - run.existingSegments.get(), String.format("%.1f", (System.currentTimeMillis() - start) / 1000d));
+		return rendered;
+	}
+
+	/**
+	 * Finds the {@link MailSendingException} or I/O error that caused a chunk to fail.
+	 */
+	private static MailSendingException unwrap(final Throwable failure) {
+		for (Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof MailSendingException) {
+				return (MailSendingException) t;
+			}
+			if (t instanceof IOException) {
+				return new MailSendingException(ErrorCode.IO_ERROR, t, true);
+			}
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		throw (Error) failure;
+	}
+
+	/**
+	 * State shared by all chunks of one call to render.
+	 */
+	private final class Run {
+		private final File dataFile;
+		private final Charset charset;
+		private final CsvIndex index;
+		private final CompiledEmailTemplate compiled;
+		private final BitSet columns;
+		private final Integer skipColumn;
+		private final File spoolDir;
+		private final AtomicInteger existingSegments = new AtomicInteger();
+		private volatile Throwable failure;
+
+		private Run(final File dataFile, final Charset charset, final CsvIndex index,
+				final CompiledEmailTemplate compiled, final Map<String, Integer> headerMap, final File spoolDir) {
+			this.dataFile = dataFile;
+			this.charset = charset;
+			this.index = index;
+			this.compiled = compiled;
+			this.columns = compiled.getColumns();
+			this.skipColumn = headerMap.get(MailWorker.SKIP_RECORD_COLUMN);
+			if (skipColumn != null) {
+				columns.set(skipColumn);
+			}
+			this.spoolDir = spoolDir;
+		}
+
+		/**
+		 * Renders the rows of a chunk into its segment, unless the segment already exists.
+		 * @return The number of emails rendered.
+		 */
+		private int renderChunk(final int first, final int last) throws IOException, MailSendingException {
+			final File segment = MessageSpool.segmentFile(spoolDir, first, last);
+			if (segment.exists()) {
+				existingSegments.incrementAndGet();
+				return 0;
+			}
+			int rendered = 0;
+			try (RecordSource source = new MappedCsvRecordSource(dataFile, charset, index.getOffset(first));
+					MessageSpool.SegmentWriter writer = new MessageSpool.SegmentWriter(segment)) {
+				source.selectColumns(columns);
+				final MessageSpool.MessageBuffer buffer = new MessageSpool.MessageBuffer();
+				for (int rowNum = index.getIndexedRecord(first); rowNum <= last; rowNum++) {
+					if (failure != null) {
+						// another chunk has failed; leave this segment unwritten
+						return rendered;
+					}
+					final long readStart = System.nanoTime();
+					final DataRecord record = source.next();
+					if (record == null) {
+						break;
+					}
+					if (rowNum < first) {
+						continue;
+					}
+					if (metrics != null) {
+						metrics.recordSince(SendMetrics.Phase.CSV_READ, readStart);
+						metrics.rowRead();
+					}
+					MDC.put(MdcKeys.CSV_LINE_NUM, String.valueOf(rowNum));
+					if (skipColumn != null && skipColumn < record.size()
+							&& Boolean.parseBoolean(record.get(skipColumn))) {
+						LOG.info("Skipping record");
+						continue;
+					}
+					final RenderedEmail email = render(record);
+					buffer.reset();
+					mailSender.writeEmail(email.getTo(), email.getCc(), email.getBcc(), email.getSubject(),
+							email.getBody(), MailContentTypes.HTML, email.getAttachments(), buffer);
+					writer.write(rowNum, email.getTo().length + email.getCc().length + email.getBcc().length,
+							email.getAttachments(), buffer);
+					++rendered;
+				}
+				writer.commit();
+			} finally {
+				MDC.remove(MdcKeys.CSV_LINE_NUM);
+			}
+			return rendered;
+		}
+
+		private RenderedEmail render(final DataRecord record) {
+			final long start = System.nanoTime();
+			final RenderedEmail email = compiled.render(record);
+			if (metrics != null) {
+				metrics.recordSince(SendMetrics.Phase.RENDER, start);
+			}
+			boolean invalid = false;
+			for (final File attachment : email.getAttachments()) {
+				if (!attachment.exists()) {
+					LOG.error("No attachment file found with path {}", attachment.getAbsolutePath());
+					invalid = true;
+				}
+			}
+			if (invalid) {
+				throw new IllegalArgumentException("Invalid file path(s) specified");
+			}
+			return email;
+		}
+
+		/**
+		 * Renders a range of chunks, splitting it in half until a single chunk remains.
+		 */
+		private final class ChunkTask extends RecursiveTask<Integer> {
+			private static final long serialVersionUID = 1L;
+			private final int fromChunk, toChunk;
+
+			private ChunkTask(final int fromChunk, final int toChunk) {
+				this.fromChunk = fromChunk;
+				this.toChunk = toChunk;
+			}
+
+			@Override
+			protected Integer compute() {
+				if (failure != null) {
+					return 0;
+				}
+				if (toChunk - fromChunk > 1) {
+					final int mid = (fromChunk + toChunk) >>> 1;
+					final ChunkTask left = new ChunkTask(fromChunk, mid);
+					left.fork();
+					final int right = new ChunkTask(mid, toChunk).compute();
+					return left.join() + right;
+				}
+				final int first = fromChunk * chunkRows + 1;
+				final int last = Math.min(first + chunkRows - 1, index.getRecordCount());
+				try {
+					return renderChunk(first, last);
+				} catch (IOException | MailSendingException | RuntimeException e) {
+					synchronized (Run.this) {
+						if (failure == null) {
+							LOG.error("Error rendering rows {} to {}", first, last, e);
+							failure = e;
+						}
+					}
+					return 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates builder to build {@link SpoolRenderer}.
+	 *
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link SpoolRenderer}.
+	 */
+	public static final class Builder {
+		private BasicMailSender mailSender;
+		private int threads;
+		private int chunkRows;
+		private SendMetrics metrics;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param mailSender The {@link BasicMailSender} to build the messages with. It is not
+		 * used to send them.
+		 * @return This builder
+		 */
+		public Builder withMailSender(BasicMailSender mailSender) {
+			this.mailSender = mailSender;
+			return this;
+		}
+
+		/**
+		 * Sets the number of threads to render with. Defaults to the number of available processors.
+		 * @param threads The number of threads.
+		 * @return This builder
+		 */
+		public Builder withThreads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * Sets the number of rows in each segment of the spool. Defaults to {@value SpoolRenderer#DEFAULT_CHUNK_ROWS}.
+		 * A render can only be resumed with the same number of rows per segment.
+		 * @param chunkRows The number of rows.
+		 * @return This builder
+		 */
+		public Builder withChunkRows(int chunkRows) {
+			this.chunkRows = chunkRows;
+			return this;
+		}
+
+		/**
+		 * Sets the metrics in which to record the time taken to read and render each row. By
+		 * default, no metrics are recorded.
+		 * @param metrics The {@link SendMetrics}.
+		 * @return This builder
+		 */
+		public Builder withMetrics(SendMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		public SpoolRenderer build() {
+			if (mailSender == null)
+				throw new IllegalStateException("mailSender must be set");
+			return new SpoolRenderer(this);
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParameterList;
+
+/**
+ * {@link MimeMessage} with a body and attachments that are written straight to the output
+ * stream (which is the DATA stream of the SMTP connection when the message is sent) instead of
+ * being built into a tree of body parts first.
+ * <br>
+ * The body is encoded as UTF-8 quoted-printable text. Each attachment is read from its file in
+ * fixed-size chunks and base64 encoded as it is written, so the memory used by a message does
+ * not depend on the size of its attachments. If an {@link AttachmentCache} is given, the cached
+ * encoded content is written instead for files that fit in the cache.
+ * @author LieutenantPeacock
+ *
+ */
+class StreamingMimeMessage extends MimeMessage {
+	private static final int CHUNK_SIZE = 48 * 1024;
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final AtomicLong BOUNDARY_COUNTER = new AtomicLong();
+	private final String body;
+	private final String contentType;
+	private final File[] attachments;
+	private final AttachmentCache attachmentCache;
+	private final String boundary;
+
+	/**
+	 * Constructs a {@link StreamingMimeMessage}.
+	 * @param session The {@link Session}.
+	 * @param body The body of the email.
+	 * @param contentType The content type of the body (see {@link MailContentTypes}).
+	 * @param attachments The files to attach, or {@code null}.
+	 * @param attachmentCache The cache of encoded attachments, or {@code null}.
+	 * @throws MessagingException If the content type is invalid
+	 */
+	StreamingMimeMessage(final Session session, final String body, final String contentType,
+			final File[] attachments, final AttachmentCache attachmentCache) throws MessagingException {
+		super(session);
+		final ContentType bodyType = new ContentType(contentType);
+		bodyType.setParameter("charset", "UTF-8");
+		this.body = body;
+		this.contentType = bodyType.toString();
+		this.attachments = attachments != null ? attachments : new File[0];
+		this.attachmentCache = attachmentCache;
+		this.boundary = "----=_Part_" + BOUNDARY_COUNTER.incrementAndGet() + '_'
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong());
+	}
+
+	@Override
+	protected void updateHeaders() throws MessagingException {
+		setHeader("MIME-Version", "1.0");
+		setHeader("Content-Type", "multipart/mixed; boundary=\"" + boundary + '"');
+		removeHeader("Content-Transfer-Encoding");
+		updateMessageID();
+		if (getHeader("Date") == null) {
+			setSentDate(new Date());
+		}
+	}
+
+	@Override
+	public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+		if (!saved) {
+			saveChanges();
+		}
+		for (final Enumeration<String> lines = getNonMatchingHeaderLines(ignoreList); lines.hasMoreElements();) {
+			writeLine(os, lines.nextElement());
+		}
+		os.write(CRLF);
+		writeLine(os, "--" + boundary);
+		writeLine(os, "Content-Type: " + contentType);
+		writeLine(os, "Content-Transfer-Encoding: quoted-printable");
+		os.write(CRLF);
+		try (OutputStream qp = MimeUtility.encode(new NonClosingOutputStream(os), "quoted-printable")) {
+			qp.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		os.write(CRLF);
+		for (final File attachment : attachments) {
+			final AttachmentCache.EncodedAttachment cached = attachmentCache != null ? attachmentCache.get(attachment)
+					: null;
+			final ContentType type = new ContentType(cached != null ? cached.contentType
+					: FileTypeMap.getDefaultFileTypeMap().getContentType(attachment));
+			final ContentDisposition disposition = new ContentDisposition(Part.ATTACHMENT, new ParameterList());
+			if (type.getParameterList() == null) {
+				type.setParameterList(new ParameterList());
+			}
+			type.getParameterList().set("name", attachment.getName(), "UTF-8");
+			disposition.getParameterList().set("filename", attachment.getName(), "UTF-8");
+			writeLine(os, "--" + boundary);
+			writeLine(os, "Content-Type: " + type);
+			writeLine(os, "Content-Transfer-Encoding: base64");
+			writeLine(os, "Content-Disposition: " + disposition);
+			os.write(CRLF);
+			if (cached != null) {
+				os.write(cached.content);
+				if (!endsWithLineBreak(cached.content)) {
+					os.write(CRLF);
+				}
+			} else {
+				writeBase64(os, attachment);
+				os.write(CRLF);
+			}
+		}
+		writeLine(os, "--" + boundary + "--");
+		os.flush();
+	}
+
+	private static void writeBase64(final OutputStream os, final File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath());
+				OutputStream encoder = Base64.getMimeEncoder().wrap(new NonClosingOutputStream(os))) {
+			final ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+			while (channel.read(buf) != -1) {
+				encoder.write(buf.array(), 0, buf.position());
+				buf.clear();
+			}
+		}
+	}
+
+	private static boolean endsWithLineBreak(final byte[] content) {
+		return content.length > 0 && content[content.length - 1] == '\n';
+	}
+
+	private static void writeLine(final OutputStream os, final String line) throws IOException {
+		os.write(line.getBytes(StandardCharsets.US_ASCII));
+		os.write(CRLF);
+	}
+
+	/**
+	 * Output stream that flushes instead of closing the underlying stream, so that encoders
+	 * can be closed to write out their final bytes.
+	 */
+	private static final class NonClosingOutputStream extends FilterOutputStream {
+		NonClosingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of parsed template files and of {@link CompiledEmailTemplate}s, so that sending many
+ * batches with the same templates (see {@link MailDaemon}) does not parse and compile them again
+ * for every batch. A template file is parsed again once it is modified, and a template is
+ * compiled once for every distinct header of the data it is used with. The least recently used
+ * entries are evicted once the cache is full.
+ * <br>
+ * This class is safe for use by multiple threads.
+ * @author LieutenantPeacock
+ *
+ */
+public class TemplateCache {
+	private final Map<File, ParsedTemplate> parsed;
+	private final Map<CompiledKey, CompiledEmailTemplate> compiled;
+
+	/**
+	 * Constructs a {@link TemplateCache}.
+	 * @param maxEntries The maximum number of parsed templates, and of compiled templates, to keep.
+	 */
+	public TemplateCache(final int maxEntries) {
+		this.parsed = lruMap(maxEntries);
+		this.compiled = lruMap(maxEntries);
+	}
+
+	/**
+	 * Parses a template file, or returns the template parsed before if the file has not
+	 * been modified since.
+	 * @param templateFile The template file.
+	 * @return The template.
+	 * @throws IOException If the file cannot be read
+	 */
+	public EmailTemplate get(final File templateFile) throws IOException {
+		final File file = templateFile.getCanonicalFile();
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		final ParsedTemplate cached;
+		synchronized (parsed) {
+			cached = parsed.get(file);
+		}
+		if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+			return cached.template;
+		}
+		final EmailTemplate template;
+		try (InputStream is = new FileInputStream(file)) {
+			template = EmailTemplateParser.parseTemplate(is);
+		}
+		synchronized (parsed) {
+			parsed.put(file, new ParsedTemplate(template, lastModified, length));
+		}
+		return template;
+	}
+
+	/**
+	 * Compiles a template against the header of the data, or returns the template compiled before
+	 * for the same template and header.
+	 * @param template The template.
+	 * @param headerMap The mapping of column names to column indexes of the data.
+	 * @return The compiled template.
+	 * @throws IllegalStateException If the template refers to a parameter that is not a column in the header
+	 * @see CompiledEmailTemplate#compile(EmailTemplate, Map)
+	 */
+	public CompiledEmailTemplate compile(final EmailTemplate template, final Map<String, Integer> headerMap) {
+		final CompiledKey key = new CompiledKey(template, headerMap);
+		synchronized (compiled) {
+			final CompiledEmailTemplate cached = compiled.get(key);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		final CompiledEmailTemplate result = CompiledEmailTemplate.compile(template, headerMap);
+		synchronized (compiled) {
+			compiled.put(key, result);
+		}
+		return result;
+	}
+
+	private static <K, V> Map<K, V> lruMap(final int maxEntries) {
+		return new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	private static final class ParsedTemplate {
+		private final EmailTemplate template;
+		private final long lastModified;
+		private final long length;
+
+		private ParsedTemplate(final EmailTemplate template, final long lastModified, final long length) {
+			this.template = template;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Templates are compared by identity, as a template parsed again is a new instance.
+	 */
+	private static final class CompiledKey {
+		private final EmailTemplate template;
+		private final Map<String, Integer> headerMap;
+
+		private CompiledKey(final EmailTemplate template, final Map<String, Integer> headerMap) {
+			this.template = template;
+			this.headerMap = Collections.unmodifiableMap(new LinkedHashMap<>(headerMap));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(template) + headerMap.hashCode();
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof CompiledKey)) {
+				return false;
+			}
+			final CompiledKey other = (CompiledKey) obj;
+			return template == other.template && headerMap.equals(other.headerMap);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.ltpeacock.batchemailsender.cli;
+import static com.ltpeacock.batchemailsender.LogMarkers.CONSOLE;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ltpeacock.batchemailsender.ArchivedEmail;
+import com.ltpeacock.batchemailsender.EmailArchiveReader;
+import com.ltpeacock.batchemailsender.ShardCoverage;
+
+/**
+ * Prints the emails archived for rows of the CSV data from an email archive written by
+ * {@link BatchMailSender}. Without the {@code rows} parameter, lists the archived rows.
+ * Exits with status 1 if any of the requested rows is not archived.
+ * @author LieutenantPeacock
+ */
+public class ArchiveReader {
+	private static final Logger LOG = LoggerFactory.getLogger(ArchiveReader.class);
+
+	public static void main(final String[] args) {
+		final String archiveFilename = System.getProperty("archive", "Data.csv.archive");
+		final String rowsParam = System.getProperty("rows");
+		final File archiveFile = new File(archiveFilename);
+		if (!archiveFile.exists()) {
+			LOG.error("No archive file found with path: {}", archiveFile.getAbsolutePath());
+			System.exit(1);
+		}
+		final BitSet rows = new BitSet();
+		if (rowsParam != null) {
+			try {
+				for (final String range : rowsParam.split(",")) {
+					final String[] bounds = range.trim().split("-", 2);
+					final int first = Integer.parseInt(bounds[0].trim());
+					final int last = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : first;
+					if (first <= 0 || last < first)
+						throw new NumberFormatException();
+					rows.set(first, last + 1);
+				}
+			} catch (NumberFormatException e) {
+				LOG.error("Provided rows parameter [{}] must be a comma-separated list of row numbers or ranges "
+						+ "(e.g. 3,5-7).", rowsParam);
+				System.exit(1);
+			}
+		}
+		boolean missing = false;
+		try (EmailArchiveReader reader = EmailArchiveReader.open(archiveFile)) {
+			if (rows.isEmpty()) {
+				final BitSet archived = reader.getArchivedRows();
+				LOG.info(CONSOLE, "[{}] rows archived in [{}]: {}", archived.cardinality(), archiveFilename,
+						ShardCoverage.formatRows(archived));
+				return;
+			}
+			for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+				final ArchivedEmail email = reader.read(row);
+				if (email == null) {
+					LOG.warn("Row [{}] is not archived", row);
+					missing = true;
+					continue;
+				}
+				LOG.info(CONSOLE, "ROW: {}", row);
+				LOG.info(CONSOLE, "ROWS: {}", email.getRowNums());
+				LOG.info(CONSOLE, "TIME: {}", Instant.ofEpochMilli(email.getTimestamp()));
+				LOG.info(CONSOLE, "TO: {}", Arrays.toString(email.getTo()));
+				LOG.info(CONSOLE, "CC: {}", Arrays.toString(email.getCc()));
+				LOG.info(CONSOLE, "BCC: {}", Arrays.toString(email.getBcc()));
+				LOG.info(CONSOLE, "SUBJECT: {}", email.getSubject());
+				if (email.getAttachments().length > 0) {
+					LOG.info(CONSOLE, "ATTACHMENTS: {}", Arrays.toString(email.getAttachments()));
+				}
+				LOG.info(CONSOLE, "BODY:{}{}", System.lineSeparator(), email.getBody());
+				LOG.info(CONSOLE, "---");
+			}
+		} catch (IOException e) {
+			LOG.error("IOException", e);
+			System.exit(1);
+		}
+		if (missing) {
+			System.exit(1);
+		}
+	}
+}
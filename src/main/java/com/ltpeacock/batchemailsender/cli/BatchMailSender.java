@@ -1,24 +1,69 @@
 package com.ltpeacock.batchemailsender.cli;
 import static com.ltpeacock.batchemailsender.LogMarkers.CONSOLE;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.util.Properties;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ltpeacock.batchemailsender.AdaptiveRateLimiter;
+import com.ltpeacock.batchemailsender.AttachmentCache;
 import com.ltpeacock.batchemailsender.BasicMailSender;
+import com.ltpeacock.batchemailsender.CsvIndex;
+import com.ltpeacock.batchemailsender.CsvRecordSource;
+import com.ltpeacock.batchemailsender.DeadLetterFile;
+import com.ltpeacock.batchemailsender.DkimSigner;
+import com.ltpeacock.batchemailsender.EmailArchive;
+import com.ltpeacock.batchemailsender.EmailTemplate;
 import com.ltpeacock.batchemailsender.EmailTemplateParser;
+import com.ltpeacock.batchemailsender.JdbcRecordSource;
+import com.ltpeacock.batchemailsender.JsonLinesRecordSource;
+import com.ltpeacock.batchemailsender.LatencyHistogram;
+import com.ltpeacock.batchemailsender.LoadBalancingMailSender;
+import com.ltpeacock.batchemailsender.MailDaemon;
 import com.ltpeacock.batchemailsender.MailServerInfo;
 import com.ltpeacock.batchemailsender.MailWorker;
+import com.ltpeacock.batchemailsender.MappedCsvRecordSource;
+import com.ltpeacock.batchemailsender.MetricsHttpServer;
+import com.ltpeacock.batchemailsender.RateLimitedMailSender;
+import com.ltpeacock.batchemailsender.RawMailSender;
+import com.ltpeacock.batchemailsender.RecordSource;
+import com.ltpeacock.batchemailsender.RetryPolicy;
+import com.ltpeacock.batchemailsender.SendJournal;
+import com.ltpeacock.batchemailsender.SendMetrics;
+import com.ltpeacock.batchemailsender.ShardSpec;
+import com.ltpeacock.batchemailsender.SpoolDrainer;
+import com.ltpeacock.batchemailsender.SpoolRenderer;
 import com.ltpeacock.batchemailsender.exception.MailSendingException; 
 
 /**
  * @author LieutenantPeacock
  */
 public class BatchMailSender {
+	private static final long DEFAULT_ATTACHMENT_CACHE_SIZE = 64;
+	private static final String ARCHIVE_TO_LOG = "log";
+	private static final String SPOOL_JOURNAL_FILENAME = "sent.journal";
+	private static final int DEFAULT_MAX_ATTEMPTS = 5;
+	private static final String DEFAULT_DAEMON_TOKEN_FILENAME = "daemon.token";
+	/** Smaller than the Log4j default, as every slot of the ring buffer is allocated up front. */
+	private static final String DEFAULT_LOG_RING_BUFFER_SIZE = "32768";
+	/**
+	 * System property read by {@code log4j2.xml} for whether the log files are flushed after every event.
+	 */
+	static final String IMMEDIATE_FLUSH_PROPERTY = "batchEmailSender.immediateFlush";
+	static {
+		// must run before the first logger is created, so it precedes LOG
+		configureLogging();
+	}
 	private static final Logger LOG = LoggerFactory.getLogger(BatchMailSender.class);
 	
 	public static void main(final String[] args) {
@@ -43,21 +88,114 @@ public class BatchMailSender {
 			final String templateFilename = getProperty("template", "Template.txt", props);
 			final String start = getProperty("start", null, props);
 			final String end = getProperty("end", null, props);
+			final String threadsParam = getProperty("threads", null, props);
+			final String maxRateParam = getProperty("maxRate", null, props);
+			String journalFilename = getProperty("journal", null, props);
+			final String attachmentCacheSizeParam = getProperty("attachmentCacheSize", null, props);
+			final String batchRecipientsParam = getProperty("batchRecipients", null, props);
+			final String shardParam = getProperty("shard", null, props);
+			final String shardKey = getProperty("shardKey", null, props);
+			final String metricsPortParam = getProperty("metricsPort", null, props);
+			String archiveFilename = getProperty("archive", null, props);
+			// a dry run is only archived to a file if one is given, so it cannot add to the archive of a real run
+			final boolean defaultArchive = getProperty("dryRun", null, props) == null;
+			final String jdbcUrl = getProperty("jdbcUrl", null, props);
+			final String jdbcQuery = getProperty("jdbcQuery", null, props);
+			final String jdbcFetchSizeParam = getProperty("jdbcFetchSize", null, props);
+			final boolean jsonLines = jdbcUrl == null && (dataFilename.endsWith(".jsonl")
+					|| dataFilename.endsWith(".ndjson"));
+			final String charsetParam = getProperty("charset", null, props);
+			final String renderDir = getProperty("render", null, props);
+			final String drainDir = getProperty("drain", null, props);
+			final String renderChunkRowsParam = getProperty("renderChunkRows", null, props);
+			final String maxAttemptsParam = getProperty("maxAttempts", null, props);
+			String deadLetterFilename = getProperty("deadLetter", null, props);
+			final String daemonPortParam = getProperty("daemon", null, props);
+			final String daemonTokenFilename = getProperty("daemonTokenFile", DEFAULT_DAEMON_TOKEN_FILENAME, props);
+			final String daemonDirectories = getProperty("daemonDirectories", ".", props);
+			ShardSpec shard = null;
+			if(shardParam != null) {
+				try {
+					shard = ShardSpec.parse(shardParam, shardKey);
+					LOG.info(CONSOLE, "Sending shard [{}]", shard);
+					if (journalFilename == null) {
+						journalFilename = dataFilename + ".shard" + shard.getIndex() + "of" + shard.getCount()
+								+ ".journal";
+					}
+					if (archiveFilename == null && defaultArchive) {
+						archiveFilename = dataFilename + ".shard" + shard.getIndex() + "of" + shard.getCount()
+								+ ".archive";
+					}
+					if (deadLetterFilename == null) {
+						deadLetterFilename = dataFilename + ".shard" + shard.getIndex() + "of" + shard.getCount()
+								+ ".notsent.csv";
+					}
+				} catch(IllegalArgumentException e) {
+					LOG.error("Provided shard parameter [{}] is not valid: {}", shardParam, e.getMessage());
+					valid = false;
+				}
+			} else if(shardKey != null) {
+				LOG.error("shardKey parameter requires the shard parameter.");
+				valid = false;
+			}
+			if (renderDir != null || daemonPortParam != null) {
+				// rendered emails are archived when the spool is drained, and daemon jobs are not archived
+				archiveFilename = null;
+			} else if (archiveFilename == null && defaultArchive) {
+				// the archive of a drain is kept next to the spool, as the spool is deleted once sent
+				archiveFilename = (drainDir != null ? new File(drainDir).getPath() : dataFilename) + ".archive";
+			} else if (ARCHIVE_TO_LOG.equals(archiveFilename)) {
+				archiveFilename = null;
+			}
+			final boolean abortOnError = getProperty("abortOnError", null, props) != null;
+			if (abortOnError) {
+				deadLetterFilename = null;
+			} else if (deadLetterFilename == null) {
+				deadLetterFilename = (drainDir != null ? new File(drainDir).getPath() : dataFilename) + ".notsent.csv";
+			}
+			if (drainDir != null && journalFilename == null) {
+				journalFilename = new File(drainDir, SPOOL_JOURNAL_FILENAME).getPath();
+			}
 			LOG.info(CONSOLE, "Config filename: [{}]", configFilename);
-			LOG.info(CONSOLE, "Data filename: [{}]", dataFilename);
-			LOG.info(CONSOLE, "Template filename: [{}]", templateFilename);
-			final File configFile = new File(configFilename);
+			if (drainDir != null) {
+				LOG.info(CONSOLE, "Spool directory: [{}]", drainDir);
+			} else if (daemonPortParam == null) {
+				if (jdbcUrl != null) {
+					LOG.info(CONSOLE, "Data source: [{}]", jdbcUrl);
+				} else {
+					LOG.info(CONSOLE, "Data filename: [{}]", dataFilename);
+				}
+				LOG.info(CONSOLE, "Template filename: [{}]", templateFilename);
+			}
+			if (renderDir != null) {
+				LOG.info(CONSOLE, "Spool directory: [{}]", renderDir);
+			}
+			if (journalFilename != null) {
+				LOG.info(CONSOLE, "Journal filename: [{}]", journalFilename);
+			}
+			if (archiveFilename != null) {
+				LOG.info(CONSOLE, "Archive filename: [{}]", archiveFilename);
+			}
+			if (deadLetterFilename != null && renderDir == null && daemonPortParam == null) {
+				LOG.info(CONSOLE, "Dead letter filename: [{}]", deadLetterFilename);
+			}
+			final String[] configFilenames = configFilename.split(",");
 			final File dataFile = new File(dataFilename);
 			final File templateFile = new File(templateFilename);
-			if (!configFile.exists()) {
-				LOG.error("No config file found with path: {}", configFile.getAbsolutePath());
-				valid = false;
+			for (final String filename : configFilenames) {
+				final File configFile = new File(filename.trim());
+				if (!configFile.exists()) {
+					LOG.error("No config file found with path: {}", configFile.getAbsolutePath());
+					valid = false;
+				} else if (!validateConfig(filename, loadConfig(filename))) {
+					valid = false;
+				}
 			}
-			if (!dataFile.exists()) {
+			if (jdbcUrl == null && drainDir == null && daemonPortParam == null && !dataFile.exists()) {
 				LOG.error("No data file found with path: {}", dataFile.getAbsolutePath());
 				valid = false;
 			}
-			if (!templateFile.exists()) {
+			if (drainDir == null && daemonPortParam == null && !templateFile.exists()) {
 				LOG.error("No template file found with path: {}", templateFile.getAbsolutePath());
 				valid = false;
 			}
@@ -90,42 +228,519 @@ public class BatchMailSender {
 			} else {
 				LOG.info(CONSOLE, "end parameter not provided; defaults to the end of the data file.");
 			}
+			int threads = 0;
+			if(threadsParam != null) {
+				try {
+					threads = Integer.parseInt(threadsParam);
+					if(threads <= 0) {
+						LOG.error("threads parameter [{}] must be positive.", threadsParam);
+						valid = false;
+					}
+				} catch(NumberFormatException e) {
+					LOG.error("Provided threads parameter [{}] is not a valid integer.", threadsParam);
+					valid = false;
+				}
+			}
+			double maxRate = 0;
+			if(maxRateParam != null) {
+				try {
+					maxRate = Double.parseDouble(maxRateParam);
+					if(!(maxRate > 0)) {
+						LOG.error("maxRate parameter [{}] must be positive.", maxRateParam);
+						valid = false;
+					}
+				} catch(NumberFormatException e) {
+					LOG.error("Provided maxRate parameter [{}] is not a valid number.", maxRateParam);
+					valid = false;
+				}
+			}
+			long attachmentCacheSize = DEFAULT_ATTACHMENT_CACHE_SIZE;
+			if(attachmentCacheSizeParam != null) {
+				try {
+					attachmentCacheSize = Long.parseLong(attachmentCacheSizeParam);
+					if(attachmentCacheSize < 0) {
+						LOG.error("attachmentCacheSize parameter [{}] cannot be negative.", attachmentCacheSizeParam);
+						valid = false;
+					}
+				} catch(NumberFormatException e) {
+					LOG.error("Provided attachmentCacheSize parameter [{}] is not a valid integer.", attachmentCacheSizeParam);
+					valid = false;
+				}
+			}
+			int batchRecipients = 0;
+			if(batchRecipientsParam != null) {
+				try {
+					batchRecipients = Integer.parseInt(batchRecipientsParam);
+					if(batchRecipients <= 0) {
+						LOG.error("batchRecipients parameter [{}] must be positive.", batchRecipientsParam);
+						valid = false;
+					}
+				} catch(NumberFormatException e) {
+					LOG.error("Provided batchRecipients parameter [{}] is not a valid integer.", batchRecipientsParam);
+					valid = false;
+				}
+			}
+			int metricsPort = -1;
+			if(metricsPortParam != null) {
+				try {
+					metricsPort = Integer.parseInt(metricsPortParam);
+					if(metricsPort < 0 || metricsPort > 65535) {
+						LOG.error("metricsPort parameter [{}] must be a valid port number.", metricsPortParam);
+						valid = false;
+					}
+				} catch(NumberFormatException e) {
+					LOG.error("Provided metricsPort parameter [{}] is not a valid integer.", metricsPortParam);
+					valid = false;
+				}
+			}
+			int jdbcFetchSize = JdbcRecordSource.DEFAULT_FETCH_SIZE;
+			if(jdbcFetchSizeParam != null) {
+				try {
+					jdbcFetchSize = Integer.parseInt(jdbcFetchSizeParam);
+				} catch(NumberFormatException e) {
+					LOG.error("Provided jdbcFetchSize parameter [{}] is not a valid integer.", jdbcFetchSizeParam);
+					valid = false;
+				}
+			}
+			if((jdbcUrl == null) != (jdbcQuery == null)) {
+				LOG.error("jdbcUrl and jdbcQuery parameters must be provided together.");
+				valid = false;
+			}
+			if(getProperty("csvIndex", null, props) != null && (jdbcUrl != null || jsonLines)) {
+				LOG.error("csvIndex parameter can only be used with CSV data files.");
+				valid = false;
+			}
+			Charset charset = jsonLines ? StandardCharsets.UTF_8 : Charset.defaultCharset();
+			if(charsetParam != null) {
+				try {
+					charset = Charset.forName(charsetParam);
+				} catch(IllegalArgumentException e) {
+					LOG.error("Provided charset parameter [{}] is not a supported charset.", charsetParam);
+					valid = false;
+				}
+			}
+			if(getProperty("csvIndex", null, props) != null && !MappedCsvRecordSource.isSupported(charset)) {
+				LOG.error("csvIndex parameter cannot be used with charset [{}].", charset);
+				valid = false;
+			}
 			if(endIdx < startIdx) {
 				LOG.error("end [{}] cannot be less than start [{}]", end, start);
 				valid = false;
 			}
-			if (valid) {
-				final Properties emailProps = new Properties();
-				emailProps.load(new FileInputStream(configFile));
+			int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+			if(maxAttemptsParam != null) {
+				try {
+					maxAttempts = Integer.parseInt(maxAttemptsParam);
+					if(maxAttempts <= 0) {
+						LOG.error("maxAttempts parameter [{}] must be positive.", maxAttemptsParam);
+						valid = false;
+					}
+				} catch(NumberFormatException e) {
+					LOG.error("Provided maxAttempts parameter [{}] is not a valid integer.", maxAttemptsParam);
+					valid = false;
+				}
+			}
+			int daemonPort = -1;
+			if(daemonPortParam != null) {
+				try {
+					daemonPort = Integer.parseInt(daemonPortParam);
+					if(daemonPort < 0 || daemonPort > 65535) {
+						LOG.error("daemon parameter [{}] must be a valid port number.", daemonPortParam);
+						valid = false;
+					}
+				} catch(NumberFormatException e) {
+					LOG.error("Provided daemon parameter [{}] is not a valid integer.", daemonPortParam);
+					valid = false;
+				}
+				if(renderDir != null || drainDir != null || jdbcUrl != null) {
+					LOG.error("daemon parameter cannot be used with the render, drain, or jdbcUrl parameters.");
+					valid = false;
+				}
+				if(start != null || end != null || shard != null || batchRecipients > 0) {
+					LOG.error("start, end, shard, and batchRecipients parameters cannot be used with daemon.");
+					valid = false;
+				}
+			}
+			int renderChunkRows = SpoolRenderer.DEFAULT_CHUNK_ROWS;
+			if(renderChunkRowsParam != null) {
+				try {
+					renderChunkRows = Integer.parseInt(renderChunkRowsParam);
+					if(renderChunkRows <= 0) {
+						LOG.error("renderChunkRows parameter [{}] must be positive.", renderChunkRowsParam);
+						valid = false;
+					}
+				} catch(NumberFormatException e) {
+					LOG.error("Provided renderChunkRows parameter [{}] is not a valid integer.", renderChunkRowsParam);
+					valid = false;
+				}
+			}
+			if(renderDir != null && drainDir != null) {
+				LOG.error("render and drain parameters cannot be used together.");
+				valid = false;
+			}
+			if(renderDir != null && (jdbcUrl != null || jsonLines || !MappedCsvRecordSource.isSupported(charset))) {
+				LOG.error("render parameter can only be used with CSV data files in a charset such as UTF-8.");
+				valid = false;
+			}
+			if(renderDir != null && (start != null || end != null || shard != null || batchRecipients > 0)) {
+				LOG.error("start, end, shard, and batchRecipients parameters cannot be used with render.");
+				valid = false;
+			}
+			if (valid && daemonPort >= 0) {
 				final boolean dryRun = getProperty("dryRun", null, props) != null;
-				final BasicMailSender mailSender = new BasicMailSender(MailServerInfo.builder()
-						.withHost(emailProps.getProperty("host"))
-						.withPort(emailProps.getProperty("port"))
-						.withTls(Boolean.parseBoolean(emailProps.getProperty("tls")))
-						.withUsername(emailProps.getProperty("username"))
-						.withPassword(emailProps.getProperty("password"))
-						.build(), dryRun);
-				LOG.info(CONSOLE, "Sending batch emails");
-				if (dryRun) {
-					LOG.warn("<<<<< Dry run: not actually sending any emails. >>>>>");
-				}
-				new MailWorker(mailSender, dryRun)
-					.sendTemplatedEmails(new FileInputStream(dataFile),
-						EmailTemplateParser.parseTemplate(new FileInputStream(templateFile)),
-						startIdx, endIdx);
-				if (dryRun) {
-					LOG.warn("Dry run completed.");
-				} else {
-					LOG.info(CONSOLE, "Emails sent!");
+				final boolean streamingMime = getProperty("streamingMime", null, props) != null;
+				final SendMetrics metrics = getProperty("metrics", null, props) != null || metricsPort >= 0
+						? new SendMetrics()
+						: null;
+				final AttachmentCache attachmentCache = attachmentCacheSize > 0
+						? new AttachmentCache(attachmentCacheSize * 1024 * 1024)
+						: null;
+				final File defaultConfigFile = new File(configFilenames[0].trim()).getCanonicalFile();
+				final double rate = maxRate;
+				final MailDaemon.Builder daemonBuilder = MailDaemon.builder().withPort(daemonPort)
+						.withMailSenderFactory(configFile -> {
+							// jobs with the default config file send with all of the configured mail servers
+							final String[] filenames = configFile.equals(defaultConfigFile) ? configFilenames
+									: new String[] { configFile.getPath() };
+							for (final String filename : filenames) {
+								if (!validateConfig(filename, loadConfig(filename))) {
+									throw new IOException("Invalid config file: " + filename.trim());
+								}
+							}
+							final RawMailSender serverSender = newServerSender(filenames, dryRun, streamingMime,
+									attachmentCache, metrics);
+							return rate > 0 ? newRateLimitedSender(serverSender, rate, !abortOnError) : serverSender;
+						})
+						.withDefaultConfigFile(defaultConfigFile).withThreads(threads).withDryRun(dryRun)
+						.withAuthToken(MailDaemon.readOrCreateAuthToken(new File(daemonTokenFilename)));
+				for (final String directory : daemonDirectories.split(",")) {
+					daemonBuilder.withAllowedDirectory(new File(directory.trim()));
+				}
+				if (!abortOnError) {
+					daemonBuilder.withRetryPolicy(RetryPolicy.builder().withMaxAttempts(maxAttempts).build());
+				}
+				try (MetricsHttpServer metricsServer = metricsPort >= 0 ? new MetricsHttpServer(metrics, metricsPort)
+						: null;
+						MailDaemon daemon = daemonBuilder.build()) {
+					if (metricsServer != null) {
+						LOG.info(CONSOLE, "Metrics available at [http://localhost:{}/metrics]", metricsServer.getPort());
+					}
+					if (dryRun) {
+						LOG.warn("<<<<< Dry run: not actually sending any emails. >>>>>");
+					}
+					// jobs still queued are cancelled and the running job is finished on shutdown
+					Runtime.getRuntime().addShutdownHook(new Thread(daemon::close, "DaemonShutdown"));
+					LOG.info(CONSOLE, "Daemon listening for jobs at [http://localhost:{}/jobs] with the token in [{}]",
+							daemon.getPort(), new File(daemonTokenFilename).getAbsolutePath());
+					daemon.awaitClose();
+				}
+			} else if (valid && renderDir != null) {
+				LOG.info(CONSOLE, "Data charset: [{}]", charset);
+				final SendMetrics metrics = getProperty("metrics", null, props) != null ? new SendMetrics() : null;
+				final AttachmentCache attachmentCache = attachmentCacheSize > 0
+						? new AttachmentCache(attachmentCacheSize * 1024 * 1024)
+						: null;
+				LOG.info(CONSOLE, "Rendering batch emails into the spool");
+				// the sender only builds the messages; they are sent when the spool is drained
+				try (BasicMailSender mailSender = newMailSender(loadConfig(configFilenames[0]), true, false,
+						attachmentCache, metrics)) {
+					final SpoolRenderer.Builder renderer = SpoolRenderer.builder().withMailSender(mailSender)
+							.withChunkRows(renderChunkRows).withMetrics(metrics);
+					if (threads > 0) {
+						renderer.withThreads(threads);
+					}
+					final EmailTemplate template = parseTemplate(templateFile);
+					try {
+						renderer.build().render(dataFile, charset, template, new File(renderDir));
+					} finally {
+						if (metrics != null) {
+							logPhaseSummary(metrics);
+						}
+					}
+				}
+				LOG.info(CONSOLE, "Emails rendered! Send them with -Ddrain={}", renderDir);
+			} else if (valid) {
+				if (jdbcUrl == null && drainDir == null) {
+					LOG.info(CONSOLE, "Data charset: [{}]", charset);
+				}
+				final boolean dryRun = getProperty("dryRun", null, props) != null;
+				final boolean virtualThreads = getProperty("virtualThreads", null, props) != null;
+				final boolean csvIndex = getProperty("csvIndex", null, props) != null;
+				final boolean streamingMime = getProperty("streamingMime", null, props) != null;
+				final SendMetrics metrics = getProperty("metrics", null, props) != null || metricsPort >= 0
+						? new SendMetrics()
+						: null;
+				final AttachmentCache attachmentCache = attachmentCacheSize > 0
+						? new AttachmentCache(attachmentCacheSize * 1024 * 1024)
+						: null;
+				final RawMailSender serverSender = newServerSender(configFilenames, dryRun, streamingMime,
+						attachmentCache, metrics);
+				final RateLimitedMailSender rateLimitedSender = maxRate > 0
+						? newRateLimitedSender(serverSender, maxRate, deadLetterFilename != null)
+						: null;
+				try (RawMailSender mailSender = rateLimitedSender != null ? rateLimitedSender : serverSender;
+						SendJournal journal = journalFilename != null ? SendJournal.open(new File(journalFilename))
+								: null;
+						EmailArchive archive = archiveFilename != null ? EmailArchive.open(new File(archiveFilename))
+								: null;
+						DeadLetterFile deadLetters = deadLetterFilename != null
+								? new DeadLetterFile(new File(deadLetterFilename))
+								: null;
+						MetricsHttpServer metricsServer = metricsPort >= 0 ? new MetricsHttpServer(metrics, metricsPort)
+								: null) {
+					if (metricsServer != null) {
+						LOG.info(CONSOLE, "Metrics available at [http://localhost:{}/metrics]", metricsServer.getPort());
+					}
+					if (metrics != null) {
+						metrics.registerMBeans();
+						LOG.info(CONSOLE, "Metrics registered with JMX under [{}]", SendMetrics.JMX_DOMAIN);
+					}
+					LOG.info(CONSOLE, "Sending batch emails");
+					if (dryRun) {
+						LOG.warn("<<<<< Dry run: not actually sending any emails. >>>>>");
+					}
+					final MailWorker.Builder mailWorker = MailWorker.builder().withMailSender(mailSender)
+						.withDryRun(dryRun).withVirtualThreads(virtualThreads).withJournal(journal).withMetrics(metrics)
+						.withArchive(archive);
+					if (threads > 0) {
+						mailWorker.withThreads(threads);
+					}
+					if (batchRecipients > 0) {
+						mailWorker.withBatchRecipients(batchRecipients);
+					}
+					if (shard != null) {
+						mailWorker.withShard(shard);
+					}
+					final SpoolDrainer.Builder spoolDrainer = SpoolDrainer.builder().withMailSender(mailSender)
+							.withThreads(threads).withDryRun(dryRun).withJournal(journal).withMetrics(metrics)
+							.withArchive(archive);
+					if (deadLetters != null) {
+						final RetryPolicy retryPolicy = RetryPolicy.builder().withMaxAttempts(maxAttempts).build();
+						mailWorker.withRetryPolicy(retryPolicy).withDeadLetterFile(deadLetters);
+						spoolDrainer.withRetryPolicy(retryPolicy).withDeadLetterFile(deadLetters);
+					}
+					try {
+						if (drainDir != null) {
+							spoolDrainer.build().drain(new File(drainDir));
+						} else if (jdbcUrl != null) {
+							try (RecordSource source = JdbcRecordSource.open(
+									DriverManager.getConnection(jdbcUrl, getProperty("jdbcUsername", null, props),
+											getProperty("jdbcPassword", null, props)),
+									jdbcQuery, jdbcFetchSize)) {
+								mailWorker.build().sendTemplatedEmails(source, parseTemplate(templateFile), startIdx,
+										endIdx);
+							}
+						} else if (jsonLines) {
+							try (RecordSource source = new JsonLinesRecordSource(new BufferedReader(
+									new InputStreamReader(new FileInputStream(dataFile), charset)))) {
+								mailWorker.build().sendTemplatedEmails(source, parseTemplate(templateFile), startIdx,
+										endIdx);
+							}
+						} else if (csvIndex) {
+							final CsvIndex index = CsvIndex.loadOrBuild(dataFile);
+							LOG.info(CONSOLE, "CSV index loaded: [{}] records", index.getRecordCount());
+							mailWorker.build().sendTemplatedEmails(dataFile, charset, index,
+									parseTemplate(templateFile), startIdx, endIdx);
+						} else {
+							try (RecordSource source = MappedCsvRecordSource.isSupported(charset)
+									? new MappedCsvRecordSource(dataFile, charset)
+									: new CsvRecordSource(new BufferedReader(
+											new InputStreamReader(new FileInputStream(dataFile), charset)))) {
+								mailWorker.build().sendTemplatedEmails(source, parseTemplate(templateFile), startIdx,
+										endIdx);
+							}
+						}
+					} finally {
+						if (metrics != null) {
+							logPhaseSummary(metrics);
+							metrics.unregisterMBeans();
+						}
+					}
+					if (rateLimitedSender != null) {
+						LOG.info(CONSOLE, "Final sending rate: [{}] emails/second",
+								String.format("%.2f", rateLimitedSender.getCurrentRate()));
+					}
+					if (dryRun) {
+						LOG.warn("Dry run completed.");
+					} else {
+						LOG.info(CONSOLE, "Emails sent!");
+					}
 				}
 			}
 		} catch (IOException e) {
 			LOG.error("IOException", e);
 		} catch (MailSendingException e) {
 			LOG.error("MailSendingException", e);
+		} catch (SQLException e) {
+			LOG.error("SQLException", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 	
+	/**
+	 * Makes all loggers asynchronous, so that sender threads only hand log events to a ring buffer
+	 * and a background thread formats and writes them, unless the {@code asyncLogging} parameter
+	 * is {@code false}, another context selector is configured, or the LMAX Disruptor is not on the
+	 * class path. The size of the ring buffer can be set with the {@code logRingBufferSize} parameter.
+	 * The log files are then only flushed at the end of each batch of events; when logging
+	 * synchronously, they are flushed after every event so that no line is lost on a crash.
+	 * Only system properties are read, as the properties file is read after logging has started.
+	 */
+	private static void configureLogging() {
+		if (System.getProperty("log4j2.garbagefreeThreadContextMap") == null) {
+			System.setProperty("log4j2.garbagefreeThreadContextMap", "true");
+		}
+		if ("false".equalsIgnoreCase(System.getProperty("asyncLogging"))
+				|| System.getProperty("Log4jContextSelector") != null) {
+			return;
+		}
+		try {
+			Class.forName("com.lmax.disruptor.RingBuffer", false, BatchMailSender.class.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			return;
+		}
+		System.setProperty("Log4jContextSelector", "org.apache.logging.log4j.core.async.AsyncLoggerContextSelector");
+		if (System.getProperty(IMMEDIATE_FLUSH_PROPERTY) == null) {
+			System.setProperty(IMMEDIATE_FLUSH_PROPERTY, "false");
+		}
+		if (System.getProperty("log4j2.asyncLoggerRingBufferSize") == null) {
+			System.setProperty("log4j2.asyncLoggerRingBufferSize",
+					System.getProperty("logRingBufferSize", DEFAULT_LOG_RING_BUFFER_SIZE));
+		}
+	}
+
+	private static void logPhaseSummary(final SendMetrics metrics) {
+		for (final SendMetrics.Phase phase : SendMetrics.Phase.values()) {
+			final LatencyHistogram histogram = metrics.getHistogram(phase);
+			if (histogram.getCount() > 0) {
+				LOG.info(CONSOLE, "Phase [{}]: count [{}], mean [{}] ms, p50 [{}] ms, p99 [{}] ms, max [{}] ms",
+						phase.metricName(), histogram.getCount(), String.format("%.3f", histogram.getMeanMillis()),
+						String.format("%.3f", histogram.getPercentileMillis(50)),
+						String.format("%.3f", histogram.getPercentileMillis(99)),
+						String.format("%.3f", histogram.getMaxMillis()));
+			}
+		}
+	}
+
+	private static Properties loadConfig(final String filename) throws IOException {
+		final Properties emailProps = new Properties();
+		try (FileInputStream is = new FileInputStream(filename.trim())) {
+			emailProps.load(is);
+		}
+		return emailProps;
+	}
+
+	private static EmailTemplate parseTemplate(final File templateFile) throws IOException {
+		try (FileInputStream is = new FileInputStream(templateFile)) {
+			return EmailTemplateParser.parseTemplate(is);
+		}
+	}
+
+	/**
+	 * Checks the values in a config file that must be numbers, logging the invalid ones.
+	 * @return Whether the values are valid.
+	 */
+	private static boolean validateConfig(final String filename, final Properties emailProps) {
+		boolean valid = validatePositive(filename, emailProps, "maxMessagesPerConnection", Integer.MAX_VALUE);
+		valid &= validatePositive(filename, emailProps, "connectionIdleTimeout", Long.MAX_VALUE);
+		valid &= validatePositive(filename, emailProps, "weight", Integer.MAX_VALUE);
+		return valid;
+	}
+
+	private static boolean validatePositive(final String filename, final Properties emailProps, final String key,
+			final long max) {
+		final String value = emailProps.getProperty(key);
+		if(value != null) {
+			try {
+				final long number = Long.parseLong(value.trim());
+				if(number > max) {
+					throw new NumberFormatException();
+				}
+				if(number <= 0) {
+					LOG.error("{} [{}] in config file [{}] must be positive.", key, value, filename.trim());
+					return false;
+				}
+			} catch(NumberFormatException e) {
+				LOG.error("Provided {} [{}] in config file [{}] is not a valid integer.", key, value, filename.trim());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Limits the sending rate of a sender. When failed emails are retried by a {@link RetryPolicy},
+	 * throttled emails are only tried once and the rate lowered, so that they are not also retried
+	 * on the sending thread.
+	 */
+	private static RateLimitedMailSender newRateLimitedSender(final RawMailSender mailSender, final double maxRate,
+			final boolean retried) {
+		final AdaptiveRateLimiter rateLimiter = AdaptiveRateLimiter.builder().withMaxRate(maxRate).build();
+		return retried ? new RateLimitedMailSender(mailSender, rateLimiter, 1)
+				: new RateLimitedMailSender(mailSender, rateLimiter);
+	}
+
+	/**
+	 * Creates the sender for the mail servers of the config files: a {@link BasicMailSender} for
+	 * a single one, or a {@link LoadBalancingMailSender} over all of them by their weights.
+	 */
+	private static RawMailSender newServerSender(final String[] configFilenames, final boolean dryRun,
+			final boolean streamingMime, final AttachmentCache attachmentCache, final SendMetrics metrics)
+			throws IOException {
+		if (configFilenames.length == 1) {
+			return newMailSender(loadConfig(configFilenames[0]), dryRun, streamingMime, attachmentCache, metrics);
+		}
+		final LoadBalancingMailSender.Builder loadBalancing = LoadBalancingMailSender.builder();
+		for (final String filename : configFilenames) {
+			final Properties emailProps = loadConfig(filename);
+			loadBalancing.withMailSender(filename.trim(),
+					newMailSender(emailProps, dryRun, streamingMime, attachmentCache, metrics),
+					Integer.parseInt(emailProps.getProperty("weight", "1").trim()));
+		}
+		return loadBalancing.build();
+	}
+
+	private static BasicMailSender newMailSender(final Properties emailProps, final boolean dryRun,
+			final boolean streamingMime, final AttachmentCache attachmentCache, final SendMetrics metrics)
+			throws IOException {
+		final MailServerInfo.Builder serverInfo = MailServerInfo.builder()
+				.withHost(emailProps.getProperty("host"))
+				.withPort(emailProps.getProperty("port"))
+				.withTls(Boolean.parseBoolean(emailProps.getProperty("tls")))
+				.withUsername(emailProps.getProperty("username"))
+				.withPassword(emailProps.getProperty("password"));
+		if (emailProps.getProperty("maxMessagesPerConnection") != null) {
+			serverInfo.withMaxMessagesPerConnection(
+					Integer.parseInt(emailProps.getProperty("maxMessagesPerConnection").trim()));
+		}
+		if (emailProps.getProperty("connectionIdleTimeout") != null) {
+			serverInfo.withConnectionIdleTimeout(
+					Long.parseLong(emailProps.getProperty("connectionIdleTimeout").trim()));
+		}
+		if (emailProps.getProperty("pipelining") != null) {
+			serverInfo.withPipelining(Boolean.parseBoolean(emailProps.getProperty("pipelining")));
+		}
+		return BasicMailSender.builder().withServerInfo(serverInfo.build()).withDryRun(dryRun)
+				.withStreamingMime(streamingMime).withAttachmentCache(attachmentCache).withMetrics(metrics)
+				.withDkimSigner(newDkimSigner(emailProps)).build();
+	}
+
+	private static DkimSigner newDkimSigner(final Properties emailProps) throws IOException {
+		final String domain = emailProps.getProperty("dkimDomain");
+		final String selector = emailProps.getProperty("dkimSelector");
+		final String privateKey = emailProps.getProperty("dkimPrivateKey");
+		if (domain == null && selector == null && privateKey == null) {
+			return null;
+		}
+		if (domain == null || selector == null || privateKey == null) {
+			throw new IOException("dkimDomain, dkimSelector, and dkimPrivateKey must be set together in the config file");
+		}
+		LOG.info(CONSOLE, "Signing emails with DKIM for domain [{}] with selector [{}]", domain, selector);
+		return DkimSigner.builder().withDomain(domain.trim()).withSelector(selector.trim())
+				.withPrivateKey(DkimSigner.readPrivateKey(new File(privateKey.trim()))).build();
+	}
+
 	private static String getProperty(final String key,
 			final String defaultValue,
 			final Properties props) {
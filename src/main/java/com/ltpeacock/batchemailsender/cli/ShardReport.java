@@ -0,0 +1,78 @@
+package com.ltpeacock.batchemailsender.cli;
+import static com.ltpeacock.batchemailsender.LogMarkers.CONSOLE;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ltpeacock.batchemailsender.CsvIndex;
+import com.ltpeacock.batchemailsender.ShardCoverage;
+
+/**
+ * Checks that the shards of a campaign together sent every row of the data file exactly once,
+ * using the send journal of each shard. Exits with status 1 if any row is missing or was sent
+ * by more than one shard.
+ * @author LieutenantPeacock
+ */
+public class ShardReport {
+	private static final Logger LOG = LoggerFactory.getLogger(ShardReport.class);
+
+	public static void main(final String[] args) {
+		final String dataFilename = System.getProperty("data", "Data.csv");
+		final String journalsParam = System.getProperty("journals");
+		if (journalsParam == null) {
+			LOG.error("journals parameter must be a comma-separated list of the journal files of all shards.");
+			System.exit(1);
+		}
+		boolean valid = true;
+		final File dataFile = new File(dataFilename);
+		if (!dataFile.exists()) {
+			LOG.error("No data file found with path: {}", dataFile.getAbsolutePath());
+			valid = false;
+		}
+		final List<File> journals = new ArrayList<>();
+		for (final String filename : journalsParam.split(",")) {
+			final File journal = new File(filename.trim());
+			if (!journal.exists()) {
+				LOG.error("No journal file found with path: {}", journal.getAbsolutePath());
+				valid = false;
+			}
+			journals.add(journal);
+		}
+		if (!valid) {
+			System.exit(1);
+		}
+		try {
+			final int rowCount = CsvIndex.build(dataFile).getRecordCount();
+			final ShardCoverage coverage = ShardCoverage.check(rowCount, journals);
+			final BitSet missing = coverage.getMissingRows(), duplicated = coverage.getDuplicatedRows(),
+					failed = coverage.getFailedRows();
+			LOG.info(CONSOLE, "[{}] rows in [{}]; [{}] journals", rowCount, dataFilename, journals.size());
+			LOG.info(CONSOLE, "Sent or skipped: [{}]; missing: [{}] (of which failed: [{}]); sent more than once: [{}]",
+					rowCount - missing.cardinality(), missing.cardinality(), failed.cardinality(),
+					duplicated.cardinality());
+			if (!failed.isEmpty()) {
+				LOG.warn("Failed rows: {}", ShardCoverage.formatRows(failed));
+			}
+			missing.andNot(failed);
+			if (!missing.isEmpty()) {
+				LOG.warn("Rows not attempted by any shard: {}", ShardCoverage.formatRows(missing));
+			}
+			if (!duplicated.isEmpty()) {
+				LOG.warn("Rows sent by more than one shard: {}", ShardCoverage.formatRows(duplicated));
+			}
+			if (!coverage.isComplete()) {
+				System.exit(1);
+			}
+			LOG.info(CONSOLE, "Every row was sent or skipped exactly once.");
+		} catch (IOException e) {
+			LOG.error("IOException", e);
+			System.exit(1);
+		}
+	}
+}
@@ -10,7 +10,11 @@ public enum ErrorCode {
 	INVALID_EMAIL_ADDRESS("0002", "Invalid email address"),
 	ERROR_SENDING("0003", "Error sending email"),
 	IO_ERROR("0004", "I/O error"),
-	ERROR_READING_DATA("0005", "Error reading data file")
+	ERROR_READING_DATA("0005", "Error reading data file"),
+	THROTTLED("0006", "Mail server is limiting the sending rate"),
+	NO_MAIL_SERVER_AVAILABLE("0007", "No mail server is available"),
+	ERROR_SIGNING("0008", "Error signing email"),
+	DELIVERY_UNKNOWN("0009", "Connection to mail server lost after sending email; it may have been delivered")
 	;
 	private final String errorCode, description;
 
@@ -0,0 +1,39 @@
+package com.ltpeacock.batchemailsender;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Factory for the {@link ExecutorService}s that {@link MailWorker} sends emails with.
+ * <br>
+ * This is the version used on Java 21 and later. Note that JavaMail blocks on the socket
+ * while holding the monitor of its {@code Transport}, which pins the virtual thread to
+ * its carrier thread before Java 24. On those versions, raise
+ * {@code -Djdk.virtualThreadScheduler.parallelism} to the number of connections that
+ * should be active at once.
+ * @author LieutenantPeacock
+ *
+ */
+final class SendExecutors {
+	private SendExecutors() {
+	}
+
+	/**
+	 * @return Whether {@link #newVirtualThreadPerTaskExecutor()} is supported by the running JVM.
+	 */
+	static boolean virtualThreadsSupported() {
+		return true;
+	}
+
+	/**
+	 * Creates an {@link ExecutorService} that starts a new virtual thread for each email.
+	 * @param fallbackThreads Not used, as virtual threads are supported.
+	 * @param fallbackThreadFactory Not used, as virtual threads are supported.
+	 * @return The ExecutorService.
+	 */
+	static ExecutorService newVirtualThreadPerTaskExecutor(final int fallbackThreads,
+			final ThreadFactory fallbackThreadFactory) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("MailSender-", 1).factory());
+	}
+}
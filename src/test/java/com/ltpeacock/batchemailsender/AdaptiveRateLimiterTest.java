@@ -0,0 +1,71 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link AdaptiveRateLimiter}.
+ * @author LieutenantPeacock
+ *
+ */
+public class AdaptiveRateLimiterTest {
+
+	/**
+	 * Test if throttling halves the rate at most once per second and never goes below the minimum rate.
+	 */
+	@Test
+	void testOnThrottled() {
+		final AtomicLong now = new AtomicLong();
+		final AdaptiveRateLimiter limiter = AdaptiveRateLimiter.builder().withMaxRate(40).withMinRate(8)
+				.withClock(now::get).build();
+		assertEquals(40, limiter.getRate(), 1e-9);
+		assertTrue(limiter.onThrottled());
+		assertEquals(20, limiter.getRate(), 1e-9);
+		assertFalse(limiter.onThrottled());
+		assertEquals(20, limiter.getRate(), 1e-9);
+		now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		assertTrue(limiter.onThrottled());
+		assertEquals(10, limiter.getRate(), 1e-9);
+		now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		assertTrue(limiter.onThrottled());
+		assertEquals(8, limiter.getRate(), 1e-9);
+	}
+
+	/**
+	 * Test if a second's worth of successful emails raises the rate by the additive increase, up to the maximum.
+	 */
+	@Test
+	void testOnSuccess() {
+		final AtomicLong now = new AtomicLong();
+		final AdaptiveRateLimiter limiter = AdaptiveRateLimiter.builder().withMaxRate(100).withAdditiveIncrease(5)
+				.withClock(now::get).build();
+		limiter.onThrottled();
+		assertEquals(50, limiter.getRate(), 1e-9);
+		for (int i = 0; i < 50; i++) {
+			limiter.onSuccess();
+		}
+		assertEquals(55, limiter.getRate(), 0.5);
+		for (int i = 0; i < 10_000; i++) {
+			limiter.onSuccess();
+		}
+		assertEquals(100, limiter.getRate(), 1e-9);
+	}
+
+	/**
+	 * Test if the limiter spaces out emails so that they are not sent faster than the maximum rate.
+	 */
+	@Test
+	void testAcquire() {
+		final AdaptiveRateLimiter limiter = AdaptiveRateLimiter.builder().withMaxRate(1000).build();
+		final long start = System.nanoTime();
+		for (int i = 0; i < 100; i++) {
+			limiter.acquire();
+		}
+		final long elapsed = System.nanoTime() - start;
+		assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(95), "Elapsed " + elapsed);
+	}
+}
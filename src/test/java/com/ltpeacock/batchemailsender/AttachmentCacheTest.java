@@ -0,0 +1,122 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Test class for {@link AttachmentCache}.
+ * @author LieutenantPeacock
+ *
+ */
+public class AttachmentCacheTest {
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if the encoded length matches the output of the base64 encoder, including the line
+	 * breaks, and if a file is encoded once and encoded again once it changes.
+	 */
+	@Test
+	void testCacheHit() throws IOException {
+		final AttachmentCache cache = new AttachmentCache(1024 * 1024);
+		for (final int size : new int[] { 0, 1, 2, 3, 56, 57, 58, 114, 1000, 4096 }) {
+			final File file = createFile("File" + size + ".bin", size);
+			assertEquals(AttachmentCache.encodedLength(size), cache.get(file).content.length, "size " + size);
+		}
+		final File file = createFile("Report.bin", 100);
+		final AttachmentCache.EncodedAttachment first = cache.get(file);
+		assertSame(first, cache.get(file));
+		Files.write(file.toPath(), new byte[200]);
+		assertNotSame(first, cache.get(file));
+	}
+
+	/**
+	 * Test if the least recently used attachments are evicted to stay within the budget, and if
+	 * a file whose encoded form alone exceeds the budget is not cached.
+	 */
+	@Test
+	void testEviction() throws IOException, MessagingException {
+		// 570 bytes are 760 base64 characters on 10 lines
+		assertEquals(780, AttachmentCache.encodedLength(570));
+		final AttachmentCache cache = new AttachmentCache(1600);
+		final File a = createFile("A.bin", 570), b = createFile("B.bin", 570), c = createFile("C.bin", 570);
+		final AttachmentCache.EncodedAttachment encodedA = cache.get(a);
+		final AttachmentCache.EncodedAttachment encodedB = cache.get(b);
+		assertSame(encodedA, cache.get(a));
+		cache.get(c);
+		assertEquals(1560, cache.getTotalBytes());
+		assertSame(encodedA, cache.get(a));
+		assertNotSame(encodedB, cache.get(b));
+
+		final AttachmentCache small = new AttachmentCache(779);
+		assertNull(small.get(a));
+		assertNull(small.createBodyPart(a));
+		assertEquals(0, small.getTotalBytes());
+	}
+
+	/**
+	 * Test if a cached attachment is delivered exactly as the file, and not encoded a second
+	 * time, with and without streaming MIME.
+	 */
+	@Test
+	void testAttachmentDeliveredIntact() throws IOException, MailSendingException, MessagingException {
+		final File file = createFile("Data.bin", 10_000);
+		final AttachmentCache cache = new AttachmentCache(1024 * 1024);
+		try (FakeSmtpServer server = FakeSmtpServer.builder().build()) {
+			for (final boolean streamingMime : new boolean[] { false, true }) {
+				try (BasicMailSender mailSender = BasicMailSender.builder().withServerInfo(server.serverInfo().build())
+						.withAttachmentCache(cache).withStreamingMime(streamingMime).build()) {
+					for (int i = 0; i < 2; i++) {
+						mailSender.sendEmail(new String[] { "a@email.com" }, null, null, "Subject", "Body",
+								MailContentTypes.TEXT, new File[] { file });
+					}
+				}
+			}
+			assertEquals(4, server.getMessageCount());
+			for (final FakeSmtpServer.ReceivedMessage received : server.getMessages()) {
+				final MimeMessage message = new MimeMessage(Session.getInstance(System.getProperties()),
+						new ByteArrayInputStream(received.getData().getBytes(StandardCharsets.ISO_8859_1)));
+				final Part attachment = ((Multipart) message.getContent()).getBodyPart(1);
+				assertEquals("Data.bin", attachment.getFileName());
+				assertArrayEquals(Files.readAllBytes(file.toPath()), readAll(attachment.getInputStream()));
+			}
+		}
+		assertEquals(AttachmentCache.encodedLength(10_000), cache.getTotalBytes());
+	}
+
+	private File createFile(final String name, final int size) throws IOException {
+		final byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		final File file = new File(tempDir, name);
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private static byte[] readAll(final InputStream is) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		for (int n; (n = is.read(buffer)) != -1;) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,126 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ltpeacock.batchemailsender.FakeSmtpServer.ReceivedMessage;
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Test class for {@link BasicMailSender}, sending to a {@link FakeSmtpServer}.
+ * @author LieutenantPeacock
+ *
+ */
+public class BasicMailSenderTest {
+	private FakeSmtpServer server;
+
+	@TempDir
+	File tempDir;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = FakeSmtpServer.builder().withMaxSize(64 * 1024).build();
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.close();
+	}
+
+	/**
+	 * Test if emails are delivered with their recipients, subject, body, and attachments, with and
+	 * without streaming MIME, reusing the connection.
+	 */
+	@Test
+	void testSend() throws MailSendingException, IOException {
+		final File attachment = new File(tempDir, "Report.txt");
+		Files.write(attachment.toPath(), Arrays.asList("Attached report"));
+		for (final boolean streamingMime : new boolean[] { false, true }) {
+			try (BasicMailSender mailSender = BasicMailSender.builder().withServerInfo(server.serverInfo().build())
+					.withStreamingMime(streamingMime).build()) {
+				mailSender.sendEmail(new String[] { "a@email.com" }, new String[] { "b@email.com" }, null, "Subject",
+						"Body", MailContentTypes.TEXT, new File[] { attachment });
+				mailSender.sendEmail("c@email.com", "Second", "Body", MailContentTypes.TEXT);
+			}
+		}
+		final List<ReceivedMessage> messages = server.getMessages();
+		assertEquals(4, messages.size());
+		assertEquals(2, server.getConnectionCount());
+		assertEquals(Arrays.asList("a@email.com", "b@email.com"), messages.get(2).getRecipients());
+		assertTrue(messages.get(2).getData().contains("Subject: Subject"));
+		assertTrue(messages.get(2).getData().contains("filename=Report.txt"));
+		assertEquals(Arrays.asList("c@email.com"), messages.get(3).getRecipients());
+	}
+
+	/**
+	 * Test if rejected recipients, throttling replies, and emails exceeding the size limit are
+	 * reported with the right error codes, and if the connection is still usable afterwards.
+	 */
+	@Test
+	void testFailures() throws MailSendingException {
+		server.rejectRecipient("bad@email.com", 550);
+		try (BasicMailSender mailSender = BasicMailSender.builder().withServerInfo(server.serverInfo().build())
+				.build()) {
+			final MailSendingException rejected = assertThrows(MailSendingException.class,
+					() -> mailSender.sendEmail("bad@email.com", "Subject", "Body", MailContentTypes.TEXT));
+			assertEquals(ErrorCode.ERROR_SENDING, rejected.getErrorCode());
+			server.injectReply("MAIL", 451);
+			final MailSendingException throttled = assertThrows(MailSendingException.class,
+					() -> mailSender.sendEmail("a@email.com", "Subject", "Body", MailContentTypes.TEXT));
+			assertEquals(ErrorCode.THROTTLED, throttled.getErrorCode());
+			final char[] large = new char[100 * 1024];
+			Arrays.fill(large, 'x');
+			assertThrows(MailSendingException.class,
+					() -> mailSender.sendEmail("a@email.com", "Subject", new String(large), MailContentTypes.TEXT));
+			mailSender.sendEmail("a@email.com", "Subject", "Body", MailContentTypes.TEXT);
+		}
+		assertEquals(1, server.getMessageCount());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	/**
+	 * Test if an email is sent again over a new connection when the connection is dropped
+	 * without a reply before the end of the data, but reported as possibly delivered, and not
+	 * sent again, when it is dropped after the end of the data.
+	 */
+	@Test
+	void testConnectionDropped() throws MailSendingException {
+		try (BasicMailSender mailSender = BasicMailSender.builder().withServerInfo(server.serverInfo().build())
+				.build()) {
+			mailSender.sendEmail("a@email.com", "First", "Body", MailContentTypes.TEXT);
+			server.dropConnectionOn("MAIL");
+			mailSender.sendEmail("b@email.com", "Second", "Body", MailContentTypes.TEXT);
+			assertEquals(2, server.getConnectionCount());
+			server.dropConnectionOn(FakeSmtpServer.END_OF_DATA);
+			final MailSendingException unknown = assertThrows(MailSendingException.class,
+					() -> mailSender.sendEmail("c@email.com", "Third", "Body", MailContentTypes.TEXT));
+			assertEquals(ErrorCode.DELIVERY_UNKNOWN, unknown.getErrorCode());
+			assertEquals(FailureClass.PERMANENT, FailureClass.of(unknown));
+			assertEquals(2, server.getConnectionCount());
+			mailSender.sendEmail("d@email.com", "Fourth", "Body", MailContentTypes.TEXT);
+		}
+		assertEquals(3, server.getMessageCount());
+		assertEquals(3, server.getConnectionCount());
+		for (final boolean pipelining : new boolean[] { false, true }) {
+			try (BasicMailSender mailSender = BasicMailSender.builder()
+					.withServerInfo(server.serverInfo().withPipelining(pipelining).build()).build()) {
+				server.dropConnectionOn(FakeSmtpServer.END_OF_DATA);
+				final MailSendingException unknown = assertThrows(MailSendingException.class,
+						() -> mailSender.sendEmail("e@email.com", "Fifth", "Body", MailContentTypes.TEXT));
+				assertEquals(ErrorCode.DELIVERY_UNKNOWN, unknown.getErrorCode());
+			}
+		}
+		assertEquals(3, server.getMessageCount());
+	}
+}
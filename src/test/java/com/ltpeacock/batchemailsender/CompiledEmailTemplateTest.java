@@ -0,0 +1,69 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link CompiledEmailTemplate}.
+ * @author LieutenantPeacock
+ *
+ */
+public class CompiledEmailTemplateTest {
+
+	/**
+	 * Test if every section of a template is rendered with the values from a row of CSV data.
+	 */
+	@Test
+	void testRender() throws IOException {
+		final EmailTemplate template = EmailTemplate.builder()
+				.withTo(Arrays.asList("${EMAIL}", "${EXTRA_EMAIL}"))
+				.withCc(Arrays.asList("someone@email.com"))
+				.withSubject("Hello ${NAME}!")
+				.withBody(Arrays.asList("Dear ${NAME},", "", "Your code is ${CODE}${CODE}."))
+				.withAttachments(Arrays.asList("path/to/${CODE}.png"))
+				.build();
+		final RecordSource source = new CsvRecordSource(
+				new StringReader("NAME,EMAIL,EXTRA_EMAIL,CODE\r\nJohn Doe,john.doe@email.com, ,42\r\n"));
+		final CompiledEmailTemplate compiled = CompiledEmailTemplate.compile(template, source.getHeaderMap());
+		final RenderedEmail email = compiled.render(source.next());
+		assertArrayEquals(new String[] { "john.doe@email.com" }, email.getTo());
+		assertArrayEquals(new String[] { "someone@email.com" }, email.getCc());
+		assertArrayEquals(new String[0], email.getBcc());
+		assertEquals("Hello John Doe!", email.getSubject());
+		assertEquals("Dear John Doe,<br><br>Your code is 4242.", email.getBody());
+		assertArrayEquals(new File[] { new File("path/to/42.png") }, email.getAttachments());
+	}
+
+	/**
+	 * Test if a parameter that is not a column of the CSV data is rejected when compiling.
+	 */
+	@Test
+	void testCompileMissingColumn() throws IOException {
+		final EmailTemplate template = EmailTemplate.builder().withTo(Collections.singletonList("${EMAIL}"))
+				.withSubject("Hello ${NAME}!").build();
+		final RecordSource source = new CsvRecordSource(new StringReader("EMAIL\r\n"));
+		final IllegalStateException e = assertThrows(IllegalStateException.class,
+				() -> CompiledEmailTemplate.compile(template, source.getHeaderMap()));
+		assertEquals("No value found for token NAME", e.getMessage());
+	}
+
+	/**
+	 * Test if a row that is too short to contain a referenced column is rejected when rendering.
+	 */
+	@Test
+	void testRenderShortRecord() throws IOException {
+		final EmailTemplate template = EmailTemplate.builder().withTo(Collections.singletonList("${EMAIL}"))
+				.withSubject("Hello ${NAME}!").build();
+		final RecordSource source = new CsvRecordSource(new StringReader("EMAIL,NAME\r\njohn.doe@email.com\r\n"));
+		final CompiledEmailTemplate compiled = CompiledEmailTemplate.compile(template, source.getHeaderMap());
+		final DataRecord record = source.next();
+		assertThrows(IllegalStateException.class, () -> compiled.render(record));
+	}
+}
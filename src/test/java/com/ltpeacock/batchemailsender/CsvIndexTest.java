@@ -0,0 +1,103 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for {@link CsvIndex}.
+ * @author LieutenantPeacock
+ *
+ */
+public class CsvIndexTest {
+	private static final String DATA = "NAME,EMAIL,NOTE\r\n"
+			+ "John Doe,john.doe@email.com,plain\r\n"
+			+ "\"Doe, Mary\",mary.doe@email.com,\"two\r\nlines\"\n"
+			+ "Jane,jane@email.com,\"quoted \"\"quote\"\", then\nnewline\"\r\n"
+			+ "\r\n"
+			+ "Bob,bob@email.com,in\"line\r"
+			+ "Émile,emile@email.com,\"\"\n"
+			+ "Last,last@email.com,no newline at end";
+
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if seeking to the offset of every record yields the same records as parsing the whole file.
+	 */
+	@Test
+	void testSeek() throws IOException {
+		final File dataFile = new File(tempDir, "Data.csv");
+		Files.write(dataFile.toPath(), DATA.getBytes(StandardCharsets.UTF_8));
+		final List<List<String>> expected = new ArrayList<>();
+		for (final CSVRecord record : CSVFormat.RFC4180.withFirstRecordAsHeader().parse(new StringReader(DATA))) {
+			expected.add(values(record));
+		}
+		final CsvIndex index = CsvIndex.build(dataFile, 1);
+		assertEquals(expected.size(), index.getRecordCount());
+		assertEquals("NAME,EMAIL,NOTE\r\n".length(), index.getHeaderLength());
+		for (int recordNum = 1; recordNum <= expected.size() + 1; recordNum++) {
+			assertEquals(expected.subList(recordNum - 1, expected.size()), readFrom(dataFile, index, recordNum));
+		}
+	}
+
+	/**
+	 * Test if records between indexed offsets are found, and if a saved index is only used for the same data.
+	 */
+	@Test
+	void testStrideAndReload() throws IOException {
+		final File dataFile = new File(tempDir, "Data.csv");
+		final StringBuilder sb = new StringBuilder("NAME\n");
+		for (int i = 1; i <= 100; i++) {
+			sb.append("\"Name\n").append(i).append("\"\n");
+		}
+		Files.write(dataFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		final CsvIndex index = CsvIndex.build(dataFile, 8);
+		assertEquals(100, index.getRecordCount());
+		assertEquals(41, index.getIndexedRecord(47));
+		assertEquals("Name\n41", readFrom(dataFile, index, 47).get(0).get(0));
+		final File indexFile = new File(tempDir, "Data.csv" + CsvIndex.FILE_SUFFIX);
+		index.save(indexFile);
+		final CsvIndex loaded = CsvIndex.load(indexFile, dataFile);
+		assertNotNull(loaded);
+		assertEquals(index.getOffset(47), loaded.getOffset(47));
+		Files.write(dataFile.toPath(), "NAME\nchanged\n".getBytes(StandardCharsets.UTF_8));
+		assertNull(CsvIndex.load(indexFile, dataFile));
+		assertEquals(1, CsvIndex.loadOrBuild(dataFile).getRecordCount());
+	}
+
+	private static List<List<String>> readFrom(final File dataFile, final CsvIndex index, final int recordNum)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(dataFile.toPath())) {
+			channel.position(index.getOffset(recordNum));
+			final CSVParser parser = CSVFormat.RFC4180
+					.parse(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			final List<List<String>> records = new ArrayList<>();
+			for (final CSVRecord record : parser) {
+				records.add(values(record));
+			}
+			return records;
+		}
+	}
+
+	private static List<String> values(final CSVRecord record) {
+		final List<String> values = new ArrayList<>();
+		record.forEach(values::add);
+		return values;
+	}
+}
@@ -0,0 +1,142 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for {@link EmailArchive} and {@link EmailArchiveReader}.
+ * @author LieutenantPeacock
+ *
+ */
+public class EmailArchiveTest {
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if emails written across several blocks can be read back by row, including batched
+	 * emails and rows archived again after the archive is reopened.
+	 */
+	@Test
+	void testReadByRow() throws IOException {
+		final File file = new File(tempDir, "Data.csv.archive");
+		try (EmailArchive archive = EmailArchive.open(file, 512)) {
+			for (int row = 1; row <= 100; row++) {
+				archive.archive(Collections.singletonList(row), new String[] { row + "@email.com" }, new String[0],
+						new String[0], "Subject " + row, "Body é " + row, new File[0]);
+			}
+			archive.archive(Arrays.asList(101, 102), new String[0], new String[] { "cc@email.com" },
+					new String[] { "101@email.com", "102@email.com" }, "Batched", "Body",
+					new File[] { new File("Report.pdf") });
+		}
+		try (EmailArchive archive = EmailArchive.open(file, 512)) {
+			archive.archive(Collections.singletonList(50), new String[] { "50@email.com" }, null, null, "Resent",
+					"Body", null);
+		}
+		try (EmailArchiveReader reader = EmailArchiveReader.open(file)) {
+			final BitSet expected = new BitSet();
+			expected.set(1, 103);
+			assertEquals(expected, reader.getArchivedRows());
+			final ArchivedEmail email = reader.read(7);
+			assertEquals(Collections.singletonList(7), email.getRowNums());
+			assertArrayEquals(new String[] { "7@email.com" }, email.getTo());
+			assertEquals("Subject 7", email.getSubject());
+			assertEquals("Body é 7", email.getBody());
+			final ArchivedEmail batched = reader.read(102);
+			assertEquals(Arrays.asList(101, 102), batched.getRowNums());
+			assertArrayEquals(new String[] { "cc@email.com" }, batched.getCc());
+			assertArrayEquals(new String[] { "101@email.com", "102@email.com" }, batched.getBcc());
+			assertEquals(new File("Report.pdf"), batched.getAttachments()[0]);
+			assertEquals("Resent", reader.read(50).getSubject());
+			assertNull(reader.read(103));
+		}
+	}
+
+	/**
+	 * Test if every email archived while the archive is being closed by another thread is
+	 * either written or rejected.
+	 */
+	@Test
+	void testCloseWhileArchiving() throws IOException, InterruptedException {
+		final File file = new File(tempDir, "Data.csv.archive");
+		final EmailArchive archive = EmailArchive.open(file, 1024);
+		final AtomicInteger nextRow = new AtomicInteger();
+		final BitSet archived = new BitSet();
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (;;) {
+					final int row = nextRow.incrementAndGet();
+					try {
+						archive.archive(Collections.singletonList(row), new String[] { row + "@email.com" },
+								new String[0], new String[0], "Subject " + row, "Body", new File[0]);
+					} catch (IOException e) {
+						return;
+					}
+					synchronized (archived) {
+						archived.set(row);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		while (nextRow.get() < 10_000) {
+			Thread.sleep(1);
+		}
+		archive.close();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		try (EmailArchiveReader reader = EmailArchiveReader.open(file)) {
+			assertEquals(archived, reader.getArchivedRows());
+		}
+	}
+
+	/**
+	 * Test if a partially written last block is discarded, and if the rows of blocks missing
+	 * from the index are still found.
+	 */
+	@Test
+	void testRecovery() throws IOException {
+		final File file = new File(tempDir, "Data.csv.archive");
+		try (EmailArchive archive = EmailArchive.open(file, 1)) {
+			for (int row = 1; row <= 3; row++) {
+				archive.archive(Collections.singletonList(row), new String[] { row + "@email.com" }, new String[0],
+						new String[0], "Subject " + row, "Body", new File[0]);
+			}
+		}
+		final File indexFile = EmailArchive.indexFile(file);
+		try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+			// lose the index entry of the last block and half of the one before it
+			raf.setLength(raf.length() - EmailArchive.INDEX_ENTRY_SIZE * 3 / 2);
+		}
+		try (EmailArchiveReader reader = EmailArchiveReader.open(file)) {
+			assertEquals("Subject 3", reader.read(3).getSubject());
+			assertEquals("Subject 2", reader.read(2).getSubject());
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+		try (EmailArchive archive = EmailArchive.open(file, 1)) {
+			archive.archive(Collections.singletonList(4), new String[] { "4@email.com" }, new String[0],
+					new String[0], "Subject 4", "Body", new File[0]);
+		}
+		assertEquals(EmailArchive.HEADER_SIZE + 3 * EmailArchive.INDEX_ENTRY_SIZE, indexFile.length());
+		try (EmailArchiveReader reader = EmailArchiveReader.open(file)) {
+			assertNull(reader.read(3));
+			assertEquals("Subject 2", reader.read(2).getSubject());
+			assertEquals("Subject 4", reader.read(4).getSubject());
+			final BitSet archived = reader.getArchivedRows();
+			assertEquals(3, archived.cardinality());
+		}
+	}
+}
@@ -0,0 +1,535 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process SMTP server that accepts every email and keeps it in memory, for testing and
+ * measuring sending without a real mail server.
+ * <br>
+ * Each reply is written when the configured latency has passed since its command was
+ * received, so the latency acts like a network round trip: a client that pipelines its
+ * commands waits for it once rather than once per command. {@code PIPELINING}
+ * and {@code SIZE} are advertised if enabled, and emails larger than the size limit are
+ * rejected with 552. Failures can be injected with {@link #injectReply(String, int)},
+ * {@link #rejectRecipient(String, int)}, and {@link #dropConnectionOn(String)}.
+ * <br>
+ * {@code AUTH} and {@code STARTTLS} are not supported, so clients must not require them.
+ * @author LieutenantPeacock
+ *
+ */
+public class FakeSmtpServer implements Closeable {
+	/**
+	 * The command name to use with {@link #injectReply(String, int)} and {@link #dropConnectionOn(String)}
+	 * for the end of the message content, i.e. the line containing only a dot.
+	 */
+	public static final String END_OF_DATA = ".";
+	private final long latencyMillis;
+	private final boolean pipelining;
+	private final long maxSize;
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		final Thread thread = new Thread(r, "FakeSmtpServer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+	private final List<ReceivedMessage> messages = Collections.synchronizedList(new ArrayList<>());
+	private final Map<String, Queue<Integer>> injectedReplies = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> drops = new ConcurrentHashMap<>();
+	private final Map<String, Integer> rejectedRecipients = new ConcurrentHashMap<>();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private volatile boolean closed;
+
+	private FakeSmtpServer(final Builder builder) throws IOException {
+		this.latencyMillis = builder.latencyMillis;
+		this.pipelining = builder.pipelining;
+		this.maxSize = builder.maxSize;
+		this.serverSocket = new ServerSocket(builder.port, 50, InetAddress.getLoopbackAddress());
+		executor.execute(this::acceptConnections);
+	}
+
+	/**
+	 * @return The port that the server listens on.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return A {@link MailServerInfo.Builder} for connecting to this server, with a dummy username and password.
+	 */
+	public MailServerInfo.Builder serverInfo() {
+		return MailServerInfo.builder().withHost("127.0.0.1").withPort(String.valueOf(getPort())).withTls(true)
+				.withUsername("user").withPassword("password");
+	}
+
+	/**
+	 * Replies to the next occurrence of a command with the given reply code instead of handling it.
+	 * Injected replies for the same command are used in the order in which they were injected.
+	 * @param command The command name, e.g. {@code MAIL}, {@code RCPT}, or {@link #END_OF_DATA}.
+	 * @param code The reply code, e.g. 451 or 554.
+	 */
+	public void injectReply(final String command, final int code) {
+		injectedReplies.computeIfAbsent(command.toUpperCase(Locale.ROOT), k -> new ConcurrentLinkedQueue<>())
+				.add(code);
+	}
+
+	/**
+	 * Rejects every {@code RCPT} command for an address with the given reply code.
+	 * @param address The email address.
+	 * @param code The reply code, e.g. 550.
+	 */
+	public void rejectRecipient(final String address, final int code) {
+		rejectedRecipients.put(address.toLowerCase(Locale.ROOT), code);
+	}
+
+	/**
+	 * Closes the connection without replying at the next occurrence of a command.
+	 * @param command The command name, e.g. {@code MAIL} or {@link #END_OF_DATA}.
+	 */
+	public void dropConnectionOn(final String command) {
+		drops.computeIfAbsent(command.toUpperCase(Locale.ROOT), k -> new AtomicInteger()).incrementAndGet();
+	}
+
+	/**
+	 * @return The emails received so far, in the order in which they were received.
+	 */
+	public List<ReceivedMessage> getMessages() {
+		synchronized (messages) {
+			return new ArrayList<>(messages);
+		}
+	}
+
+	/**
+	 * @return The number of emails received so far.
+	 */
+	public int getMessageCount() {
+		return messages.size();
+	}
+
+	/**
+	 * @return The number of connections accepted so far.
+	 */
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	/**
+	 * @return The number of connections that are still open.
+	 */
+	public int getOpenConnectionCount() {
+		return sockets.size();
+	}
+
+	/**
+	 * Stops the server and closes all connections.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		for (final Socket socket : sockets) {
+			closeQuietly(socket);
+		}
+		executor.shutdownNow();
+	}
+
+	private void acceptConnections() {
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			connectionCount.incrementAndGet();
+			sockets.add(socket);
+			executor.execute(() -> {
+				Connection connection = null;
+				try {
+					connection = new Connection(socket);
+					executor.execute(connection::writeReplies);
+					connection.run();
+				} catch (IOException e) {
+					// the client went away
+				} finally {
+					if (connection != null) {
+						// close after the pending replies have been written
+						connection.pending.add(new PendingReply(0, null));
+					} else {
+						closeQuietly(socket);
+					}
+				}
+			});
+		}
+	}
+
+	private boolean takeDrop(final String command) {
+		final AtomicInteger pending = drops.get(command);
+		return pending != null && pending.getAndUpdate(n -> Math.max(n - 1, 0)) > 0;
+	}
+
+	private Integer takeInjectedReply(final String command) {
+		final Queue<Integer> queue = injectedReplies.get(command);
+		return queue != null ? queue.poll() : null;
+	}
+
+	private static void closeQuietly(final Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/**
+	 * One SMTP session.
+	 */
+	private final class Connection {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private final BlockingQueue<PendingReply> pending = new LinkedBlockingQueue<>();
+		private long lastReceived;
+		private String from;
+		private final List<String> recipients = new ArrayList<>();
+
+		private Connection(final Socket socket) throws IOException {
+			this.socket = socket;
+			// the latency is simulated, so replies must not be held back by Nagle's algorithm
+			socket.setTcpNoDelay(true);
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		private void run() throws IOException {
+			lastReceived = System.nanoTime();
+			reply(220, "localhost FakeSmtpServer ready");
+			for (String line; (line = readLine()) != null;) {
+				final int space = line.indexOf(' ');
+				final String verb = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+				if (takeDrop(verb)) {
+					closeQuietly(socket);
+					return;
+				}
+				final Integer injected = takeInjectedReply(verb);
+				if (injected != null) {
+					reply(injected, "Injected reply");
+					if (injected == 421) {
+						// the server is shutting down the connection
+						return;
+					}
+				} else if (!handle(verb, line)) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Writes each reply once the latency has passed since its command was received, until
+		 * the connection is closed.
+		 */
+		private void writeReplies() {
+			try {
+				for (PendingReply reply = pending.take();; reply = pending.take()) {
+					final long wait = reply.due - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					// replies to pipelined commands that are due are written together, as real servers do
+					for (; reply.bytes != null; reply = pending.poll()) {
+						out.write(reply.bytes);
+						final PendingReply next = pending.peek();
+						if (next == null || next.due - System.nanoTime() > 0) {
+							break;
+						}
+					}
+					out.flush();
+					if (reply.bytes == null) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// the client went away
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				sockets.remove(socket);
+				closeQuietly(socket);
+			}
+		}
+
+		/**
+		 * @return Whether the session continues.
+		 */
+		private boolean handle(final String verb, final String line) throws IOException {
+			switch (verb) {
+			case "EHLO":
+				final List<String> lines = new ArrayList<>();
+				lines.add("localhost");
+				if (pipelining) {
+					lines.add("PIPELINING");
+				}
+				if (maxSize > 0) {
+					lines.add("SIZE " + maxSize);
+				}
+				lines.add("8BITMIME");
+				reply(250, lines.toArray(new String[0]));
+				break;
+			case "HELO":
+			case "NOOP":
+				reply(250, "OK");
+				break;
+			case "RSET":
+				from = null;
+				recipients.clear();
+				reply(250, "OK");
+				break;
+			case "MAIL":
+				from = address(line);
+				recipients.clear();
+				reply(250, "OK");
+				break;
+			case "RCPT":
+				final String recipient = address(line);
+				final Integer rejection = rejectedRecipients.get(recipient.toLowerCase(Locale.ROOT));
+				if (from == null) {
+					reply(503, "Need MAIL first");
+				} else if (rejection != null) {
+					reply(rejection, "Recipient rejected");
+				} else {
+					recipients.add(recipient);
+					reply(250, "OK");
+				}
+				break;
+			case "DATA":
+				if (recipients.isEmpty()) {
+					reply(554, "No valid recipients");
+					break;
+				}
+				reply(354, "End data with <CR><LF>.<CR><LF>");
+				return receiveData();
+			case "QUIT":
+				reply(221, "Bye");
+				return false;
+			default:
+				reply(500, "Unrecognized command");
+			}
+			return true;
+		}
+
+		private boolean receiveData() throws IOException {
+			final ByteArrayOutputStream data = new ByteArrayOutputStream();
+			for (String line; (line = readLine()) != null;) {
+				if (line.equals(".")) {
+					if (takeDrop(END_OF_DATA)) {
+						return false;
+					}
+					final Integer injected = takeInjectedReply(END_OF_DATA);
+					if (injected != null) {
+						reply(injected, "Injected reply");
+					} else if (maxSize > 0 && data.size() > maxSize) {
+						reply(552, "Message size exceeds fixed maximum message size");
+					} else {
+						messages.add(new ReceivedMessage(from, new ArrayList<>(recipients),
+								new String(data.toByteArray(), StandardCharsets.UTF_8)));
+						reply(250, "OK");
+					}
+					from = null;
+					recipients.clear();
+					return true;
+				}
+				final byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+				data.write(bytes, line.startsWith("..") ? 1 : 0, line.startsWith("..") ? bytes.length - 1 : bytes.length);
+				data.write('\r');
+				data.write('\n');
+			}
+			return false;
+		}
+
+		/**
+		 * Queues a reply, to be written once the latency has passed since the last command was received.
+		 * @param lines The lines of the reply text; all but the last are sent as continuation lines.
+		 */
+		private void reply(final int code, final String... lines) {
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < lines.length; i++) {
+				sb.append(code).append(i < lines.length - 1 ? '-' : ' ').append(lines[i]).append("\r\n");
+			}
+			pending.add(new PendingReply(lastReceived + TimeUnit.MILLISECONDS.toNanos(latencyMillis),
+					sb.toString().getBytes(StandardCharsets.US_ASCII)));
+		}
+
+		/**
+		 * Reads a line as ISO-8859-1 so that every byte is kept, without the line terminator.
+		 * @return The line, or {@code null} at the end of the stream.
+		 */
+		private String readLine() throws IOException {
+			final StringBuilder sb = new StringBuilder();
+			for (int b; (b = in.read()) != -1;) {
+				if (b == '\n') {
+					final int length = sb.length();
+					if (length > 0 && sb.charAt(length - 1) == '\r') {
+						sb.setLength(length - 1);
+					}
+					lastReceived = System.nanoTime();
+					return sb.toString();
+				}
+				sb.append((char) b);
+			}
+			return sb.length() > 0 ? sb.toString() : null;
+		}
+
+		private String address(final String line) {
+			final int start = line.indexOf('<'), end = line.indexOf('>', start + 1);
+			return start >= 0 && end > start ? line.substring(start + 1, end) : "";
+		}
+	}
+
+	/**
+	 * A reply waiting to be written, or the signal to close the connection if it has no bytes.
+	 */
+	private static final class PendingReply {
+		private final long due;
+		private final byte[] bytes;
+
+		private PendingReply(final long due, final byte[] bytes) {
+			this.due = due;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * An email received by the {@link FakeSmtpServer}.
+	 */
+	public static final class ReceivedMessage {
+		private final String from;
+		private final List<String> recipients;
+		private final String data;
+
+		private ReceivedMessage(final String from, final List<String> recipients, final String data) {
+			this.from = from;
+			this.recipients = recipients;
+			this.data = data;
+		}
+
+		/**
+		 * @return The address from the {@code MAIL FROM} command.
+		 */
+		public String getFrom() {
+			return from;
+		}
+
+		/**
+		 * @return The addresses from the accepted {@code RCPT TO} commands.
+		 */
+		public List<String> getRecipients() {
+			return recipients;
+		}
+
+		/**
+		 * @return The headers and content of the email, decoded as UTF-8.
+		 */
+		public String getData() {
+			return data;
+		}
+	}
+
+	/**
+	 * Creates builder to build {@link FakeSmtpServer}.
+	 *
+	 * @return created builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Builder to build {@link FakeSmtpServer}.
+	 */
+	public static final class Builder {
+		private int port;
+		private long latencyMillis;
+		private boolean pipelining = true;
+		private long maxSize;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param port The port to listen on. Defaults to 0 (any free port).
+		 * @return This builder
+		 */
+		public Builder withPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param latencyMillis The number of milliseconds to wait before replying, i.e. the simulated
+		 * round-trip time. Defaults to 0.
+		 * @return This builder
+		 */
+		public Builder withLatency(long latencyMillis) {
+			this.latencyMillis = latencyMillis;
+			return this;
+		}
+
+		/**
+		 * @param pipelining Whether to advertise the {@code PIPELINING} extension. Defaults to {@code true}.
+		 * @return This builder
+		 */
+		public Builder withPipelining(boolean pipelining) {
+			this.pipelining = pipelining;
+			return this;
+		}
+
+		/**
+		 * @param maxSize The maximum size in bytes of an email, advertised with the {@code SIZE}
+		 * extension, or 0 for no limit. Defaults to 0.
+		 * @return This builder
+		 */
+		public Builder withMaxSize(long maxSize) {
+			this.maxSize = maxSize;
+			return this;
+		}
+
+		/**
+		 * Builds the server and starts listening.
+		 * @return The server.
+		 * @throws IOException If the port cannot be bound
+		 */
+		public FakeSmtpServer build() throws IOException {
+			return new FakeSmtpServer(this);
+		}
+	}
+}
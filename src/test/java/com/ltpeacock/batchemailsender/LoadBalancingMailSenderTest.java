@@ -0,0 +1,160 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+import org.junit.jupiter.api.Test;
+
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Test class for {@link LoadBalancingMailSender}.
+ * @author LieutenantPeacock
+ *
+ */
+public class LoadBalancingMailSenderTest {
+
+	/**
+	 * Test if emails are spread over the senders in proportion to their weights.
+	 */
+	@Test
+	void testWeights() throws MailSendingException {
+		final List<String> log = new ArrayList<>();
+		final LoadBalancingMailSender sender = LoadBalancingMailSender.builder()
+				.withMailSender("a", new FakeMailSender("a", log), 2)
+				.withMailSender("b", new FakeMailSender("b", log), 1)
+				.withClock(() -> 0).build();
+		for (int i = 0; i < 6; i++) {
+			sender.sendEmail("to@email.com", "Subject", "Body", MailContentTypes.TEXT);
+		}
+		assertEquals(4, log.stream().filter("a"::equals).count());
+		assertEquals(2, log.stream().filter("b"::equals).count());
+	}
+
+	/**
+	 * Test if a failing sender is skipped once its circuit opens, and used again after a successful trial.
+	 */
+	@Test
+	void testCircuitBreaker() throws MailSendingException {
+		final AtomicLong now = new AtomicLong();
+		final List<String> log = new ArrayList<>();
+		final FakeMailSender a = new FakeMailSender("a", log);
+		final LoadBalancingMailSender sender = LoadBalancingMailSender.builder()
+				.withMailSender("a", a, 1)
+				.withMailSender("b", new FakeMailSender("b", log), 1)
+				.withFailureThreshold(2).withOpenDuration(1000).withClock(now::get).build();
+		a.failure = ErrorCode.ERROR_SENDING;
+		for (int i = 0; i < 4; i++) {
+			sender.sendEmail("to@email.com", "Subject", "Body", MailContentTypes.TEXT);
+		}
+		// a fails twice (each email then goes to b) and is not tried again while its circuit is open
+		assertEquals(2, log.stream().filter("a!"::equals).count());
+		assertEquals(4, log.stream().filter("b"::equals).count());
+		a.failure = null;
+		now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		log.clear();
+		for (int i = 0; i < 4; i++) {
+			sender.sendEmail("to@email.com", "Subject", "Body", MailContentTypes.TEXT);
+		}
+		assertEquals(2, log.stream().filter("a"::equals).count());
+	}
+
+	/**
+	 * Test if errors caused by the email itself, including 5xx replies, are not retried with
+	 * another sender, and if an email that may have been delivered is not sent again.
+	 */
+	@Test
+	void testEmailError() throws MailSendingException {
+		final List<String> log = new ArrayList<>();
+		final FakeMailSender a = new FakeMailSender("a", log), b = new FakeMailSender("b", log);
+		a.failure = b.failure = ErrorCode.INVALID_EMAIL_ADDRESS;
+		final LoadBalancingMailSender sender = LoadBalancingMailSender.builder()
+				.withMailSender("a", a, 1).withMailSender("b", b, 1).withClock(() -> 0).build();
+		final MailSendingException e = assertThrows(MailSendingException.class,
+				() -> sender.sendEmail("to@email.com", "Subject", "Body", MailContentTypes.TEXT));
+		assertEquals(ErrorCode.INVALID_EMAIL_ADDRESS, e.getErrorCode());
+		assertEquals(1, log.size());
+
+		log.clear();
+		a.failure = b.failure = ErrorCode.ERROR_SENDING;
+		a.cause = b.cause = new SMTPSendFailedException(".", 554, "554 Message rejected", null, null, null, null);
+		final MailSendingException rejected = assertThrows(MailSendingException.class,
+				() -> sender.sendEmail("to@email.com", "Subject", "Body", MailContentTypes.TEXT));
+		assertEquals(ErrorCode.ERROR_SENDING, rejected.getErrorCode());
+		assertEquals(1, log.size());
+
+		log.clear();
+		a.failure = b.failure = ErrorCode.DELIVERY_UNKNOWN;
+		a.cause = b.cause = null;
+		final MailSendingException unknown = assertThrows(MailSendingException.class,
+				() -> sender.sendEmail("to@email.com", "Subject", "Body", MailContentTypes.TEXT));
+		assertEquals(ErrorCode.DELIVERY_UNKNOWN, unknown.getErrorCode());
+		assertEquals(1, log.size());
+
+		log.clear();
+		a.failure = ErrorCode.ERROR_SENDING;
+		a.cause = new SMTPSendFailedException("MAIL FROM:<from@email.com>", 421, "421 Try again later", null, null,
+				null, null);
+		b.failure = null;
+		for (int i = 0; i < 2; i++) {
+			sender.sendEmail("to@email.com", "Subject", "Body", MailContentTypes.TEXT);
+		}
+		assertEquals(2, log.stream().filter("b"::equals).count());
+	}
+
+	/**
+	 * Test if an email sent asynchronously is tried with the next sender when the mail server of
+	 * the first one fails, and if an error caused by the email itself is returned as is.
+	 */
+	@Test
+	void testSendAsync() {
+		final List<String> log = new ArrayList<>();
+		final FakeMailSender a = new FakeMailSender("a", log), b = new FakeMailSender("b", log);
+		final LoadBalancingMailSender sender = LoadBalancingMailSender.builder()
+				.withMailSender("a", a, 1).withMailSender("b", b, 1).withClock(() -> 0).build();
+		a.failure = ErrorCode.ERROR_SENDING;
+		final SendResult result = sender.sendEmailAsync(new String[] { "to@email.com" }, null, null, "Subject",
+				"Body", MailContentTypes.TEXT, null, Runnable::run).join();
+		assertTrue(result.isSent());
+		assertEquals(Arrays.asList("a!", "b"), log);
+
+		log.clear();
+		a.failure = b.failure = ErrorCode.INVALID_EMAIL_ADDRESS;
+		final SendResult failed = sender.sendEmailAsync(new String[] { "to@email.com" }, null, null, "Subject",
+				"Body", MailContentTypes.TEXT, null, Runnable::run).join();
+		assertEquals(ErrorCode.INVALID_EMAIL_ADDRESS, failed.getError().getErrorCode());
+		assertEquals(1, log.size());
+	}
+
+	private static final class FakeMailSender implements MailSender {
+		private final String name;
+		private final List<String> log;
+		private ErrorCode failure;
+		private MessagingException cause;
+
+		private FakeMailSender(final String name, final List<String> log) {
+			this.name = name;
+			this.log = log;
+		}
+
+		@Override
+		public void sendEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
+				final String body, final String contentType, final File[] attachments) throws MailSendingException {
+			if (failure != null) {
+				log.add(name + '!');
+				throw new MailSendingException(failure, cause);
+			}
+			log.add(name);
+		}
+	}
+}
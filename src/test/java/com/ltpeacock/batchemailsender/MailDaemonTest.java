@@ -0,0 +1,212 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for {@link MailDaemon}, submitting jobs over HTTP and sending to a {@link FakeSmtpServer}.
+ * @author LieutenantPeacock
+ *
+ */
+public class MailDaemonTest {
+	private static final String TOKEN = "secret";
+
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if jobs with submitted CSV data and with data files are run in turn and report their
+	 * status, reusing the same mail sender and connection, and if invalid jobs are rejected or
+	 * reported as failed.
+	 */
+	@Test
+	void testJobs() throws IOException {
+		final File configFile = new File(tempDir, "Config.properties");
+		Files.write(configFile.toPath(), Arrays.asList("host=127.0.0.1"));
+		final File templateFile = new File(tempDir, "Template.txt");
+		Files.write(templateFile.toPath(),
+				Arrays.asList("[TO]", "${EMAIL}", "---", "[SUBJECT]", "Hi ${NAME}", "---", "[BODY]", "Hello ${NAME}", "---"));
+		final File badTemplateFile = new File(tempDir, "Bad.txt");
+		Files.write(badTemplateFile.toPath(), Arrays.asList("[TO]", "${MISSING}", "---", "[BODY]", "Hello", "---"));
+		final File dataFile = new File(tempDir, "Data.csv");
+		Files.write(dataFile.toPath(), Arrays.asList("NAME,EMAIL", "Dave,dave@email.com", "Erin,erin@email.com"));
+		final AtomicInteger mailSendersCreated = new AtomicInteger();
+		try (FakeSmtpServer server = FakeSmtpServer.builder().build();
+				MailDaemon daemon = MailDaemon.builder()
+						.withMailSenderFactory(file -> {
+							assertEquals(configFile.getCanonicalFile(), file);
+							mailSendersCreated.incrementAndGet();
+							return BasicMailSender.builder().withServerInfo(server.serverInfo().build()).build();
+						})
+						.withDefaultConfigFile(configFile).withRetryPolicy(RetryPolicy.builder().build())
+						.withAuthToken(TOKEN).withAllowedDirectory(tempDir).build()) {
+			final String jobs = "http://127.0.0.1:" + daemon.getPort() + "/jobs";
+			final String template = "template=" + URLEncoder.encode(templateFile.getPath(), "UTF-8");
+			final Response inline = request("POST", jobs + '?' + template,
+					"NAME,EMAIL\r\nAlice,alice@email.com\r\nBob,bob@email.com\r\nCarol,carol@email.com\r\n");
+			assertEquals(202, inline.status, inline.body);
+			assertTrue(inline.body.startsWith("{\"id\":1,"), inline.body);
+			final Response fromFile = request("POST",
+					jobs + '?' + template + "&data=" + URLEncoder.encode(dataFile.getPath(), "UTF-8"), null);
+			assertEquals(202, fromFile.status, fromFile.body);
+
+			final Response inlineDone = request("GET", jobs + "/1?wait=30", null);
+			assertEquals(200, inlineDone.status);
+			assertTrue(inlineDone.body.contains("\"state\":\"SUCCEEDED\""), inlineDone.body);
+			assertTrue(inlineDone.body.contains("\"data\":null,\"rowsRead\":3,\"emailsSent\":3,\"emailsNotSent\":0"),
+					inlineDone.body);
+			final Response fileDone = request("GET", jobs + "/2?wait=30", null);
+			assertTrue(fileDone.body.contains("\"state\":\"SUCCEEDED\""), fileDone.body);
+			assertTrue(fileDone.body.contains("\"emailsSent\":2"), fileDone.body);
+			assertEquals(5, server.getMessageCount());
+			assertEquals(1, mailSendersCreated.get());
+			assertEquals(1, server.getConnectionCount());
+
+			assertEquals(400, request("POST", jobs, "NAME,EMAIL\r\n").status);
+			assertEquals(400, request("POST", jobs + '?' + template + "&data=missing.csv", null).status);
+			assertEquals(404, request("GET", jobs + "/99", null).status);
+			final Response bad = request("POST",
+					jobs + "?template=" + URLEncoder.encode(badTemplateFile.getPath(), "UTF-8"), "NAME\r\nAlice\r\n");
+			assertEquals(202, bad.status);
+			final Response badDone = request("GET", jobs + "/3?wait=30", null);
+			assertTrue(badDone.body.contains("\"state\":\"FAILED\""), badDone.body);
+			assertTrue(badDone.body.contains("MISSING"), badDone.body);
+			final Response all = request("GET", jobs, null);
+			assertTrue(all.body.startsWith("[{\"id\":1,") && all.body.contains("{\"id\":3,"), all.body);
+			assertEquals(409, request("DELETE", jobs + "/1", null).status);
+		}
+	}
+
+	/**
+	 * Test if requests without the token, from web pages, or for files outside the allowed
+	 * directories or more threads than the daemon has are refused, and if the token file is
+	 * created once and read back.
+	 */
+	@Test
+	void testRequestsRefused() throws IOException {
+		final File allowedDir = new File(tempDir, "allowed");
+		assertTrue(allowedDir.mkdir());
+		final File templateFile = new File(allowedDir, "Template.txt");
+		Files.write(templateFile.toPath(), Arrays.asList("[TO]", "${EMAIL}", "---", "[BODY]", "Hello", "---"));
+		final File outsideFile = new File(tempDir, "Outside.txt");
+		Files.write(outsideFile.toPath(), Arrays.asList("[TO]", "${EMAIL}", "---"));
+		final File tokenFile = new File(tempDir, "daemon.token");
+		final String token = MailDaemon.readOrCreateAuthToken(tokenFile);
+		assertTrue(token.length() >= 32, token);
+		assertEquals(token, MailDaemon.readOrCreateAuthToken(tokenFile));
+		final AtomicInteger mailSendersCreated = new AtomicInteger();
+		try (MailDaemon daemon = MailDaemon.builder().withMailSenderFactory(file -> {
+			mailSendersCreated.incrementAndGet();
+			return (to, cc, bcc, subject, body, contentType, attachments) -> {
+			};
+		}).withDefaultConfigFile(templateFile).withAuthToken(token).withAllowedDirectory(allowedDir).withThreads(4)
+				.build()) {
+			final String jobs = "http://127.0.0.1:" + daemon.getPort() + "/jobs";
+			final String template = "?template=" + URLEncoder.encode(templateFile.getPath(), "UTF-8");
+			final String csv = "EMAIL\r\na@email.com\r\n";
+			assertEquals(401, request("GET", jobs, null, new String[0]).status);
+			assertEquals(401, request("GET", jobs, null, "Authorization", "Bearer wrong").status);
+			assertEquals(401, request("POST", jobs + template, csv, "Authorization", token).status);
+			final String authorization = "Authorization: Bearer " + token;
+			assertEquals("HTTP/1.1 200 OK", rawRequest(daemon.getPort(), "Host: localhost:" + daemon.getPort(),
+					authorization));
+			assertTrue(rawRequest(daemon.getPort(), "Host: localhost", authorization, "Origin: http://example.com")
+					.startsWith("HTTP/1.1 403 "));
+			assertTrue(rawRequest(daemon.getPort(), "Host: attacker.example.com:" + daemon.getPort(), authorization)
+					.startsWith("HTTP/1.1 403 "));
+			assertEquals(400, request("POST", jobs + "?template=" + URLEncoder.encode(outsideFile.getPath(), "UTF-8"),
+					csv, "Authorization", "Bearer " + token).status);
+			assertEquals(400, request("POST",
+					jobs + template + "&data=" + URLEncoder.encode(outsideFile.getPath(), "UTF-8"), null,
+					"Authorization", "Bearer " + token).status);
+			assertEquals(400, request("POST", jobs + template + "&threads=5", csv, "Authorization",
+					"Bearer " + token).status);
+			assertEquals(400, request("POST", jobs + template + "&threads=0", csv, "Authorization",
+					"Bearer " + token).status);
+			assertEquals(0, mailSendersCreated.get());
+			final Response accepted = request("POST", jobs + template + "&threads=4", csv, "Authorization",
+					"Bearer " + token);
+			assertEquals(202, accepted.status, accepted.body);
+		}
+	}
+
+	/**
+	 * Sends a GET request for the jobs with the given header lines, which {@link HttpURLConnection}
+	 * does not allow setting some of.
+	 * @return The status line of the reply.
+	 */
+	private static String rawRequest(final int port, final String... headerLines) throws IOException {
+		try (Socket socket = new Socket("127.0.0.1", port)) {
+			final StringBuilder request = new StringBuilder("GET /jobs HTTP/1.1\r\n");
+			for (final String headerLine : headerLines) {
+				request.append(headerLine).append("\r\n");
+			}
+			socket.getOutputStream().write(request.append("Connection: close\r\n\r\n").toString()
+					.getBytes(StandardCharsets.US_ASCII));
+			return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))
+					.readLine();
+		}
+	}
+
+	private static Response request(final String method, final String url, final String body) throws IOException {
+		return request(method, url, body, "Authorization", "Bearer " + TOKEN);
+	}
+
+	/**
+	 * @param headers The names and values of the request headers, in turn.
+	 */
+	private static Response request(final String method, final String url, final String body,
+			final String... headers) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setRequestMethod(method);
+		for (int i = 0; i < headers.length; i += 2) {
+			conn.setRequestProperty(headers[i], headers[i + 1]);
+		}
+		if (body != null) {
+			conn.setDoOutput(true);
+			conn.setRequestProperty("Content-Type", "text/csv; charset=utf-8");
+			try (OutputStream os = conn.getOutputStream()) {
+				os.write(body.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		final int status = conn.getResponseCode();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream is = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+			if (is != null) {
+				final byte[] buffer = new byte[4096];
+				for (int n; (n = is.read(buffer)) != -1;) {
+					out.write(buffer, 0, n);
+				}
+			}
+		}
+		return new Response(status, new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private static final class Response {
+		private final int status;
+		private final String body;
+
+		private Response(final int status, final String body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.AuthenticationFailedException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Test class for {@link MailWorker}.
+ * @author LieutenantPeacock
+ *
+ */
+public class MailWorkerTest {
+	private static final EmailTemplate TEMPLATE = TestData.template()
+			.withSubject("Group ${GROUP}")
+			.withBody(Arrays.asList("Hello group ${GROUP}"))
+			.build();
+
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if emails are sent concurrently on the sender threads, each row exactly once. Every
+	 * send waits until two other sends are in progress, so sending one at a time fails.
+	 */
+	@Test
+	void testParallelSending() throws MailSendingException {
+		final CyclicBarrier barrier = new CyclicBarrier(3);
+		final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		final MailSender mailSender = (to, cc, bcc, subject, body, contentType, attachments) -> {
+			try {
+				barrier.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+				throw new MailSendingException(ErrorCode.ERROR_SENDING, e);
+			}
+			sent.add(to[0]);
+		};
+		MailWorker.builder().withMailSender(mailSender).withThreads(3).build()
+				.sendTemplatedEmails(TestData.csv(TestData.DATA), TEMPLATE);
+		Collections.sort(sent);
+		assertEquals(Arrays.asList("a@email.com", "b@email.com", "c@email.com", "d@email.com", "e@email.com",
+				"f@email.com"), sent);
+	}
+
+	/**
+	 * Test if emails are sent concurrently with virtual threads, which fall back to a pool of
+	 * platform threads where virtual threads are not supported.
+	 */
+	@Test
+	void testVirtualThreads() throws MailSendingException {
+		final CyclicBarrier barrier = new CyclicBarrier(3);
+		final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		final MailSender mailSender = (to, cc, bcc, subject, body, contentType, attachments) -> {
+			try {
+				barrier.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+				throw new MailSendingException(ErrorCode.ERROR_SENDING, e);
+			}
+			sent.add(to[0]);
+		};
+		MailWorker.builder().withMailSender(mailSender).withVirtualThreads(true).withThreads(3).build()
+				.sendTemplatedEmails(TestData.csv(TestData.DATA), TEMPLATE);
+		assertEquals(6, sent.size());
+	}
+
+	/**
+	 * Test if rows with the same content are sent as one email with up to the maximum number of
+	 * recipients, and if every row is recorded in the journal.
+	 */
+	@Test
+	void testBatchRecipients() throws MailSendingException, IOException {
+		final RecordingMailSender mailSender = new RecordingMailSender();
+		try (SendJournal journal = SendJournal.open(new File(tempDir, "Data.journal"))) {
+			MailWorker.builder().withMailSender(mailSender).withBatchRecipients(3).withJournal(journal).build()
+					.sendTemplatedEmails(TestData.csv(TestData.DATA), TEMPLATE);
+			assertEquals(6, journal.getCompletedCount());
+		}
+		assertEquals(Arrays.asList("Group 1 [] [a@email.com, c@email.com, d@email.com]",
+				"Group 2 [] [b@email.com, e@email.com]", "Group 1 [f@email.com] []"), mailSender.sent);
+	}
+
+	/**
+	 * Test if the open batches are sent and journaled before an error rendering a row is thrown.
+	 */
+	@Test
+	void testBatchRenderFailure() throws IOException {
+		final File attachment = new File(tempDir, "Report.txt");
+		Files.write(attachment.toPath(), Arrays.asList("Attached report"));
+		final String path = attachment.getAbsolutePath();
+		final String data = "NAME,EMAIL,GROUP,FILE\r\n"
+				+ "A,a@email.com,1," + path + "\r\n"
+				+ "B,b@email.com,2," + path + "\r\n"
+				+ "C,c@email.com,1," + path + "\r\n"
+				+ "D,d@email.com,1," + new File(tempDir, "Missing.txt").getAbsolutePath() + "\r\n";
+		final EmailTemplate template = TestData.template()
+				.withSubject(TEMPLATE.getSubject())
+				.withBody(TEMPLATE.getBody())
+				.withAttachments(Arrays.asList("${FILE}"))
+				.build();
+		final RecordingMailSender mailSender = new RecordingMailSender();
+		try (SendJournal journal = SendJournal.open(new File(tempDir, "Data.journal"))) {
+			assertThrows(IllegalArgumentException.class,
+					() -> MailWorker.builder().withMailSender(mailSender).withBatchRecipients(10).withJournal(journal)
+							.build().sendTemplatedEmails(TestData.csv(data), template));
+			assertEquals(3, journal.getCompletedCount());
+		}
+		assertEquals(Arrays.asList("Group 1 [] [a@email.com, c@email.com]", "Group 2 [b@email.com] []"),
+				mailSender.sent);
+	}
+
+	/**
+	 * Test if batching with several sender threads sends every recipient exactly once.
+	 */
+	@Test
+	void testBatchRecipientsWithThreads() throws MailSendingException {
+		final RecordingMailSender mailSender = new RecordingMailSender();
+		MailWorker.builder().withMailSender(mailSender).withBatchRecipients(2).withThreads(3).build()
+				.sendTemplatedEmails(TestData.csv(TestData.DATA), TEMPLATE);
+		final List<String> sent = new ArrayList<>(mailSender.sent);
+		Collections.sort(sent);
+		assertEquals(Arrays.asList("Group 1 [] [a@email.com, c@email.com]", "Group 1 [] [d@email.com, f@email.com]",
+				"Group 2 [] [b@email.com, e@email.com]"), sent);
+	}
+
+	/**
+	 * Test if rendering and sending on separate stages sends and journals every row, and if a
+	 * failed email stops the run with its error.
+	 */
+	@Test
+	void testPipeline() throws MailSendingException, IOException {
+		final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+		final MailSender mailSender = (to, cc, bcc, subject, body, contentType, attachments) -> {
+			if (to[0].equals("x@email.com"))
+				throw new MailSendingException(ErrorCode.ERROR_SENDING, "Rejected");
+			sent.add(to[0]);
+		};
+		try (SendJournal journal = SendJournal.open(new File(tempDir, "Data.journal"))) {
+			MailWorker.builder().withMailSender(mailSender).withThreads(3).withRenderThreads(2).withJournal(journal)
+					.build().sendTemplatedEmails(TestData.csv(TestData.DATA), TEMPLATE);
+			assertEquals(6, journal.getCompletedCount());
+		}
+		Collections.sort(sent);
+		assertEquals(Arrays.asList("a@email.com", "b@email.com", "c@email.com", "d@email.com", "e@email.com",
+				"f@email.com"), sent);
+		final String failing = TestData.DATA + "X,x@email.com,1\r\n";
+		final MailSendingException e = assertThrows(MailSendingException.class,
+				() -> MailWorker.builder().withMailSender(mailSender).withThreads(3).withRenderThreads(2).build()
+						.sendTemplatedEmails(TestData.csv(failing), TEMPLATE));
+		assertEquals(ErrorCode.ERROR_SENDING, e.getErrorCode());
+	}
+
+	/**
+	 * Test if emails with transient failures are retried without holding up the other rows, if
+	 * emails with permanent failures are written to the dead letter file and recorded as failed in
+	 * the journal, and if a fatal failure still aborts sending, in every threading mode.
+	 */
+	@Test
+	void testRetryAndDeadLetter() throws MailSendingException, IOException {
+		final String data = TestData.DATA + "T,temp@email.com,1\r\n" + "X,x@email.com,2\r\n";
+		final RetryPolicy retryPolicy = RetryPolicy.builder().withMaxAttempts(3).withInitialDelayMillis(20)
+				.withJitter(0).build();
+		for (final int threads : new int[] { 1, 3 }) {
+			for (final int renderThreads : new int[] { 0, 2 }) {
+				final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+				final AtomicInteger tempAttempts = new AtomicInteger();
+				final MailSender mailSender = (to, cc, bcc, subject, body, contentType, attachments) -> {
+					if (to[0].equals("x@email.com"))
+						throw new MailSendingException(ErrorCode.INVALID_EMAIL_ADDRESS, "Rejected");
+					if (to[0].equals("temp@email.com") && tempAttempts.incrementAndGet() < 3)
+						throw new MailSendingException(ErrorCode.THROTTLED, "Try again later");
+					sent.add(to[0]);
+				};
+				final File deadLetterFile = new File(tempDir, "NotSent" + threads + renderThreads + ".csv");
+				try (SendJournal journal = SendJournal.open(new File(tempDir, "Data" + threads + renderThreads + ".journal"));
+						DeadLetterFile deadLetters = new DeadLetterFile(deadLetterFile)) {
+					final MailWorker.Builder mailWorker = MailWorker.builder().withMailSender(mailSender)
+							.withThreads(threads).withJournal(journal).withRetryPolicy(retryPolicy)
+							.withDeadLetterFile(deadLetters);
+					if (renderThreads > 0) {
+						mailWorker.withRenderThreads(renderThreads);
+					}
+					mailWorker.build().sendTemplatedEmails(TestData.csv(data), TEMPLATE);
+					assertEquals(7, journal.getCompletedCount());
+					assertFalse(journal.isCompleted(8));
+				}
+				assertEquals(3, tempAttempts.get());
+				assertEquals(7, sent.size());
+				assertTrue(sent.contains("temp@email.com"));
+				final List<String> lines = Files.readAllLines(deadLetterFile.toPath());
+				assertEquals(2, lines.size());
+				assertEquals("ROWS,TO,CC,BCC,ERROR_CODE,SMTP_REPLY,FAILURE_CLASS,ATTEMPTS,ERROR", lines.get(0));
+				assertTrue(lines.get(1).startsWith("8,x@email.com,,,0002,,PERMANENT,1,"), lines.get(1));
+			}
+		}
+		final MailSender fatal = (to, cc, bcc, subject, body, contentType, attachments) -> {
+			throw new MailSendingException(ErrorCode.ERROR_SENDING, new AuthenticationFailedException("535"));
+		};
+		final MailSendingException e = assertThrows(MailSendingException.class,
+				() -> MailWorker.builder().withMailSender(fatal).withRetryPolicy(retryPolicy).build()
+						.sendTemplatedEmails(TestData.csv(TestData.DATA), TEMPLATE));
+		assertEquals(FailureClass.FATAL, FailureClass.of(e));
+	}
+
+	/**
+	 * Test if emails sent through a rate limited, load balanced sender are still built on the
+	 * thread that rendered them and only delivered on the sender threads.
+	 */
+	@Test
+	void testWrappedSenderBuildsOnCaller() throws MailSendingException {
+		final List<String> buildThreads = Collections.synchronizedList(new ArrayList<>());
+		final List<String> deliverThreads = Collections.synchronizedList(new ArrayList<>());
+		final MailSender up = new MailSender() {
+			@Override
+			public void sendEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
+					final String body, final String contentType, final File[] attachments) {
+				deliverThreads.add(Thread.currentThread().getName());
+			}
+
+			@Override
+			public CompletableFuture<SendResult> sendEmailAsync(final String[] to, final String[] cc,
+					final String[] bcc, final String subject, final String body, final String contentType,
+					final File[] attachments, final Executor executor) {
+				buildThreads.add(Thread.currentThread().getName());
+				return MailSender.super.sendEmailAsync(to, cc, bcc, subject, body, contentType, attachments,
+						executor);
+			}
+		};
+		final MailSender mailSender = new RateLimitedMailSender(LoadBalancingMailSender.builder()
+				.withMailSender("up", up, 1).build(),
+				AdaptiveRateLimiter.builder().withMaxRate(1000).build());
+		MailWorker.builder().withMailSender(mailSender).withThreads(3).build()
+				.sendTemplatedEmails(TestData.csv(TestData.DATA), TEMPLATE);
+		assertEquals(6, buildThreads.size());
+		assertEquals(6, deliverThreads.size());
+		for (final String thread : buildThreads) {
+			assertFalse(thread.startsWith("MailSender-"), thread);
+		}
+		for (final String thread : deliverThreads) {
+			assertTrue(thread.startsWith("MailSender-"), thread);
+		}
+	}
+
+	/**
+	 * Test if a throttled email behind a rate limiter that tries it only once is tried exactly as
+	 * many times as the retry policy allows before it is written to the dead letter file.
+	 */
+	@Test
+	void testThrottledRetryAttempts() throws MailSendingException, IOException {
+		final AtomicInteger attempts = new AtomicInteger();
+		final MailSender throttled = (to, cc, bcc, subject, body, contentType, attachments) -> {
+			if (to[0].equals("a@email.com")) {
+				attempts.incrementAndGet();
+				throw new MailSendingException(ErrorCode.THROTTLED, "Try again later");
+			}
+		};
+		final MailSender mailSender = new RateLimitedMailSender(throttled,
+				AdaptiveRateLimiter.builder().withMaxRate(1000).build(), 1);
+		final File deadLetterFile = new File(tempDir, "NotSent.csv");
+		try (DeadLetterFile deadLetters = new DeadLetterFile(deadLetterFile)) {
+			MailWorker.builder().withMailSender(mailSender).withThreads(3)
+					.withRetryPolicy(RetryPolicy.builder().withMaxAttempts(3).withInitialDelayMillis(20)
+							.withJitter(0).build())
+					.withDeadLetterFile(deadLetters).build()
+					.sendTemplatedEmails(TestData.csv(TestData.DATA), TEMPLATE);
+		}
+		assertEquals(3, attempts.get());
+		final List<String> lines = Files.readAllLines(deadLetterFile.toPath());
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(1).startsWith("1,a@email.com,,,0006,,TRANSIENT,3,"), lines.get(1));
+	}
+
+	private static final class RecordingMailSender implements MailSender {
+		private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void sendEmail(final String[] to, final String[] cc, final String[] bcc, final String subject,
+				final String body, final String contentType, final File[] attachments) {
+			sent.add(subject + ' ' + Arrays.toString(to) + ' ' + Arrays.toString(bcc));
+		}
+	}
+}
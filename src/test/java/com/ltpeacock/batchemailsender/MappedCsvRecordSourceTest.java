@@ -0,0 +1,105 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for {@link MappedCsvRecordSource}.
+ * @author LieutenantPeacock
+ *
+ */
+public class MappedCsvRecordSourceTest {
+	private static final String DATA = "NAME,EMAIL,NOTE\r\n"
+			+ "John Doe,john.doe@email.com,plain\r\n"
+			+ "\"Doe, Mary\",mary.doe@email.com,\"two\r\nlines\"\n"
+			+ "Jane,jane@email.com,\"quoted \"\"quote\"\", then\nnewline\"\r\n"
+			+ "\r\n"
+			+ "Bob,bob@email.com,in\"line\r"
+			+ "Émile,emile@email.com,\"\"\n"
+			+ "Last,last@email.com,no newline at end";
+
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if the same rows are read as with {@link CsvRecordSource}, including when rows cross
+	 * the boundaries of the mapped windows.
+	 */
+	@Test
+	void testSameAsCommonsCsv() throws IOException {
+		final File dataFile = write(DATA.getBytes(StandardCharsets.UTF_8));
+		final List<List<String>> expected;
+		try (RecordSource source = new CsvRecordSource(new StringReader(DATA))) {
+			expected = readAll(source);
+		}
+		for (final int windowSize : new int[] { 64, 100, 1 << 20 }) {
+			try (RecordSource source = new MappedCsvRecordSource(dataFile, StandardCharsets.UTF_8, 0, windowSize)) {
+				assertEquals(Arrays.asList("NAME", "EMAIL", "NOTE"), new ArrayList<>(source.getHeaderMap().keySet()));
+				assertEquals(expected, readAll(source));
+			}
+		}
+		try (RecordSource source = new MappedCsvRecordSource(dataFile, StandardCharsets.UTF_8, 0, 32)) {
+			final IOException e = assertThrows(IOException.class, () -> readAll(source));
+			assertTrue(e.getMessage().contains("is longer than 32 bytes"), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test if only the selected columns are decoded, in the given charset, and if a byte order
+	 * mark and an unterminated quoted field are handled.
+	 */
+	@Test
+	void testSelectColumns() throws IOException {
+		final File dataFile = write("NAME,EMAIL\r\nÉmile,emile@email.com\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		try (RecordSource source = new MappedCsvRecordSource(dataFile, StandardCharsets.ISO_8859_1)) {
+			final BitSet columns = new BitSet();
+			columns.set(0);
+			source.selectColumns(columns);
+			final DataRecord record = source.next();
+			assertEquals(2, record.size());
+			assertEquals("Émile", record.get("NAME"));
+			assertNull(record.get(1));
+		}
+		final byte[] bom = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+		final byte[] data = "EMAIL\r\n\"unterminated\r\n".getBytes(StandardCharsets.UTF_8);
+		final byte[] withBom = Arrays.copyOf(bom, bom.length + data.length);
+		System.arraycopy(data, 0, withBom, bom.length, data.length);
+		try (RecordSource source = new MappedCsvRecordSource(write(withBom), StandardCharsets.UTF_8)) {
+			assertTrue(source.getHeaderMap().containsKey("EMAIL"));
+			assertThrows(IOException.class, source::next);
+		}
+		assertFalse(MappedCsvRecordSource.isSupported(StandardCharsets.UTF_16));
+		assertThrows(IllegalArgumentException.class,
+				() -> new MappedCsvRecordSource(dataFile, StandardCharsets.UTF_16).close());
+	}
+
+	private File write(final byte[] data) throws IOException {
+		final File dataFile = File.createTempFile("Data", ".csv", tempDir);
+		Files.write(dataFile.toPath(), data);
+		return dataFile;
+	}
+
+	private static List<List<String>> readAll(final RecordSource source) throws IOException {
+		final List<List<String>> records = new ArrayList<>();
+		for (DataRecord record; (record = source.next()) != null;) {
+			final List<String> values = new ArrayList<>();
+			for (int i = 0; i < record.size(); i++) {
+				values.add(record.get(i));
+			}
+			records.add(values);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,131 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.event.TransportAdapter;
+import javax.mail.event.TransportEvent;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link PipeliningSMTPTransport}, sending to a {@link FakeSmtpServer}.
+ * @author LieutenantPeacock
+ *
+ */
+public class PipeliningSMTPTransportTest {
+	private FakeSmtpServer server;
+	private Session session;
+	private Transport transport;
+	private final BlockingQueue<TransportEvent> events = new LinkedBlockingQueue<>();
+
+	@BeforeEach
+	void connect() throws IOException, MessagingException {
+		server = FakeSmtpServer.builder().withLatency(2).build();
+		session = Session.getInstance(server.serverInfo().build().getProperties());
+		PipeliningSMTPTransport.register(session);
+		transport = session.getTransport("smtp");
+		assertTrue(transport instanceof PipeliningSMTPTransport);
+		transport.addTransportListener(new TransportAdapter() {
+			@Override
+			public void messageDelivered(final TransportEvent e) {
+				events.add(e);
+			}
+
+			@Override
+			public void messageNotDelivered(final TransportEvent e) {
+				events.add(e);
+			}
+		});
+		transport.connect("user", "password");
+	}
+
+	@AfterEach
+	void close() throws MessagingException {
+		transport.close();
+		server.close();
+	}
+
+	/**
+	 * Test if accepted, rejected, and temporarily rejected recipients are reported in the
+	 * {@link SendFailedException} and the {@link TransportEvent}s, and if the connection can be
+	 * used again afterwards.
+	 */
+	@Test
+	void testAcceptedAndRejected() throws MessagingException, InterruptedException {
+		server.rejectRecipient("bad@email.com", 550);
+		server.rejectRecipient("full@email.com", 452);
+		final Address[] recipients = InternetAddress.parse("a@email.com, bad@email.com, b@email.com, full@email.com");
+		final SendFailedException ex = assertThrows(SendFailedException.class,
+				() -> transport.sendMessage(message(recipients), recipients));
+		assertNull(ex.getValidSentAddresses());
+		assertArrayEquals(InternetAddress.parse("a@email.com, b@email.com, full@email.com"),
+				ex.getValidUnsentAddresses());
+		assertArrayEquals(InternetAddress.parse("bad@email.com"), ex.getInvalidAddresses());
+		final TransportEvent notDelivered = events.poll(10, TimeUnit.SECONDS);
+		assertEquals(TransportEvent.MESSAGE_NOT_DELIVERED, notDelivered.getType());
+		assertArrayEquals(ex.getValidUnsentAddresses(), notDelivered.getValidUnsentAddresses());
+		assertArrayEquals(ex.getInvalidAddresses(), notDelivered.getInvalidAddresses());
+
+		final Address[] valid = InternetAddress.parse("a@email.com, b@email.com");
+		transport.sendMessage(message(valid), valid);
+		final TransportEvent delivered = events.poll(10, TimeUnit.SECONDS);
+		assertEquals(TransportEvent.MESSAGE_DELIVERED, delivered.getType());
+		assertArrayEquals(valid, delivered.getValidSentAddresses());
+		assertEquals(1, server.getMessageCount());
+		assertEquals(Arrays.asList("a@email.com", "b@email.com"), server.getMessages().get(0).getRecipients());
+		assertEquals(1, server.getConnectionCount());
+	}
+
+	/**
+	 * Test if an email with more recipients than can be outstanding at once is sent to all of
+	 * them, and if a recipient rejected in the last window is reported.
+	 */
+	@Test
+	void testManyRecipients() throws MessagingException {
+		final int count = PipeliningSMTPTransport.MAX_OUTSTANDING_COMMANDS * 2 + 50;
+		final List<String> addresses = new ArrayList<>();
+		final Address[] recipients = new Address[count];
+		for (int i = 0; i < count; i++) {
+			addresses.add("user" + i + "@email.com");
+			recipients[i] = new InternetAddress(addresses.get(i));
+		}
+		server.rejectRecipient(addresses.get(count - 1), 550);
+		final SendFailedException ex = assertThrows(SendFailedException.class,
+				() -> transport.sendMessage(message(recipients), recipients));
+		assertArrayEquals(new Address[] { recipients[count - 1] }, ex.getInvalidAddresses());
+		assertEquals(count - 1, ex.getValidUnsentAddresses().length);
+
+		final Address[] valid = Arrays.copyOf(recipients, count - 1);
+		transport.sendMessage(message(valid), valid);
+		assertEquals(1, server.getMessageCount());
+		assertEquals(addresses.subList(0, count - 1), server.getMessages().get(0).getRecipients());
+	}
+
+	private MimeMessage message(final Address[] recipients) throws MessagingException {
+		final MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress("sender@email.com"));
+		message.setRecipients(Message.RecipientType.BCC, recipients);
+		message.setSubject("Subject");
+		message.setText("Body");
+		message.saveChanges();
+		return message;
+	}
+}
@@ -0,0 +1,91 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Test class for the {@link RecordSource} implementations.
+ * @author LieutenantPeacock
+ *
+ */
+public class RecordSourceTest {
+	private static final EmailTemplate TEMPLATE = TestData.template()
+			.withBody(Arrays.asList("Your code is ${CODE}"))
+			.build();
+
+	/**
+	 * Test if JSON Lines data is read with the columns of the first object, including escapes,
+	 * non-string values, and missing or extra members.
+	 */
+	@Test
+	void testJsonLines() throws IOException {
+		final String data = "{\"NAME\": \"A \\\"B\\\" \\u00e9\", \"EMAIL\": \"a@email.com\", \"CODE\": 42}\n"
+				+ "\n"
+				+ "{\"EMAIL\":\"b@email.com\",\"EXTRA\":true,\"CODE\":null}\n";
+		try (RecordSource source = new JsonLinesRecordSource(new StringReader(data))) {
+			assertEquals(Arrays.asList("NAME", "EMAIL", "CODE"), new ArrayList<>(source.getHeaderMap().keySet()));
+			final DataRecord first = source.next();
+			assertEquals("A \"B\" é", first.get("NAME"));
+			assertEquals("42", first.get("CODE"));
+			final DataRecord second = source.next();
+			assertEquals("", second.get("NAME"));
+			assertEquals("b@email.com", second.get("EMAIL"));
+			assertEquals("", second.get("CODE"));
+			assertNull(source.next());
+		}
+		try (RecordSource source = new JsonLinesRecordSource(
+				new StringReader("{\"EMAIL\":\"a@email.com\"}\n{\"EMAIL\":[\"b@email.com\"]}\n"))) {
+			source.next();
+			final IOException e = assertThrows(IOException.class, source::next);
+			assertEquals("Invalid JSON on line 2 at column 10: nested objects and arrays are not supported",
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Test if emails are sent for the rows of a database query, with the columns available
+	 * under their upper case labels, and if the connection is closed afterwards, or when the
+	 * query cannot be run.
+	 */
+	@Test
+	void testJdbc() throws SQLException, MailSendingException, IOException {
+		final String url = "jdbc:h2:mem:recipients;DB_CLOSE_DELAY=-1";
+		try (Connection setup = DriverManager.getConnection(url); Statement statement = setup.createStatement()) {
+			statement.execute("CREATE TABLE RECIPIENTS (ID INT PRIMARY KEY, \"name\" VARCHAR(50), EMAIL VARCHAR(50),"
+					+ " CODE INT)");
+			for (int i = 1; i <= 25; i++) {
+				statement.execute("INSERT INTO RECIPIENTS VALUES (" + i + ", 'N" + i + "', '" + i + "@email.com', "
+						+ (i % 5 == 0 ? "NULL" : String.valueOf(i * 10)) + ")");
+			}
+			final List<String> sent = new ArrayList<>();
+			final Connection connection = DriverManager.getConnection(url);
+			try (RecordSource source = JdbcRecordSource.open(connection,
+					"SELECT \"name\", EMAIL, CODE FROM RECIPIENTS ORDER BY ID", 4)) {
+				assertTrue(source.getHeaderMap().containsKey("name"));
+				MailWorker.builder()
+						.withMailSender((to, cc, bcc, subject, body, contentType, attachments) -> sent
+								.add(to[0] + ' ' + subject + ' ' + body))
+						.build().sendTemplatedEmails(source, TEMPLATE, 3, 5);
+			}
+			assertEquals(Arrays.asList("3@email.com Hello N3 Your code is 30", "4@email.com Hello N4 Your code is 40",
+					"5@email.com Hello N5 Your code is "), sent);
+			assertTrue(connection.isClosed());
+			final Connection failed = DriverManager.getConnection(url);
+			assertThrows(SQLException.class, () -> JdbcRecordSource.open(failed, "SELECT * FROM MISSING", 4));
+			assertTrue(failed.isClosed());
+		}
+	}
+}
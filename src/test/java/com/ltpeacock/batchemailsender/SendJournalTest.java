@@ -0,0 +1,84 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for {@link SendJournal}.
+ * @author LieutenantPeacock
+ *
+ */
+public class SendJournalTest {
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if the outcomes recorded in a journal are loaded again when it is reopened.
+	 */
+	@Test
+	void testReopen() throws IOException {
+		final File file = new File(tempDir, "Data.journal");
+		try (SendJournal journal = SendJournal.open(file)) {
+			journal.record(1, SendJournal.Status.SENT);
+			journal.record(2, SendJournal.Status.FAILED);
+			journal.record(3, SendJournal.Status.SKIPPED);
+			journal.record(100_000, SendJournal.Status.SENT);
+			assertTrue(journal.isCompleted(1));
+			assertFalse(journal.isCompleted(2));
+		}
+		try (SendJournal journal = SendJournal.open(file)) {
+			assertTrue(journal.isCompleted(1));
+			assertFalse(journal.isCompleted(2));
+			assertTrue(journal.isCompleted(3));
+			assertFalse(journal.isCompleted(4));
+			assertTrue(journal.isCompleted(100_000));
+			assertEquals(3, journal.getCompletedCount());
+			journal.record(2, SendJournal.Status.SENT);
+		}
+		try (SendJournal journal = SendJournal.open(file)) {
+			assertTrue(journal.isCompleted(2));
+		}
+	}
+
+	/**
+	 * Test if a partially written last entry is discarded when a journal is reopened.
+	 */
+	@Test
+	void testTornEntry() throws IOException {
+		final File file = new File(tempDir, "Data.journal");
+		try (SendJournal journal = SendJournal.open(file)) {
+			journal.record(1, SendJournal.Status.SENT);
+			journal.record(2, SendJournal.Status.SENT);
+		}
+		final long size = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(size - 2);
+		}
+		try (SendJournal journal = SendJournal.open(file)) {
+			assertTrue(journal.isCompleted(1));
+			assertFalse(journal.isCompleted(2));
+			journal.record(3, SendJournal.Status.SENT);
+		}
+		try (SendJournal journal = SendJournal.open(file)) {
+			assertTrue(journal.isCompleted(3));
+			assertEquals(2, journal.getCompletedCount());
+		}
+	}
+
+	/**
+	 * Test if a file that is not a journal is rejected.
+	 */
+	@Test
+	void testNotJournal() throws IOException {
+		final File file = new File(tempDir, "Data.csv");
+		Files.write(file.toPath(), "NAME,EMAIL\r\n".getBytes());
+		assertThrows(IOException.class, () -> SendJournal.open(file));
+	}
+}
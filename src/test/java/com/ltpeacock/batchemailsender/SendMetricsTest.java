@@ -0,0 +1,128 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import com.ltpeacock.batchemailsender.SendMetrics.Phase;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Test class for {@link SendMetrics}, {@link LatencyHistogram}, and {@link MetricsHttpServer}.
+ * @author LieutenantPeacock
+ *
+ */
+public class SendMetricsTest {
+	private static final String DATA = TestData.data(3);
+
+	/**
+	 * Test if no email is lost from the sending rate when the seconds change while emails are
+	 * being recorded by several threads, and if seconds that have left the window are not counted.
+	 */
+	@Test
+	void testEmailsPerMinute() throws InterruptedException {
+		final AtomicLong now = new AtomicLong();
+		final SendMetrics metrics = new SendMetrics(now::get);
+		final AtomicBoolean done = new AtomicBoolean();
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				while (!done.get()) {
+					metrics.emailSent(1);
+				}
+			});
+			threads[i].start();
+		}
+		for (int second = 1; second <= 50; second++) {
+			Thread.sleep(1);
+			now.set(TimeUnit.SECONDS.toNanos(second));
+		}
+		done.set(true);
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		now.set(TimeUnit.SECONDS.toNanos(51));
+		assertEquals(metrics.getEmailsSent(), Math.round(metrics.getEmailsPerMinute() * 51 / 60));
+		now.set(TimeUnit.SECONDS.toNanos(200));
+		assertEquals(0, metrics.getEmailsPerMinute());
+	}
+
+	/**
+	 * Test if every value maps to a bucket whose upper bound is at least the value and within about
+	 * 3% of it, and if percentiles are read from the buckets.
+	 */
+	@Test
+	void testHistogram() {
+		for (long micros = 0; micros < 10_000_000; micros = micros * 3 / 2 + 1) {
+			final long upperBound = LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(micros));
+			assertTrue(upperBound >= micros, "upper bound of " + micros);
+			assertTrue(upperBound - micros <= micros / 32, "error for " + micros);
+		}
+		final LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentileMillis(99));
+		for (int millis = 1; millis <= 100; millis++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(50.5, histogram.getMeanMillis(), 1e-9);
+		assertEquals(100, histogram.getMaxMillis(), 1e-9);
+		assertEquals(50, histogram.getPercentileMillis(50), 50 / 32d);
+		assertEquals(99, histogram.getPercentileMillis(99), 99 / 32d);
+		assertEquals(100, histogram.getPercentileMillis(100), 1e-9);
+	}
+
+	/**
+	 * Test if sending to a {@link FakeSmtpServer} records every phase and the outcome of every email
+	 * until one is rejected, and if the metrics are served over HTTP.
+	 */
+	@Test
+	void testSendMetrics() throws MailSendingException, IOException {
+		final SendMetrics metrics = new SendMetrics();
+		try (FakeSmtpServer server = FakeSmtpServer.builder().build()) {
+			server.rejectRecipient("c@email.com", 550);
+			try (BasicMailSender mailSender = BasicMailSender.builder().withServerInfo(server.serverInfo().build())
+					.withMetrics(metrics).build()) {
+				assertThrows(MailSendingException.class, () -> MailWorker.builder().withMailSender(mailSender)
+						.withMetrics(metrics).build()
+						.sendTemplatedEmails(TestData.csv(DATA), TestData.TEMPLATE));
+			}
+		}
+		assertEquals(3, metrics.getRowsRead());
+		assertEquals(2, metrics.getEmailsSent());
+		assertEquals(1, metrics.getEmailsFailed());
+		assertEquals(2, metrics.getRecipients());
+		assertEquals(3, metrics.getHistogram(Phase.CSV_READ).getCount());
+		assertEquals(3, metrics.getHistogram(Phase.RENDER).getCount());
+		assertEquals(3, metrics.getHistogram(Phase.MIME_BUILD).getCount());
+		assertTrue(metrics.getHistogram(Phase.CONNECT).getCount() >= 1);
+		assertTrue(metrics.getHistogram(Phase.SMTP_SEND).getCount() >= 3);
+
+		try (MetricsHttpServer metricsServer = new MetricsHttpServer(metrics, 0)) {
+			final HttpURLConnection connection = (HttpURLConnection) new URL(
+					"http://localhost:" + metricsServer.getPort() + "/metrics").openConnection();
+			assertEquals(200, connection.getResponseCode());
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream is = connection.getInputStream()) {
+				final byte[] buffer = new byte[8192];
+				for (int read; (read = is.read(buffer)) != -1;) {
+					body.write(buffer, 0, read);
+				}
+			}
+			final String text = new String(body.toByteArray(), StandardCharsets.UTF_8);
+			assertTrue(text.contains("batchemailsender_emails_sent_total 2\n"), text);
+			assertTrue(text.contains("batchemailsender_emails_failed_total 1\n"), text);
+			assertTrue(text.contains("batchemailsender_phase_seconds_count{phase=\"render\"} 3\n"), text);
+			assertTrue(text.contains("batchemailsender_phase_seconds{phase=\"smtp_send\",quantile=\"0.99\"}"), text);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Test class for {@link ShardSpec} and {@link ShardCoverage}.
+ * @author LieutenantPeacock
+ *
+ */
+public class ShardCoverageTest {
+	private static final String DATA = TestData.data(5);
+
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if every row belongs to exactly one shard, both by row number and by key column.
+	 */
+	@Test
+	void testEveryRowInOneShard() throws IOException {
+		for (final String keyColumn : new String[] { null, "EMAIL" }) {
+			final RecordSource source = new CsvRecordSource(new StringReader(DATA));
+			int rowNum = 0;
+			for (DataRecord record; (record = source.next()) != null;) {
+				++rowNum;
+				int shards = 0;
+				for (int i = 1; i <= 3; i++) {
+					if (ShardSpec.parse(i + "/3", keyColumn).includes(rowNum, record)) {
+						++shards;
+					}
+				}
+				assertEquals(1, shards);
+			}
+		}
+	}
+
+	/**
+	 * Test if the journals of all shards cover every row, and if a row sent by two shards is found.
+	 */
+	@Test
+	void testCoverage() throws IOException, MailSendingException {
+		final File journal1 = new File(tempDir, "Data.shard1of2.journal");
+		final File journal2 = new File(tempDir, "Data.shard2of2.journal");
+		send(new ShardSpec(1, 2, "EMAIL"), journal1);
+		final ShardCoverage partial = ShardCoverage.check(5, Collections.singletonList(journal1));
+		assertFalse(partial.isComplete());
+		assertFalse(partial.getMissingRows().isEmpty());
+		send(new ShardSpec(2, 2, "EMAIL"), journal2);
+		final ShardCoverage complete = ShardCoverage.check(5, Arrays.asList(journal1, journal2));
+		assertTrue(complete.isComplete());
+		assertTrue(complete.getDuplicatedRows().isEmpty());
+		final int sentByShard1 = partial.getMissingRows().nextClearBit(1);
+		assertTrue(sentByShard1 <= 5);
+		try (SendJournal journal = SendJournal.open(journal2)) {
+			journal.record(sentByShard1, SendJournal.Status.SENT);
+		}
+		final ShardCoverage duplicated = ShardCoverage.check(5, Arrays.asList(journal1, journal2));
+		assertFalse(duplicated.isComplete());
+		assertEquals(1, duplicated.getDuplicatedRows().cardinality());
+	}
+
+	/**
+	 * Test if rows are formatted as ranges.
+	 */
+	@Test
+	void testFormatRows() {
+		final BitSet rows = new BitSet();
+		rows.set(3, 6);
+		rows.set(9);
+		rows.set(11, 13);
+		assertEquals("3-5, 9, 11-12", ShardCoverage.formatRows(rows));
+	}
+
+	private static void send(final ShardSpec shard, final File journalFile) throws IOException, MailSendingException {
+		try (SendJournal journal = SendJournal.open(journalFile)) {
+			MailWorker.builder().withMailSender((to, cc, bcc, subject, body, contentType, attachments) -> {
+			}).withShard(shard).withJournal(journal).build()
+					.sendTemplatedEmails(TestData.csv(DATA), TestData.TEMPLATE);
+		}
+	}
+}
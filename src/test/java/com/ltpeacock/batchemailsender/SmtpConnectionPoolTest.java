@@ -0,0 +1,117 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link SmtpConnectionPool}, sending to a {@link FakeSmtpServer}.
+ * @author LieutenantPeacock
+ *
+ */
+public class SmtpConnectionPoolTest {
+	private FakeSmtpServer server;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = FakeSmtpServer.builder().build();
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.close();
+	}
+
+	/**
+	 * Test if a returned connection is reused for the next email until it has sent the maximum
+	 * number of emails.
+	 */
+	@Test
+	void testBorrowAndReturn() throws MessagingException {
+		final MailServerInfo serverInfo = server.serverInfo().withMaxMessagesPerConnection(2).build();
+		final Session session = Session.getInstance(serverInfo.getProperties());
+		try (SmtpConnectionPool pool = new SmtpConnectionPool(session, serverInfo, null)) {
+			pool.send(message(session, "a@email.com"));
+			assertEquals(1, pool.getIdleCount());
+			pool.send(message(session, "b@email.com"));
+			assertEquals(0, pool.getIdleCount());
+			assertEquals(1, server.getConnectionCount());
+			for (int i = 0; i < 3; i++) {
+				pool.send(message(session, "c@email.com"));
+			}
+			assertEquals(1, pool.getIdleCount());
+		}
+		assertEquals(5, server.getMessageCount());
+		assertEquals(3, server.getConnectionCount());
+	}
+
+	/**
+	 * Test if idle connections are closed once the idle timeout has passed, without another email
+	 * being sent, and if the next email opens a new connection.
+	 */
+	@Test
+	void testIdleEviction() throws MessagingException, InterruptedException {
+		final MailServerInfo serverInfo = server.serverInfo().withConnectionIdleTimeout(100).build();
+		final Session session = Session.getInstance(serverInfo.getProperties());
+		try (SmtpConnectionPool pool = new SmtpConnectionPool(session, serverInfo, null)) {
+			pool.send(message(session, "a@email.com"));
+			assertEquals(1, pool.getIdleCount());
+			awaitTrue(() -> pool.getIdleCount() == 0);
+			awaitTrue(() -> server.getOpenConnectionCount() == 0);
+			pool.send(message(session, "b@email.com"));
+		}
+		assertEquals(2, server.getMessageCount());
+		assertEquals(2, server.getConnectionCount());
+	}
+
+	/**
+	 * Test if a connection closed by the mail server while idle is replaced when it is borrowed,
+	 * and if an email is sent again over a new connection when the connection is lost before the
+	 * message content is sent.
+	 */
+	@Test
+	void testBrokenConnection() throws MessagingException {
+		final MailServerInfo serverInfo = server.serverInfo().build();
+		final Session session = Session.getInstance(serverInfo.getProperties());
+		try (SmtpConnectionPool pool = new SmtpConnectionPool(session, serverInfo, null)) {
+			pool.send(message(session, "a@email.com"));
+			server.dropConnectionOn("RSET");
+			pool.send(message(session, "b@email.com"));
+			assertEquals(2, server.getConnectionCount());
+			server.dropConnectionOn("MAIL");
+			pool.send(message(session, "c@email.com"));
+			assertEquals(3, server.getConnectionCount());
+			assertEquals(1, pool.getIdleCount());
+		}
+		assertEquals(3, server.getMessageCount());
+		assertEquals("c@email.com", server.getMessages().get(2).getRecipients().get(0));
+	}
+
+	private static Message message(final Session session, final String to) throws MessagingException {
+		final MimeMessage message = new MimeMessage(session);
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress(to));
+		message.setSubject("Subject");
+		message.setText("Body");
+		message.saveChanges();
+		return message;
+	}
+
+	private static void awaitTrue(final BooleanSupplier condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "condition not met in time");
+			Thread.sleep(10);
+		}
+	}
+}
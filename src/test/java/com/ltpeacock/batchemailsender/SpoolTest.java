@@ -0,0 +1,185 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ltpeacock.batchemailsender.FakeSmtpServer.ReceivedMessage;
+import com.ltpeacock.batchemailsender.exception.ErrorCode;
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Test class for {@link SpoolRenderer} and {@link SpoolDrainer}.
+ * @author LieutenantPeacock
+ *
+ */
+public class SpoolTest {
+	private static final EmailTemplate TEMPLATE = TestData.template()
+			.withBcc(Arrays.asList("${BCC}"))
+			.withBody(Arrays.asList("Dear ${NAME},"))
+			.build();
+
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if every row that is not skipped is rendered into the spool, if only missing segments
+	 * are rendered again, and if draining sends each email once to all of its recipients, passing
+	 * over rows already sent according to the journal, dated when it is sent and archived with
+	 * the paths of its attachments.
+	 */
+	@Test
+	void testRenderAndDrain() throws IOException, MailSendingException {
+		final File attachment = new File(tempDir, "Report.txt");
+		Files.write(attachment.toPath(), Arrays.asList("Attached report"));
+		final EmailTemplate template = TestData.template()
+				.withBcc(TEMPLATE.getBcc())
+				.withBody(TEMPLATE.getBody())
+				.withAttachments(Arrays.asList("${FILE}"))
+				.build();
+		final StringBuilder data = new StringBuilder("NAME,EMAIL,BCC,FILE,SKIP_RECORD\r\n");
+		final Set<String> expectedRecipients = new TreeSet<>();
+		for (int row = 1; row <= 25; row++) {
+			final boolean skip = row == 7;
+			data.append("Name ").append(row).append(",row").append(row).append("@email.com,")
+					.append(row == 10 ? "hidden@email.com" : "").append(',')
+					.append(row == 10 ? attachment.getAbsolutePath() : "").append(',').append(skip).append("\r\n");
+			if (!skip) {
+				expectedRecipients.add("row" + row + "@email.com");
+			}
+		}
+		expectedRecipients.add("hidden@email.com");
+		final File dataFile = new File(tempDir, "Data.csv");
+		Files.write(dataFile.toPath(), data.toString().getBytes(StandardCharsets.UTF_8));
+		final File spoolDir = new File(tempDir, "spool");
+		try (BasicMailSender builder = BasicMailSender.builder()
+				.withServerInfo(MailServerInfo.builder().withHost("localhost").withPort("25").build()).build()) {
+			final SpoolRenderer renderer = SpoolRenderer.builder().withMailSender(builder).withThreads(3)
+					.withChunkRows(4).build();
+			assertEquals(24, renderer.render(dataFile, StandardCharsets.UTF_8, template, spoolDir));
+			final File[] segments = MessageSpool.listSegments(spoolDir);
+			assertEquals(7, segments.length);
+			assertEquals("rows-0000000001-0000000004.spool", segments[0].getName());
+			assertEquals("rows-0000000025-0000000025.spool", segments[6].getName());
+			assertTrue(segments[2].delete());
+			assertEquals(4, renderer.render(dataFile, StandardCharsets.UTF_8, template, spoolDir));
+			try (MessageSpool.SegmentReader reader = new MessageSpool.SegmentReader(segments[0])) {
+				final String spooled = new String(reader.next().message, StandardCharsets.US_ASCII);
+				assertFalse(spooled.startsWith("Date:") || spooled.contains("\r\nDate:"), spooled);
+			}
+		}
+		final File journalFile = new File(spoolDir, "sent.journal");
+		final File archiveFile = new File(tempDir, "spool.archive");
+		try (FakeSmtpServer server = FakeSmtpServer.builder().build()) {
+			try (BasicMailSender mailSender = BasicMailSender.builder()
+					.withServerInfo(server.serverInfo().build()).build();
+					SendJournal journal = SendJournal.open(journalFile);
+					EmailArchive archive = EmailArchive.open(archiveFile)) {
+				assertEquals(24, SpoolDrainer.builder().withMailSender(mailSender).withThreads(2)
+						.withJournal(journal).withArchive(archive).build().drain(spoolDir));
+			}
+			final List<ReceivedMessage> messages = server.getMessages();
+			assertEquals(24, messages.size());
+			final Set<String> recipients = new TreeSet<>();
+			for (final ReceivedMessage message : messages) {
+				recipients.addAll(message.getRecipients());
+				assertFalse(message.getData().contains("Bcc:"), message.getData());
+				assertTrue(message.getData().contains("\r\nDate: "), message.getData());
+			}
+			assertEquals(expectedRecipients, recipients);
+			try (EmailArchiveReader reader = EmailArchiveReader.open(archiveFile)) {
+				assertEquals(24, reader.getArchivedRows().cardinality());
+				assertNull(reader.read(7));
+				final ArchivedEmail email = reader.read(10);
+				assertArrayEquals(new String[] { "row10@email.com" }, email.getTo());
+				assertArrayEquals(new String[] { "hidden@email.com" }, email.getBcc());
+				assertEquals("Hello Name 10", email.getSubject());
+				assertTrue(email.getBody().startsWith("Dear Name 10,"), email.getBody());
+				assertArrayEquals(new File[] { attachment.getAbsoluteFile() }, email.getAttachments());
+			}
+			try (BasicMailSender mailSender = BasicMailSender.builder()
+					.withServerInfo(server.serverInfo().build()).build();
+					SendJournal journal = SendJournal.open(journalFile)) {
+				assertEquals(0, SpoolDrainer.builder().withMailSender(mailSender).withJournal(journal).build()
+						.drain(spoolDir));
+			}
+			assertEquals(24, server.getMessageCount());
+		}
+	}
+
+	/**
+	 * Test if draining with a retry policy retries emails with transient failures, writes emails
+	 * with permanent failures to the dead letters without retrying them, and carries on sending,
+	 * and if a connection lost after the end of the data counts as a permanent failure.
+	 */
+	@Test
+	void testDrainRetry() throws IOException, MailSendingException {
+		final StringBuilder data = new StringBuilder("NAME,EMAIL,BCC\r\n");
+		for (int row = 1; row <= 5; row++) {
+			data.append("Name ").append(row).append(",row").append(row).append("@email.com,\r\n");
+		}
+		final File dataFile = new File(tempDir, "Data.csv");
+		Files.write(dataFile.toPath(), data.toString().getBytes(StandardCharsets.UTF_8));
+		final File spoolDir = new File(tempDir, "spool");
+		try (BasicMailSender builder = BasicMailSender.builder()
+				.withServerInfo(MailServerInfo.builder().withHost("localhost").withPort("25").build()).build()) {
+			assertEquals(5, SpoolRenderer.builder().withMailSender(builder).build().render(dataFile,
+					StandardCharsets.UTF_8, TEMPLATE, spoolDir));
+		}
+		final AtomicInteger throttledAttempts = new AtomicInteger();
+		final Set<Integer> sent = Collections.synchronizedSet(new TreeSet<>());
+		final RawMailSender flaky = new RawMailSender() {
+			@Override
+			public void sendEmail(String[] to, String[] cc, String[] bcc, String subject, String body,
+					String contentType, File[] attachments) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void sendRawEmail(final byte[] message) throws MailSendingException {
+				final String content = new String(message, StandardCharsets.US_ASCII);
+				if (content.contains("row2@email.com") && throttledAttempts.incrementAndGet() < 3) {
+					throw new MailSendingException(ErrorCode.THROTTLED, "Try again later");
+				}
+				if (content.contains("row3@email.com")) {
+					throw new MailSendingException(ErrorCode.ERROR_SENDING, new SMTPSendFailedException(
+							PipeliningSMTPTransport.END_OF_DATA, SmtpReplies.NO_REPLY, "No reply", null, null, null,
+							null), true);
+				}
+				final int start = content.indexOf("Hello Name ") + "Hello Name ".length();
+				sent.add(Integer.parseInt(content.substring(start, start + 1)));
+			}
+		};
+		assertThrows(MailSendingException.class,
+				() -> SpoolDrainer.builder().withMailSender(flaky).build().drain(spoolDir));
+		throttledAttempts.set(0);
+		sent.clear();
+		final File deadLetterFile = new File(tempDir, "NotSent.csv");
+		try (SendJournal journal = SendJournal.open(new File(tempDir, "sent.journal"));
+				DeadLetterFile deadLetters = new DeadLetterFile(deadLetterFile)) {
+			assertEquals(4, SpoolDrainer.builder().withMailSender(flaky).withThreads(2).withJournal(journal)
+					.withRetryPolicy(RetryPolicy.builder().withMaxAttempts(3).withInitialDelayMillis(10).build())
+					.withDeadLetterFile(deadLetters).build().drain(spoolDir));
+			assertEquals(4, journal.getCompletedCount());
+			assertFalse(journal.isCompleted(3));
+		}
+		assertEquals(3, throttledAttempts.get());
+		assertEquals(new TreeSet<>(Arrays.asList(1, 2, 4, 5)), sent);
+		final List<String> lines = Files.readAllLines(deadLetterFile.toPath());
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(1).startsWith("3,row3@email.com,,,0003,,PERMANENT,1,"), lines.get(1));
+	}
+}
@@ -0,0 +1,109 @@
+package com.ltpeacock.batchemailsender;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.mail.BodyPart;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.ltpeacock.batchemailsender.exception.MailSendingException;
+
+/**
+ * Test class for {@link StreamingMimeMessage}, parsing the streamed output back and comparing
+ * it with the same email built as a tree of body parts.
+ * @author LieutenantPeacock
+ *
+ */
+public class StreamingMimeMessageTest {
+	private static final String BODY = "Dear John,\r\n\r\n"
+			+ "A line that is much longer than the seventy-six characters allowed on a line of quoted-printable text.\r\n"
+			+ ".A line starting with a dot, a = sign, and trailing spaces   \r\n"
+			+ "From the sender\r\n";
+
+	@TempDir
+	File tempDir;
+
+	/**
+	 * Test if the headers, body, and attachments of a streamed email, with attachments from the
+	 * cache and read from their files, are the same as those of the email built as body parts.
+	 */
+	@Test
+	void testSameAsMimeMessage() throws IOException, MessagingException, MailSendingException {
+		final File text = new File(tempDir, "Report.txt");
+		Files.write(text.toPath(), Arrays.asList("Attached report", "", "with three lines"));
+		final File binary = new File(tempDir, "Data.bin");
+		final byte[] data = new byte[100_000];
+		new Random(1).nextBytes(data);
+		Files.write(binary.toPath(), data);
+		final File[] attachments = { text, binary };
+		final AttachmentCache cache = new AttachmentCache(1024);
+		final MimeMessage expected = write(false, attachments, null);
+		for (final AttachmentCache attachmentCache : new AttachmentCache[] { null, cache }) {
+			final MimeMessage actual = write(true, attachments, attachmentCache);
+			assertEquals(expected.getSubject(), actual.getSubject());
+			assertArrayEquals(expected.getRecipients(Message.RecipientType.TO),
+					actual.getRecipients(Message.RecipientType.TO));
+			assertArrayEquals(expected.getRecipients(Message.RecipientType.CC),
+					actual.getRecipients(Message.RecipientType.CC));
+			assertArrayEquals(expected.getRecipients(Message.RecipientType.BCC),
+					actual.getRecipients(Message.RecipientType.BCC));
+			final Multipart expectedParts = (Multipart) expected.getContent();
+			final Multipart actualParts = (Multipart) actual.getContent();
+			assertTrue(actual.isMimeType("multipart/mixed"));
+			assertEquals(expectedParts.getCount(), actualParts.getCount());
+			assertEquals(BODY, actualParts.getBodyPart(0).getContent());
+			assertEquals(expectedParts.getBodyPart(0).getContent(), actualParts.getBodyPart(0).getContent());
+			assertTrue(actualParts.getBodyPart(0).isMimeType(MailContentTypes.TEXT));
+			for (int i = 1; i < expectedParts.getCount(); i++) {
+				final BodyPart expectedPart = expectedParts.getBodyPart(i);
+				final BodyPart actualPart = actualParts.getBodyPart(i);
+				assertEquals(expectedPart.getFileName(), actualPart.getFileName());
+				assertEquals(expectedPart.getDisposition(), actualPart.getDisposition());
+				assertEquals(new ContentType(expectedPart.getContentType()).getBaseType(),
+						new ContentType(actualPart.getContentType()).getBaseType());
+				assertArrayEquals(readAll(expectedPart.getInputStream()), readAll(actualPart.getInputStream()));
+			}
+			assertArrayEquals(data, readAll(actualParts.getBodyPart(2).getInputStream()));
+		}
+		// only the text file fits in the cache
+		assertEquals(AttachmentCache.encodedLength(text.length()), cache.getTotalBytes());
+	}
+
+	private static MimeMessage write(final boolean streamingMime, final File[] attachments,
+			final AttachmentCache attachmentCache) throws MailSendingException, MessagingException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (BasicMailSender mailSender = BasicMailSender.builder()
+				.withServerInfo(MailServerInfo.builder().withHost("localhost").withPort("25").build())
+				.withDryRun(true).withStreamingMime(streamingMime).withAttachmentCache(attachmentCache).build()) {
+			mailSender.writeEmail(new String[] { "a@email.com", "b@email.com" }, new String[] { "c@email.com" },
+					new String[] { "d@email.com" }, "Monthly report", BODY, MailContentTypes.TEXT, attachments, out);
+		}
+		return new MimeMessage(Session.getInstance(System.getProperties()),
+				new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private static byte[] readAll(final InputStream is) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		for (int n; (n = is.read(buffer)) != -1;) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
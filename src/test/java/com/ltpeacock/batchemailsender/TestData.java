@@ -0,0 +1,62 @@
+package com.ltpeacock.batchemailsender;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Sample CSV data and email template shared by the tests.
+ * @author LieutenantPeacock
+ *
+ */
+final class TestData {
+	private static final String[] ROWS = {
+			"A,a@email.com,1",
+			"B,b@email.com,2",
+			"C,c@email.com,1",
+			"D,d@email.com,1",
+			"E,e@email.com,2",
+			"F,f@email.com,1" };
+	/** Six rows of CSV data with a name, an email address, and a group of 1 or 2. */
+	static final String DATA = data(ROWS.length);
+	/** An email to {@code ${EMAIL}} with the subject and body {@code Hello ${NAME}}. */
+	static final EmailTemplate TEMPLATE = template().build();
+
+	private TestData() {
+	}
+
+	/**
+	 * @param rows The number of rows, up to six.
+	 * @return The first rows of {@link #DATA}, with its header.
+	 */
+	static String data(final int rows) {
+		final StringBuilder data = new StringBuilder("NAME,EMAIL,GROUP\r\n");
+		for (int i = 0; i < rows; i++) {
+			data.append(ROWS[i]).append("\r\n");
+		}
+		return data.toString();
+	}
+
+	/**
+	 * @return A builder set up like {@link #TEMPLATE}, for tests that need a different template.
+	 */
+	static EmailTemplate.Builder template() {
+		return EmailTemplate.builder()
+				.withTo(Arrays.asList("${EMAIL}"))
+				.withCc(Collections.emptyList())
+				.withBcc(Collections.emptyList())
+				.withSubject("Hello ${NAME}")
+				.withBody(Arrays.asList("Hello ${NAME}"))
+				.withAttachments(Collections.emptyList());
+	}
+
+	/**
+	 * @param data CSV data.
+	 * @return A stream of the data in UTF-8.
+	 */
+	static InputStream csv(final String data) {
+		return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,53 @@
+package com.ltpeacock.batchemailsender.cli;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractOutputStreamAppender;
+import org.apache.logging.log4j.core.config.ConfigurationSource;
+import org.apache.logging.log4j.core.config.xml.XmlConfiguration;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for the logging configuration in {@code log4j2.xml}.
+ * @author LieutenantPeacock
+ *
+ */
+public class LoggingConfigTest {
+	private static final String[] FILE_APPENDERS = { "File", "EmailArchive", "ErrorNotSent" };
+
+	/**
+	 * Test if the log files are flushed after every event by default, as needed when logging
+	 * synchronously, and only at the end of each batch when asynchronous logging turns it off.
+	 */
+	@Test
+	void testImmediateFlush() throws IOException {
+		assertNull(System.getProperty(BatchMailSender.IMMEDIATE_FLUSH_PROPERTY));
+		assertImmediateFlush(true);
+		System.setProperty(BatchMailSender.IMMEDIATE_FLUSH_PROPERTY, "false");
+		try {
+			assertImmediateFlush(false);
+		} finally {
+			System.clearProperty(BatchMailSender.IMMEDIATE_FLUSH_PROPERTY);
+		}
+	}
+
+	private static void assertImmediateFlush(final boolean expected) throws IOException {
+		final LoggerContext context = new LoggerContext("LoggingConfigTest");
+		try (InputStream is = LoggingConfigTest.class.getResourceAsStream("/log4j2.xml")) {
+			final XmlConfiguration config = new XmlConfiguration(context, new ConfigurationSource(is));
+			config.initialize();
+			try {
+				for (final String name : FILE_APPENDERS) {
+					final AbstractOutputStreamAppender<?> appender = config.getAppender(name);
+					assertEquals(expected, appender.getImmediateFlush(), name);
+				}
+			} finally {
+				config.stop();
+			}
+		}
+	}
+}